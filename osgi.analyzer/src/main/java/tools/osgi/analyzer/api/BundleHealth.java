@@ -0,0 +1,79 @@
+package tools.osgi.analyzer.api;
+
+import org.osgi.framework.Bundle;
+
+/** Diagnostics of a single bundle as last computed by the container health monitor */
+public class BundleHealth {
+   private Bundle bundle;
+   private boolean refreshRequired;
+   private boolean removalPending;
+   private boolean usesConflict;
+
+   public BundleHealth( Bundle bundle ) {
+      setBundle( bundle );
+   }
+
+   @Override
+   public boolean equals( Object otherObj ) {
+      boolean result = otherObj != null && otherObj.getClass().equals( getClass() );
+      if( result ) {
+         final BundleHealth other = ( BundleHealth )otherObj;
+         result = result && getBundle().equals( other.getBundle() );
+         result = result && isRefreshRequired() == other.isRefreshRequired();
+         result = result && isRemovalPending() == other.isRemovalPending();
+         result = result && isUsesConflict() == other.isUsesConflict();
+      }
+      return result;
+   }
+
+   public Bundle getBundle() {
+      return bundle;
+   }
+
+   @Override
+   public int hashCode() {
+      int result = bundle.hashCode();
+      result = 31 * result + ( refreshRequired ? 1 : 0 );
+      result = 31 * result + ( removalPending ? 1 : 0 );
+      result = 31 * result + ( usesConflict ? 1 : 0 );
+      return result;
+   }
+
+   /** @return <code>true</code> if none of the diagnostics found a problem */
+   public boolean isHealthy() {
+      return !refreshRequired && !removalPending && !usesConflict;
+   }
+
+   public boolean isRefreshRequired() {
+      return refreshRequired;
+   }
+
+   public boolean isRemovalPending() {
+      return removalPending;
+   }
+
+   public boolean isUsesConflict() {
+      return usesConflict;
+   }
+
+   public void setBundle( Bundle bundle ) {
+      this.bundle = bundle;
+   }
+
+   public void setRefreshRequired( boolean refreshRequired ) {
+      this.refreshRequired = refreshRequired;
+   }
+
+   public void setRemovalPending( boolean removalPending ) {
+      this.removalPending = removalPending;
+   }
+
+   public void setUsesConflict( boolean usesConflict ) {
+      this.usesConflict = usesConflict;
+   }
+
+   @Override
+   public String toString() {
+      return String.format( "%s(%s) usesConflict: %s, refreshRequired: %s, removalPending: %s", bundle.getSymbolicName(), bundle.getBundleId(), usesConflict, refreshRequired, removalPending );
+   }
+}
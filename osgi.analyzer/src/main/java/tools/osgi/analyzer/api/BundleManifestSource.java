@@ -0,0 +1,73 @@
+package tools.osgi.analyzer.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import com.springsource.util.osgi.manifest.BundleManifest;
+import com.springsource.util.osgi.manifest.BundleManifestFactory;
+import com.springsource.util.osgi.manifest.ExportedPackage;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
+
+/**
+ * Manifests and package exports read by {@link BundleUtils}. This implementation parses the manifest and scans the
+ * installed bundles on every call; while the analyzer is active {@link BundleUtils} reads from a cached and indexed
+ * subclass installed with {@link BundleUtils#setBundleManifestSource(BundleManifestSource)}.
+ */
+public class BundleManifestSource {
+
+   /**
+    * @param bundle Bundle to check the exports of
+    * @param importedPackage Import to satisfy
+    * @return <code>true</code> if the bundle exports a package satisfying the import
+    */
+   public boolean containsExportForImport( Bundle bundle, ImportedPackage importedPackage ) {
+      return getExportedPackage( bundle, importedPackage ) != null;
+   }
+
+   /**
+    * Finds all bundles that export a package satisfying the import
+    * @param bundleContext Context to use to lookup bundles
+    * @param importedPackage Import to satisfy
+    * @return Matching bundles ordered by bundle id
+    */
+   public List<Bundle> findBundlesThatSatisfyImport( BundleContext bundleContext, ImportedPackage importedPackage ) {
+      final List<Bundle> result = new ArrayList<Bundle>();
+      for( Bundle bundle : bundleContext.getBundles() ) {
+         if( containsExportForImport( bundle, importedPackage ) ) {
+            result.add( bundle );
+         }
+      }
+      Collections.sort( result );
+      return result;
+   }
+
+   /**
+    * @param bundle Bundle to get the manifest for
+    * @return Manifest of the current revision of the bundle; callers must not modify it
+    */
+   public BundleManifest getBundleManifest( Bundle bundle ) {
+      return BundleManifestFactory.createBundleManifest( bundle.getHeaders( "" ), new DummyParserLogger() );
+   }
+
+   /**
+    * @param bundle Bundle to check the exports of
+    * @param importedPackage Import to satisfy
+    * @return {@link ExportedPackage} from the bundle if it exists otherwise <code>null</code>
+    */
+   public ExportedPackage getExportedPackage( Bundle bundle, ImportedPackage importedPackage ) {
+      ExportedPackage result = null;
+      final PackedVersionRange range = PackedVersionRange.of( importedPackage );
+      for( ExportedPackage exportedPackage : getBundleManifest( bundle ).getExportPackage().getExportedPackages() ) {
+         if( exportedPackage.getPackageName().equals( importedPackage.getPackageName() ) && range.includes( PackedVersion.of( exportedPackage ) ) ) {
+            result = exportedPackage;
+            break;
+         }
+      }
+      return result;
+   }
+}
@@ -1,7 +1,6 @@
 package tools.osgi.analyzer.api;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,18 +10,15 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
-import org.osgi.service.packageadmin.PackageAdmin;
-import org.osgi.util.tracker.ServiceTracker;
 
 import com.springsource.util.osgi.manifest.BundleManifest;
-import com.springsource.util.osgi.manifest.BundleManifestFactory;
 import com.springsource.util.osgi.manifest.ExportedPackage;
 import com.springsource.util.osgi.manifest.ImportedPackage;
 import com.springsource.util.osgi.manifest.Resolution;
-import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
 
-@SuppressWarnings("deprecation")
 public class BundleUtils {
+   private static final BundleManifestSource PARSING_SOURCE = new BundleManifestSource();
+   private static volatile BundleManifestSource source = PARSING_SOURCE;
 
    public static boolean isVirgoEnvironment( BundleContext bundleContext ) {
       // TODO Determine If Virgo Environment
@@ -108,7 +104,7 @@ public class BundleUtils {
 
    /**
     * Finds the {@link BundleWire} on the specified bundle for the package name
-    * @param bundleContext Context to use to lookup OSGi services
+    * @param bundleContext Context of the caller
     * @param bundle Bundle to find the {@link BundleWire} on
     * @param packageName Name of the import package to find the wiring for
     * @return {@link BundleWire} for the specified package or <code>null</code> if none found
@@ -116,18 +112,11 @@ public class BundleUtils {
    public static BundleWire getBundleWire( BundleContext bundleContext, Bundle bundle, String packageName ) {
       try {
          BundleWire result = null;
-         final PackageAdmin packageAdmin = getPackageAdmin( bundleContext );
          final BundleWiring wiring = bundle.adapt( BundleWiring.class );
          if( wiring != null ) {
             for( BundleWire required : wiring.getRequiredWires( BundleRevision.PACKAGE_NAMESPACE ) ) {
-               final org.osgi.service.packageadmin.ExportedPackage[] exportedPackages = packageAdmin.getExportedPackages( required.getProviderWiring().getBundle() );
-               for( org.osgi.service.packageadmin.ExportedPackage exportedPackage : exportedPackages ) {
-                  if( packageName.equals( exportedPackage.getName() ) ) {
-                     result = required;
-                     break;
-                  }
-               }
-               if( result != null ) {
+               if( packageName.equals( required.getCapability().getAttributes().get( BundleRevision.PACKAGE_NAMESPACE ) ) ) {
+                  result = required;
                   break;
                }
             }
@@ -146,21 +135,11 @@ public class BundleUtils {
     * @return {@link ExportedPackage} from the bundle if it exists otherwise <code>null</code>
     */
    public static ExportedPackage getExportedPackage( Bundle bundle, ImportedPackage importedPackage ) {
-      com.springsource.util.osgi.manifest.ExportedPackage result = null;
-      final List<ExportedPackage> exportedPackages = getExportedPackages( bundle );
-      for( ExportedPackage exportedPackage : exportedPackages ) {
-         if( exportedPackage.getPackageName().equals( importedPackage.getPackageName() ) ) {
-            if( importedPackage.getVersion().includes( exportedPackage.getVersion() ) ) {
-               result = exportedPackage;
-               break;
-            }
-         }
-      }
-      return result;
+      return source.getExportedPackage( bundle, importedPackage );
    }
 
    public static boolean containsExportForImport( Bundle bundle, ImportedPackage importedPackage ) {
-      return getExportedPackage( bundle, importedPackage ) != null;
+      return source.containsExportForImport( bundle, importedPackage );
    }
 
    public static List<ImportedPackage> getImportedPackages( Bundle bundle ) {
@@ -169,7 +148,7 @@ public class BundleUtils {
 
    public static List<ImportedPackage> getImportedPackages( Bundle bundle, Resolution resolution ) {
       final List<ImportedPackage> result = new ArrayList<ImportedPackage>();
-      final BundleManifest manifest = BundleManifestFactory.createBundleManifest( bundle.getHeaders(), new DummyParserLogger() );
+      final BundleManifest manifest = getBundleManifest( bundle );
       for( ImportedPackage importedPackage : manifest.getImportPackage().getImportedPackages() ) {
          if( resolution == null || resolution.equals( importedPackage.getResolution() ) ) {
             result.add( importedPackage );
@@ -183,35 +162,44 @@ public class BundleUtils {
       return matches.isEmpty() ? null : matches.get( 0 );
    }
 
+   /**
+    * Finds all bundles that export a package satisfying the import
+    * @param bundleContext Context to use to lookup bundles
+    * @param importedPackage Import to satisfy
+    * @return Matching bundles ordered by bundle id
+    */
    public static List<Bundle> findBundlesThatSatisfyImport( BundleContext bundleContext, ImportedPackage importedPackage ) {
-      final List<Bundle> result = new ArrayList<Bundle>();
-      for( Bundle bundle : bundleContext.getBundles() ) {
-         if( containsExportForImport( bundle, importedPackage ) ) {
-            result.add( bundle );
-         }
-      }
-      Collections.sort( result );
-      return result;
+      return source.findBundlesThatSatisfyImport( bundleContext, importedPackage );
    }
 
    public static List<ExportedPackage> getExportedPackages( Bundle bundle ) {
       final List<ExportedPackage> result = new ArrayList<ExportedPackage>();
-      final BundleManifest manifest = BundleManifestFactory.createBundleManifest( bundle.getHeaders(), new DummyParserLogger() );
+      final BundleManifest manifest = getBundleManifest( bundle );
       for( ExportedPackage exportedPackage : manifest.getExportPackage().getExportedPackages() ) {
          result.add( exportedPackage );
       }
       return result;
    }
 
-   public static PackageAdmin getPackageAdmin( BundleContext bundleContext ) {
-      final ServiceTracker<PackageAdmin, Object> packageAdminTracker = new ServiceTracker<PackageAdmin, Object>( bundleContext, PackageAdmin.class.getName(), null );
-      packageAdminTracker.open();
-      final PackageAdmin packageAdmin = ( PackageAdmin )packageAdminTracker.getService();
-      return packageAdmin;
+   /**
+    * Gets the parsed manifest of the current revision of the bundle
+    * @param bundle Bundle to get the manifest for
+    * @return Manifest shared while the analyzer caches manifests; callers must not modify it
+    */
+   public static BundleManifest getBundleManifest( Bundle bundle ) {
+      return source.getBundleManifest( bundle );
+   }
+
+   /**
+    * Replaces the source the manifests and package exports are read from
+    * @param bundleManifestSource Source to read from; <code>null</code> to parse and scan on every call again
+    */
+   public static void setBundleManifestSource( BundleManifestSource bundleManifestSource ) {
+      source = bundleManifestSource != null ? bundleManifestSource : PARSING_SOURCE;
    }
 
    public static boolean isWebBundle( Bundle bundle ) {
-      return isWebBundle( BundleManifestFactory.createBundleManifest( bundle.getHeaders(), new DummyParserLogger() ) );
+      return isWebBundle( getBundleManifest( bundle ) );
    }
 
    public static boolean isWebBundle( BundleManifest manifest ) {
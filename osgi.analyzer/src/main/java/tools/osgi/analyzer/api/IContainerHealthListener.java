@@ -0,0 +1,14 @@
+package tools.osgi.analyzer.api;
+
+import java.util.List;
+
+/** Notified by the analyzer when the diagnostics of bundles change */
+public interface IContainerHealthListener {
+
+   /**
+    * Called from the monitor thread once per batch of framework events
+    * @param changes Health of every bundle whose diagnostics changed in the batch; bundles that became healthy are
+    * included with {@link BundleHealth#isHealthy()} returning <code>true</code>
+    */
+   void healthChanged( List<BundleHealth> changes );
+}
@@ -8,10 +8,35 @@ import org.osgi.framework.Bundle;
 
 public interface IOsgiAnalyzerService {
 
+   /**
+    * Registers a listener that is notified whenever the background health monitor finds bundles whose diagnostics
+    * changed
+    * @param listener Listener to add
+    */
+   void addHealthListener( IContainerHealthListener listener );
+
    List<Bundle> findBundlesWithUsesConflicts();
 
+   /**
+    * Checks all bundles for uses conflicts using multiple threads. All bundles are checked against the same wiring
+    * snapshot.
+    * @param parallelism Maximum number of threads to check bundles with; <code>0</code> or less uses one thread per
+    * available processor
+    * @return Bundles with uses conflicts in the same order as {@link #findBundlesWithUsesConflicts()}
+    */
+   List<Bundle> findBundlesWithUsesConflicts( int parallelism );
+
    List<UsesConflict> findUsesConflicts( Bundle bundle );
 
+   /**
+    * Computes the smallest set of bundles to refresh or uninstall to remove the uses conflicts of the bundle, weighted
+    * by the number of transitive dependents each refresh or uninstall restarts
+    * @param bundle Bundle with uses conflicts
+    * @return Suggestions that together remove all uses conflicts of the bundle ordered by rank, best first; empty if
+    * the bundle has no uses conflicts
+    */
+   List<UsesConflictResolutionSuggestion> findUsesConflictResolutions( Bundle bundle );
+
    /** @see IOsgiAnalyzerService#findUsesConflicts(Dictionary) */
    List<UsesConflict> findUsesConflicts( Reader headers );
 
@@ -39,13 +64,47 @@ public interface IOsgiAnalyzerService {
 
    List<Bundle> findBundlesWithMissingOptionalImports();
 
+   /**
+    * Checks all bundles for missing optional imports using multiple threads
+    * @param parallelism Maximum number of threads to check bundles with; <code>0</code> or less uses one thread per
+    * available processor
+    * @return Bundles with missing optional imports in the same order as {@link #findBundlesWithMissingOptionalImports()}
+    */
+   List<Bundle> findBundlesWithMissingOptionalImports( int parallelism );
+
    List<MissingImport> findMissingOptionalImports( Bundle bundle );
 
    List<Bundle> getBundleForClassName( String fqcn );
 
+   /** @return Bundles with problems as last computed by the background health monitor ordered by bundle id */
+   List<BundleHealth> getContainerHealth();
+
    Bundle getBundleForClass( Class<?> clazz );
 
    List<Bundle> getDependentBundles( Bundle bundle );
 
+   /**
+    * Queues the throwable for diagnosis in the background if it is class loading related; never blocks the caller
+    * @param exception Throwable to diagnose
+    */
    void diagnose( Throwable exception );
+
+   /** @return Diagnoses of recently seen class loading related throwables, most recent last */
+   List<ThrowableDiagnosis> getThrowableDiagnoses();
+
+   void removeHealthListener( IContainerHealthListener listener );
+
+   /**
+    * Dry-run resolves the bundle against the current wiring without calling the framework resolver
+    * @param bundle Bundle to check
+    * @return Whether the bundle would resolve and if not why
+    */
+   ResolutionReport checkResolution( Bundle bundle );
+
+   /**
+    * Dry-run resolves a bundle with the manifest headers as if it were installed in the current environment
+    * @param headers Manifest headers of the candidate bundle
+    * @return Whether the candidate would resolve and if not why
+    */
+   ResolutionReport checkResolution( Dictionary<String, String> headers );
 }
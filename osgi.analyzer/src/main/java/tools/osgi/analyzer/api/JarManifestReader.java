@@ -0,0 +1,203 @@
+package tools.osgi.analyzer.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reads <code>META-INF/MANIFEST.MF</code> of a jar without opening it as a {@link JarFile}. The end of central directory
+ * record and the central directory are mapped and scanned for the manifest entry, then only the local header and the
+ * data of that entry are read. No other entry is looked at, no entry objects are created and no signature verification
+ * takes place.
+ * <p>
+ * Zip64 archives and entries that are neither stored nor deflated are read through {@link JarFile} instead.
+ */
+public class JarManifestReader {
+   private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+   private static final int CENTRAL_HEADER_SIZE = 46;
+   private static final int END_SIGNATURE = 0x06054b50;
+   private static final int END_SIZE = 22;
+   private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+   private static final int LOCAL_HEADER_SIZE = 30;
+   private static final byte[] MANIFEST_NAME = JarFile.MANIFEST_NAME.getBytes();
+   private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+   /**
+    * @param jar Jar to read
+    * @return Main attributes of the manifest or <code>null</code> if the jar has no manifest
+    */
+   public static Hashtable<String, String> readHeaders( File jar ) throws IOException {
+      final byte[] manifest = readManifest( jar );
+      if( manifest == null ) {
+         return null;
+      }
+      final Hashtable<String, String> result = new Hashtable<String, String>();
+      for( Map.Entry<Object, Object> attribute : new Manifest( new ByteArrayInputStream( manifest ) ).getMainAttributes().entrySet() ) {
+         result.put( ( ( Attributes.Name )attribute.getKey() ).toString(), ( String )attribute.getValue() );
+      }
+      return result;
+   }
+
+   /**
+    * @param jar Jar to read
+    * @return Raw bytes of the manifest or <code>null</code> if the jar has no manifest
+    */
+   public static byte[] readManifest( File jar ) throws IOException {
+      final RandomAccessFile file = new RandomAccessFile( jar, "r" );
+      try {
+         final FileChannel channel = file.getChannel();
+         final long size = channel.size();
+         if( size < END_SIZE ) {
+            throw new IOException( String.format( "Not a zip file: %s", jar ) );
+         }
+         final int tailSize = ( int )Math.min( size, END_SIZE + MAX_COMMENT_SIZE );
+         final MappedByteBuffer tail = channel.map( FileChannel.MapMode.READ_ONLY, size - tailSize, tailSize );
+         tail.order( ByteOrder.LITTLE_ENDIAN );
+         final int end = findEnd( tail );
+         final int entryCount = end >= 0 ? tail.getShort( end + 10 ) & 0xFFFF : 0;
+         final long directorySize = end >= 0 ? tail.getInt( end + 12 ) & 0xFFFFFFFFL : 0;
+         final long directoryOffset = end >= 0 ? tail.getInt( end + 16 ) & 0xFFFFFFFFL : 0;
+         if( end < 0 || entryCount == 0xFFFF || directoryOffset == 0xFFFFFFFFL || directoryOffset + directorySize > size ) {
+            // Zip64, trailing data or damaged; let the jdk sort it out
+            return readWithJarFile( jar );
+         }
+         final MappedByteBuffer directory = channel.map( FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize );
+         directory.order( ByteOrder.LITTLE_ENDIAN );
+         int position = 0;
+         for( int entry = 0; entry < entryCount && position + CENTRAL_HEADER_SIZE <= directorySize; entry++ ) {
+            if( directory.getInt( position ) != CENTRAL_HEADER_SIGNATURE ) {
+               throw new IOException( String.format( "Invalid central directory: %s", jar ) );
+            }
+            final int nameLength = directory.getShort( position + 28 ) & 0xFFFF;
+            final int extraLength = directory.getShort( position + 30 ) & 0xFFFF;
+            final int commentLength = directory.getShort( position + 32 ) & 0xFFFF;
+            if( isManifest( directory, position + CENTRAL_HEADER_SIZE, nameLength ) ) {
+               final int method = directory.getShort( position + 10 ) & 0xFFFF;
+               final long compressedSize = directory.getInt( position + 20 ) & 0xFFFFFFFFL;
+               final long uncompressedSize = directory.getInt( position + 24 ) & 0xFFFFFFFFL;
+               final long localOffset = directory.getInt( position + 42 ) & 0xFFFFFFFFL;
+               if( ( method != ZipEntry.STORED && method != ZipEntry.DEFLATED ) || uncompressedSize > Integer.MAX_VALUE || compressedSize > Integer.MAX_VALUE ) {
+                  return readWithJarFile( jar );
+               }
+               return readEntry( jar, channel, localOffset, method, ( int )compressedSize, ( int )uncompressedSize );
+            }
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+         }
+         return null;
+      }
+      finally {
+         file.close();
+      }
+   }
+
+   /** @return Position of the end of central directory record in the tail or <code>-1</code> */
+   private static int findEnd( ByteBuffer tail ) {
+      for( int position = tail.limit() - END_SIZE; position >= 0; position-- ) {
+         if( tail.getInt( position ) == END_SIGNATURE && position + END_SIZE + ( tail.getShort( position + 20 ) & 0xFFFF ) == tail.limit() ) {
+            return position;
+         }
+      }
+      return -1;
+   }
+
+   private static boolean isManifest( ByteBuffer directory, int nameStart, int nameLength ) {
+      if( nameLength != MANIFEST_NAME.length ) {
+         return false;
+      }
+      for( int i = 0; i < nameLength; i++ ) {
+         final byte c = directory.get( nameStart + i );
+         final byte lower = c >= 'A' && c <= 'Z' ? ( byte )( c + 'a' - 'A' ) : c;
+         final byte expected = MANIFEST_NAME[i] >= 'A' && MANIFEST_NAME[i] <= 'Z' ? ( byte )( MANIFEST_NAME[i] + 'a' - 'A' ) : MANIFEST_NAME[i];
+         if( lower != expected ) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static byte[] readEntry( File jar, FileChannel channel, long localOffset, int method, int compressedSize, int uncompressedSize ) throws IOException {
+      final ByteBuffer header = ByteBuffer.allocate( LOCAL_HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+      readFully( channel, header, localOffset );
+      if( header.getInt( 0 ) != LOCAL_HEADER_SIGNATURE ) {
+         throw new IOException( String.format( "Invalid local header of the manifest: %s", jar ) );
+      }
+      final long dataOffset = localOffset + LOCAL_HEADER_SIZE + ( header.getShort( 26 ) & 0xFFFF ) + ( header.getShort( 28 ) & 0xFFFF );
+      final ByteBuffer data = ByteBuffer.allocate( compressedSize );
+      readFully( channel, data, dataOffset );
+      if( method == ZipEntry.STORED ) {
+         return data.array();
+      }
+      final Inflater inflater = new Inflater( true );
+      try {
+         inflater.setInput( data.array(), 0, compressedSize );
+         final byte[] result = new byte[uncompressedSize];
+         int length = 0;
+         while( length < uncompressedSize && !inflater.finished() ) {
+            final int inflated = inflater.inflate( result, length, uncompressedSize - length );
+            if( inflated == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+               break;
+            }
+            length += inflated;
+         }
+         if( length != uncompressedSize ) {
+            throw new IOException( String.format( "Truncated manifest: %s", jar ) );
+         }
+         return result;
+      }
+      catch( DataFormatException exception ) {
+         throw new IOException( String.format( "Invalid compressed manifest: %s", jar ), exception );
+      }
+      finally {
+         inflater.end();
+      }
+   }
+
+   private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+      while( buffer.hasRemaining() ) {
+         if( channel.read( buffer, position + buffer.position() ) < 0 ) {
+            throw new IOException( "Unexpected end of file" );
+         }
+      }
+   }
+
+   private static byte[] readWithJarFile( File jar ) throws IOException {
+      final JarFile jarFile = new JarFile( jar, false );
+      try {
+         final ZipEntry entry = jarFile.getEntry( JarFile.MANIFEST_NAME );
+         if( entry == null ) {
+            return null;
+         }
+         final InputStream input = jarFile.getInputStream( entry );
+         try {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while( ( read = input.read( buffer ) ) != -1 ) {
+               result.write( buffer, 0, read );
+            }
+            return result.toByteArray();
+         }
+         finally {
+            input.close();
+         }
+      }
+      finally {
+         jarFile.close();
+      }
+   }
+}
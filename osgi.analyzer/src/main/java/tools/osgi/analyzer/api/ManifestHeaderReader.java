@@ -0,0 +1,118 @@
+package tools.osgi.analyzer.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads selected headers from the main section of a manifest without building the whole manifest. Lines of other
+ * headers are scanned as bytes and dropped, and reading stops at the end of the main section so per entry sections of
+ * large jars are never read.
+ */
+public class ManifestHeaderReader {
+
+   /**
+    * @param manifestFile Manifest file to read
+    * @param names Names of the headers to read; matched ignoring case
+    * @return Values of the headers found, keyed by the requested name
+    */
+   public static Map<String, String> read( File manifestFile, String... names ) throws IOException {
+      final InputStream input = new FileInputStream( manifestFile );
+      try {
+         return read( input, names );
+      }
+      finally {
+         input.close();
+      }
+   }
+
+   /**
+    * @param input Manifest stream positioned at the start of the manifest; not closed
+    * @param names Names of the headers to read; matched ignoring case
+    * @return Values of the headers found, keyed by the requested name
+    */
+   public static Map<String, String> read( InputStream input, String... names ) throws IOException {
+      final Map<String, String> result = new HashMap<String, String>();
+      final PushbackInputStream stream = new PushbackInputStream( new BufferedInputStream( input ) );
+      byte[] line = new byte[128];
+      String current = null;
+      final ByteArrayOutputStream value = new ByteArrayOutputStream();
+      while( true ) {
+         int length = 0;
+         int next;
+         while( ( next = stream.read() ) != -1 && next != '\n' && next != '\r' ) {
+            if( length == line.length ) {
+               line = Arrays.copyOf( line, length * 2 );
+            }
+            line[length++] = ( byte )next;
+         }
+         if( next == '\r' ) {
+            final int lineFeed = stream.read();
+            if( lineFeed != '\n' && lineFeed != -1 ) {
+               stream.unread( lineFeed );
+            }
+         }
+         if( length > 0 && line[0] == ' ' ) {
+            // Continuation of the previous header
+            if( current != null ) {
+               value.write( line, 1, length - 1 );
+            }
+         }
+         else {
+            if( current != null ) {
+               result.put( current, value.toString( "UTF-8" ) );
+               current = null;
+            }
+            if( length == 0 ) {
+               // End of the main section
+               break;
+            }
+            final int colon = indexOf( line, length, ( byte )':' );
+            current = colon > 0 ? match( line, colon, names ) : null;
+            if( current != null ) {
+               final int valueStart = colon + 1 < length && line[colon + 1] == ' ' ? colon + 2 : colon + 1;
+               value.reset();
+               value.write( line, valueStart, length - valueStart );
+            }
+         }
+         if( next == -1 ) {
+            if( current != null ) {
+               result.put( current, value.toString( "UTF-8" ) );
+            }
+            break;
+         }
+      }
+      return result;
+   }
+
+   private static int indexOf( byte[] line, int length, byte value ) {
+      for( int i = 0; i < length; i++ ) {
+         if( line[i] == value ) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   private static String match( byte[] line, int nameLength, String[] names ) {
+      for( String name : names ) {
+         if( name.length() == nameLength ) {
+            boolean result = true;
+            for( int i = 0; result && i < nameLength; i++ ) {
+               result = Character.toLowerCase( ( char )line[i] ) == Character.toLowerCase( name.charAt( i ) );
+            }
+            if( result ) {
+               return name;
+            }
+         }
+      }
+      return null;
+   }
+}
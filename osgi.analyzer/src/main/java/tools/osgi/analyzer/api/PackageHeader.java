@@ -0,0 +1,118 @@
+package tools.osgi.analyzer.api;
+
+import com.springsource.util.osgi.manifest.ImportedPackage;
+
+/**
+ * Compact form of an Import-Package or Export-Package header as produced by {@link PackageHeaderParser}. Each clause is
+ * reduced to the package symbol, the version (range for imports), the optional resolution flag and the id of the
+ * <code>uses:=</code> set; all other attributes and directives are dropped. Use the springsource
+ * {@link com.springsource.util.osgi.manifest.BundleManifest} where full fidelity is needed.
+ */
+public final class PackageHeader {
+   /** Header without clauses */
+   public static final PackageHeader EMPTY = new PackageHeader( new int[0], null, null, new boolean[0], new int[0], 0 );
+
+   private final boolean[] optional;
+   private final int[] packageSymbols;
+   private final int size;
+   private final int[] usesIds;
+   private final PackedVersionRange[] versionRanges;
+   private final PackedVersion[] versions;
+
+   /**
+    * @param packageSymbols {@link PackageSymbols} symbol per clause
+    * @param versionRanges Version range per clause of an Import-Package header otherwise <code>null</code>
+    * @param versions Version per clause of an Export-Package header otherwise <code>null</code>
+    * @param optional Optional resolution per clause
+    * @param usesIds Uses set id per clause
+    * @param size Number of clauses; the arrays may be longer
+    */
+   public PackageHeader( int[] packageSymbols, PackedVersionRange[] versionRanges, PackedVersion[] versions, boolean[] optional, int[] usesIds, int size ) {
+      this.packageSymbols = packageSymbols;
+      this.versionRanges = versionRanges;
+      this.versions = versions;
+      this.optional = optional;
+      this.usesIds = usesIds;
+      this.size = size;
+   }
+
+   public String getPackageName( int index ) {
+      return PackageSymbols.getInstance().getName( packageSymbols[index] );
+   }
+
+   public int getPackageSymbol( int index ) {
+      return packageSymbols[index];
+   }
+
+   /** @return Symbols of the packages in the <code>uses:=</code> directive of the export; shared, must not be modified */
+   public int[] getUses( int index ) {
+      return PackageSymbols.getInstance().getUses( usesIds[index] );
+   }
+
+   /** @return Interned id of the <code>uses:=</code> set; equal sets have equal ids and <code>0</code> is the empty set */
+   public int getUsesId( int index ) {
+      return usesIds[index];
+   }
+
+   /** @return Exported version; only available on an Export-Package header */
+   public PackedVersion getVersion( int index ) {
+      return versions[index];
+   }
+
+   /** @return Imported version range; only available on an Import-Package header */
+   public PackedVersionRange getVersionRange( int index ) {
+      return versionRanges[index];
+   }
+
+   /**
+    * @param packageName Name of the package
+    * @return Index of the first clause for the package otherwise <code>-1</code>
+    */
+   public int indexOf( String packageName ) {
+      final int symbol = PackageSymbols.getInstance().lookup( packageName );
+      for( int i = 0; symbol >= 0 && i < size; i++ ) {
+         if( packageSymbols[i] == symbol ) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   public boolean isOptional( int index ) {
+      return optional[index];
+   }
+
+   /**
+    * @param importedPackage Import to satisfy
+    * @return <code>true</code> if the Export-Package header has an export in the version range of the import
+    */
+   public boolean satisfies( ImportedPackage importedPackage ) {
+      final int symbol = PackageSymbols.getInstance().lookup( importedPackage.getPackageName() );
+      if( symbol < 0 || versions == null ) {
+         return false;
+      }
+      final PackedVersionRange range = PackedVersionRange.of( importedPackage );
+      for( int i = 0; i < size; i++ ) {
+         if( packageSymbols[i] == symbol && range.includes( versions[i] ) ) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /** @return Number of clauses; a clause naming several packages counts once per package */
+   public int size() {
+      return size;
+   }
+
+   @Override
+   public String toString() {
+      final StringBuilder result = new StringBuilder();
+      for( int i = 0; i < size; i++ ) {
+         result.append( i > 0 ? "," : "" ).append( getPackageName( i ) );
+         result.append( ";version=\"" ).append( versions != null ? versions[i] : versionRanges[i] ).append( "\"" );
+         result.append( optional[i] ? ";resolution:=optional" : "" );
+      }
+      return result.toString();
+   }
+}
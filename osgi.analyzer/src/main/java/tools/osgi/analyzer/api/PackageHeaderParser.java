@@ -0,0 +1,336 @@
+package tools.osgi.analyzer.api;
+
+import java.util.Arrays;
+
+/**
+ * Streaming parser for Import-Package and Export-Package header values. The header is scanned once by index; package
+ * names are interned straight from the scanned characters and version numbers are read digit by digit so no
+ * intermediate strings are created (only a version qualifier is cut out). Only the version, the resolution and the
+ * <code>uses:=</code> directive are interpreted, everything else is skipped; the type of a typed attribute such as
+ * <code>version:Version="1.0"</code> is ignored.
+ * <p>
+ * An instance holds the scan state of a single header and is not thread safe; use the static methods.
+ */
+public class PackageHeaderParser {
+   private static final PackedVersion EMPTY_VERSION = PackedVersion.of( 0, 0, 0, "" );
+   private static final PackedVersionRange ANY_VERSION = PackedVersionRange.of( EMPTY_VERSION, true, null, false );
+
+   /**
+    * @param header Value of the Export-Package header; may be <code>null</code>
+    * @return Compact exports
+    */
+   public static PackageHeader parseExportPackage( CharSequence header ) {
+      return header != null ? new PackageHeaderParser( header, true ).parse() : PackageHeader.EMPTY;
+   }
+
+   /**
+    * @param header Value of the Import-Package header; may be <code>null</code>
+    * @return Compact imports
+    */
+   public static PackageHeader parseImportPackage( CharSequence header ) {
+      return header != null ? new PackageHeaderParser( header, false ).parse() : PackageHeader.EMPTY;
+   }
+
+   private final boolean exports;
+   private final CharSequence header;
+   private final int length;
+   private boolean[] optional = new boolean[16];
+   private int[] packageSymbols = new int[16];
+   private int pathCount;
+   private int[] paths = new int[4];
+   private int position;
+   private int size;
+   private int[] uses = new int[16];
+   private int[] usesIds = new int[16];
+   private PackedVersionRange[] versionRanges;
+   private PackedVersion[] versions;
+
+   // Parameters of the current clause as index ranges into the header; -1 if absent
+   private boolean clauseOptional;
+   private int clauseUsesId;
+   private int specificationVersionEnd;
+   private int specificationVersionStart = -1;
+   private int valueEnd;
+   private int valueStart;
+   private int versionEnd;
+   private int versionStart = -1;
+
+   private PackageHeaderParser( CharSequence header, boolean exports ) {
+      this.header = header;
+      this.length = header.length();
+      this.exports = exports;
+      if( exports ) {
+         versions = new PackedVersion[16];
+      }
+      else {
+         versionRanges = new PackedVersionRange[16];
+      }
+   }
+
+   private void addClauses() {
+      PackedVersion version = null;
+      PackedVersionRange versionRange = null;
+      if( exports ) {
+         version = versionStart >= 0 ? parseVersion( versionStart, versionEnd ) : specificationVersionStart >= 0 ? parseVersion( specificationVersionStart, specificationVersionEnd ) : EMPTY_VERSION;
+      }
+      else {
+         versionRange = versionStart >= 0 ? parseVersionRange( versionStart, versionEnd ) : ANY_VERSION;
+      }
+      for( int i = 0; i < pathCount; i++ ) {
+         if( size == packageSymbols.length ) {
+            final int capacity = size * 2;
+            packageSymbols = Arrays.copyOf( packageSymbols, capacity );
+            optional = Arrays.copyOf( optional, capacity );
+            usesIds = Arrays.copyOf( usesIds, capacity );
+            versions = versions != null ? Arrays.copyOf( versions, capacity ) : null;
+            versionRanges = versionRanges != null ? Arrays.copyOf( versionRanges, capacity ) : null;
+         }
+         packageSymbols[size] = paths[i];
+         optional[size] = clauseOptional;
+         usesIds[size] = clauseUsesId;
+         if( exports ) {
+            versions[size] = version;
+         }
+         else {
+            versionRanges[size] = versionRange;
+         }
+         size++;
+      }
+   }
+
+   private void addPath( int symbol ) {
+      if( pathCount == paths.length ) {
+         paths = Arrays.copyOf( paths, pathCount * 2 );
+      }
+      paths[pathCount++] = symbol;
+   }
+
+   private IllegalArgumentException invalid( String problem, int start, int end ) {
+      return new IllegalArgumentException( String.format( "%s '%s' in header: %s", problem, header.subSequence( start, end ), header ) );
+   }
+
+   private boolean matches( int start, int end, String value ) {
+      if( end - start != value.length() ) {
+         return false;
+      }
+      for( int i = 0; i < value.length(); i++ ) {
+         if( header.charAt( start + i ) != value.charAt( i ) ) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private PackageHeader parse() {
+      while( position < length ) {
+         parseClause();
+         // Skip the clause separator
+         position++;
+      }
+      return new PackageHeader( packageSymbols, versionRanges, versions, optional, usesIds, size );
+   }
+
+   private void parseClause() {
+      pathCount = 0;
+      versionStart = -1;
+      specificationVersionStart = -1;
+      clauseOptional = false;
+      clauseUsesId = 0;
+      while( true ) {
+         final int start = skipWhitespace( position, length );
+         int i = start;
+         char c = 0;
+         while( i < length && ( c = header.charAt( i ) ) != ';' && c != ',' && c != '=' && c != ':' ) {
+            i++;
+         }
+         if( i < length && ( c == '=' || c == ':' ) ) {
+            final int nameEnd = trimEnd( start, i );
+            final boolean directive = c == ':' && i + 1 < length && header.charAt( i + 1 ) == '=';
+            if( c == ':' && !directive ) {
+               // Typed attribute name:type=value; the type is skipped
+               while( i < length && ( c = header.charAt( i ) ) != '=' && c != ';' && c != ',' ) {
+                  i++;
+               }
+               if( i >= length || c != '=' ) {
+                  throw invalid( "Expected := after directive or = after attribute type", start, i );
+               }
+            }
+            position = directive ? i + 2 : i + 1;
+            parseValue();
+            parseParameter( start, nameEnd, directive );
+         }
+         else {
+            final int end = trimEnd( start, i );
+            if( end > start ) {
+               addPath( PackageSymbols.getInstance().intern( header, start, end ) );
+            }
+            position = i;
+         }
+         if( position >= length || header.charAt( position ) == ',' ) {
+            break;
+         }
+         // Skip the parameter separator
+         position++;
+      }
+      addClauses();
+   }
+
+   private int parseNumber( int start, int end ) {
+      if( start >= end ) {
+         throw invalid( "Invalid version", start, end );
+      }
+      long result = 0;
+      for( int i = start; i < end; i++ ) {
+         final char c = header.charAt( i );
+         if( c < '0' || c > '9' ) {
+            throw invalid( "Invalid version", start, end );
+         }
+         result = result * 10 + ( c - '0' );
+         if( result > Integer.MAX_VALUE ) {
+            throw invalid( "Version component too large", start, end );
+         }
+      }
+      return ( int )result;
+   }
+
+   private void parseParameter( int nameStart, int nameEnd, boolean directive ) {
+      if( !directive && matches( nameStart, nameEnd, "version" ) ) {
+         versionStart = valueStart;
+         versionEnd = valueEnd;
+      }
+      else if( !directive && matches( nameStart, nameEnd, "specification-version" ) ) {
+         specificationVersionStart = valueStart;
+         specificationVersionEnd = valueEnd;
+      }
+      else if( directive && matches( nameStart, nameEnd, "resolution" ) ) {
+         clauseOptional = matches( valueStart, valueEnd, "optional" );
+      }
+      else if( directive && exports && matches( nameStart, nameEnd, "uses" ) ) {
+         clauseUsesId = parseUses( valueStart, valueEnd );
+      }
+   }
+
+   private int parseUses( int start, int end ) {
+      int count = 0;
+      int nameStart = start;
+      for( int i = start; i <= end; i++ ) {
+         if( i == end || header.charAt( i ) == ',' ) {
+            final int trimmedStart = skipWhitespace( nameStart, i );
+            final int trimmedEnd = trimEnd( trimmedStart, i );
+            if( trimmedEnd > trimmedStart ) {
+               if( count == uses.length ) {
+                  uses = Arrays.copyOf( uses, count * 2 );
+               }
+               uses[count++] = PackageSymbols.getInstance().intern( header, trimmedStart, trimmedEnd );
+            }
+            nameStart = i + 1;
+         }
+      }
+      return PackageSymbols.getInstance().internUses( uses, count );
+   }
+
+   /** Reads a quoted or plain value; leaves the position on the next separator */
+   private void parseValue() {
+      position = skipWhitespace( position, length );
+      if( position < length && header.charAt( position ) == '"' ) {
+         valueStart = position + 1;
+         int i = valueStart;
+         while( i < length && header.charAt( i ) != '"' ) {
+            i += header.charAt( i ) == '\\' ? 2 : 1;
+         }
+         if( i >= length ) {
+            throw invalid( "Unterminated quoted value", position, length );
+         }
+         valueEnd = i;
+         position = skipWhitespace( i + 1, length );
+      }
+      else {
+         valueStart = position;
+         int i = position;
+         char c;
+         while( i < length && ( c = header.charAt( i ) ) != ';' && c != ',' ) {
+            i++;
+         }
+         valueEnd = trimEnd( valueStart, i );
+         position = i;
+      }
+   }
+
+   private PackedVersion parseVersion( int start, int end ) {
+      start = skipWhitespace( start, end );
+      end = trimEnd( start, end );
+      if( start == end ) {
+         return EMPTY_VERSION;
+      }
+      int major = 0;
+      int minor = 0;
+      int micro = 0;
+      String qualifier = "";
+      int componentStart = start;
+      for( int component = 0; component < 4; component++ ) {
+         if( component == 3 ) {
+            if( componentStart == end ) {
+               throw invalid( "Invalid version", start, end );
+            }
+            qualifier = header.subSequence( componentStart, end ).toString();
+            break;
+         }
+         int componentEnd = componentStart;
+         while( componentEnd < end && header.charAt( componentEnd ) != '.' ) {
+            componentEnd++;
+         }
+         final int value = parseNumber( componentStart, componentEnd );
+         if( component == 0 ) {
+            major = value;
+         }
+         else if( component == 1 ) {
+            minor = value;
+         }
+         else {
+            micro = value;
+         }
+         if( componentEnd == end ) {
+            break;
+         }
+         componentStart = componentEnd + 1;
+      }
+      return PackedVersion.of( major, minor, micro, qualifier );
+   }
+
+   private PackedVersionRange parseVersionRange( int start, int end ) {
+      start = skipWhitespace( start, end );
+      end = trimEnd( start, end );
+      if( start == end ) {
+         return ANY_VERSION;
+      }
+      final char open = header.charAt( start );
+      if( open != '[' && open != '(' ) {
+         return PackedVersionRange.of( parseVersion( start, end ), true, null, false );
+      }
+      final char close = header.charAt( end - 1 );
+      int comma = start + 1;
+      while( comma < end && header.charAt( comma ) != ',' ) {
+         comma++;
+      }
+      if( comma >= end - 1 || ( close != ']' && close != ')' ) ) {
+         throw invalid( "Invalid version range", start, end );
+      }
+      return PackedVersionRange.of( parseVersion( start + 1, comma ), open == '[', parseVersion( comma + 1, end - 1 ), close == ']' );
+   }
+
+   private int skipWhitespace( int start, int end ) {
+      int result = start;
+      while( result < end && Character.isWhitespace( header.charAt( result ) ) ) {
+         result++;
+      }
+      return result;
+   }
+
+   private int trimEnd( int start, int end ) {
+      int result = end;
+      while( result > start && Character.isWhitespace( header.charAt( result - 1 ) ) ) {
+         result--;
+      }
+      return result;
+   }
+}
@@ -0,0 +1,236 @@
+package tools.osgi.analyzer.api;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Interned package names. Each distinct package name gets a dense <code>int</code> symbol so indexes can be arrays
+ * addressed by symbol instead of maps keyed by name. Symbols are never released; the table is bounded by the number of
+ * distinct packages ever exported in the container.
+ * <p>
+ * Names can be looked up from a range of characters so header parsers do not have to cut the name out as a
+ * {@link String}; a string is only created the first time a name is interned. Sets of packages named in a
+ * <code>uses:=</code> directive are interned the same way so equal sets share one id.
+ */
+public class PackageSymbols {
+   /** Open addressing table of symbols; only ever added to so readers need no lock */
+   private static class Table {
+      private final int mask;
+      /** Symbol + 1 by hash slot; <code>0</code> for an empty slot */
+      private final AtomicIntegerArray slots;
+
+      public Table( int capacity ) {
+         this.mask = capacity - 1;
+         this.slots = new AtomicIntegerArray( capacity );
+      }
+   }
+
+   private static final int[] NO_USES = new int[0];
+   private static final PackageSymbols INSTANCE = new PackageSymbols();
+
+   public static PackageSymbols getInstance() {
+      return INSTANCE;
+   }
+
+   private static int hash( CharSequence chars, int start, int end ) {
+      // Same as String.hashCode so a String key can use its cached hash
+      int result = 0;
+      for( int i = start; i < end; i++ ) {
+         result = 31 * result + chars.charAt( i );
+      }
+      return result;
+   }
+
+   private static int spread( int hash ) {
+      return hash ^ ( hash >>> 16 );
+   }
+
+   private volatile String[] names = new String[256];
+   private volatile int size;
+   private volatile Table table = new Table( 512 );
+   private int[][] uses = new int[][]{ NO_USES };
+   private int[] usesSlots = new int[64];
+   private int usesSize = 1;
+
+   /** @return Name of the package with the symbol */
+   public String getName( int symbol ) {
+      return symbol >= 0 && symbol < size ? names[symbol] : null;
+   }
+
+   /** @return Number of symbols assigned so far; all symbols are below it */
+   public int getSize() {
+      return size;
+   }
+
+   /**
+    * @param usesId Id returned by {@link #internUses(int[], int)}
+    * @return Package symbols of the uses set; shared so callers must not modify it
+    */
+   public synchronized int[] getUses( int usesId ) {
+      return usesId > 0 && usesId < usesSize ? uses[usesId] : NO_USES;
+   }
+
+   /**
+    * @param chars Characters containing the package name
+    * @param start Index of the first character of the name
+    * @param end Index after the last character of the name
+    * @return Symbol of the package, assigned on first use
+    */
+   public int intern( CharSequence chars, int start, int end ) {
+      final int hash = spread( hash( chars, start, end ) );
+      final int result = find( chars, start, end, hash );
+      return result >= 0 ? result : assign( chars, start, end, hash );
+   }
+
+   /**
+    * @param packageName Name of the package
+    * @return Symbol of the package, assigned on first use
+    */
+   public int intern( String packageName ) {
+      final int hash = spread( packageName.hashCode() );
+      final int result = find( packageName, 0, packageName.length(), hash );
+      return result >= 0 ? result : assign( packageName, 0, packageName.length(), hash );
+   }
+
+   /**
+    * Interns a set of package symbols
+    * @param symbols Buffer holding the symbols; sorted in place
+    * @param count Number of symbols in the buffer
+    * @return Id of the set; <code>0</code> for the empty set
+    */
+   public synchronized int internUses( int[] symbols, int count ) {
+      if( count == 0 ) {
+         return 0;
+      }
+      Arrays.sort( symbols, 0, count );
+      final int hash = spread( hash( symbols, count ) );
+      final int mask = usesSlots.length - 1;
+      for( int i = hash & mask;; i = ( i + 1 ) & mask ) {
+         final int slot = usesSlots[i];
+         if( slot == 0 ) {
+            break;
+         }
+         if( equals( uses[slot], symbols, count ) ) {
+            return slot;
+         }
+      }
+      final int result = usesSize++;
+      if( result == uses.length ) {
+         uses = Arrays.copyOf( uses, uses.length * 2 );
+      }
+      uses[result] = Arrays.copyOf( symbols, count );
+      if( usesSize * 2 > usesSlots.length ) {
+         usesSlots = new int[usesSlots.length * 2];
+         for( int id = 1; id < usesSize; id++ ) {
+            insert( usesSlots, spread( hash( uses[id], uses[id].length ) ), id );
+         }
+      }
+      else {
+         insert( usesSlots, hash, result );
+      }
+      return result;
+   }
+
+   /**
+    * @return Symbol of the package or <code>-1</code> if the package never was interned
+    */
+   public int lookup( CharSequence chars, int start, int end ) {
+      return find( chars, start, end, spread( hash( chars, start, end ) ) );
+   }
+
+   /**
+    * @param packageName Name of the package
+    * @return Symbol of the package or <code>-1</code> if the package never was interned
+    */
+   public int lookup( String packageName ) {
+      return find( packageName, 0, packageName.length(), spread( packageName.hashCode() ) );
+   }
+
+   private synchronized int assign( CharSequence chars, int start, int end, int hash ) {
+      final int existing = find( chars, start, end, hash );
+      if( existing >= 0 ) {
+         return existing;
+      }
+      final int result = size;
+      if( result == names.length ) {
+         names = Arrays.copyOf( names, names.length * 2 );
+      }
+      names[result] = chars.subSequence( start, end ).toString();
+      size = result + 1;
+      final Table current = table;
+      if( size * 2 > current.slots.length() ) {
+         final Table grown = new Table( current.slots.length() * 2 );
+         for( int symbol = 0; symbol < size; symbol++ ) {
+            insert( grown, spread( names[symbol].hashCode() ), symbol );
+         }
+         table = grown;
+      }
+      else {
+         insert( current, hash, result );
+      }
+      return result;
+   }
+
+   private boolean equals( int[] set, int[] symbols, int count ) {
+      if( set.length != count ) {
+         return false;
+      }
+      for( int i = 0; i < count; i++ ) {
+         if( set[i] != symbols[i] ) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private int find( CharSequence chars, int start, int end, int hash ) {
+      final Table current = table;
+      for( int i = hash & current.mask;; i = ( i + 1 ) & current.mask ) {
+         final int slot = current.slots.get( i );
+         if( slot == 0 ) {
+            return -1;
+         }
+         // Read the names after the slot so a name published with the slot is visible
+         if( matches( names[slot - 1], chars, start, end ) ) {
+            return slot - 1;
+         }
+      }
+   }
+
+   private int hash( int[] symbols, int count ) {
+      int result = 1;
+      for( int i = 0; i < count; i++ ) {
+         result = 31 * result + symbols[i];
+      }
+      return result;
+   }
+
+   private void insert( int[] slots, int hash, int id ) {
+      final int mask = slots.length - 1;
+      int i = hash & mask;
+      while( slots[i] != 0 ) {
+         i = ( i + 1 ) & mask;
+      }
+      slots[i] = id;
+   }
+
+   private void insert( Table table, int hash, int symbol ) {
+      int i = hash & table.mask;
+      while( table.slots.get( i ) != 0 ) {
+         i = ( i + 1 ) & table.mask;
+      }
+      table.slots.set( i, symbol + 1 );
+   }
+
+   private boolean matches( String name, CharSequence chars, int start, int end ) {
+      if( name.length() != end - start ) {
+         return false;
+      }
+      for( int i = 0; i < name.length(); i++ ) {
+         if( name.charAt( i ) != chars.charAt( start + i ) ) {
+            return false;
+         }
+      }
+      return true;
+   }
+}
@@ -0,0 +1,125 @@
+package tools.osgi.analyzer.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+import com.springsource.util.osgi.manifest.ExportedPackage;
+
+/**
+ * Version with major, minor and micro packed into a single <code>long</code> so comparing two versions is a primitive
+ * comparison; the qualifier is kept separately and only compared when the numeric parts are equal. Versions with a
+ * major or minor above 65535 cannot be packed and are compared as {@link Version} objects.
+ * <p>
+ * Instances are immutable and shared: {@link #of(ExportedPackage)} caches them by the version attribute so matching
+ * exports against imports does not allocate once the versions of a container have been seen.
+ */
+public final class PackedVersion implements Comparable<PackedVersion> {
+   /** Marker for versions whose components do not fit in the packed layout */
+   public static final long UNPACKABLE = -1L;
+
+   private static final ConcurrentMap<String, PackedVersion> BY_ATTRIBUTE = new ConcurrentHashMap<String, PackedVersion>();
+   private static final int MAJOR_SHIFT = 47;
+   private static final int MAX_MAJOR_MINOR = 0xFFFF;
+   private static final int MINOR_SHIFT = 31;
+
+   /**
+    * @param exportedPackage Export to get the version of
+    * @return Shared packed version of the export
+    */
+   public static PackedVersion of( ExportedPackage exportedPackage ) {
+      String attribute = exportedPackage.getAttributes().get( Constants.VERSION_ATTRIBUTE );
+      if( attribute == null ) {
+         attribute = exportedPackage.getAttributes().get( Constants.PACKAGE_SPECIFICATION_VERSION );
+      }
+      final String key = attribute != null ? attribute : "";
+      PackedVersion result = BY_ATTRIBUTE.get( key );
+      if( result == null ) {
+         result = of( exportedPackage.getVersion() );
+         final PackedVersion existing = BY_ATTRIBUTE.putIfAbsent( key, result );
+         result = existing != null ? existing : result;
+      }
+      return result;
+   }
+
+   /**
+    * Creates a version from its components without building a {@link Version} if the components can be packed
+    * @param qualifier Qualifier; empty for none
+    */
+   public static PackedVersion of( int major, int minor, int micro, String qualifier ) {
+      final long bits = pack( major, minor, micro );
+      return new PackedVersion( bits, qualifier, bits == UNPACKABLE ? new Version( major, minor, micro, qualifier ) : null );
+   }
+
+   public static PackedVersion of( Version version ) {
+      return new PackedVersion( pack( version.getMajor(), version.getMinor(), version.getMicro() ), version.getQualifier(), version );
+   }
+
+   /**
+    * @return Major, minor and micro packed so that the numeric order of the result is the version order, or
+    * {@link #UNPACKABLE} if a component is out of range
+    */
+   public static long pack( int major, int minor, int micro ) {
+      if( major < 0 || major > MAX_MAJOR_MINOR || minor < 0 || minor > MAX_MAJOR_MINOR || micro < 0 ) {
+         return UNPACKABLE;
+      }
+      return ( ( long )major << MAJOR_SHIFT ) | ( ( long )minor << MINOR_SHIFT ) | micro;
+   }
+
+   private final long bits;
+   private final String qualifier;
+   /** Created on demand for packed versions */
+   private Version version;
+
+   private PackedVersion( long bits, String qualifier, Version version ) {
+      this.bits = bits;
+      this.qualifier = qualifier;
+      this.version = version;
+   }
+
+   @Override
+   public int compareTo( PackedVersion other ) {
+      if( bits == UNPACKABLE || other.bits == UNPACKABLE ) {
+         return getVersion().compareTo( other.getVersion() );
+      }
+      if( bits != other.bits ) {
+         return bits < other.bits ? -1 : 1;
+      }
+      return qualifier == other.qualifier ? 0 : qualifier.compareTo( other.qualifier );
+   }
+
+   @Override
+   public boolean equals( Object obj ) {
+      return obj instanceof PackedVersion && compareTo( ( PackedVersion )obj ) == 0;
+   }
+
+   /** @return Packed major, minor and micro or {@link #UNPACKABLE} */
+   public long getBits() {
+      return bits;
+   }
+
+   public String getQualifier() {
+      return qualifier;
+   }
+
+   public Version getVersion() {
+      Version result = version;
+      if( result == null ) {
+         result = new Version( ( int )( bits >>> MAJOR_SHIFT ), ( int )( ( bits >>> MINOR_SHIFT ) & MAX_MAJOR_MINOR ), ( int )( bits & Integer.MAX_VALUE ), qualifier );
+         version = result;
+      }
+      return result;
+   }
+
+   @Override
+   public int hashCode() {
+      return getVersion().hashCode();
+   }
+
+   @Override
+   public String toString() {
+      return getVersion().toString();
+   }
+}
@@ -0,0 +1,122 @@
+package tools.osgi.analyzer.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+import com.springsource.util.osgi.VersionRange;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+
+/**
+ * Version range as a pair of {@link PackedVersion} bounds. {@link #includes(PackedVersion)} and
+ * {@link #intersects(PackedVersionRange)} compare the bounds in place and never build intermediate ranges, unlike
+ * {@link VersionRange#intersection(VersionRange, VersionRange)}.
+ * <p>
+ * Instances are immutable and shared: {@link #of(ImportedPackage)} caches them by the version attribute of the import,
+ * or its specification-version attribute if there is no version attribute.
+ */
+public final class PackedVersionRange {
+   private static final ConcurrentMap<String, PackedVersionRange> BY_ATTRIBUTE = new ConcurrentHashMap<String, PackedVersionRange>();
+
+   /**
+    * @param importedPackage Import to get the version range of
+    * @return Shared packed version range of the import
+    */
+   public static PackedVersionRange of( ImportedPackage importedPackage ) {
+      String attribute = importedPackage.getAttributes().get( Constants.VERSION_ATTRIBUTE );
+      if( attribute == null ) {
+         attribute = importedPackage.getAttributes().get( Constants.PACKAGE_SPECIFICATION_VERSION );
+      }
+      final String key = attribute != null ? attribute : "";
+      PackedVersionRange result = BY_ATTRIBUTE.get( key );
+      if( result == null ) {
+         result = of( importedPackage.getVersion() );
+         final PackedVersionRange existing = BY_ATTRIBUTE.putIfAbsent( key, result );
+         result = existing != null ? existing : result;
+      }
+      return result;
+   }
+
+   /**
+    * @param ceiling Upper bound or <code>null</code> for an unbounded range
+    */
+   public static PackedVersionRange of( PackedVersion floor, boolean floorInclusive, PackedVersion ceiling, boolean ceilingInclusive ) {
+      return new PackedVersionRange( floor, floorInclusive, ceiling, ceilingInclusive );
+   }
+
+   public static PackedVersionRange of( VersionRange range ) {
+      final Version ceiling = range.getCeiling();
+      return new PackedVersionRange( PackedVersion.of( range.getFloor() ), range.isFloorInclusive(), ceiling != null ? PackedVersion.of( ceiling ) : null, range.isCeilingInclusive() );
+   }
+
+   private final PackedVersion ceiling;
+   private final boolean ceilingInclusive;
+   private final PackedVersion floor;
+   private final boolean floorInclusive;
+
+   private PackedVersionRange( PackedVersion floor, boolean floorInclusive, PackedVersion ceiling, boolean ceilingInclusive ) {
+      this.floor = floor;
+      this.floorInclusive = floorInclusive;
+      this.ceiling = ceiling;
+      this.ceilingInclusive = ceilingInclusive;
+   }
+
+   /** @return Upper bound or <code>null</code> if the range is unbounded */
+   public PackedVersion getCeiling() {
+      return ceiling;
+   }
+
+   public PackedVersion getFloor() {
+      return floor;
+   }
+
+   public boolean isCeilingInclusive() {
+      return ceilingInclusive;
+   }
+
+   public boolean isFloorInclusive() {
+      return floorInclusive;
+   }
+
+   public boolean includes( PackedVersion version ) {
+      final int floorCompare = version.compareTo( floor );
+      if( floorCompare < 0 || ( floorCompare == 0 && !floorInclusive ) ) {
+         return false;
+      }
+      if( ceiling == null ) {
+         return true;
+      }
+      final int ceilingCompare = version.compareTo( ceiling );
+      return ceilingCompare < 0 || ( ceilingCompare == 0 && ceilingInclusive );
+   }
+
+   /** @return <code>true</code> if at least one version is included in both ranges */
+   public boolean intersects( PackedVersionRange other ) {
+      final int floorCompare = floor.compareTo( other.floor );
+      final PackedVersion highestFloor = floorCompare >= 0 ? floor : other.floor;
+      final boolean highestFloorInclusive = floorCompare > 0 ? floorInclusive : floorCompare < 0 ? other.floorInclusive : floorInclusive && other.floorInclusive;
+      final PackedVersion lowestCeiling;
+      final boolean lowestCeilingInclusive;
+      if( ceiling == null || other.ceiling == null ) {
+         lowestCeiling = ceiling != null ? ceiling : other.ceiling;
+         lowestCeilingInclusive = ceiling != null ? ceilingInclusive : other.ceilingInclusive;
+      }
+      else {
+         final int ceilingCompare = ceiling.compareTo( other.ceiling );
+         lowestCeiling = ceilingCompare <= 0 ? ceiling : other.ceiling;
+         lowestCeilingInclusive = ceilingCompare < 0 ? ceilingInclusive : ceilingCompare > 0 ? other.ceilingInclusive : ceilingInclusive && other.ceilingInclusive;
+      }
+      if( lowestCeiling == null ) {
+         return true;
+      }
+      final int result = highestFloor.compareTo( lowestCeiling );
+      return result < 0 || ( result == 0 && highestFloorInclusive && lowestCeilingInclusive );
+   }
+
+   @Override
+   public String toString() {
+      return ceiling == null ? floor.toString() : String.format( "%s%s,%s%s", floorInclusive ? "[" : "(", floor, ceiling, ceilingInclusive ? "]" : ")" );
+   }
+}
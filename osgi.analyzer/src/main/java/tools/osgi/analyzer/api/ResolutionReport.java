@@ -0,0 +1,51 @@
+package tools.osgi.analyzer.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+
+/** Outcome of a dry-run resolution: whether the bundle would resolve and if not why */
+public class ResolutionReport {
+   private List<String> problems = new ArrayList<String>();
+   private Map<String, Bundle> providers = new HashMap<String, Bundle>();
+
+   public void addProblem( String problem ) {
+      problems.add( problem );
+   }
+
+   public List<String> getProblems() {
+      return problems;
+   }
+
+   /**
+    * @param packageName Name of an imported package
+    * @return Installed bundle the package is (or would be) wired to otherwise <code>null</code>
+    */
+   public Bundle getProvider( String packageName ) {
+      return providers.get( packageName );
+   }
+
+   public Map<String, Bundle> getProviders() {
+      return providers;
+   }
+
+   public boolean isResolvable() {
+      return problems.isEmpty();
+   }
+
+   public void setProblems( List<String> problems ) {
+      this.problems = problems;
+   }
+
+   public void setProviders( Map<String, Bundle> providers ) {
+      this.providers = providers;
+   }
+
+   @Override
+   public String toString() {
+      return isResolvable() ? "Resolvable" : String.format( "Not resolvable: %s", problems );
+   }
+}
@@ -0,0 +1,114 @@
+package tools.osgi.analyzer.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.osgi.framework.Bundle;
+
+/** Wiring problems that explain a class loading related throwable along with how often it occurred */
+public class ThrowableDiagnosis {
+   private Bundle bundle;
+   private List<String> classNames = new ArrayList<String>();
+   private volatile long lastSeen;
+   private String message;
+   private volatile long occurrences = 1;
+   private List<String> problems = new ArrayList<String>();
+   private String signature;
+   private String type;
+
+   public ThrowableDiagnosis( String signature, Throwable throwable ) {
+      setSignature( signature );
+      setType( throwable.getClass().getName() );
+      setMessage( throwable.getMessage() );
+      setLastSeen( System.currentTimeMillis() );
+   }
+
+   public void addClassName( String className ) {
+      if( !classNames.contains( className ) ) {
+         classNames.add( className );
+      }
+   }
+
+   public void addProblem( String problem ) {
+      problems.add( problem );
+   }
+
+   /** @return Bundle whose code triggered the throwable or <code>null</code> if it could not be determined */
+   public Bundle getBundle() {
+      return bundle;
+   }
+
+   /** @return Classes named by the throwable */
+   public List<String> getClassNames() {
+      return classNames;
+   }
+
+   public long getLastSeen() {
+      return lastSeen;
+   }
+
+   public String getMessage() {
+      return message;
+   }
+
+   /** @return Number of times a throwable with the same signature was seen since the diagnosis was made */
+   public long getOccurrences() {
+      return occurrences;
+   }
+
+   public List<String> getProblems() {
+      return problems;
+   }
+
+   /** @return Type and top stack frames that identify throwables with the same cause */
+   public String getSignature() {
+      return signature;
+   }
+
+   public String getType() {
+      return type;
+   }
+
+   public void incrementOccurrences() {
+      occurrences++;
+      lastSeen = System.currentTimeMillis();
+   }
+
+   public void setBundle( Bundle bundle ) {
+      this.bundle = bundle;
+   }
+
+   public void setClassNames( List<String> classNames ) {
+      this.classNames = classNames;
+   }
+
+   public void setLastSeen( long lastSeen ) {
+      this.lastSeen = lastSeen;
+   }
+
+   public void setMessage( String message ) {
+      this.message = message;
+   }
+
+   public void setOccurrences( long occurrences ) {
+      this.occurrences = occurrences;
+   }
+
+   public void setProblems( List<String> problems ) {
+      this.problems = problems;
+   }
+
+   public void setSignature( String signature ) {
+      this.signature = signature;
+   }
+
+   public void setType( String type ) {
+      this.type = type;
+   }
+
+   @Override
+   public String toString() {
+      final String bundleName = bundle != null ? String.format( "%s(%s)", bundle.getSymbolicName(), bundle.getBundleId() ) : "unknown bundle";
+      return String.format( "%s in %s (%s times): %s", type, bundleName, occurrences, problems );
+   }
+}
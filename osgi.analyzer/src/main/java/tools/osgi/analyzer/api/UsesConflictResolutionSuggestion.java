@@ -1,12 +1,37 @@
 package tools.osgi.analyzer.api;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.osgi.framework.Bundle;
 
 /** Represents a suggestion to fix a Use Conflict in the current OSGi container */
 public class UsesConflictResolutionSuggestion {
+   private int rank;
+   private final List<UsesConflict> resolvedUsesConflicts = new ArrayList<UsesConflict>();
+   private final List<Bundle> restartedBundles = new ArrayList<Bundle>();
    private UsesConflictResolutionSuggestionType type = UsesConflictResolutionSuggestionType.Null;
    private Bundle targetBundle;
 
+   /** @return Position among the suggestions computed together, starting at 1; <code>0</code> if not ranked */
+   public int getRank() {
+      return rank;
+   }
+
+   public void setRank( int rank ) {
+      this.rank = rank;
+   }
+
+   /** @return Uses conflicts removed by this suggestion that are not removed by a suggestion of a better rank */
+   public List<UsesConflict> getResolvedUsesConflicts() {
+      return resolvedUsesConflicts;
+   }
+
+   /** @return Bundles restarted by this suggestion that are not restarted by a suggestion of a better rank */
+   public List<Bundle> getRestartedBundles() {
+      return restartedBundles;
+   }
+
    public void setType( UsesConflictResolutionSuggestionType type ) {
       this.type = type;
    }
@@ -34,7 +59,7 @@ public class UsesConflictResolutionSuggestion {
          result = String.format( "uninstall %s // %s", targetBundle.getBundleId(), targetBundle.getSymbolicName() );
       }
       else if( UsesConflictResolutionSuggestionType.RefreshBundle.equals( type ) ) {
-         result = String.format( "refresh %s // $s", targetBundle.getBundleId(), targetBundle.getSymbolicName() );
+         result = String.format( "refresh %s // %s", targetBundle.getBundleId(), targetBundle.getSymbolicName() );
       }
       return result;
    }
@@ -0,0 +1,346 @@
+package tools.osgi.analyzer.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Samples the stacks of bundles while they start. The synchronous bundle listener sees STARTING on the thread that
+ * calls the activator; from then until STARTED, or until the start fails, that thread and every thread created after
+ * STARTING are sampled with the {@link ThreadMXBean} every {@value #DEFAULT_INTERVAL_MS} ms. Spawned threads are only
+ * sampled while they are not waiting, so idle pool threads do not drown the activator. When several bundles start at
+ * the same time a new thread is attributed to all of them.
+ * <p>
+ * Starts taking at least {@value #DEFAULT_THRESHOLD_MS} ms are kept per bundle as folded stacks, the input format of
+ * flame graph tools; faster starts are dropped. The threshold and interval can be set with the framework properties
+ * {@value #THRESHOLD_PROPERTY} and {@value #INTERVAL_PROPERTY}. Nothing is sampled while no bundle is starting.
+ */
+public class ActivationSampler implements SynchronousBundleListener {
+   /** Stacks of one slow start aggregated by folded stack */
+   public static final class SlowStart {
+      private final Bundle bundle;
+      private final long durationNanos;
+      private final boolean failed;
+      private final int samples;
+      private final Map<String, Integer> stacks;
+
+      public SlowStart( Bundle bundle, long durationNanos, boolean failed, int samples, Map<String, Integer> stacks ) {
+         this.bundle = bundle;
+         this.durationNanos = durationNanos;
+         this.failed = failed;
+         this.samples = samples;
+         this.stacks = Collections.unmodifiableMap( stacks );
+      }
+
+      public Bundle getBundle() {
+         return bundle;
+      }
+
+      public long getDurationNanos() {
+         return durationNanos;
+      }
+
+      /**
+       * @return Number of times each stack was seen; frames are separated by <code>;</code> starting at the root
+       * which is <code>activator</code> for the starting thread and <code>spawned</code> for other threads
+       */
+      public Map<String, Integer> getFoldedStacks() {
+         return stacks;
+      }
+
+      /**
+       * @param count Maximum number of frames returned
+       * @return Frames on top of the stacks ordered by the number of samples they were seen in, most first
+       */
+      public List<Map.Entry<String, Integer>> getHotFrames( int count ) {
+         final Map<String, Integer> frames = new HashMap<String, Integer>();
+         for( Map.Entry<String, Integer> entry : stacks.entrySet() ) {
+            final String stack = entry.getKey();
+            final int separator = stack.lastIndexOf( ';' );
+            String frame = stack.substring( separator + 1 );
+            if( frame.startsWith( "[" ) ) {
+               // Thread state of a waiting or blocked thread, reported with the frame it waits in
+               frame = String.format( "%s %s", stack.substring( stack.lastIndexOf( ';', separator - 1 ) + 1, separator ), frame );
+            }
+            final Integer seen = frames.get( frame );
+            frames.put( frame, ( seen != null ? seen : 0 ) + entry.getValue() );
+         }
+         return getMostFrequent( frames, count );
+      }
+
+      /**
+       * @param count Maximum number of stacks returned
+       * @return Folded stacks ordered by the number of samples they were seen in, most first
+       */
+      public List<Map.Entry<String, Integer>> getHotStacks( int count ) {
+         return getMostFrequent( stacks, count );
+      }
+
+      /** @return Number of times the threads of the start were sampled */
+      public int getSamples() {
+         return samples;
+      }
+
+      /** @return <code>true</code> if the bundle did not reach STARTED */
+      public boolean isFailed() {
+         return failed;
+      }
+   }
+
+   /** Bundle being started */
+   private static final class Activation {
+      private final Bundle bundle;
+      /** Thread ids that existed at STARTING sorted ascending */
+      private final long[] existingThreads;
+      private int samples;
+      private final long start = System.nanoTime();
+      private final Map<String, Integer> stacks = new HashMap<String, Integer>();
+      private final long threadId = Thread.currentThread().getId();
+
+      private Activation( Bundle bundle, long[] existingThreads ) {
+         this.bundle = bundle;
+         this.existingThreads = existingThreads;
+      }
+
+      private boolean isSpawned( long id ) {
+         return id != threadId && Arrays.binarySearch( existingThreads, id ) < 0;
+      }
+   }
+
+   public static final String INTERVAL_PROPERTY = "tools.osgi.analyzer.sampleIntervalMillis";
+   public static final String THRESHOLD_PROPERTY = "tools.osgi.analyzer.slowStartMillis";
+   private static final long DEFAULT_INTERVAL_MS = 10;
+   private static final long DEFAULT_THRESHOLD_MS = 1000;
+   private static final ActivationSampler INSTANCE = new ActivationSampler();
+   /** Frames kept of each stack counted from the top */
+   private static final int MAX_DEPTH = 256;
+
+   public static ActivationSampler getInstance() {
+      return INSTANCE;
+   }
+
+   private static List<Map.Entry<String, Integer>> getMostFrequent( Map<String, Integer> counts, int count ) {
+      final List<Map.Entry<String, Integer>> result = new ArrayList<Map.Entry<String, Integer>>( counts.entrySet() );
+      Collections.sort( result, new Comparator<Map.Entry<String, Integer>>() {
+         @Override
+         public int compare( Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2 ) {
+            final int compare = e2.getValue().compareTo( e1.getValue() );
+            return compare != 0 ? compare : e1.getKey().compareTo( e2.getKey() );
+         }
+      } );
+      return result.subList( 0, Math.min( count, result.size() ) );
+   }
+
+   private final ConcurrentMap<Long, Activation> activations = new ConcurrentHashMap<Long, Activation>();
+   private BundleContext bundleContext;
+   private ScheduledExecutorService executor;
+   private long intervalMillis = DEFAULT_INTERVAL_MS;
+   private ScheduledFuture<?> sampling;
+   private final ConcurrentMap<Long, SlowStart> slowStarts = new ConcurrentHashMap<Long, SlowStart>();
+   private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+   private volatile long thresholdNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_THRESHOLD_MS );
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      final Bundle bundle = event.getBundle();
+      switch( event.getType() ) {
+      case BundleEvent.STARTING:
+         final long[] existingThreads = threadBean.getAllThreadIds();
+         Arrays.sort( existingThreads );
+         activations.put( bundle.getBundleId(), new Activation( bundle, existingThreads ) );
+         startSampling();
+         break;
+      case BundleEvent.STARTED:
+         finish( bundle.getBundleId(), false );
+         break;
+      case BundleEvent.STOPPING:
+      case BundleEvent.STOPPED:
+         finish( bundle.getBundleId(), true );
+         break;
+      case BundleEvent.UNINSTALLED:
+         activations.remove( bundle.getBundleId() );
+         slowStarts.remove( bundle.getBundleId() );
+         break;
+      default:
+         break;
+      }
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      if( executor != null ) {
+         executor.shutdownNow();
+         executor = null;
+      }
+      sampling = null;
+      activations.clear();
+      slowStarts.clear();
+   }
+
+   /** @return Slow start of the bundle or <code>null</code> if its last start was not slow */
+   public SlowStart getSlowStart( long bundleId ) {
+      return slowStarts.get( bundleId );
+   }
+
+   /** @return Slow starts ordered by duration, slowest first */
+   public List<SlowStart> getSlowStarts() {
+      final List<SlowStart> result = new ArrayList<SlowStart>( slowStarts.values() );
+      Collections.sort( result, new Comparator<SlowStart>() {
+         @Override
+         public int compare( SlowStart s1, SlowStart s2 ) {
+            return Long.valueOf( s2.durationNanos ).compareTo( s1.durationNanos );
+         }
+      } );
+      return result;
+   }
+
+   /** @return Duration from which a start is kept */
+   public long getThresholdNanos() {
+      return thresholdNanos;
+   }
+
+   public synchronized boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         intervalMillis = Math.max( 1, AnalyzerServices.getLongProperty( bundleContext, INTERVAL_PROPERTY, DEFAULT_INTERVAL_MS ) );
+         thresholdNanos = TimeUnit.MILLISECONDS.toNanos( AnalyzerServices.getLongProperty( bundleContext, THRESHOLD_PROPERTY, DEFAULT_THRESHOLD_MS ) );
+         this.bundleContext = bundleContext;
+         executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+               final Thread result = new Thread( runnable, "osgi-analyzer-activation-sampler" );
+               result.setDaemon( true );
+               return result;
+            }
+         } );
+         bundleContext.addBundleListener( this );
+      }
+   }
+
+   /** @param thresholdNanos Duration from which starts are kept from now on */
+   public void setThresholdNanos( long thresholdNanos ) {
+      this.thresholdNanos = thresholdNanos;
+   }
+
+   private void addSample( Activation activation, String root, ThreadInfo thread ) {
+      final StackTraceElement[] frames = thread.getStackTrace();
+      final StringBuilder stack = new StringBuilder( root );
+      for( int index = frames.length - 1; index >= 0; index-- ) {
+         stack.append( ';' ).append( frames[index].getClassName() ).append( '.' ).append( frames[index].getMethodName() );
+      }
+      if( thread.getThreadState() != Thread.State.RUNNABLE ) {
+         stack.append( ";[" ).append( thread.getThreadState() ).append( ']' );
+      }
+      final String key = stack.toString();
+      final Integer seen = activation.stacks.get( key );
+      activation.stacks.put( key, seen != null ? seen + 1 : 1 );
+   }
+
+   private void finish( long bundleId, boolean failed ) {
+      final Activation activation = activations.remove( bundleId );
+      if( activation == null ) {
+         return;
+      }
+      synchronized( activation ) {
+         final long duration = System.nanoTime() - activation.start;
+         if( duration >= thresholdNanos ) {
+            slowStarts.put( bundleId, new SlowStart( activation.bundle, duration, failed, activation.samples, new HashMap<String, Integer>( activation.stacks ) ) );
+         }
+      }
+   }
+
+   private void sample() {
+      final long start = System.nanoTime();
+      synchronized( this ) {
+         if( activations.isEmpty() ) {
+            if( sampling != null ) {
+               sampling.cancel( false );
+               sampling = null;
+            }
+            return;
+         }
+      }
+      final List<Activation> current = new ArrayList<Activation>( activations.values() );
+      for( Activation activation : current ) {
+         // A start that failed without an event is finished here
+         if( activation.bundle.getState() != Bundle.STARTING ) {
+            finish( activation.bundle.getBundleId(), activation.bundle.getState() != Bundle.ACTIVE );
+         }
+      }
+      // Only the stacks of threads some start is interested in are taken since that is what costs
+      final long self = Thread.currentThread().getId();
+      final long[] allThreads = threadBean.getAllThreadIds();
+      final long[] candidates = new long[allThreads.length];
+      int candidateCount = 0;
+      for( long id : allThreads ) {
+         if( id == self ) {
+            continue;
+         }
+         for( Activation activation : current ) {
+            if( id == activation.threadId || activation.isSpawned( id ) ) {
+               candidates[candidateCount++] = id;
+               break;
+            }
+         }
+      }
+      final ThreadInfo[] threads = threadBean.getThreadInfo( Arrays.copyOf( candidates, candidateCount ), MAX_DEPTH );
+      for( Activation activation : current ) {
+         synchronized( activation ) {
+            for( ThreadInfo thread : threads ) {
+               if( thread == null ) {
+                  continue;
+               }
+               if( thread.getThreadId() == activation.threadId ) {
+                  addSample( activation, "activator", thread );
+               }
+               else if( activation.isSpawned( thread.getThreadId() ) && thread.getThreadState() != Thread.State.WAITING && thread.getThreadState() != Thread.State.TIMED_WAITING ) {
+                  addSample( activation, "spawned", thread );
+               }
+            }
+            activation.samples++;
+         }
+      }
+      AnalyzerMetrics.getInstance().getHistogram( "sampler", "activation" ).recordSince( start );
+   }
+
+   private synchronized void startSampling() {
+      if( sampling == null && executor != null ) {
+         sampling = executor.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+               sample();
+            }
+         }, 0, intervalMillis, TimeUnit.MILLISECONDS );
+      }
+   }
+}
@@ -6,7 +6,6 @@ import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
 import tools.osgi.analyzer.api.IOsgiAnalyzerService;
-import tools.osgi.analyzer.api.OsgiAnalyzerCommandService;
 
 public class Activator implements BundleActivator {
    private InternalOsgiAnalyzerService analyzerService;
@@ -14,15 +13,29 @@ public class Activator implements BundleActivator {
    @Override
    public void start( BundleContext context ) throws Exception {
       try {
-         final Hashtable<String, Object> props = new Hashtable<String, Object>();
-         props.put( "osgi.command.scope", "tools" );
-         props.put( "osgi.command.function", new String[]{ "analyze", "diagnose", "diagnose_class", "inspect" } );
-         context.registerService( OsgiAnalyzerCommandService.class.getName(), new OsgiAnalyzerCommandService( context ), props );
+         StartupProfiler.getInstance().open( context );
+         ActivationSampler.getInstance().open( context );
+         ManifestStore.getInstance().open( context );
+         BundleManifestCache.getInstance().open( context );
+         PackageExportIndex.getInstance().open( context );
+         FrameworkGeneration.getInstance().open( context );
+         AnalyzerServices.open( context );
+         AnalyzerMetrics.getInstance().open( context );
+         ClassNameIndex.getInstance().open( context );
+         CpuSampler.getInstance().open( context );
+         ClassLoaderLeakDetector.getInstance().open( context );
+         ClassLoadingTracer.getInstance().open( context );
 
          analyzerService = new InternalOsgiAnalyzerService( context );
          analyzerService.start();
+         final IOsgiAnalyzerService timedService = AnalyzerMetrics.getInstance().timed( IOsgiAnalyzerService.class, analyzerService, "service" );
+
+         final Hashtable<String, Object> props = new Hashtable<String, Object>();
+         props.put( "osgi.command.scope", "tools" );
+         props.put( "osgi.command.function", new String[]{ "allocations", "analyze", "class_loading", "cpu", "diagnose", "diagnose_class", "inspect", "leaks", "slow_starts", "snapshot", "startup" } );
+         context.registerService( OsgiAnalyzerCommandService.class.getName(), new OsgiAnalyzerCommandService( context, timedService ), props );
 
-         context.registerService( IOsgiAnalyzerService.class.getName(), analyzerService, new Hashtable<String, Object>() );
+         context.registerService( IOsgiAnalyzerService.class.getName(), timedService, new Hashtable<String, Object>() );
       }
       catch( Exception exception ) {
          throw new RuntimeException( String.format( "Error starting bundle: %s, Error: %s", context.getBundle().getSymbolicName(), exception.getMessage() ), exception );
@@ -32,6 +45,19 @@ public class Activator implements BundleActivator {
    @Override
    public void stop( BundleContext context ) throws Exception {
       analyzerService.stop();
+      ClassLoadingTracer.getInstance().close();
+      ClassLoaderLeakDetector.getInstance().close();
+      CpuSampler.getInstance().close();
+      ClassNameIndex.getInstance().close();
+      AnalyzerMetrics.getInstance().close();
+      AnalyzerServices.close();
+      WiringSnapshotProvider.getInstance().clear();
+      FrameworkGeneration.getInstance().close();
+      PackageExportIndex.getInstance().close();
+      ManifestStore.getInstance().close();
+      BundleManifestCache.getInstance().close();
+      ActivationSampler.getInstance().close();
+      StartupProfiler.getInstance().close();
    }
 
 }
@@ -0,0 +1,144 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of analysis results that are valid for one {@link FrameworkGeneration}. A query is computed at most once per
+ * generation; callers asking for the same query while it is computed wait for that computation instead of starting
+ * their own. Entries of older generations are dropped as soon as a query sees a newer generation; results whose
+ * computation overlapped a generation change are handed to the waiting callers but not kept.
+ * <p>
+ * When the generation is not open there is no way to tell if a result is still valid so nothing is cached.
+ */
+public class AnalysisResultCache {
+   /** Query together with the generation it was computed at */
+   private static class Key {
+      private final long generation;
+      private final List<Object> query;
+
+      public Key( long generation, List<Object> query ) {
+         this.generation = generation;
+         this.query = query;
+      }
+
+      @Override
+      public boolean equals( Object other ) {
+         boolean result = other instanceof Key;
+         if( result ) {
+            final Key otherKey = ( Key )other;
+            result = generation == otherKey.generation && query.equals( otherKey.query );
+         }
+         return result;
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * query.hashCode() + ( int )( generation ^ ( generation >>> 32 ) );
+      }
+   }
+
+   private static final Counter HITS = AnalyzerMetrics.getInstance().getCounter( "cache", "analysis.hits" );
+   private static final Counter MISSES = AnalyzerMetrics.getInstance().getCounter( "cache", "analysis.misses" );
+
+   private final ConcurrentMap<Key, FutureTask<Object>> entries = new ConcurrentHashMap<Key, FutureTask<Object>>();
+   private final FrameworkGeneration generation;
+   private volatile long lastGeneration = -1;
+
+   public AnalysisResultCache( FrameworkGeneration generation ) {
+      this.generation = generation;
+   }
+
+   public void clear() {
+      entries.clear();
+   }
+
+   /**
+    * Gets the result of the query for the current generation computing it if needed
+    * @param computation Computes the result if it is not cached yet
+    * @param query Parts that identify the query; compared with equals
+    * @return Cached or newly computed result; shared between callers so it must not be modified
+    */
+   @SuppressWarnings("unchecked")
+   public <T> T get( Callable<T> computation, Object... query ) {
+      if( !generation.isOpen() ) {
+         MISSES.increment();
+         return call( computation );
+      }
+      final long current = generation.get();
+      if( current != lastGeneration ) {
+         evictBefore( current );
+      }
+      final Key key = new Key( current, Arrays.asList( query ) );
+      FutureTask<Object> task = entries.get( key );
+      if( task == null ) {
+         final FutureTask<Object> created = new FutureTask<Object>( ( Callable<Object> )computation );
+         task = entries.putIfAbsent( key, created );
+         if( task == null ) {
+            task = created;
+            MISSES.increment();
+            task.run();
+            if( generation.get() != current ) {
+               // Computed while the framework changed; possibly from a snapshot mixing generations
+               entries.remove( key, task );
+            }
+         }
+         else {
+            HITS.increment();
+         }
+      }
+      else {
+         HITS.increment();
+      }
+      try {
+         return ( T )task.get();
+      }
+      catch( InterruptedException exception ) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException( String.format( "Interrupted waiting for analysis: %s", key.query ), exception );
+      }
+      catch( ExecutionException exception ) {
+         // Do not cache failures
+         entries.remove( key, task );
+         final Throwable cause = exception.getCause();
+         if( cause instanceof RuntimeException ) {
+            throw ( RuntimeException )cause;
+         }
+         if( cause instanceof Error ) {
+            throw ( Error )cause;
+         }
+         throw new RuntimeException( String.format( "Error running analysis: %s", key.query ), cause );
+      }
+   }
+
+   public int size() {
+      return entries.size();
+   }
+
+   private <T> T call( Callable<T> computation ) {
+      try {
+         return computation.call();
+      }
+      catch( RuntimeException exception ) {
+         throw exception;
+      }
+      catch( Exception exception ) {
+         throw new RuntimeException( "Error running analysis", exception );
+      }
+   }
+
+   private void evictBefore( long current ) {
+      lastGeneration = current;
+      for( Iterator<Key> keys = entries.keySet().iterator(); keys.hasNext(); ) {
+         if( keys.next().generation < current ) {
+            keys.remove();
+         }
+      }
+   }
+}
@@ -0,0 +1,219 @@
+package tools.osgi.analyzer.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * Registry of the counters and latency histograms the analyzer keeps about its own cost. Metrics are identified by a
+ * group and a name and are created on first use; recording never blocks. While the registry is open every metric is
+ * registered on the {@link MBeanServer} service, or the platform MBean server if there is none, as
+ * <code>tools.osgi.analyzer:type=Latency|Counter,group=&lt;group&gt;,name=&lt;name&gt;</code>.
+ * <p>
+ * Groups in use: <code>service</code> ({@link tools.osgi.analyzer.api.IOsgiAnalyzerService} methods),
+ * <code>command</code> (gogo commands), <code>manifest</code> (header parsing), <code>cache</code> (hits and misses),
+ * <code>resolver</code> (dry-run resolves), <code>sampler</code> (stack samples), <code>diagnoser</code> (throwable
+ * analyses), <code>tracer</code> (weaving hook failures) and the per bundle groups of the {@link ClassLoadingTracer}.
+ */
+public class AnalyzerMetrics {
+   public static final String DOMAIN = "tools.osgi.analyzer";
+   private static final AnalyzerMetrics INSTANCE = new AnalyzerMetrics();
+
+   public static AnalyzerMetrics getInstance() {
+      return INSTANCE;
+   }
+
+   private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+   private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+   private MBeanServer mbeanServer;
+   private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+   public synchronized void close() {
+      if( mbeanServer != null ) {
+         for( ObjectName name : registered ) {
+            try {
+               mbeanServer.unregisterMBean( name );
+            }
+            catch( JMException exception ) {
+               // Already unregistered
+            }
+         }
+         registered.clear();
+         mbeanServer = null;
+      }
+   }
+
+   /**
+    * @param group Group of the counter
+    * @param name Name of the counter within the group
+    * @return Counter for the group and name; created and registered on first use
+    */
+   public Counter getCounter( String group, String name ) {
+      final String key = getKey( "Counter", group, name );
+      Counter result = counters.get( key );
+      if( result == null ) {
+         final Counter created = new Counter();
+         result = counters.putIfAbsent( key, created );
+         if( result == null ) {
+            result = created;
+            register( key, result );
+         }
+      }
+      return result;
+   }
+
+   /** @return All counters by object name */
+   public Map<String, Counter> getCounters() {
+      return new TreeMap<String, Counter>( counters );
+   }
+
+   /**
+    * @param group Group of the histogram
+    * @param name Name of the histogram within the group
+    * @return Histogram for the group and name; created and registered on first use
+    */
+   public LatencyHistogram getHistogram( String group, String name ) {
+      final String key = getKey( "Latency", group, name );
+      LatencyHistogram result = histograms.get( key );
+      if( result == null ) {
+         final LatencyHistogram created = new LatencyHistogram();
+         result = histograms.putIfAbsent( key, created );
+         if( result == null ) {
+            result = created;
+            register( key, result );
+         }
+      }
+      return result;
+   }
+
+   /** @return All histograms by object name */
+   public Map<String, LatencyHistogram> getHistograms() {
+      return new TreeMap<String, LatencyHistogram>( histograms );
+   }
+
+   public synchronized boolean isOpen() {
+      return mbeanServer != null;
+   }
+
+   /**
+    * Registers the metrics created so far and all metrics created from now on
+    * @param bundleContext Context used to look up the {@link MBeanServer} service
+    */
+   public synchronized void open( BundleContext bundleContext ) {
+      if( mbeanServer == null ) {
+         // Kept while the metrics are registered, so only a tracked server is used and not one released right away
+         final MBeanServer service = AnalyzerServices.MBEAN_SERVER.get();
+         mbeanServer = service != null ? service : ManagementFactory.getPlatformMBeanServer();
+         for( Map.Entry<String, Counter> entry : counters.entrySet() ) {
+            register( entry.getKey(), entry.getValue() );
+         }
+         for( Map.Entry<String, LatencyHistogram> entry : histograms.entrySet() ) {
+            register( entry.getKey(), entry.getValue() );
+         }
+      }
+   }
+
+   /**
+    * Drops the counter and the histogram of the group and name and unregisters their MBeans; a later lookup creates
+    * them anew
+    * @param group Group of the metrics
+    * @param name Name of the metrics within the group
+    */
+   public void remove( String group, String name ) {
+      final String counterKey = getKey( "Counter", group, name );
+      if( counters.remove( counterKey ) != null ) {
+         unregister( counterKey );
+      }
+      final String histogramKey = getKey( "Latency", group, name );
+      if( histograms.remove( histogramKey ) != null ) {
+         unregister( histogramKey );
+      }
+   }
+
+   /**
+    * Wraps the target so every call of a method of the interface is recorded in the histogram
+    * <code>group/&lt;method&gt;.&lt;parameter types&gt;</code>, including calls that throw
+    * @param type Interface to time
+    * @param target Implementation calls are delegated to
+    * @param group Group of the histograms
+    * @return Proxy implementing the interface
+    */
+   public <T> T timed( Class<T> type, final T target, final String group ) {
+      final Map<Method, LatencyHistogram> methodHistograms = new ConcurrentHashMap<Method, LatencyHistogram>();
+      for( Method method : type.getMethods() ) {
+         final StringBuilder name = new StringBuilder( method.getName() );
+         for( Class<?> parameterType : method.getParameterTypes() ) {
+            name.append( '.' ).append( parameterType.getSimpleName() );
+         }
+         methodHistograms.put( method, getHistogram( group, name.toString() ) );
+      }
+      return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[]{ type }, new InvocationHandler() {
+         @Override
+         public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            final LatencyHistogram histogram = methodHistograms.get( method );
+            final long start = System.nanoTime();
+            try {
+               return method.invoke( target, args );
+            }
+            catch( InvocationTargetException exception ) {
+               throw exception.getCause();
+            }
+            finally {
+               if( histogram != null ) {
+                  histogram.recordSince( start );
+               }
+            }
+         }
+      } ) );
+   }
+
+   private String getKey( String type, String group, String name ) {
+      return String.format( "%s:type=%s,group=%s,name=%s", DOMAIN, type, group, name );
+   }
+
+   private synchronized void register( String key, Object metric ) {
+      if( mbeanServer == null ) {
+         return;
+      }
+      try {
+         final ObjectName name = new ObjectName( key );
+         if( !mbeanServer.isRegistered( name ) ) {
+            mbeanServer.registerMBean( metric, name );
+            registered.add( name );
+         }
+      }
+      catch( JMException exception ) {
+         // Recording goes on without the MBean
+         System.out.println( String.format( "Failed to register metric %s: %s", key, exception.getMessage() ) );
+      }
+   }
+
+   private synchronized void unregister( String key ) {
+      if( mbeanServer == null ) {
+         return;
+      }
+      try {
+         final ObjectName name = new ObjectName( key );
+         if( registered.remove( name ) ) {
+            mbeanServer.unregisterMBean( name );
+         }
+      }
+      catch( JMException exception ) {
+         // Already unregistered
+      }
+   }
+}
@@ -0,0 +1,51 @@
+package tools.osgi.analyzer.internal;
+
+import javax.management.MBeanServer;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.springframework.context.ApplicationContext;
+
+import tools.osgi.analyzer.api.IOsgiAnalyzerService;
+
+/** Services used by the analyzer; opened once by the {@link Activator} and closed when the bundle stops */
+@SuppressWarnings({ "deprecation" })
+public final class AnalyzerServices {
+   public static final ServiceAccess<IOsgiAnalyzerService> ANALYZER = new ServiceAccess<IOsgiAnalyzerService>( IOsgiAnalyzerService.class );
+   public static final ServiceAccess<ApplicationContext> APPLICATION_CONTEXTS = new ServiceAccess<ApplicationContext>( ApplicationContext.class );
+   public static final ServiceAccess<MBeanServer> MBEAN_SERVER = new ServiceAccess<MBeanServer>( MBeanServer.class );
+   public static final ServiceAccess<PackageAdmin> PACKAGE_ADMIN = new ServiceAccess<PackageAdmin>( PackageAdmin.class );
+
+   public static void close() {
+      ANALYZER.close();
+      APPLICATION_CONTEXTS.close();
+      MBEAN_SERVER.close();
+      PACKAGE_ADMIN.close();
+   }
+
+   /**
+    * @param bundleContext Context the framework property is read from
+    * @param key Name of the framework or system property
+    * @param defaultValue Value if the property is not set
+    * @return Value of the property
+    */
+   public static long getLongProperty( BundleContext bundleContext, String key, long defaultValue ) {
+      final String value = bundleContext.getProperty( key );
+      try {
+         return value != null ? Long.parseLong( value.trim() ) : defaultValue;
+      }
+      catch( NumberFormatException exception ) {
+         throw new RuntimeException( String.format( "Invalid value of %s: %s", key, value ), exception );
+      }
+   }
+
+   public static void open( BundleContext bundleContext ) {
+      PACKAGE_ADMIN.open( bundleContext );
+      MBEAN_SERVER.open( bundleContext );
+      APPLICATION_CONTEXTS.open( bundleContext );
+      ANALYZER.open( bundleContext );
+   }
+
+   private AnalyzerServices() {
+   }
+}
@@ -0,0 +1,312 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleRevision;
+
+import tools.osgi.analyzer.api.BundleManifestSource;
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageHeaderParser;
+import tools.osgi.analyzer.api.PackageSymbols;
+import tools.osgi.analyzer.api.PackedVersion;
+import tools.osgi.analyzer.api.PackedVersionRange;
+
+import com.springsource.util.osgi.manifest.BundleManifest;
+import com.springsource.util.osgi.manifest.BundleManifestFactory;
+import com.springsource.util.osgi.manifest.ExportedPackage;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+import com.springsource.util.osgi.manifest.Resolution;
+import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
+
+/**
+ * Shared cache of parsed {@link BundleManifest} objects keyed by bundle id and {@link BundleRevision}. Manifests are
+ * parsed from the raw (unlocalized) headers so no localization lookup happens on a cache miss either.
+ * <p>
+ * Next to the full manifest the compact {@link PackageHeader} form of Import-Package and Export-Package is cached.
+ * Each form is parsed on first use, so callers that only match packages never build the springsource model. Compact
+ * headers still current in the {@link ManifestStore} of the previous run are taken from there instead of parsed. A header
+ * the compact parser rejects is counted in <code>cache/packageHeader.parseFailures</code> and converted from the
+ * springsource model instead, so one bad bundle does not fail every analysis that reads the headers.
+ * <p>
+ * While the cache is open {@link BundleUtils} reads manifests from it and matches exports with the
+ * {@link PackageExportIndex}.
+ */
+public class BundleManifestCache implements SynchronousBundleListener {
+   /** Source {@link BundleUtils} reads from while the cache is open; exports are matched with the index when it is open */
+   private static class CachedBundleManifestSource extends BundleManifestSource {
+      @Override
+      public boolean containsExportForImport( Bundle bundle, ImportedPackage importedPackage ) {
+         if( PackageExportIndex.getInstance().isOpen() ) {
+            return PackageExportIndex.getInstance().getExportedPackage( bundle, importedPackage ) != null;
+         }
+         return INSTANCE.getExportPackageHeader( bundle ).satisfies( importedPackage );
+      }
+
+      @Override
+      public List<Bundle> findBundlesThatSatisfyImport( BundleContext bundleContext, ImportedPackage importedPackage ) {
+         if( PackageExportIndex.getInstance().isOpen() ) {
+            return PackageExportIndex.getInstance().findBundlesThatSatisfyImport( bundleContext, importedPackage );
+         }
+         return super.findBundlesThatSatisfyImport( bundleContext, importedPackage );
+      }
+
+      @Override
+      public BundleManifest getBundleManifest( Bundle bundle ) {
+         return INSTANCE.getManifest( bundle );
+      }
+
+      @Override
+      public ExportedPackage getExportedPackage( Bundle bundle, ImportedPackage importedPackage ) {
+         if( PackageExportIndex.getInstance().isOpen() ) {
+            return PackageExportIndex.getInstance().getExportedPackage( bundle, importedPackage );
+         }
+         return super.getExportedPackage( bundle, importedPackage );
+      }
+   }
+
+   private static class CacheEntry {
+      private volatile PackageHeader exportPackage;
+      private volatile PackageHeader importPackage;
+      private volatile BundleManifest manifest;
+      private final BundleRevision revision;
+
+      public CacheEntry( BundleRevision revision ) {
+         this.revision = revision;
+      }
+
+      public boolean isFor( BundleRevision revision ) {
+         return this.revision == revision;
+      }
+   }
+
+   private static final BundleManifestCache INSTANCE = new BundleManifestCache();
+   private static final Counter HEADER_HITS = AnalyzerMetrics.getInstance().getCounter( "cache", "packageHeader.hits" );
+   private static final Counter HEADER_MISSES = AnalyzerMetrics.getInstance().getCounter( "cache", "packageHeader.misses" );
+   private static final Counter HEADER_STORE_HITS = AnalyzerMetrics.getInstance().getCounter( "cache", "packageHeader.storeHits" );
+   private static final Counter HEADER_PARSE_FAILURES = AnalyzerMetrics.getInstance().getCounter( "cache", "packageHeader.parseFailures" );
+   private static final Counter MANIFEST_HITS = AnalyzerMetrics.getInstance().getCounter( "cache", "manifest.hits" );
+   private static final Counter MANIFEST_MISSES = AnalyzerMetrics.getInstance().getCounter( "cache", "manifest.misses" );
+   private static final LatencyHistogram PARSE_EXPORT_PACKAGE = AnalyzerMetrics.getInstance().getHistogram( "manifest", "parseExportPackage" );
+   private static final LatencyHistogram PARSE_IMPORT_PACKAGE = AnalyzerMetrics.getInstance().getHistogram( "manifest", "parseImportPackage" );
+   private static final LatencyHistogram PARSE_MANIFEST = AnalyzerMetrics.getInstance().getHistogram( "manifest", "parseManifest" );
+
+   public static BundleManifestCache getInstance() {
+      return INSTANCE;
+   }
+
+   private BundleContext bundleContext;
+   private final ConcurrentMap<Long, CacheEntry> entries = new ConcurrentHashMap<Long, CacheEntry>();
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      switch( event.getType() ) {
+      case BundleEvent.UPDATED:
+      case BundleEvent.UNRESOLVED:
+      case BundleEvent.UNINSTALLED:
+         entries.remove( event.getBundle().getBundleId() );
+         break;
+      default:
+         break;
+      }
+   }
+
+   public void clear() {
+      entries.clear();
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+         BundleUtils.setBundleManifestSource( null );
+      }
+      clear();
+   }
+
+   /**
+    * @param bundle Bundle to get the exports of
+    * @return Compact Export-Package header of the current revision of the bundle
+    */
+   public PackageHeader getExportPackageHeader( Bundle bundle ) {
+      final CacheEntry entry = getEntry( bundle );
+      PackageHeader result = entry != null ? entry.exportPackage : null;
+      if( result != null ) {
+         HEADER_HITS.increment();
+         return result;
+      }
+      result = ManifestStore.getInstance().getExportPackageHeader( bundle );
+      if( result != null ) {
+         HEADER_STORE_HITS.increment();
+      }
+      else {
+         HEADER_MISSES.increment();
+         final long start = System.nanoTime();
+         try {
+            result = PackageHeaderParser.parseExportPackage( bundle.getHeaders( "" ).get( Constants.EXPORT_PACKAGE ) );
+         }
+         catch( IllegalArgumentException exception ) {
+            HEADER_PARSE_FAILURES.increment();
+            result = toExportPackageHeader( bundle, exception );
+         }
+         PARSE_EXPORT_PACKAGE.recordSince( start );
+         if( entry != null ) {
+            entry.exportPackage = result;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @param bundle Bundle to get the imports of
+    * @return Compact Import-Package header of the current revision of the bundle
+    */
+   public PackageHeader getImportPackageHeader( Bundle bundle ) {
+      final CacheEntry entry = getEntry( bundle );
+      PackageHeader result = entry != null ? entry.importPackage : null;
+      if( result != null ) {
+         HEADER_HITS.increment();
+         return result;
+      }
+      result = ManifestStore.getInstance().getImportPackageHeader( bundle );
+      if( result != null ) {
+         HEADER_STORE_HITS.increment();
+      }
+      else {
+         HEADER_MISSES.increment();
+         final long start = System.nanoTime();
+         try {
+            result = PackageHeaderParser.parseImportPackage( bundle.getHeaders( "" ).get( Constants.IMPORT_PACKAGE ) );
+         }
+         catch( IllegalArgumentException exception ) {
+            HEADER_PARSE_FAILURES.increment();
+            result = toImportPackageHeader( bundle, exception );
+         }
+         PARSE_IMPORT_PACKAGE.recordSince( start );
+         if( entry != null ) {
+            entry.importPackage = result;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Gets the parsed manifest for the current revision of the bundle
+    * @param bundle Bundle to get the manifest for
+    * @return Cached manifest if the revision has not changed since it was parsed otherwise a newly parsed manifest
+    */
+   public BundleManifest getManifest( Bundle bundle ) {
+      final CacheEntry entry = getEntry( bundle );
+      BundleManifest result = entry != null ? entry.manifest : null;
+      if( result != null ) {
+         MANIFEST_HITS.increment();
+      }
+      else {
+         MANIFEST_MISSES.increment();
+         result = parse( bundle );
+         if( entry != null ) {
+            entry.manifest = result;
+         }
+      }
+      return result;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         bundleContext.addBundleListener( this );
+         BundleUtils.setBundleManifestSource( new CachedBundleManifestSource() );
+      }
+   }
+
+   public int size() {
+      return entries.size();
+   }
+
+   /** @return Entry of the current revision of the bundle or <code>null</code> if the bundle is uninstalled */
+   private CacheEntry getEntry( Bundle bundle ) {
+      final BundleRevision revision = bundle.adapt( BundleRevision.class );
+      if( revision == null ) {
+         // Uninstalled; nothing stable to key on
+         return null;
+      }
+      final CacheEntry existing = entries.get( bundle.getBundleId() );
+      if( existing != null && existing.isFor( revision ) ) {
+         return existing;
+      }
+      final CacheEntry result = new CacheEntry( revision );
+      entries.put( bundle.getBundleId(), result );
+      return result;
+   }
+
+   private BundleManifest parse( Bundle bundle ) {
+      final long start = System.nanoTime();
+      try {
+         return BundleManifestFactory.createBundleManifest( bundle.getHeaders( "" ), new DummyParserLogger() );
+      }
+      finally {
+         PARSE_MANIFEST.recordSince( start );
+      }
+   }
+
+   /** @return Exports converted from the springsource model; empty if that can not read the header either */
+   private PackageHeader toExportPackageHeader( Bundle bundle, IllegalArgumentException exception ) {
+      try {
+         final List<ExportedPackage> exportedPackages = getManifest( bundle ).getExportPackage().getExportedPackages();
+         final int size = exportedPackages.size();
+         final int[] packageSymbols = new int[size];
+         final PackedVersion[] versions = new PackedVersion[size];
+         final int[] usesIds = new int[size];
+         for( int index = 0; index < size; index++ ) {
+            final ExportedPackage exportedPackage = exportedPackages.get( index );
+            packageSymbols[index] = PackageSymbols.getInstance().intern( exportedPackage.getPackageName() );
+            versions[index] = PackedVersion.of( exportedPackage );
+            final List<String> uses = exportedPackage.getUses();
+            final int[] useSymbols = new int[uses.size()];
+            for( int use = 0; use < useSymbols.length; use++ ) {
+               useSymbols[use] = PackageSymbols.getInstance().intern( uses.get( use ) );
+            }
+            usesIds[index] = PackageSymbols.getInstance().internUses( useSymbols, useSymbols.length );
+         }
+         return new PackageHeader( packageSymbols, null, versions, new boolean[size], usesIds, size );
+      }
+      catch( IllegalArgumentException manifestException ) {
+         System.out.println( String.format( "Ignoring Export-Package of %s: %s", bundle, exception.getMessage() ) );
+         return PackageHeader.EMPTY;
+      }
+   }
+
+   /** @return Imports converted from the springsource model; empty if that can not read the header either */
+   private PackageHeader toImportPackageHeader( Bundle bundle, IllegalArgumentException exception ) {
+      try {
+         final List<ImportedPackage> importedPackages = getManifest( bundle ).getImportPackage().getImportedPackages();
+         final int size = importedPackages.size();
+         final int[] packageSymbols = new int[size];
+         final PackedVersionRange[] versionRanges = new PackedVersionRange[size];
+         final boolean[] optional = new boolean[size];
+         for( int index = 0; index < size; index++ ) {
+            final ImportedPackage importedPackage = importedPackages.get( index );
+            packageSymbols[index] = PackageSymbols.getInstance().intern( importedPackage.getPackageName() );
+            versionRanges[index] = PackedVersionRange.of( importedPackage );
+            optional[index] = Resolution.OPTIONAL.equals( importedPackage.getResolution() );
+         }
+         return new PackageHeader( packageSymbols, versionRanges, null, optional, new int[size], size );
+      }
+      catch( IllegalArgumentException manifestException ) {
+         System.out.println( String.format( "Ignoring Import-Package of %s: %s", bundle, exception.getMessage() ) );
+         return PackageHeader.EMPTY;
+      }
+   }
+}
@@ -0,0 +1,388 @@
+package tools.osgi.analyzer.internal;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleRevisions;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Detects class loaders of bundle wirings that stay reachable after the framework let go of them. The class loader of
+ * every wiring seen is kept with a weak reference: wirings resolved while the detector is open, wirings existing when
+ * it was opened and wirings defining classes as seen by the {@link ClassLoadingTracer}. A loader whose wiring is no
+ * longer in use, because the bundle was refreshed, updated or uninstalled and refreshed, should be collected by the
+ * next garbage collection; if it is still there it leaked and keeps its classes in the metaspace. Wirings that are
+ * still in use but not current are only removal pending.
+ * <p>
+ * Likely culprits are searched among the live threads: threads whose class or context class loader is a leaked loader
+ * and thread locals holding objects of a leaked loader. Optionally the static fields of the classes already loaded by
+ * the current bundles are searched as well, one level into collections, maps and arrays.
+ */
+public class ClassLoaderLeakDetector implements BundleListener, FrameworkListener {
+   /** Class loader of a wiring the framework no longer uses */
+   public static final class LeakedLoader {
+      private final long bundleId;
+      private final List<String> culprits = new ArrayList<String>();
+      private final String loader;
+      private final int refreshes;
+      private final String symbolicName;
+      private final boolean uninstalled;
+      private final String version;
+
+      public LeakedLoader( long bundleId, String symbolicName, String version, boolean uninstalled, int refreshes, String loader ) {
+         this.bundleId = bundleId;
+         this.symbolicName = symbolicName;
+         this.version = version;
+         this.uninstalled = uninstalled;
+         this.refreshes = refreshes;
+         this.loader = loader;
+      }
+
+      public long getBundleId() {
+         return bundleId;
+      }
+
+      /** @return Descriptions of the references found to the loader or its classes */
+      public List<String> getCulprits() {
+         return culprits;
+      }
+
+      /** @return Description of the class loader */
+      public String getLoader() {
+         return loader;
+      }
+
+      /** @return Refreshes the loader survived since it was seen */
+      public int getRefreshes() {
+         return refreshes;
+      }
+
+      public String getSymbolicName() {
+         return symbolicName;
+      }
+
+      public String getVersion() {
+         return version;
+      }
+
+      public boolean isUninstalled() {
+         return uninstalled;
+      }
+   }
+
+   /** Bundle of a tracked loader; only references the wiring weakly so the loader can be collected */
+   private static final class LoaderRecord {
+      private final long bundleId;
+      private final int refreshes;
+      private final String symbolicName;
+      private final String version;
+      private final WeakReference<BundleWiring> wiring;
+
+      private LoaderRecord( BundleWiring wiring, int refreshes ) {
+         final Bundle bundle = wiring.getBundle();
+         this.bundleId = bundle.getBundleId();
+         this.symbolicName = bundle.getSymbolicName();
+         this.version = String.valueOf( bundle.getVersion() );
+         this.wiring = new WeakReference<BundleWiring>( wiring );
+         this.refreshes = refreshes;
+      }
+   }
+
+   private static final ClassLoaderLeakDetector INSTANCE = new ClassLoaderLeakDetector();
+   /** Elements of a collection, map or array checked for objects of leaked loaders */
+   private static final int MAX_ELEMENTS = 1000;
+
+   public static ClassLoaderLeakDetector getInstance() {
+      return INSTANCE;
+   }
+
+   private static String describe( Object value ) {
+      return value instanceof Class ? String.format( "class %s", ( ( Class<?> )value ).getName() ) : String.format( "%s", value.getClass().getName() );
+   }
+
+   private static Object getField( Object target, Class<?> type, String name ) throws ReflectiveOperationException {
+      final Field field = type.getDeclaredField( name );
+      field.setAccessible( true );
+      return field.get( target );
+   }
+
+   private BundleContext bundleContext;
+   private final Map<ClassLoader, LoaderRecord> loaders = new WeakHashMap<ClassLoader, LoaderRecord>();
+   private volatile int refreshes;
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      if( event.getType() == BundleEvent.RESOLVED ) {
+         final BundleWiring wiring = event.getBundle().adapt( BundleWiring.class );
+         if( wiring != null ) {
+            track( wiring );
+         }
+      }
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+            bundleContext.removeFrameworkListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      loaders.clear();
+      refreshes = 0;
+   }
+
+   /**
+    * @param collect <code>true</code> to run the garbage collector first so only loaders that are really reachable are
+    * reported
+    * @param searchStatics <code>true</code> to also search the static fields of the loaded classes of current bundles
+    * @return Loaders of wirings no longer in use that are still reachable ordered by bundle id
+    */
+   public List<LeakedLoader> findLeaks( boolean collect, boolean searchStatics ) {
+      if( collect ) {
+         // Weak references are cleared by a full collection; a second one catches loaders only freed by finalization
+         System.gc();
+         System.runFinalization();
+         System.gc();
+      }
+      final Map<ClassLoader, LeakedLoader> leaked = new IdentityHashMap<ClassLoader, LeakedLoader>();
+      final List<LeakedLoader> result = new ArrayList<LeakedLoader>();
+      final BundleContext context;
+      synchronized( this ) {
+         context = bundleContext;
+         for( Map.Entry<ClassLoader, LoaderRecord> entry : loaders.entrySet() ) {
+            final LoaderRecord record = entry.getValue();
+            final BundleWiring wiring = record.wiring.get();
+            if( wiring == null || !wiring.isInUse() ) {
+               final boolean uninstalled = bundleContext == null || bundleContext.getBundle( record.bundleId ) == null;
+               final LeakedLoader leak = new LeakedLoader( record.bundleId, record.symbolicName, record.version, uninstalled, refreshes - record.refreshes, String.valueOf( entry.getKey() ) );
+               leaked.put( entry.getKey(), leak );
+               result.add( leak );
+            }
+         }
+      }
+      if( !leaked.isEmpty() ) {
+         searchThreads( leaked );
+         if( searchStatics && context != null ) {
+            searchStatics( context, leaked );
+         }
+      }
+      Collections.sort( result, new Comparator<LeakedLoader>() {
+         @Override
+         public int compare( LeakedLoader l1, LeakedLoader l2 ) {
+            return Long.valueOf( l1.bundleId ).compareTo( l2.bundleId );
+         }
+      } );
+      return result;
+   }
+
+   @Override
+   public void frameworkEvent( FrameworkEvent event ) {
+      if( event.getType() == FrameworkEvent.PACKAGES_REFRESHED ) {
+         refreshes++;
+      }
+   }
+
+   public synchronized boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         bundleContext.addBundleListener( this );
+         bundleContext.addFrameworkListener( this );
+         for( Bundle bundle : bundleContext.getBundles() ) {
+            final BundleWiring wiring = bundle.adapt( BundleWiring.class );
+            if( wiring != null ) {
+               track( wiring );
+            }
+         }
+         // Older wirings of removal pending bundles are the ones most likely to leak
+         for( Bundle bundle : bundleContext.getBundle( 0 ).adapt( FrameworkWiring.class ).getRemovalPendingBundles() ) {
+            final BundleRevisions revisions = bundle.adapt( BundleRevisions.class );
+            if( revisions != null ) {
+               for( BundleRevision revision : revisions.getRevisions() ) {
+                  if( revision.getWiring() != null ) {
+                     track( revision.getWiring() );
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   /** @return Number of class loaders currently tracked */
+   public synchronized int size() {
+      return loaders.size();
+   }
+
+   /** @param wiring Wiring whose class loader is tracked; ignored if it has none or is tracked already */
+   public void track( BundleWiring wiring ) {
+      final ClassLoader loader = wiring.getClassLoader();
+      if( loader == null ) {
+         return;
+      }
+      synchronized( this ) {
+         if( bundleContext != null && !loaders.containsKey( loader ) ) {
+            loaders.put( loader, new LoaderRecord( wiring, refreshes ) );
+         }
+      }
+   }
+
+   /** @return Leak of the loader that defined the object or class or that the object is; <code>null</code> if none */
+   private LeakedLoader findLeak( Map<ClassLoader, LeakedLoader> leaked, Object value ) {
+      if( value == null ) {
+         return null;
+      }
+      if( value instanceof ClassLoader && leaked.containsKey( value ) ) {
+         return leaked.get( value );
+      }
+      final Class<?> type = value instanceof Class ? ( Class<?> )value : value.getClass();
+      return leaked.get( type.getClassLoader() );
+   }
+
+   /** @return Leaks of the objects found in the value, one level deep into collections, maps and arrays */
+   private Map<LeakedLoader, Object> findLeaks( Map<ClassLoader, LeakedLoader> leaked, Object value ) {
+      final Map<LeakedLoader, Object> result = new IdentityHashMap<LeakedLoader, Object>();
+      final LeakedLoader leak = findLeak( leaked, value );
+      if( leak != null ) {
+         result.put( leak, value );
+         return result;
+      }
+      final List<Object> elements = new ArrayList<Object>();
+      try {
+         if( value instanceof Collection ) {
+            elements.addAll( ( Collection<?> )value );
+         }
+         else if( value instanceof Map ) {
+            for( Map.Entry<?, ?> entry : ( ( Map<?, ?> )value ).entrySet() ) {
+               elements.add( entry.getKey() );
+               elements.add( entry.getValue() );
+            }
+         }
+         else if( value instanceof Object[] ) {
+            elements.addAll( Arrays.asList( ( Object[] )value ) );
+         }
+      }
+      catch( RuntimeException exception ) {
+         // Concurrently modified; what was copied is searched
+      }
+      for( Object element : elements.subList( 0, Math.min( MAX_ELEMENTS, elements.size() ) ) ) {
+         final LeakedLoader elementLeak = findLeak( leaked, element );
+         if( elementLeak != null && !result.containsKey( elementLeak ) ) {
+            result.put( elementLeak, element );
+         }
+      }
+      return result;
+   }
+
+   private void searchStatics( BundleContext bundleContext, Map<ClassLoader, LeakedLoader> leaked ) {
+      final Method findLoadedClass;
+      try {
+         findLoadedClass = ClassLoader.class.getDeclaredMethod( "findLoadedClass", String.class );
+         findLoadedClass.setAccessible( true );
+      }
+      catch( Exception exception ) {
+         // Reflection into class loaders is not permitted
+         return;
+      }
+      for( Bundle bundle : bundleContext.getBundles() ) {
+         final BundleWiring wiring = bundle.adapt( BundleWiring.class );
+         final ClassLoader loader = wiring != null ? wiring.getClassLoader() : null;
+         if( loader == null || leaked.containsKey( loader ) ) {
+            continue;
+         }
+         for( String className : ClassNameIndex.getInstance().getClassNames( bundle.getBundleId() ) ) {
+            try {
+               // Only classes loaded already; searching must not load or initialize anything
+               final Class<?> type = ( Class<?> )findLoadedClass.invoke( loader, className );
+               if( type == null ) {
+                  continue;
+               }
+               for( Field field : type.getDeclaredFields() ) {
+                  if( !Modifier.isStatic( field.getModifiers() ) || field.getType().isPrimitive() ) {
+                     continue;
+                  }
+                  field.setAccessible( true );
+                  for( Map.Entry<LeakedLoader, Object> entry : findLeaks( leaked, field.get( null ) ).entrySet() ) {
+                     entry.getKey().culprits.add( String.format( "Static field %s.%s of %s(%s) holds %s", type.getName(), field.getName(), bundle.getSymbolicName(), bundle.getBundleId(), describe( entry.getValue() ) ) );
+                  }
+               }
+            }
+            catch( Exception exception ) {
+               // Class or field not accessible
+            }
+            catch( LinkageError error ) {
+               // Field types not loadable
+            }
+         }
+      }
+   }
+
+   private void searchThreads( Map<ClassLoader, LeakedLoader> leaked ) {
+      for( Thread thread : Thread.getAllStackTraces().keySet() ) {
+         final LeakedLoader contextLeak = leaked.get( thread.getContextClassLoader() );
+         if( contextLeak != null ) {
+            contextLeak.culprits.add( String.format( "Thread '%s' has the loader as context class loader", thread.getName() ) );
+         }
+         final LeakedLoader threadLeak = leaked.get( thread.getClass().getClassLoader() );
+         if( threadLeak != null ) {
+            threadLeak.culprits.add( String.format( "Thread '%s' of %s is still running", thread.getName(), thread.getClass().getName() ) );
+         }
+         searchThreadLocals( leaked, thread, "threadLocals" );
+         searchThreadLocals( leaked, thread, "inheritableThreadLocals" );
+      }
+   }
+
+   private void searchThreadLocals( Map<ClassLoader, LeakedLoader> leaked, Thread thread, String mapField ) {
+      try {
+         final Object map = getField( thread, Thread.class, mapField );
+         if( map == null ) {
+            return;
+         }
+         final Object[] table = ( Object[] )getField( map, map.getClass(), "table" );
+         for( Object entry : table ) {
+            if( entry == null ) {
+               continue;
+            }
+            final Object threadLocal = ( ( WeakReference<?> )entry ).get();
+            final Object value = getField( entry, entry.getClass(), "value" );
+            final Set<LeakedLoader> reported = Collections.newSetFromMap( new IdentityHashMap<LeakedLoader, Boolean>() );
+            for( Object candidate : new Object[]{ threadLocal, value } ) {
+               for( Map.Entry<LeakedLoader, Object> leak : findLeaks( leaked, candidate ).entrySet() ) {
+                  if( reported.add( leak.getKey() ) ) {
+                     leak.getKey().culprits.add( String.format( "Thread local %s of thread '%s' holds %s", threadLocal != null ? threadLocal.getClass().getName() : "[collected]", thread.getName(), describe( leak.getValue() ) ) );
+                  }
+               }
+            }
+         }
+      }
+      catch( Exception exception ) {
+         // Thread internals not accessible on this JVM
+      }
+   }
+}
@@ -0,0 +1,341 @@
+package tools.osgi.analyzer.internal;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.resolver.ResolverHook;
+import org.osgi.framework.hooks.resolver.ResolverHookFactory;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Traces class loading per bundle through framework hooks. The {@link WeavingHook} sees every class a bundle defines
+ * and counts the classes and their bytes, and the wirings that defined them so loading storms after refreshes show.
+ * Frameworks implementing the WovenClassListener of OSGi R6 also report when the class is defined which gives the
+ * define time; the listener is registered by reflection since the analyzer is built against R4.3. New wirings are
+ * handed to the {@link ClassLoaderLeakDetector}. The {@link ResolverHook} sees the lookups of dynamic imports and counts
+ * those without a provider, each of which ends in a {@link ClassNotFoundException} during delegation; failing lookups
+ * of imported or own packages do not reach any hook.
+ * <p>
+ * Per bundle the counts are kept as {@link AnalyzerMetrics} in the groups <code>classes</code>,
+ * <code>classBytes</code>, <code>classNotFound</code> and, if measured, <code>classDefine</code> named
+ * <code>&lt;symbolic name&gt;-&lt;version&gt;</code>. The hooks only count, so they add little to class loading. The
+ * last wiring of a bundle is only referenced weakly so the tracer does not keep refreshed class loaders alive; the
+ * counts of an uninstalled bundle are dropped and its metrics unregistered. Classes the hook failed to count are
+ * counted in <code>tracer/weaveFailures</code>.
+ */
+public class ClassLoadingTracer implements WeavingHook, ResolverHookFactory, BundleListener {
+   /** Class loading of one bundle */
+   public static final class BundleClassLoading {
+      private final Bundle bundle;
+      private final Counter bytes;
+      private final Counter classes;
+      private final LatencyHistogram defineTimes;
+      private final Counter dynamicLookups = new Counter();
+      /** Wiring that defined the last class; weak so the tracer does not keep its class loader alive */
+      private volatile WeakReference<BundleWiring> lastWiring;
+      private final String name;
+      private final Counter notFound;
+      private final AtomicLong wirings = new AtomicLong();
+
+      public BundleClassLoading( Bundle bundle ) {
+         this.bundle = bundle;
+         this.name = getName( bundle );
+         final AnalyzerMetrics metrics = AnalyzerMetrics.getInstance();
+         this.bytes = metrics.getCounter( "classBytes", name );
+         this.classes = metrics.getCounter( "classes", name );
+         this.defineTimes = metrics.getHistogram( "classDefine", name );
+         this.notFound = metrics.getCounter( "classNotFound", name );
+      }
+
+      public Bundle getBundle() {
+         return bundle;
+      }
+
+      /** @return Bytes of the classes defined */
+      public long getBytes() {
+         return bytes.getCount();
+      }
+
+      public long getClasses() {
+         return classes.getCount();
+      }
+
+      /** @return Total time defining the classes took; <code>0</code> if the framework does not report it */
+      public long getDefineMicros() {
+         return defineTimes.getTotalMicros();
+      }
+
+      /** @return Lookups of dynamically imported packages */
+      public long getDynamicLookups() {
+         return dynamicLookups.getCount();
+      }
+
+      /** @return Lookups of dynamically imported packages without a provider */
+      public long getNotFound() {
+         return notFound.getCount();
+      }
+
+      /** @return Number of wirings of the bundle that defined classes */
+      public long getWirings() {
+         return wirings.get();
+      }
+   }
+
+   /** Counts lookups of dynamic imports; all other resolver operations are left untouched */
+   private class DynamicImportHook implements ResolverHook {
+      @Override
+      public void end() {
+      }
+
+      @Override
+      public void filterMatches( BundleRequirement requirement, Collection<BundleCapability> candidates ) {
+         if( BundleRevision.PACKAGE_NAMESPACE.equals( requirement.getNamespace() ) && RESOLUTION_DYNAMIC.equals( requirement.getDirectives().get( Constants.RESOLUTION_DIRECTIVE ) ) ) {
+            final BundleClassLoading loading = getClassLoading( requirement.getRevision().getBundle() );
+            loading.dynamicLookups.increment();
+            if( candidates.isEmpty() ) {
+               loading.notFound.increment();
+            }
+         }
+      }
+
+      @Override
+      public void filterResolvable( Collection<BundleRevision> candidates ) {
+      }
+
+      @Override
+      public void filterSingletonCollisions( BundleCapability singleton, Collection<BundleCapability> collisionCandidates ) {
+      }
+   }
+
+   /** States of a woven class as defined by the WovenClass of OSGi R6 */
+   private static final int DEFINED = 4;
+   private static final int DEFINE_FAILED = 16;
+   private static final ClassLoadingTracer INSTANCE = new ClassLoadingTracer();
+   /** Resolution directive of the requirements of dynamic imports */
+   private static final String RESOLUTION_DYNAMIC = "dynamic";
+   private static final int TRANSFORMING_FAILED = 8;
+   private static final Counter WEAVE_FAILURES = AnalyzerMetrics.getInstance().getCounter( "tracer", "weaveFailures" );
+   private static final String WOVEN_CLASS_LISTENER = "org.osgi.framework.hooks.weaving.WovenClassListener";
+
+   public static ClassLoadingTracer getInstance() {
+      return INSTANCE;
+   }
+
+   /** @return Name of the metrics of the bundle */
+   private static String getName( Bundle bundle ) {
+      return String.format( "%s-%s", bundle.getSymbolicName(), bundle.getVersion() );
+   }
+
+   private BundleContext bundleContext;
+   private final ConcurrentMap<Long, BundleClassLoading> bundles = new ConcurrentHashMap<Long, BundleClassLoading>();
+   private final DynamicImportHook dynamicImportHook = new DynamicImportHook();
+   /** Time weaving started of the classes not yet defined; only kept while a listener reports their definition */
+   private final ConcurrentMap<WovenClass, Long> pending = new ConcurrentHashMap<WovenClass, Long>();
+   private final List<ServiceRegistration<?>> registrations = new ArrayList<ServiceRegistration<?>>();
+   private volatile boolean timingDefines;
+
+   @Override
+   public ResolverHook begin( Collection<BundleRevision> triggers ) {
+      return dynamicImportHook;
+   }
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      final long bundleId = event.getBundle().getBundleId();
+      final BundleClassLoading loading = bundles.get( bundleId );
+      if( loading == null ) {
+         return;
+      }
+      switch( event.getType() ) {
+      case BundleEvent.UNINSTALLED:
+         remove( bundleId );
+         break;
+      case BundleEvent.UNRESOLVED:
+         loading.lastWiring = null;
+         break;
+      case BundleEvent.UPDATED:
+         // Counts go on under a new name if the version changed
+         if( !loading.name.equals( getName( event.getBundle() ) ) ) {
+            remove( bundleId );
+         }
+         break;
+      default:
+         break;
+      }
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         for( ServiceRegistration<?> registration : registrations ) {
+            try {
+               registration.unregister();
+            }
+            catch( IllegalStateException exception ) {
+               // Already unregistered
+            }
+         }
+         registrations.clear();
+         bundleContext = null;
+      }
+      timingDefines = false;
+      pending.clear();
+      for( Long bundleId : new ArrayList<Long>( bundles.keySet() ) ) {
+         remove( bundleId );
+      }
+   }
+
+   /** @return Class loading of all bundles that defined a class or looked up a dynamic import */
+   public List<BundleClassLoading> getClassLoadings() {
+      final List<BundleClassLoading> result = new ArrayList<BundleClassLoading>( bundles.values() );
+      Collections.sort( result, new Comparator<BundleClassLoading>() {
+         @Override
+         public int compare( BundleClassLoading l1, BundleClassLoading l2 ) {
+            return Long.valueOf( l1.bundle.getBundleId() ).compareTo( l2.bundle.getBundleId() );
+         }
+      } );
+      return result;
+   }
+
+   /** @return Classes the weaving hook failed to count */
+   public long getWeaveFailures() {
+      return WEAVE_FAILURES.getCount();
+   }
+
+   public synchronized boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   /** @return <code>true</code> if the framework reports when classes are defined */
+   public boolean isTimingDefines() {
+      return timingDefines;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         bundleContext.addBundleListener( this );
+         registrations.add( bundleContext.registerService( WeavingHook.class, this, new Hashtable<String, Object>() ) );
+         registrations.add( bundleContext.registerService( ResolverHookFactory.class, this, new Hashtable<String, Object>() ) );
+         registerWovenClassListener( bundleContext );
+      }
+   }
+
+   @Override
+   public void weave( WovenClass wovenClass ) {
+      // A weaving hook that throws is blacklisted by the framework
+      try {
+         final BundleWiring wiring = wovenClass.getBundleWiring();
+         final BundleClassLoading loading = getClassLoading( wiring.getBundle() );
+         loading.classes.increment();
+         loading.bytes.add( wovenClass.getBytes().length );
+         final WeakReference<BundleWiring> lastWiring = loading.lastWiring;
+         if( lastWiring == null || lastWiring.get() != wiring ) {
+            loading.lastWiring = new WeakReference<BundleWiring>( wiring );
+            loading.wirings.incrementAndGet();
+            ClassLoaderLeakDetector.getInstance().track( wiring );
+         }
+         if( timingDefines ) {
+            pending.put( wovenClass, System.nanoTime() );
+         }
+      }
+      catch( RuntimeException exception ) {
+         WEAVE_FAILURES.increment();
+      }
+   }
+
+   private BundleClassLoading getClassLoading( Bundle bundle ) {
+      BundleClassLoading result = bundles.get( bundle.getBundleId() );
+      if( result == null ) {
+         final BundleClassLoading created = new BundleClassLoading( bundle );
+         result = bundles.putIfAbsent( bundle.getBundleId(), created );
+         if( result == null ) {
+            result = created;
+         }
+      }
+      return result;
+   }
+
+   private void modified( WovenClass wovenClass, int state ) {
+      if( state == DEFINED || state == DEFINE_FAILED || state == TRANSFORMING_FAILED ) {
+         final Long start = pending.remove( wovenClass );
+         if( start != null && state == DEFINED ) {
+            getClassLoading( wovenClass.getBundleWiring().getBundle() ).defineTimes.recordSince( start );
+         }
+      }
+   }
+
+   private void registerWovenClassListener( BundleContext bundleContext ) {
+      final Class<?> listenerType;
+      final Method getState;
+      try {
+         listenerType = Class.forName( WOVEN_CLASS_LISTENER, false, WeavingHook.class.getClassLoader() );
+         getState = WovenClass.class.getMethod( "getState" );
+      }
+      catch( ClassNotFoundException exception ) {
+         // Framework older than R6
+         return;
+      }
+      catch( NoSuchMethodException exception ) {
+         return;
+      }
+      final Object listener = Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[]{ listenerType }, new InvocationHandler() {
+         @Override
+         public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            if( method.getName().equals( "modified" ) ) {
+               final WovenClass wovenClass = ( WovenClass )args[0];
+               modified( wovenClass, ( Integer )getState.invoke( wovenClass ) );
+               return null;
+            }
+            if( method.getName().equals( "equals" ) ) {
+               return proxy == args[0];
+            }
+            if( method.getName().equals( "hashCode" ) ) {
+               return System.identityHashCode( proxy );
+            }
+            return method.getName().equals( "toString" ) ? "ClassLoadingTracer.WovenClassListener" : null;
+         }
+      } );
+      registrations.add( bundleContext.registerService( WOVEN_CLASS_LISTENER, listener, new Hashtable<String, Object>() ) );
+      timingDefines = true;
+   }
+
+   /** Drops the class loading of the bundle and unregisters its metrics */
+   private void remove( long bundleId ) {
+      final BundleClassLoading loading = bundles.remove( bundleId );
+      if( loading != null ) {
+         final AnalyzerMetrics metrics = AnalyzerMetrics.getInstance();
+         metrics.remove( "classBytes", loading.name );
+         metrics.remove( "classes", loading.name );
+         metrics.remove( "classDefine", loading.name );
+         metrics.remove( "classNotFound", loading.name );
+      }
+   }
+}
@@ -0,0 +1,374 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Index from class name to the bundles that contain the class, built from {@link BundleWiring#listResources} of each
+ * resolved bundle. The index is kept up to date from bundle events and written to the data area of the analyzer bundle
+ * a few seconds after it changed and on close, so a container that is killed keeps most of it; on open the stored
+ * entries of bundles whose last modified time is unchanged are reused.
+ * <p>
+ * The index only answers which bundles contain a class; callers should still load the class to verify it.
+ */
+public class ClassNameIndex implements BundleListener {
+   /** Classes contained in one bundle at the time it was indexed */
+   private static class BundleEntry {
+      private final String[] classNames;
+      private final long lastModified;
+
+      public BundleEntry( long lastModified, String[] classNames ) {
+         this.lastModified = lastModified;
+         this.classNames = classNames;
+      }
+   }
+
+   private static final String DATA_FILE = "class-name-index.dat";
+   private static final int FORMAT_VERSION = 1;
+   private static final ClassNameIndex INSTANCE = new ClassNameIndex();
+   private static final long[] NO_BUNDLES = new long[0];
+   /** Delay of a save after a change; changes within the delay are written together */
+   private static final long SAVE_DELAY_MS = 5000;
+
+   public static ClassNameIndex getInstance() {
+      return INSTANCE;
+   }
+
+   private static String toClassName( String resourcePath ) {
+      final String path = resourcePath.startsWith( "/" ) ? resourcePath.substring( 1 ) : resourcePath;
+      return path.substring( 0, path.length() - ".class".length() ).replace( '/', '.' );
+   }
+
+   private BundleContext bundleContext;
+   private final ConcurrentMap<String, long[]> bundlesByClass = new ConcurrentHashMap<String, long[]>();
+   private volatile boolean built;
+   /** Changes made to the entries; a save of older entries than the last one written is skipped */
+   private long changes;
+   /** Set when the entries changed since they were loaded or last saved */
+   private boolean dirty;
+   private final Map<Long, BundleEntry> entries = new HashMap<Long, BundleEntry>();
+   private ScheduledExecutorService executor;
+   /** Held while the data file is written so a scheduled save and the save on close do not interleave */
+   private final Object saveLock = new Object();
+   private boolean saveScheduled;
+   /** Changes contained in the last written data file; guarded by the save lock */
+   private long savedChanges = -1;
+   /** Set once a build starts so events that arrive during the build are applied after it */
+   private volatile boolean tracking;
+
+   private final Runnable saver = new Runnable() {
+      @Override
+      public void run() {
+         saveChanges();
+      }
+   };
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      if( !tracking ) {
+         return;
+      }
+      switch( event.getType() ) {
+      case BundleEvent.RESOLVED:
+         index( event.getBundle() );
+         markDirty();
+         break;
+      case BundleEvent.UNRESOLVED:
+      case BundleEvent.UNINSTALLED:
+         remove( event.getBundle().getBundleId() );
+         markDirty();
+         break;
+      default:
+         break;
+      }
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+            if( built && dirty ) {
+               save( bundleContext.getDataFile( DATA_FILE ), new HashMap<Long, BundleEntry>( entries ), changes );
+            }
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+         executor.shutdownNow();
+         executor = null;
+      }
+      bundlesByClass.clear();
+      entries.clear();
+      built = false;
+      dirty = false;
+      saveScheduled = false;
+      tracking = false;
+   }
+
+   /**
+    * @param className Fully qualified class name
+    * @return Ids of the bundles that contain the class; empty if none or the index is not open
+    */
+   public long[] getBundleIds( String className ) {
+      ensureBuilt();
+      final long[] result = bundlesByClass.get( className );
+      return result != null ? result : NO_BUNDLES;
+   }
+
+   /**
+    * @param bundleId Id of the bundle
+    * @return Names of the classes the bundle contains; empty if it is not resolved or the index is not open
+    */
+   public synchronized String[] getClassNames( long bundleId ) {
+      ensureBuilt();
+      final BundleEntry entry = entries.get( bundleId );
+      return entry != null ? entry.classNames.clone() : new String[0];
+   }
+
+   public boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+               final Thread result = new Thread( runnable, "osgi-analyzer-class-name-index" );
+               result.setDaemon( true );
+               return result;
+            }
+         } );
+         bundleContext.addBundleListener( this );
+      }
+   }
+
+   /** @return Number of indexed class names */
+   public int size() {
+      return bundlesByClass.size();
+   }
+
+   private synchronized void add( long bundleId, BundleEntry entry ) {
+      remove( bundleId );
+      entries.put( bundleId, entry );
+      for( String className : entry.classNames ) {
+         final long[] existing = bundlesByClass.get( className );
+         if( existing == null ) {
+            bundlesByClass.put( className, new long[]{ bundleId } );
+         }
+         else {
+            final long[] updated = Arrays.copyOf( existing, existing.length + 1 );
+            updated[existing.length] = bundleId;
+            Arrays.sort( updated );
+            bundlesByClass.put( className, updated );
+         }
+      }
+   }
+
+   private void ensureBuilt() {
+      if( !built ) {
+         build();
+      }
+   }
+
+   private synchronized void build() {
+      if( built || bundleContext == null ) {
+         return;
+      }
+      tracking = true;
+      final File dataFile = bundleContext.getDataFile( DATA_FILE );
+      final Map<Long, BundleEntry> stored = dataFile != null ? load( dataFile ) : new HashMap<Long, BundleEntry>();
+      boolean changed = false;
+      for( Bundle bundle : bundleContext.getBundles() ) {
+         final BundleEntry entry = stored.get( bundle.getBundleId() );
+         if( entry != null && entry.lastModified == bundle.getLastModified() && bundle.adapt( BundleWiring.class ) != null ) {
+            add( bundle.getBundleId(), entry );
+         }
+         else {
+            index( bundle );
+            changed = true;
+         }
+      }
+      built = true;
+      if( changed || entries.size() != stored.size() ) {
+         markDirty();
+      }
+   }
+
+   private synchronized void index( Bundle bundle ) {
+      final BundleWiring wiring = bundle.adapt( BundleWiring.class );
+      if( wiring == null || !wiring.isCurrent() ) {
+         // Not resolved; indexed once the RESOLVED event arrives
+         remove( bundle.getBundleId() );
+         return;
+      }
+      final Collection<String> resources = wiring.listResources( "/", "*.class", BundleWiring.LISTRESOURCES_LOCAL | BundleWiring.LISTRESOURCES_RECURSE );
+      final List<String> classNames = new ArrayList<String>( resources != null ? resources.size() : 0 );
+      if( resources != null ) {
+         for( String resource : resources ) {
+            classNames.add( toClassName( resource ) );
+         }
+      }
+      add( bundle.getBundleId(), new BundleEntry( bundle.getLastModified(), classNames.toArray( new String[classNames.size()] ) ) );
+   }
+
+   private Map<Long, BundleEntry> load( File dataFile ) {
+      final Map<Long, BundleEntry> result = new HashMap<Long, BundleEntry>();
+      if( !dataFile.isFile() ) {
+         return result;
+      }
+      try {
+         final DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( dataFile ) ) );
+         try {
+            if( input.readInt() != FORMAT_VERSION ) {
+               return result;
+            }
+            final int bundleCount = input.readInt();
+            for( int bundle = 0; bundle < bundleCount; bundle++ ) {
+               final long bundleId = input.readLong();
+               final long lastModified = input.readLong();
+               final String[] classNames = new String[input.readInt()];
+               for( int index = 0; index < classNames.length; index++ ) {
+                  classNames[index] = input.readUTF();
+               }
+               result.put( bundleId, new BundleEntry( lastModified, classNames ) );
+            }
+         }
+         finally {
+            input.close();
+         }
+      }
+      catch( IOException exception ) {
+         // Corrupt or partially written; rebuild from the bundles
+         System.out.println( String.format( "Ignoring class name index %s: %s", dataFile, exception.getMessage() ) );
+         result.clear();
+      }
+      return result;
+   }
+
+   private synchronized void markDirty() {
+      changes++;
+      dirty = true;
+      if( executor != null && !saveScheduled ) {
+         saveScheduled = true;
+         executor.schedule( saver, SAVE_DELAY_MS, TimeUnit.MILLISECONDS );
+      }
+   }
+
+   private synchronized void remove( long bundleId ) {
+      final BundleEntry entry = entries.remove( bundleId );
+      if( entry == null ) {
+         return;
+      }
+      for( String className : entry.classNames ) {
+         final long[] existing = bundlesByClass.get( className );
+         if( existing == null ) {
+            continue;
+         }
+         final int position = Arrays.binarySearch( existing, bundleId );
+         if( position < 0 ) {
+            continue;
+         }
+         if( existing.length == 1 ) {
+            bundlesByClass.remove( className );
+         }
+         else {
+            final long[] updated = new long[existing.length - 1];
+            System.arraycopy( existing, 0, updated, 0, position );
+            System.arraycopy( existing, position + 1, updated, position, existing.length - position - 1 );
+            bundlesByClass.put( className, updated );
+         }
+      }
+   }
+
+   private void save( File dataFile, Map<Long, BundleEntry> entries, long changes ) {
+      if( dataFile == null ) {
+         return;
+      }
+      synchronized( saveLock ) {
+         if( changes > savedChanges ) {
+            write( dataFile, entries );
+            savedChanges = changes;
+         }
+      }
+   }
+
+   /** Writes the changed entries; run on the executor so bundle events do not wait for the file */
+   private void saveChanges() {
+      final File dataFile;
+      final Map<Long, BundleEntry> changed;
+      final long version;
+      synchronized( this ) {
+         saveScheduled = false;
+         if( !dirty || !built || bundleContext == null ) {
+            return;
+         }
+         try {
+            dataFile = bundleContext.getDataFile( DATA_FILE );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+            return;
+         }
+         changed = new HashMap<Long, BundleEntry>( entries );
+         version = changes;
+         dirty = false;
+      }
+      save( dataFile, changed, version );
+   }
+
+   private void write( File dataFile, Map<Long, BundleEntry> entries ) {
+      try {
+         final File temporary = new File( dataFile.getPath() + ".tmp" );
+         final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temporary ) ) );
+         try {
+            output.writeInt( FORMAT_VERSION );
+            output.writeInt( entries.size() );
+            for( Map.Entry<Long, BundleEntry> entry : entries.entrySet() ) {
+               output.writeLong( entry.getKey() );
+               output.writeLong( entry.getValue().lastModified );
+               output.writeInt( entry.getValue().classNames.length );
+               for( String className : entry.getValue().classNames ) {
+                  output.writeUTF( className );
+               }
+            }
+         }
+         finally {
+            output.close();
+         }
+         if( !temporary.renameTo( dataFile ) ) {
+            dataFile.delete();
+            temporary.renameTo( dataFile );
+         }
+      }
+      catch( IOException exception ) {
+         System.out.println( String.format( "Failed to write class name index %s: %s", dataFile, exception.getMessage() ) );
+      }
+   }
+}
@@ -0,0 +1,353 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import tools.osgi.analyzer.api.BundleHealth;
+import tools.osgi.analyzer.api.IContainerHealthListener;
+import tools.osgi.analyzer.api.IOsgiAnalyzerService;
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageSymbols;
+
+/**
+ * Background monitor that keeps the diagnostics of all bundles current. Bundle and framework events are coalesced into
+ * batches: a batch is checked once no event arrived for {@link #QUIET_PERIOD_MS} or at the latest {@link #MAX_DELAY_MS}
+ * after its first event. Only the changed bundles and the bundles whose class space depends on them, before and after
+ * the change, are checked again; unhealthy bundles outside of that set keep their last diagnosis.
+ */
+public class ContainerHealthMonitor implements BundleListener, FrameworkListener {
+   private static final long MAX_DELAY_MS = 2000;
+   private static final long QUIET_PERIOD_MS = 250;
+
+   private final IOsgiAnalyzerService analyzerService;
+   private volatile BundleContext bundleContext;
+   private final Set<Long> dirty = new HashSet<Long>();
+   private ScheduledExecutorService executor;
+   private long firstEvent;
+   private boolean fullCheck;
+   private long lastEvent;
+   private WiringSnapshot lastSnapshot;
+   private final List<IContainerHealthListener> listeners = new CopyOnWriteArrayList<IContainerHealthListener>();
+   private boolean scheduled;
+   private final ConcurrentMap<Long, BundleHealth> unhealthy = new ConcurrentHashMap<Long, BundleHealth>();
+
+   private final Runnable flush = new Runnable() {
+      @Override
+      public void run() {
+         flush();
+      }
+   };
+
+   public ContainerHealthMonitor( IOsgiAnalyzerService analyzerService ) {
+      this.analyzerService = analyzerService;
+   }
+
+   public void addListener( IContainerHealthListener listener ) {
+      listeners.add( listener );
+   }
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      switch( event.getType() ) {
+      case BundleEvent.INSTALLED:
+      case BundleEvent.RESOLVED:
+      case BundleEvent.UNRESOLVED:
+      case BundleEvent.UPDATED:
+      case BundleEvent.UNINSTALLED:
+         markDirty( event.getBundle().getBundleId() );
+         break;
+      default:
+         break;
+      }
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+            bundleContext.removeFrameworkListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      if( executor != null ) {
+         executor.shutdownNow();
+         executor = null;
+      }
+      dirty.clear();
+      scheduled = false;
+      lastSnapshot = null;
+      unhealthy.clear();
+   }
+
+   @Override
+   public void frameworkEvent( FrameworkEvent event ) {
+      if( event.getType() == FrameworkEvent.PACKAGES_REFRESHED ) {
+         // Refreshing releases removal pending bundles which do not get an event of their own
+         for( BundleHealth health : unhealthy.values() ) {
+            if( health.isRemovalPending() ) {
+               markDirty( health.getBundle().getBundleId() );
+            }
+         }
+      }
+   }
+
+   /** @return Bundles with problems as of the last checked batch ordered by bundle id */
+   public List<BundleHealth> getUnhealthyBundles() {
+      return new ArrayList<BundleHealth>( new TreeMap<Long, BundleHealth>( unhealthy ).values() );
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+               final Thread result = new Thread( runnable, "osgi-analyzer-health-monitor" );
+               result.setDaemon( true );
+               return result;
+            }
+         } );
+         bundleContext.addBundleListener( this );
+         bundleContext.addFrameworkListener( this );
+         fullCheck = true;
+         schedule( QUIET_PERIOD_MS );
+      }
+   }
+
+   public void removeListener( IContainerHealthListener listener ) {
+      listeners.remove( listener );
+   }
+
+   /**
+    * Adds the bundles whose class space can change with the changed bundles. Uses constraints are transitive: a
+    * requirer of a changed bundle is affected, and so is every bundle wired to an export of an affected bundle that uses
+    * one of the affected packages, however many hops away.
+    * @param snapshot Wiring to walk; ignored if <code>null</code>
+    * @param bundleIds Changed bundles whose exports are all affected
+    * @param affected Bundles found are added to it
+    */
+   private void addDependents( WiringSnapshot snapshot, Set<Long> bundleIds, Set<Long> affected ) {
+      if( snapshot == null ) {
+         return;
+      }
+      // Affected packages per revision in the snapshot; null for all packages of the revision
+      final Map<Integer, Set<Integer>> affectedPackages = new HashMap<Integer, Set<Integer>>();
+      final Deque<Integer> pending = new ArrayDeque<Integer>();
+      for( Long bundleId : bundleIds ) {
+         for( int bundleIndex = snapshot.indexOf( bundleId ); bundleIndex >= 0 && bundleIndex < snapshot.getBundleCount() && snapshot.getBundle( bundleIndex ).getBundleId() == bundleId; bundleIndex++ ) {
+            affectedPackages.put( bundleIndex, null );
+            pending.add( bundleIndex );
+         }
+      }
+      while( !pending.isEmpty() ) {
+         final int provider = pending.poll();
+         final Set<Integer> providerPackages = affectedPackages.get( provider );
+         // Requirers and the packages they import from the affected packages of the provider
+         final Map<Integer, Set<Integer>> imports = new HashMap<Integer, Set<Integer>>();
+         for( int position = snapshot.getProvidedWiresStart( provider ); position < snapshot.getProvidedWiresEnd( provider ); position++ ) {
+            final int wire = snapshot.getProvidedWire( position );
+            final int packageSymbol = PackageSymbols.getInstance().lookup( snapshot.getPackageName( snapshot.getWirePackage( wire ) ) );
+            if( providerPackages == null || providerPackages.contains( packageSymbol ) ) {
+               final int requirer = snapshot.getWireRequirer( wire );
+               affected.add( snapshot.getBundle( requirer ).getBundleId() );
+               if( !imports.containsKey( requirer ) ) {
+                  imports.put( requirer, new HashSet<Integer>() );
+               }
+               imports.get( requirer ).add( packageSymbol );
+            }
+         }
+         for( Map.Entry<Integer, Set<Integer>> entry : imports.entrySet() ) {
+            final int requirer = entry.getKey();
+            if( affectedPackages.containsKey( requirer ) && affectedPackages.get( requirer ) == null ) {
+               continue;
+            }
+            final Set<Integer> exports = getUsingExports( snapshot.getBundle( requirer ), entry.getValue() );
+            final Set<Integer> known = affectedPackages.get( requirer );
+            if( known == null ? !exports.isEmpty() : known.addAll( exports ) ) {
+               if( known == null ) {
+                  affectedPackages.put( requirer, exports );
+               }
+               pending.add( requirer );
+            }
+         }
+      }
+   }
+
+   private void check( Set<Long> changed, boolean full ) {
+      final BundleContext bundleContext = this.bundleContext;
+      if( bundleContext == null ) {
+         return;
+      }
+      final WiringSnapshot snapshot = WiringSnapshotProvider.getInstance().getSnapshot( bundleContext );
+      final Map<Long, Bundle> bundles = new HashMap<Long, Bundle>();
+      for( Bundle bundle : bundleContext.getBundles() ) {
+         bundles.put( bundle.getBundleId(), bundle );
+      }
+      final FrameworkWiring frameworkWiring = bundleContext.getBundle( 0 ).adapt( FrameworkWiring.class );
+      final Set<Bundle> removalPending = new HashSet<Bundle>( frameworkWiring.getRemovalPendingBundles() );
+      for( Bundle bundle : removalPending ) {
+         bundles.put( bundle.getBundleId(), bundle );
+      }
+
+      final Set<Long> affected = new HashSet<Long>();
+      if( full ) {
+         affected.addAll( bundles.keySet() );
+      }
+      else {
+         affected.addAll( changed );
+         addDependents( lastSnapshot, changed, affected );
+         addDependents( snapshot, changed, affected );
+         for( Bundle bundle : removalPending ) {
+            affected.add( bundle.getBundleId() );
+         }
+      }
+      lastSnapshot = snapshot;
+
+      final Map<Long, Bundle> toCheck = new TreeMap<Long, Bundle>();
+      for( Long bundleId : affected ) {
+         if( bundles.containsKey( bundleId ) ) {
+            toCheck.put( bundleId, bundles.get( bundleId ) );
+         }
+      }
+
+      final List<BundleHealth> changes = new ArrayList<BundleHealth>();
+      for( Map.Entry<Long, Bundle> entry : toCheck.entrySet() ) {
+         final Long bundleId = entry.getKey();
+         final Bundle bundle = entry.getValue();
+         final BundleHealth health = getHealth( bundle, removalPending.contains( bundle ) );
+         final BundleHealth previous = unhealthy.get( bundleId );
+         if( health.isHealthy() ) {
+            if( previous != null ) {
+               unhealthy.remove( bundleId );
+               changes.add( health );
+            }
+         }
+         else if( !health.equals( previous ) ) {
+            unhealthy.put( bundleId, health );
+            changes.add( health );
+         }
+      }
+      // Bundles that are gone completely are no longer unhealthy
+      for( Long bundleId : new ArrayList<Long>( unhealthy.keySet() ) ) {
+         if( !bundles.containsKey( bundleId ) ) {
+            final BundleHealth previous = unhealthy.remove( bundleId );
+            changes.add( new BundleHealth( previous.getBundle() ) );
+         }
+      }
+
+      if( !changes.isEmpty() ) {
+         for( IContainerHealthListener listener : listeners ) {
+            try {
+               listener.healthChanged( changes );
+            }
+            catch( Throwable exception ) {
+               System.out.println( String.format( "Container health listener %s failed: %s", listener, exception.getMessage() ) );
+            }
+         }
+      }
+   }
+
+   private void flush() {
+      final Set<Long> changed;
+      final boolean full;
+      synchronized( this ) {
+         if( executor == null ) {
+            return;
+         }
+         final long now = System.currentTimeMillis();
+         if( now - lastEvent < QUIET_PERIOD_MS && now - firstEvent < MAX_DELAY_MS ) {
+            executor.schedule( flush, QUIET_PERIOD_MS - ( now - lastEvent ), TimeUnit.MILLISECONDS );
+            return;
+         }
+         changed = new HashSet<Long>( dirty );
+         full = fullCheck;
+         dirty.clear();
+         fullCheck = false;
+         scheduled = false;
+      }
+      try {
+         check( changed, full );
+      }
+      catch( Throwable exception ) {
+         System.out.println( String.format( "Container health check failed: %s", exception.getMessage() ) );
+      }
+   }
+
+   private BundleHealth getHealth( Bundle bundle, boolean removalPending ) {
+      final BundleHealth result = new BundleHealth( bundle );
+      result.setRemovalPending( removalPending );
+      if( bundle.getState() != Bundle.UNINSTALLED ) {
+         result.setUsesConflict( !analyzerService.findUsesConflicts( bundle ).isEmpty() );
+         result.setRefreshRequired( !analyzerService.findMissingOptionalImports( bundle ).isEmpty() );
+      }
+      return result;
+   }
+
+   /**
+    * @param bundle Bundle whose exports are checked
+    * @param packageSymbols Symbols of affected packages the bundle imports
+    * @return Symbols of the exports of the bundle that use an affected package, directly or through another export
+    */
+   private Set<Integer> getUsingExports( Bundle bundle, Set<Integer> packageSymbols ) {
+      final Set<Integer> result = new HashSet<Integer>();
+      final PackageHeader exports = BundleManifestCache.getInstance().getExportPackageHeader( bundle );
+      for( boolean added = true; added; ) {
+         added = false;
+         for( int index = 0; index < exports.size(); index++ ) {
+            if( result.contains( exports.getPackageSymbol( index ) ) ) {
+               continue;
+            }
+            for( int used : exports.getUses( index ) ) {
+               if( packageSymbols.contains( used ) || result.contains( used ) ) {
+                  result.add( exports.getPackageSymbol( index ) );
+                  added = true;
+                  break;
+               }
+            }
+         }
+      }
+      return result;
+   }
+
+   private synchronized void markDirty( long bundleId ) {
+      if( executor == null ) {
+         return;
+      }
+      dirty.add( bundleId );
+      schedule( QUIET_PERIOD_MS );
+   }
+
+   private synchronized void schedule( long delay ) {
+      lastEvent = System.currentTimeMillis();
+      if( !scheduled ) {
+         firstEvent = lastEvent;
+         scheduled = true;
+         executor.schedule( flush, delay, TimeUnit.MILLISECONDS );
+      }
+   }
+}
@@ -0,0 +1,593 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Copy of the bundles, their raw headers, revisions, exported packages and package wires of a container that can be
+ * written to a file and analyzed later without a framework through {@link OfflineContainer}.
+ * <p>
+ * The file is a gzipped data stream: a magic number and {@link #FORMAT_VERSION}, a table of all distinct strings and
+ * then the bundles and wires referring to the strings by index. Header values and package names repeat a lot across
+ * bundles so the string table keeps the file small and reading it creates each string once.
+ */
+@SuppressWarnings("deprecation")
+public final class ContainerSnapshot {
+   /** State of one bundle and its current revision */
+   public static final class BundleRecord {
+      private final int flags;
+      private final List<ExportRecord> exports;
+      private final Map<String, String> headers;
+      private final long id;
+      private final long lastModified;
+      private final String location;
+      private final int state;
+      private final String symbolicName;
+      private final int types;
+      private final String version;
+
+      public BundleRecord( long id, String location, int state, long lastModified, String symbolicName, String version, int types, int flags, Map<String, String> headers, List<ExportRecord> exports ) {
+         this.id = id;
+         this.location = location;
+         this.state = state;
+         this.lastModified = lastModified;
+         this.symbolicName = symbolicName;
+         this.version = version;
+         this.types = types;
+         this.flags = flags;
+         this.headers = headers;
+         this.exports = exports;
+      }
+
+      /** @return Packages the bundle exports according to the package admin */
+      public List<ExportRecord> getExports() {
+         return exports;
+      }
+
+      /** @return Raw (untranslated) manifest headers in manifest order */
+      public Map<String, String> getHeaders() {
+         return headers;
+      }
+
+      public long getId() {
+         return id;
+      }
+
+      public long getLastModified() {
+         return lastModified;
+      }
+
+      public String getLocation() {
+         return location;
+      }
+
+      public int getState() {
+         return state;
+      }
+
+      /** @return Symbolic name or <code>null</code> if the bundle has none */
+      public String getSymbolicName() {
+         return symbolicName;
+      }
+
+      /** @return Types of the current revision; see {@link BundleRevision#getTypes()} */
+      public int getTypes() {
+         return types;
+      }
+
+      public String getVersion() {
+         return version;
+      }
+
+      /** @return <code>true</code> if the bundle was listed by the context; otherwise it only still provides wires */
+      public boolean isInstalled() {
+         return ( flags & FLAG_INSTALLED ) != 0;
+      }
+
+      public boolean isRemovalPending() {
+         return ( flags & FLAG_REMOVAL_PENDING ) != 0;
+      }
+
+      public boolean isWired() {
+         return ( flags & FLAG_WIRED ) != 0;
+      }
+
+      public boolean isWiringCurrent() {
+         return ( flags & FLAG_WIRING_CURRENT ) != 0;
+      }
+
+      public boolean isWiringInUse() {
+         return ( flags & FLAG_WIRING_IN_USE ) != 0;
+      }
+   }
+
+   /** Package exported by a bundle */
+   public static final class ExportRecord {
+      private final String packageName;
+      private final boolean removalPending;
+      private final String version;
+
+      public ExportRecord( String packageName, String version, boolean removalPending ) {
+         this.packageName = packageName;
+         this.version = version;
+         this.removalPending = removalPending;
+      }
+
+      public String getPackageName() {
+         return packageName;
+      }
+
+      public String getVersion() {
+         return version;
+      }
+
+      public boolean isRemovalPending() {
+         return removalPending;
+      }
+   }
+
+   /** Package wire between two bundles */
+   public static final class WireRecord {
+      private final Map<String, Object> attributes;
+      private final Map<String, String> directives;
+      private final long providerId;
+      private final boolean providerWiringCurrent;
+      private final long requirerId;
+
+      public WireRecord( long requirerId, long providerId, boolean providerWiringCurrent, Map<String, Object> attributes, Map<String, String> directives ) {
+         this.requirerId = requirerId;
+         this.providerId = providerId;
+         this.providerWiringCurrent = providerWiringCurrent;
+         this.attributes = attributes;
+         this.directives = directives;
+      }
+
+      /** @return Attributes of the wired package capability; versions are kept as {@link Version} */
+      public Map<String, Object> getAttributes() {
+         return attributes;
+      }
+
+      public Map<String, String> getDirectives() {
+         return directives;
+      }
+
+      public String getPackageName() {
+         return ( String )attributes.get( BundleRevision.PACKAGE_NAMESPACE );
+      }
+
+      public long getProviderId() {
+         return providerId;
+      }
+
+      public long getRequirerId() {
+         return requirerId;
+      }
+
+      /** @return <code>false</code> if the wire goes to a wiring of the provider that was replaced by a refresh */
+      public boolean isProviderWiringCurrent() {
+         return providerWiringCurrent;
+      }
+   }
+
+   private static final int ATTRIBUTE_STRING = 0;
+   private static final int ATTRIBUTE_VERSION = 1;
+   private static final int ATTRIBUTE_LONG = 2;
+   private static final int FLAG_INSTALLED = 1;
+   private static final int FLAG_REMOVAL_PENDING = 2;
+   private static final int FLAG_WIRED = 4;
+   private static final int FLAG_WIRING_CURRENT = 8;
+   private static final int FLAG_WIRING_IN_USE = 16;
+   private static final int FORMAT_VERSION = 1;
+   private static final int MAGIC = 0x4F534E50;
+   /** Number of times a capture is retried when the framework changes while it is taken */
+   private static final int MAX_CAPTURE_ATTEMPTS = 3;
+
+   /**
+    * Copies the state of the container. If the {@link FrameworkGeneration} is open and changes while the copy is taken
+    * the capture is retried a few times; after that the last capture is returned as is.
+    * @param bundleContext Context used to list the bundles
+    * @return Snapshot of the container
+    */
+   public static ContainerSnapshot capture( BundleContext bundleContext ) {
+      final FrameworkGeneration generation = FrameworkGeneration.getInstance();
+      ContainerSnapshot result = null;
+      for( int attempt = 1; result == null; attempt++ ) {
+         final long before = generation.get();
+         final ContainerSnapshot snapshot = build( bundleContext, before );
+         if( generation.get() == before || attempt >= MAX_CAPTURE_ATTEMPTS ) {
+            result = snapshot;
+         }
+      }
+      return result;
+   }
+
+   /** @return Snapshot of a container without any bundle */
+   public static ContainerSnapshot empty() {
+      return new ContainerSnapshot( System.currentTimeMillis(), 0, new ArrayList<BundleRecord>(), new ArrayList<WireRecord>() );
+   }
+
+   /**
+    * @param file Snapshot written by {@link #write(File)}
+    * @return Snapshot read from the file
+    * @throws IOException If the file can not be read or is not a snapshot of this format version
+    */
+   public static ContainerSnapshot read( File file ) throws IOException {
+      final InputStream input = new FileInputStream( file );
+      try {
+         return read( input );
+      }
+      finally {
+         input.close();
+      }
+   }
+
+   /**
+    * @param input Snapshot as written by {@link #write(OutputStream)}; not closed
+    * @return Snapshot read from the stream
+    * @throws IOException If the stream can not be read or is not a snapshot of this format version
+    */
+   public static ContainerSnapshot read( InputStream input ) throws IOException {
+      final DataInputStream data = new DataInputStream( new BufferedInputStream( new GZIPInputStream( input, 1 << 16 ), 1 << 16 ) );
+      if( data.readInt() != MAGIC ) {
+         throw new IOException( "Not a container snapshot" );
+      }
+      final int formatVersion = data.readInt();
+      if( formatVersion != FORMAT_VERSION ) {
+         throw new IOException( String.format( "Unsupported snapshot format version %s, expected %s", formatVersion, FORMAT_VERSION ) );
+      }
+      final long captured = data.readLong();
+      final long generation = data.readLong();
+
+      final String[] strings = new String[data.readInt()];
+      byte[] bytes = new byte[256];
+      for( int index = 0; index < strings.length; index++ ) {
+         final int length = data.readInt();
+         if( length > bytes.length ) {
+            bytes = new byte[Math.max( length, bytes.length * 2 )];
+         }
+         data.readFully( bytes, 0, length );
+         strings[index] = new String( bytes, 0, length, "UTF-8" );
+      }
+
+      final int bundleCount = data.readInt();
+      final List<BundleRecord> bundles = new ArrayList<BundleRecord>( bundleCount );
+      for( int index = 0; index < bundleCount; index++ ) {
+         final long id = data.readLong();
+         final String location = readString( data, strings );
+         final int state = data.readInt();
+         final long lastModified = data.readLong();
+         final String symbolicName = readString( data, strings );
+         final String version = readString( data, strings );
+         final int types = data.readInt();
+         final int flags = data.readByte();
+         final int headerCount = data.readInt();
+         final Map<String, String> headers = new LinkedHashMap<String, String>( headerCount * 2 );
+         for( int header = 0; header < headerCount; header++ ) {
+            headers.put( readString( data, strings ), readString( data, strings ) );
+         }
+         final int exportCount = data.readInt();
+         final List<ExportRecord> exports = new ArrayList<ExportRecord>( exportCount );
+         for( int export = 0; export < exportCount; export++ ) {
+            exports.add( new ExportRecord( readString( data, strings ), readString( data, strings ), data.readBoolean() ) );
+         }
+         bundles.add( new BundleRecord( id, location, state, lastModified, symbolicName, version, types, flags, headers, exports ) );
+      }
+
+      final int wireCount = data.readInt();
+      final List<WireRecord> wires = new ArrayList<WireRecord>( wireCount );
+      final Map<String, Version> versions = new HashMap<String, Version>();
+      for( int index = 0; index < wireCount; index++ ) {
+         final long requirerId = data.readLong();
+         final long providerId = data.readLong();
+         final boolean providerWiringCurrent = data.readBoolean();
+         final int attributeCount = data.readInt();
+         final Map<String, Object> attributes = new LinkedHashMap<String, Object>( attributeCount * 2 );
+         for( int attribute = 0; attribute < attributeCount; attribute++ ) {
+            final String key = readString( data, strings );
+            final int type = data.readByte();
+            final String value = readString( data, strings );
+            if( type == ATTRIBUTE_VERSION ) {
+               Version version = versions.get( value );
+               if( version == null ) {
+                  version = Version.parseVersion( value );
+                  versions.put( value, version );
+               }
+               attributes.put( key, version );
+            }
+            else if( type == ATTRIBUTE_LONG ) {
+               attributes.put( key, Long.valueOf( value ) );
+            }
+            else {
+               attributes.put( key, value );
+            }
+         }
+         final int directiveCount = data.readInt();
+         final Map<String, String> directives = new LinkedHashMap<String, String>( directiveCount * 2 );
+         for( int directive = 0; directive < directiveCount; directive++ ) {
+            directives.put( readString( data, strings ), readString( data, strings ) );
+         }
+         wires.add( new WireRecord( requirerId, providerId, providerWiringCurrent, attributes, directives ) );
+      }
+      return new ContainerSnapshot( captured, generation, bundles, wires );
+   }
+
+   private static ContainerSnapshot build( final BundleContext bundleContext, final long generation ) {
+      return AnalyzerServices.PACKAGE_ADMIN.call( bundleContext, new ServiceAccess.ServiceCall<PackageAdmin, ContainerSnapshot>() {
+         @Override
+         public ContainerSnapshot call( PackageAdmin packageAdmin ) {
+            return build( bundleContext, generation, packageAdmin );
+         }
+      } );
+   }
+
+   private static ContainerSnapshot build( BundleContext bundleContext, long generation, PackageAdmin packageAdmin ) {
+      final Bundle systemBundle = bundleContext.getBundle( 0 );
+      final FrameworkWiring frameworkWiring = systemBundle != null ? systemBundle.adapt( FrameworkWiring.class ) : null;
+      final Set<Bundle> removalPending = new HashSet<Bundle>();
+      if( frameworkWiring != null ) {
+         removalPending.addAll( frameworkWiring.getRemovalPendingBundles() );
+      }
+
+      // Bundles that are no longer installed can still provide packages (removal pending) so they are added as well
+      final Map<Long, Bundle> bundlesById = new TreeMap<Long, Bundle>();
+      final Set<Long> installed = new HashSet<Long>();
+      for( Bundle bundle : bundleContext.getBundles() ) {
+         bundlesById.put( bundle.getBundleId(), bundle );
+         installed.add( bundle.getBundleId() );
+      }
+      for( Bundle bundle : removalPending ) {
+         if( !bundlesById.containsKey( bundle.getBundleId() ) ) {
+            bundlesById.put( bundle.getBundleId(), bundle );
+         }
+      }
+
+      final List<WireRecord> wires = new ArrayList<WireRecord>();
+      for( Bundle bundle : new ArrayList<Bundle>( bundlesById.values() ) ) {
+         final BundleWiring wiring = bundle.adapt( BundleWiring.class );
+         final List<BundleWire> required = wiring != null ? wiring.getRequiredWires( BundleRevision.PACKAGE_NAMESPACE ) : null;
+         if( required == null ) {
+            continue;
+         }
+         for( BundleWire wire : required ) {
+            final BundleWiring providerWiring = wire.getProviderWiring();
+            if( providerWiring == null ) {
+               continue;
+            }
+            final Bundle provider = providerWiring.getBundle();
+            if( !bundlesById.containsKey( provider.getBundleId() ) ) {
+               bundlesById.put( provider.getBundleId(), provider );
+            }
+            final Map<String, Object> attributes = new LinkedHashMap<String, Object>( wire.getCapability().getAttributes() );
+            final Map<String, String> directives = new LinkedHashMap<String, String>( wire.getCapability().getDirectives() );
+            wires.add( new WireRecord( bundle.getBundleId(), provider.getBundleId(), providerWiring.isCurrent(), attributes, directives ) );
+         }
+      }
+
+      final List<BundleRecord> bundles = new ArrayList<BundleRecord>();
+      for( Bundle bundle : bundlesById.values() ) {
+         final BundleRevision revision = bundle.adapt( BundleRevision.class );
+         final BundleWiring wiring = bundle.adapt( BundleWiring.class );
+         int flags = installed.contains( bundle.getBundleId() ) ? FLAG_INSTALLED : 0;
+         flags |= removalPending.contains( bundle ) ? FLAG_REMOVAL_PENDING : 0;
+         if( wiring != null ) {
+            flags |= FLAG_WIRED;
+            flags |= wiring.isCurrent() ? FLAG_WIRING_CURRENT : 0;
+            flags |= wiring.isInUse() ? FLAG_WIRING_IN_USE : 0;
+         }
+         final List<ExportRecord> exports = new ArrayList<ExportRecord>();
+         final ExportedPackage[] exportedPackages = packageAdmin != null ? packageAdmin.getExportedPackages( bundle ) : null;
+         if( exportedPackages != null ) {
+            for( ExportedPackage exportedPackage : exportedPackages ) {
+               exports.add( new ExportRecord( exportedPackage.getName(), exportedPackage.getVersion().toString(), exportedPackage.isRemovalPending() ) );
+            }
+         }
+         final String symbolicName = revision != null ? revision.getSymbolicName() : bundle.getSymbolicName();
+         final Version version = revision != null ? revision.getVersion() : bundle.getVersion();
+         bundles.add( new BundleRecord( bundle.getBundleId(), bundle.getLocation(), bundle.getState(), bundle.getLastModified(), symbolicName, version.toString(), revision != null ? revision.getTypes() : 0, flags, toMap( bundle.getHeaders( "" ) ), exports ) );
+      }
+      return new ContainerSnapshot( System.currentTimeMillis(), generation, bundles, wires );
+   }
+
+   private static String readString( DataInputStream data, String[] strings ) throws IOException {
+      final int index = data.readInt();
+      return index >= 0 ? strings[index] : null;
+   }
+
+   private static Map<String, String> toMap( Dictionary<String, String> headers ) {
+      final Map<String, String> result = new LinkedHashMap<String, String>();
+      for( Enumeration<String> keys = headers.keys(); keys.hasMoreElements(); ) {
+         final String key = keys.nextElement();
+         result.put( key, headers.get( key ) );
+      }
+      return result;
+   }
+
+   private final List<BundleRecord> bundles;
+   private final long captured;
+   private final long generation;
+   private final List<WireRecord> wires;
+
+   private ContainerSnapshot( long captured, long generation, List<BundleRecord> bundles, List<WireRecord> wires ) {
+      this.captured = captured;
+      this.generation = generation;
+      this.bundles = Collections.unmodifiableList( bundles );
+      this.wires = Collections.unmodifiableList( wires );
+   }
+
+   /**
+    * Adds bundles as if they were just installed: they get the next free bundle ids in the given order, are not resolved
+    * and have no wiring and no exports known to the package admin.
+    * @param headersByLocation Raw manifest headers of the bundles keyed by their location
+    * @return Copy of the snapshot with the bundles added
+    */
+   public ContainerSnapshot install( Map<String, ? extends Map<String, String>> headersByLocation ) {
+      final List<BundleRecord> result = new ArrayList<BundleRecord>( bundles );
+      long id = bundles.isEmpty() ? 0 : bundles.get( bundles.size() - 1 ).getId() + 1;
+      for( Map.Entry<String, ? extends Map<String, String>> entry : headersByLocation.entrySet() ) {
+         final Map<String, String> headers = new LinkedHashMap<String, String>( entry.getValue() );
+         final String symbolicName = headers.get( Constants.BUNDLE_SYMBOLICNAME );
+         final int parameters = symbolicName != null ? symbolicName.indexOf( ';' ) : -1;
+         String version = Version.emptyVersion.toString();
+         try {
+            version = Version.parseVersion( headers.get( Constants.BUNDLE_VERSION ) ).toString();
+         }
+         catch( IllegalArgumentException exception ) {
+            // Invalid version; the framework would refuse the install but the imports can still be analyzed
+         }
+         final String name = symbolicName != null ? ( parameters >= 0 ? symbolicName.substring( 0, parameters ) : symbolicName ).trim() : null;
+         result.add( new BundleRecord( id++, entry.getKey(), Bundle.INSTALLED, System.currentTimeMillis(), name, version, 0, FLAG_INSTALLED, headers, new ArrayList<ExportRecord>() ) );
+      }
+      return new ContainerSnapshot( System.currentTimeMillis(), generation, result, wires );
+   }
+
+   /** @return Bundles ordered by bundle id */
+   public List<BundleRecord> getBundles() {
+      return bundles;
+   }
+
+   /** @return Time the snapshot was taken in milliseconds since the epoch */
+   public long getCaptured() {
+      return captured;
+   }
+
+   /** @return {@link FrameworkGeneration} the snapshot was taken at; <code>0</code> if the generation was not tracked */
+   public long getGeneration() {
+      return generation;
+   }
+
+   /** @return Package wires grouped by requiring bundle */
+   public List<WireRecord> getWires() {
+      return wires;
+   }
+
+   /**
+    * Writes the snapshot to a temporary file next to the target which is then renamed, so an existing snapshot is only
+    * replaced by a complete one.
+    * @param file File to write to
+    */
+   public void write( File file ) throws IOException {
+      final File temporary = new File( file.getPath() + ".tmp" );
+      final OutputStream output = new FileOutputStream( temporary );
+      try {
+         write( output );
+      }
+      finally {
+         output.close();
+      }
+      if( !temporary.renameTo( file ) ) {
+         file.delete();
+         if( !temporary.renameTo( file ) ) {
+            throw new IOException( String.format( "Failed to rename %s to %s", temporary, file ) );
+         }
+      }
+   }
+
+   /** @param output Stream to write to; finished but not closed */
+   public void write( OutputStream output ) throws IOException {
+      final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+      final ByteArrayOutputStream records = new ByteArrayOutputStream();
+      final DataOutputStream recordOutput = new DataOutputStream( records );
+      recordOutput.writeInt( bundles.size() );
+      for( BundleRecord bundle : bundles ) {
+         recordOutput.writeLong( bundle.id );
+         writeString( recordOutput, bundle.location, strings );
+         recordOutput.writeInt( bundle.state );
+         recordOutput.writeLong( bundle.lastModified );
+         writeString( recordOutput, bundle.symbolicName, strings );
+         writeString( recordOutput, bundle.version, strings );
+         recordOutput.writeInt( bundle.types );
+         recordOutput.writeByte( bundle.flags );
+         recordOutput.writeInt( bundle.headers.size() );
+         for( Map.Entry<String, String> header : bundle.headers.entrySet() ) {
+            writeString( recordOutput, header.getKey(), strings );
+            writeString( recordOutput, header.getValue(), strings );
+         }
+         recordOutput.writeInt( bundle.exports.size() );
+         for( ExportRecord export : bundle.exports ) {
+            writeString( recordOutput, export.packageName, strings );
+            writeString( recordOutput, export.version, strings );
+            recordOutput.writeBoolean( export.removalPending );
+         }
+      }
+      recordOutput.writeInt( wires.size() );
+      for( WireRecord wire : wires ) {
+         recordOutput.writeLong( wire.requirerId );
+         recordOutput.writeLong( wire.providerId );
+         recordOutput.writeBoolean( wire.providerWiringCurrent );
+         recordOutput.writeInt( wire.attributes.size() );
+         for( Map.Entry<String, Object> attribute : wire.attributes.entrySet() ) {
+            final Object value = attribute.getValue();
+            writeString( recordOutput, attribute.getKey(), strings );
+            recordOutput.writeByte( value instanceof Version ? ATTRIBUTE_VERSION : value instanceof Long ? ATTRIBUTE_LONG : ATTRIBUTE_STRING );
+            writeString( recordOutput, String.valueOf( value ), strings );
+         }
+         recordOutput.writeInt( wire.directives.size() );
+         for( Map.Entry<String, String> directive : wire.directives.entrySet() ) {
+            writeString( recordOutput, directive.getKey(), strings );
+            writeString( recordOutput, directive.getValue(), strings );
+         }
+      }
+
+      final GZIPOutputStream compressed = new GZIPOutputStream( output, 1 << 16 );
+      final DataOutputStream data = new DataOutputStream( new BufferedOutputStream( compressed, 1 << 16 ) );
+      data.writeInt( MAGIC );
+      data.writeInt( FORMAT_VERSION );
+      data.writeLong( captured );
+      data.writeLong( generation );
+      data.writeInt( strings.size() );
+      for( String value : strings.keySet() ) {
+         final byte[] bytes = value.getBytes( "UTF-8" );
+         data.writeInt( bytes.length );
+         data.write( bytes );
+      }
+      records.writeTo( data );
+      data.flush();
+      compressed.finish();
+   }
+
+   private void writeString( DataOutputStream output, String value, Map<String, Integer> strings ) throws IOException {
+      if( value == null ) {
+         output.writeInt( -1 );
+         return;
+      }
+      Integer index = strings.get( value );
+      if( index == null ) {
+         index = strings.size();
+         strings.put( value, index );
+      }
+      output.writeInt( index );
+   }
+}
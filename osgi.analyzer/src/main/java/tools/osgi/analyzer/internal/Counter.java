@@ -0,0 +1,32 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Monotonic event counter of the {@link AnalyzerMetrics} */
+public class Counter implements CounterMBean {
+   private final AtomicLong count = new AtomicLong();
+
+   /** @param delta Amount added to the count */
+   public void add( long delta ) {
+      count.addAndGet( delta );
+   }
+
+   @Override
+   public long getCount() {
+      return count.get();
+   }
+
+   public void increment() {
+      count.incrementAndGet();
+   }
+
+   @Override
+   public void reset() {
+      count.set( 0 );
+   }
+
+   @Override
+   public String toString() {
+      return String.format( "Counter(count: %s)", count.get() );
+   }
+}
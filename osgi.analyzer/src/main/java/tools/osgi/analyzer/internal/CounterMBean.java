@@ -0,0 +1,8 @@
+package tools.osgi.analyzer.internal;
+
+/** Management interface of a {@link Counter} */
+public interface CounterMBean {
+   long getCount();
+
+   void reset();
+}
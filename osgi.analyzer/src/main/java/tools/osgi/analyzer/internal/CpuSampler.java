@@ -0,0 +1,577 @@
+package tools.osgi.analyzer.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.wiring.BundleWiring;
+
+import tools.osgi.analyzer.api.IOsgiAnalyzerService;
+
+/**
+ * Sampling profiler that attributes the CPU time of the container to bundles. Every sample takes the stacks of all
+ * threads with the {@link ThreadMXBean} and charges the CPU time each thread used since the previous sample to the
+ * bundles of its stack: the bundle of the top frame that is not a JDK or framework class gets it as self time, every
+ * bundle on the stack once as total time. Threads whose CPU time can not be measured are charged the interval while
+ * they are runnable. On HotSpot JVMs the bytes each thread allocated since the previous sample are charged to the
+ * bundle getting the self time, which is an estimate: a thread that allocated in one bundle and moved on to another
+ * between two samples charges the second.
+ * <p>
+ * Frames are mapped to bundles by class name: the {@link ClassNameIndex} names the bundles containing the class and
+ * the class is looked up among the classes already loaded by their class loaders, so sampling never loads a class or
+ * activates a bundle; a class a candidate loaded from elsewhere is mapped with
+ * {@link IOsgiAnalyzerService#getBundleForClass(Class)}. The mapping is cached for at most
+ * {@value #MAX_CACHED_CLASSES} classes and dropped when a bundle is unresolved. Classes of no bundle, such as generated
+ * proxies, are charged to the system bundle.
+ * <p>
+ * Samples are aggregated into windows of {@value #DEFAULT_WINDOW_SECONDS} s of which the last
+ * {@value #DEFAULT_WINDOW_COUNT} are kept, so memory is bounded by bundles and packages. The delay between samples is
+ * stretched to at least {@value #MAX_OVERHEAD_FACTOR} times the average cost of a sample which keeps the overhead
+ * of the sampler below 1% of one processor. Interval, window length and window count can be set with the framework
+ * properties {@value #INTERVAL_PROPERTY}, {@value #WINDOW_PROPERTY} and {@value #WINDOW_COUNT_PROPERTY}. Sampling
+ * starts on open so the windows show how the container behaved before a change, unless {@value #ENABLED_PROPERTY} is
+ * <code>false</code>.
+ */
+public class CpuSampler implements BundleListener {
+   /** CPU time and allocations charged to one bundle */
+   public static final class BundleCpu {
+      private long allocatedBytes;
+      private final long bundleId;
+      private final Map<String, Long> packages = new HashMap<String, Long>();
+      private long selfNanos;
+      private long totalNanos;
+
+      public BundleCpu( long bundleId ) {
+         this.bundleId = bundleId;
+      }
+
+      /** @return Bytes allocated by threads while the bundle owned the top application frame */
+      public long getAllocatedBytes() {
+         return allocatedBytes;
+      }
+
+      public long getBundleId() {
+         return bundleId;
+      }
+
+      /** @return Self time by package of the frame it was spent in ordered by time, most first */
+      public List<Map.Entry<String, Long>> getPackages() {
+         final List<Map.Entry<String, Long>> result = new ArrayList<Map.Entry<String, Long>>( packages.entrySet() );
+         Collections.sort( result, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare( Map.Entry<String, Long> e1, Map.Entry<String, Long> e2 ) {
+               return e2.getValue().compareTo( e1.getValue() );
+            }
+         } );
+         return result;
+      }
+
+      /** @return CPU time spent in classes of the bundle itself */
+      public long getSelfNanos() {
+         return selfNanos;
+      }
+
+      /** @return CPU time of stacks the bundle was part of */
+      public long getTotalNanos() {
+         return totalNanos;
+      }
+
+      private void add( BundleCpu other ) {
+         allocatedBytes += other.allocatedBytes;
+         selfNanos += other.selfNanos;
+         totalNanos += other.totalNanos;
+         for( Map.Entry<String, Long> entry : other.packages.entrySet() ) {
+            addPackage( entry.getKey(), entry.getValue() );
+         }
+      }
+
+      private void addPackage( String packageName, long nanos ) {
+         final Long current = packages.get( packageName );
+         packages.put( packageName, current != null ? current + nanos : nanos );
+      }
+   }
+
+   /** CPU time charged to the bundles during some time */
+   public static final class CpuProfile {
+      private long allocatedBytes;
+      private final Map<Long, BundleCpu> bundles = new HashMap<Long, BundleCpu>();
+      private long end;
+      private int samples;
+      private long samplingNanos;
+      private final long start;
+      private long totalNanos;
+
+      public CpuProfile( long start ) {
+         this.start = start;
+      }
+
+      /** @return Time and allocations charged to the bundle or <code>null</code> if nothing was charged to it */
+      public BundleCpu findBundle( long bundleId ) {
+         return bundles.get( bundleId );
+      }
+
+      /** @return Bytes allocated by all sampled threads; <code>0</code> if the JVM can not measure allocations */
+      public long getAllocatedBytes() {
+         return allocatedBytes;
+      }
+
+      /** @return CPU time per bundle ordered by self time, most first */
+      public List<BundleCpu> getBundles() {
+         final List<BundleCpu> result = new ArrayList<BundleCpu>( bundles.values() );
+         Collections.sort( result, new Comparator<BundleCpu>() {
+            @Override
+            public int compare( BundleCpu b1, BundleCpu b2 ) {
+               return Long.valueOf( b2.selfNanos ).compareTo( b1.selfNanos );
+            }
+         } );
+         return result;
+      }
+
+      /** @return Time covered by the profile */
+      public long getDurationNanos() {
+         return end - start;
+      }
+
+      public int getSamples() {
+         return samples;
+      }
+
+      /** @return Time the sampler itself took */
+      public long getSamplingNanos() {
+         return samplingNanos;
+      }
+
+      /** @return CPU time of all sampled threads */
+      public long getTotalNanos() {
+         return totalNanos;
+      }
+
+      private void add( CpuProfile other ) {
+         for( BundleCpu bundle : other.bundles.values() ) {
+            getBundle( bundle.bundleId ).add( bundle );
+         }
+         allocatedBytes += other.allocatedBytes;
+         end = Math.max( end, other.end );
+         samples += other.samples;
+         samplingNanos += other.samplingNanos;
+         totalNanos += other.totalNanos;
+      }
+
+      private BundleCpu getBundle( long bundleId ) {
+         BundleCpu result = bundles.get( bundleId );
+         if( result == null ) {
+            result = new BundleCpu( bundleId );
+            bundles.put( bundleId, result );
+         }
+         return result;
+      }
+   }
+
+   /** Per thread allocation counters of HotSpot JVMs; kept apart so the sampler loads where they are missing */
+   private static final class HotSpotThreads {
+      private final com.sun.management.ThreadMXBean threadBean;
+
+      private HotSpotThreads( java.lang.management.ThreadMXBean threadBean ) {
+         this.threadBean = ( com.sun.management.ThreadMXBean )threadBean;
+      }
+
+      /** @return Bytes allocated by each thread so far or <code>null</code> if allocations are not measured */
+      private long[] getAllocatedBytes( long[] ids ) {
+         return threadBean.isThreadAllocatedMemoryEnabled() ? threadBean.getThreadAllocatedBytes( ids ) : null;
+      }
+   }
+
+   public static final String ENABLED_PROPERTY = "tools.osgi.analyzer.cpuSampling";
+   public static final String INTERVAL_PROPERTY = "tools.osgi.analyzer.cpuSampleIntervalMillis";
+   public static final String WINDOW_COUNT_PROPERTY = "tools.osgi.analyzer.cpuWindowCount";
+   public static final String WINDOW_PROPERTY = "tools.osgi.analyzer.cpuWindowSeconds";
+   private static final long DEFAULT_INTERVAL_MS = 20;
+   private static final int DEFAULT_WINDOW_COUNT = 15;
+   private static final long DEFAULT_WINDOW_SECONDS = 60;
+   private static final Counter FAILURES = AnalyzerMetrics.getInstance().getCounter( "sampler", "cpu.failures" );
+   private static final CpuSampler INSTANCE = new CpuSampler();
+   private static final String[] JDK_PREFIXES = { "java.", "javax.", "sun.", "com.sun.", "jdk.", "org.osgi." };
+   /** Longest delay of the next sample after consecutive failed samples */
+   private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis( 1 );
+   private static final int MAX_CACHED_CLASSES = 65536;
+   private static final int MAX_DEPTH = 128;
+   private static final int MAX_OVERHEAD_FACTOR = 100;
+   private static final LatencyHistogram SAMPLES = AnalyzerMetrics.getInstance().getHistogram( "sampler", "cpu" );
+   private static final Long SYSTEM_BUNDLE = Long.valueOf( 0 );
+
+   public static CpuSampler getInstance() {
+      return INSTANCE;
+   }
+
+   /** @return <code>ClassLoader.findLoadedClass</code>; <code>null</code> if reflection into loaders is denied */
+   private static Method createFindLoadedClass() {
+      try {
+         final Method result = ClassLoader.class.getDeclaredMethod( "findLoadedClass", String.class );
+         result.setAccessible( true );
+         return result;
+      }
+      catch( Exception exception ) {
+         return null;
+      }
+   }
+
+   private static HotSpotThreads createHotSpotThreads( ThreadMXBean threadBean ) {
+      try {
+         if( threadBean instanceof com.sun.management.ThreadMXBean && ( ( com.sun.management.ThreadMXBean )threadBean ).isThreadAllocatedMemorySupported() ) {
+            return new HotSpotThreads( threadBean );
+         }
+      }
+      catch( NoClassDefFoundError error ) {
+         // Not a HotSpot JVM or com.sun.management is not visible to the bundle
+      }
+      return null;
+   }
+
+   private static boolean isJdkClass( String className ) {
+      for( String prefix : JDK_PREFIXES ) {
+         if( className.startsWith( prefix ) ) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static String toPackageName( String className ) {
+      final int index = className.lastIndexOf( '.' );
+      return index > 0 ? className.substring( 0, index ) : "";
+   }
+
+   /** Smoothed cost of a sample */
+   private long averageCost;
+   private BundleContext bundleContext;
+   private final ConcurrentMap<String, Long> bundlesByClass = new ConcurrentHashMap<String, Long>();
+   /** Samples failed in a row; the delay of the next sample doubles with each */
+   private int consecutiveFailures;
+   private CpuProfile current;
+   private ScheduledExecutorService executor;
+   private final Method findLoadedClass = createFindLoadedClass();
+   private final HotSpotThreads hotSpotThreads = createHotSpotThreads( ManagementFactory.getThreadMXBean() );
+   private long intervalMillis = DEFAULT_INTERVAL_MS;
+   /** Bytes allocated by each thread at the previous sample */
+   private Map<Long, Long> lastAllocatedBytes = new HashMap<Long, Long>();
+   /** CPU time of each thread at the previous sample */
+   private Map<Long, Long> lastCpuTimes = new HashMap<Long, Long>();
+   private long lastSample;
+   private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+   private int windowCount = DEFAULT_WINDOW_COUNT;
+   private long windowNanos = TimeUnit.SECONDS.toNanos( DEFAULT_WINDOW_SECONDS );
+   private final Deque<CpuProfile> windows = new ArrayDeque<CpuProfile>();
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      if( event.getType() == BundleEvent.UNRESOLVED || event.getType() == BundleEvent.UNINSTALLED ) {
+         // The classes of the bundle may be defined by another bundle after it is resolved again
+         bundlesByClass.clear();
+      }
+   }
+
+   public synchronized void close() {
+      stop();
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      windows.clear();
+   }
+
+   /**
+    * @param count Number of the most recent windows to merge, including the window being sampled
+    * @return CPU time charged to the bundles during the windows
+    */
+   public synchronized CpuProfile getProfile( int count ) {
+      final List<CpuProfile> profiles = new ArrayList<CpuProfile>( windows );
+      final int closed = current != null ? count - 1 : count;
+      final List<CpuProfile> recent = profiles.subList( Math.max( 0, profiles.size() - Math.max( 0, closed ) ), profiles.size() );
+      final CpuProfile result = new CpuProfile( !recent.isEmpty() ? recent.get( 0 ).start : current != null ? current.start : System.nanoTime() );
+      for( CpuProfile window : recent ) {
+         result.add( window );
+      }
+      if( current != null ) {
+         result.add( current );
+         result.end = Math.max( result.end, lastSample );
+      }
+      return result;
+   }
+
+   /**
+    * @param count Number of the most recent windows returned, including the window being sampled
+    * @return Copies of the windows, oldest first
+    */
+   public synchronized List<CpuProfile> getWindows( int count ) {
+      final List<CpuProfile> profiles = new ArrayList<CpuProfile>( windows );
+      if( current != null ) {
+         profiles.add( current );
+      }
+      final List<CpuProfile> result = new ArrayList<CpuProfile>();
+      for( CpuProfile window : profiles.subList( Math.max( 0, profiles.size() - count ), profiles.size() ) ) {
+         final CpuProfile copy = new CpuProfile( window.start );
+         copy.add( window );
+         if( window == current ) {
+            copy.end = lastSample;
+         }
+         result.add( copy );
+      }
+      return result;
+   }
+
+   /** @return Length of a window */
+   public long getWindowNanos() {
+      return windowNanos;
+   }
+
+   public synchronized boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized boolean isSampling() {
+      return executor != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         intervalMillis = Math.max( 1, AnalyzerServices.getLongProperty( bundleContext, INTERVAL_PROPERTY, DEFAULT_INTERVAL_MS ) );
+         windowNanos = TimeUnit.SECONDS.toNanos( Math.max( 1, AnalyzerServices.getLongProperty( bundleContext, WINDOW_PROPERTY, DEFAULT_WINDOW_SECONDS ) ) );
+         windowCount = ( int )Math.max( 1, AnalyzerServices.getLongProperty( bundleContext, WINDOW_COUNT_PROPERTY, DEFAULT_WINDOW_COUNT ) );
+         this.bundleContext = bundleContext;
+         bundleContext.addBundleListener( this );
+         if( !"false".equalsIgnoreCase( bundleContext.getProperty( ENABLED_PROPERTY ) ) ) {
+            start();
+         }
+      }
+   }
+
+   /** Starts sampling; windows of an earlier run are kept */
+   public synchronized void start() {
+      if( bundleContext != null && executor == null ) {
+         executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+               final Thread result = new Thread( runnable, "osgi-analyzer-cpu-sampler" );
+               result.setDaemon( true );
+               return result;
+            }
+         } );
+         averageCost = 0;
+         consecutiveFailures = 0;
+         lastAllocatedBytes = new HashMap<Long, Long>();
+         lastCpuTimes = new HashMap<Long, Long>();
+         lastSample = System.nanoTime();
+         current = new CpuProfile( lastSample );
+         schedule( intervalMillis );
+      }
+   }
+
+   /** Stops sampling; the window being sampled is closed */
+   public synchronized void stop() {
+      if( executor != null ) {
+         executor.shutdownNow();
+         executor = null;
+         closeWindow();
+      }
+   }
+
+   private void closeWindow() {
+      if( current != null ) {
+         current.end = lastSample;
+         windows.addLast( current );
+         while( windows.size() > windowCount ) {
+            windows.removeFirst();
+         }
+         current = null;
+      }
+   }
+
+   private Long getBundleId( String className ) {
+      if( isJdkClass( className ) ) {
+         return SYSTEM_BUNDLE;
+      }
+      Long result = bundlesByClass.get( className );
+      if( result == null ) {
+         result = findBundleId( className );
+         if( bundlesByClass.size() >= MAX_CACHED_CLASSES ) {
+            bundlesByClass.clear();
+         }
+         bundlesByClass.put( className, result );
+      }
+      return result;
+   }
+
+   private Long findBundleId( final String className ) {
+      if( findLoadedClass == null ) {
+         return SYSTEM_BUNDLE;
+      }
+      return AnalyzerServices.ANALYZER.call( bundleContext, new ServiceAccess.ServiceCall<IOsgiAnalyzerService, Long>() {
+         @Override
+         public Long call( IOsgiAnalyzerService analyzer ) {
+            for( long candidateId : ClassNameIndex.getInstance().getBundleIds( className ) ) {
+               final Bundle candidate = bundleContext.getBundle( candidateId );
+               final BundleWiring wiring = candidate != null ? candidate.adapt( BundleWiring.class ) : null;
+               final ClassLoader loader = wiring != null ? wiring.getClassLoader() : null;
+               if( loader == null ) {
+                  continue;
+               }
+               try {
+                  // The class of a sampled frame is loaded already; loading it here could load more or activate the bundle
+                  final Class<?> type = ( Class<?> )findLoadedClass.invoke( loader, className );
+                  if( type == null ) {
+                     continue;
+                  }
+                  final Bundle bundle = type.getClassLoader() == loader ? candidate : analyzer != null ? analyzer.getBundleForClass( type ) : null;
+                  if( bundle != null ) {
+                     return bundle.getBundleId();
+                  }
+               }
+               catch( Exception exception ) {
+                  // Class loader not accessible
+               }
+            }
+            return SYSTEM_BUNDLE;
+         }
+      } );
+   }
+
+   private void sample() {
+      final long start = System.nanoTime();
+      final long self = Thread.currentThread().getId();
+      final boolean cpuTimeEnabled = threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+      final long[] ids = threadBean.getAllThreadIds();
+      final ThreadInfo[] threads = threadBean.getThreadInfo( ids, MAX_DEPTH );
+      final long[] allocations = hotSpotThreads != null ? hotSpotThreads.getAllocatedBytes( ids ) : null;
+      final Map<Long, Long> allocatedBytes = new HashMap<Long, Long>();
+      final Map<Long, Long> cpuTimes = new HashMap<Long, Long>();
+      final Map<Long, BundleCpu> charged = new HashMap<Long, BundleCpu>();
+      long total = 0;
+      long totalBytes = 0;
+      synchronized( this ) {
+         if( executor == null ) {
+            return;
+         }
+         if( start - current.start >= windowNanos ) {
+            closeWindow();
+            current = new CpuProfile( start );
+         }
+         for( int index = 0; index < ids.length; index++ ) {
+            final ThreadInfo thread = threads[index];
+            if( thread == null || ids[index] == self ) {
+               continue;
+            }
+            long nanos = 0;
+            if( cpuTimeEnabled ) {
+               final long cpuTime = threadBean.getThreadCpuTime( ids[index] );
+               final Long lastCpuTime = lastCpuTimes.get( ids[index] );
+               if( cpuTime >= 0 ) {
+                  cpuTimes.put( ids[index], cpuTime );
+                  nanos = lastCpuTime != null ? cpuTime - lastCpuTime : 0;
+               }
+            }
+            else if( thread.getThreadState() == Thread.State.RUNNABLE ) {
+               nanos = start - lastSample;
+            }
+            long bytes = 0;
+            if( allocations != null && allocations[index] >= 0 ) {
+               final Long lastAllocated = lastAllocatedBytes.get( ids[index] );
+               allocatedBytes.put( ids[index], allocations[index] );
+               bytes = lastAllocated != null ? allocations[index] - lastAllocated : 0;
+            }
+            if( nanos <= 0 && bytes <= 0 ) {
+               continue;
+            }
+            total += Math.max( 0, nanos );
+            totalBytes += Math.max( 0, bytes );
+            charged.clear();
+            final StackTraceElement[] frames = thread.getStackTrace();
+            BundleCpu selfBundle = null;
+            String selfPackage = null;
+            for( StackTraceElement frame : frames ) {
+               final Long bundleId = getBundleId( frame.getClassName() );
+               if( !charged.containsKey( bundleId ) ) {
+                  final BundleCpu bundle = current.getBundle( bundleId );
+                  bundle.totalNanos += Math.max( 0, nanos );
+                  charged.put( bundleId, bundle );
+               }
+               if( selfBundle == null && !SYSTEM_BUNDLE.equals( bundleId ) ) {
+                  selfBundle = charged.get( bundleId );
+                  selfPackage = toPackageName( frame.getClassName() );
+               }
+            }
+            if( selfBundle == null ) {
+               selfBundle = current.getBundle( SYSTEM_BUNDLE );
+               selfPackage = frames.length > 0 ? toPackageName( frames[0].getClassName() ) : "";
+            }
+            if( nanos > 0 ) {
+               selfBundle.selfNanos += nanos;
+               selfBundle.addPackage( selfPackage, nanos );
+            }
+            if( bytes > 0 ) {
+               // What a thread allocated since the previous sample is charged to the code it runs now
+               selfBundle.allocatedBytes += bytes;
+            }
+         }
+         lastAllocatedBytes = allocatedBytes;
+         lastCpuTimes = cpuTimes;
+         lastSample = start;
+         current.allocatedBytes += totalBytes;
+         current.totalNanos += total;
+         current.samples++;
+         final long cost = System.nanoTime() - start;
+         current.samplingNanos += cost;
+         SAMPLES.record( cost );
+         // Smoothed so a single slow sample, such as the first one building the class index, does not stall sampling
+         averageCost = averageCost == 0 ? cost : ( 7 * averageCost + cost ) / 8;
+         consecutiveFailures = 0;
+         schedule( Math.max( intervalMillis, TimeUnit.NANOSECONDS.toMillis( averageCost * MAX_OVERHEAD_FACTOR ) ) );
+      }
+   }
+
+   private void schedule( long delayMillis ) {
+      executor.schedule( new Runnable() {
+         @Override
+         public void run() {
+            try {
+               sample();
+            }
+            catch( RuntimeException exception ) {
+               FAILURES.increment();
+               synchronized( CpuSampler.this ) {
+                  if( executor != null ) {
+                     if( consecutiveFailures == 0 ) {
+                        System.out.println( String.format( "CPU sampling failed, backing off: %s", exception ) );
+                     }
+                     consecutiveFailures++;
+                     schedule( Math.min( MAX_BACKOFF_MS, intervalMillis << Math.min( consecutiveFailures, 16 ) ) );
+                  }
+               }
+            }
+         }
+      }, delayMillis, TimeUnit.MILLISECONDS );
+   }
+}
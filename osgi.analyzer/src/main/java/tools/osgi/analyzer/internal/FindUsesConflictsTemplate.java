@@ -1,28 +1,31 @@
 package tools.osgi.analyzer.internal;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Hashtable;
 import java.util.List;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.Constants;
 import org.osgi.framework.wiring.BundleWire;
-import org.osgi.framework.wiring.BundleWiring;
-import org.osgi.service.packageadmin.PackageAdmin;
-import org.osgi.util.tracker.ServiceTracker;
 
 import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageSymbols;
+import tools.osgi.analyzer.api.PackedVersionRange;
+import tools.osgi.analyzer.api.ResolutionReport;
 import tools.osgi.analyzer.api.UsesConflict;
-import tools.osgi.analyzer.internal.InternalOsgiAnalyzerService.BundleImportedPackage;
 
-import com.springsource.util.osgi.VersionRange;
 import com.springsource.util.osgi.manifest.BundleManifest;
 import com.springsource.util.osgi.manifest.BundleManifestFactory;
+import com.springsource.util.osgi.manifest.ExportedPackage;
 import com.springsource.util.osgi.manifest.ImportedPackage;
 import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
 
 /** Template class that can be used to find use conflicts in an OSGi environment */
-@SuppressWarnings({ "deprecation" })
 public class FindUsesConflictsTemplate {
    public static class BundleFindUsesConflictsCallback implements IFindUsesConflictsCallback {
       private Bundle bundle;
@@ -33,21 +36,12 @@ public class FindUsesConflictsTemplate {
 
       @Override
       public BundleManifest getManifest() {
-         return BundleManifestFactory.createBundleManifest( bundle.getHeaders(), new DummyParserLogger() );
+         return BundleUtils.getBundleManifest( bundle );
       }
 
       @Override
-      public boolean shouldCheck() {
-         final PackageAdmin packageAdmin = getPackageAdmin();
-         return !packageAdmin.resolveBundles( new Bundle[]{ bundle } );
-      }
-
-      private PackageAdmin getPackageAdmin() {
-         final BundleContext bundleContext = bundle.getBundleContext();
-         final ServiceTracker<PackageAdmin, Object> packageAdminTracker = new ServiceTracker<PackageAdmin, Object>( bundleContext, PackageAdmin.class.getName(), null );
-         packageAdminTracker.open();
-         final PackageAdmin packageAdmin = ( PackageAdmin )packageAdminTracker.getService();
-         return packageAdmin;
+      public boolean shouldCheck( VirtualResolver resolver ) {
+         return !resolver.resolve( bundle ).isResolvable();
       }
 
       @Override
@@ -69,7 +63,7 @@ public class FindUsesConflictsTemplate {
       }
 
       @Override
-      public boolean shouldCheck() {
+      public boolean shouldCheck( VirtualResolver resolver ) {
          return true;
       }
 
@@ -82,7 +76,11 @@ public class FindUsesConflictsTemplate {
    public static interface IFindUsesConflictsCallback {
       BundleManifest getManifest();
 
-      boolean shouldCheck();
+      /**
+       * @param resolver Dry-run resolver of the template
+       * @return <code>true</code> if the callback should be checked for use conflicts
+       */
+      boolean shouldCheck( VirtualResolver resolver );
 
       /**
        * Get a {@link BundleWire} for the specified package if applicable and it exists
@@ -92,10 +90,44 @@ public class FindUsesConflictsTemplate {
       BundleWire getBundleWire( String packageName );
    }
 
+   /** Import still to be followed: the node providing it, the package and the version range of the import */
+   private static class PendingImport {
+      private final int node;
+      private final int packageSymbol;
+      private final PackedVersionRange range;
+
+      public PendingImport( int node, int packageSymbol, PackedVersionRange range ) {
+         this.node = node;
+         this.packageSymbol = packageSymbol;
+         this.range = range;
+      }
+   }
+
+   /** @return Index of the first clause of the header for the package symbol otherwise <code>-1</code> */
+   private static int indexOf( PackageHeader header, int packageSymbol ) {
+      for( int index = 0; index < header.size(); index++ ) {
+         if( header.getPackageSymbol( index ) == packageSymbol ) {
+            return index;
+         }
+      }
+      return -1;
+   }
+
    private BundleContext bundleContext;
+   private VirtualResolver resolver;
+   private WiringSnapshot snapshot;
 
    public FindUsesConflictsTemplate( BundleContext bundleContext ) {
+      this( bundleContext, null );
+   }
+
+   /**
+    * @param bundleContext Context used to look up bundles and services
+    * @param snapshot Wiring to walk; if <code>null</code> the snapshot of the current generation is used
+    */
+   public FindUsesConflictsTemplate( BundleContext bundleContext, WiringSnapshot snapshot ) {
       this.bundleContext = bundleContext;
+      this.snapshot = snapshot;
    }
 
    public List<UsesConflict> find( IFindUsesConflictsCallback callback ) {
@@ -106,39 +138,91 @@ public class FindUsesConflictsTemplate {
       return getUsesConflicts( callback, importedPackage );
    }
 
-   private List<UsesConflict> getHeaderUsesConflicts( IFindUsesConflictsCallback callback, Bundle usesConflictBundle, ImportedPackage use ) {
+   /** @return Index of the first export of the node in the range of the import otherwise <code>-1</code> */
+   private int getExport( int node, int packageSymbol, PackedVersionRange range ) {
+      final PackageHeader exports = getSnapshot().getExportPackageHeader( node );
+      for( int index = 0; index < exports.size(); index++ ) {
+         if( exports.getPackageSymbol( index ) == packageSymbol && ( range == null || range.includes( exports.getVersion( index ) ) ) ) {
+            return index;
+         }
+      }
+      return -1;
+   }
+
+   /** @return Export of the node in the springsource model, built from the header captured with the snapshot */
+   private ExportedPackage getExportedPackage( int node, int index ) {
+      final PackageHeader exports = getSnapshot().getExportPackageHeader( node );
+      final StringBuilder clause = new StringBuilder( exports.getPackageName( index ) );
+      clause.append( ";version=\"" ).append( exports.getVersion( index ) ).append( "\"" );
+      final int[] uses = exports.getUses( index );
+      for( int use = 0; use < uses.length; use++ ) {
+         clause.append( use == 0 ? ";uses:=\"" : "," ).append( PackageSymbols.getInstance().getName( uses[use] ) );
+         clause.append( use == uses.length - 1 ? "\"" : "" );
+      }
+      final Hashtable<String, String> headers = new Hashtable<String, String>();
+      headers.put( Constants.EXPORT_PACKAGE, clause.toString() );
+      return BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() ).getExportPackage().getExportedPackages().get( 0 );
+   }
+
+   private List<UsesConflict> getHeaderUsesConflicts( IFindUsesConflictsCallback callback, int node, int useIndex ) {
       final List<UsesConflict> result = new ArrayList<UsesConflict>();
+      final PackageHeader imports = getSnapshot().getImportPackageHeader( node );
       final List<ImportedPackage> importedPackages = callback.getManifest().getImportPackage().getImportedPackages();
-      final ImportedPackage match = getMatchingImport( importedPackages, use );
+      final ImportedPackage match = getMatchingImport( importedPackages, imports.getPackageName( useIndex ) );
       if( match != null ) {
-         if( VersionRange.intersection( match.getVersion(), use.getVersion() ).isEmpty() ) {
-            result.add( new UsesConflict( bundleContext, callback.getManifest(), match, usesConflictBundle, use ) );
+         if( !PackedVersionRange.of( match ).intersects( imports.getVersionRange( useIndex ) ) ) {
+            result.add( new UsesConflict( bundleContext, callback.getManifest(), match, getSnapshot().getBundle( node ), getImportedPackage( node, useIndex ) ) );
          }
       }
       return result;
    }
 
-   private List<ImportedPackage> getImportedPackagesForExportUses( Bundle bundle, com.springsource.util.osgi.manifest.ExportedPackage exportedPackage ) {
-      return getImportedPackagesForExportUses( bundle, exportedPackage, new ArrayList<String>() );
+   /** @return Import of the node in the springsource model, built from the header captured with the snapshot */
+   private ImportedPackage getImportedPackage( int node, int index ) {
+      final PackageHeader imports = getSnapshot().getImportPackageHeader( node );
+      final StringBuilder clause = new StringBuilder( imports.getPackageName( index ) );
+      clause.append( ";version=\"" ).append( imports.getVersionRange( index ) ).append( "\"" );
+      clause.append( imports.isOptional( index ) ? ";resolution:=optional" : "" );
+      final Hashtable<String, String> headers = new Hashtable<String, String>();
+      headers.put( Constants.IMPORT_PACKAGE, clause.toString() );
+      return BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() ).getImportPackage().getImportedPackages().get( 0 );
    }
 
-   private List<ImportedPackage> getImportedPackagesForExportUses( Bundle bundle, com.springsource.util.osgi.manifest.ExportedPackage exportedPackage, List<String> exclude ) {
-      final List<ImportedPackage> result = new ArrayList<ImportedPackage>();
-      if( exportedPackage != null ) {
-         for( String use : exportedPackage.getUses() ) {
-            if( !exclude.contains( use ) ) {
-               final ImportedPackage importedPackage = BundleUtils.getImportedPackage( bundle, use );
-               if( importedPackage != null ) {
-                  result.add( importedPackage );
-                  exclude.add( use );
-               }
-               else {
-                  // Cascade Uses
-                  final com.springsource.util.osgi.manifest.ExportedPackage cascadeExportedPackage = getExportedPackage( bundle, use );
-                  if( cascadeExportedPackage != null ) {
-                     exclude.add( use );
-                     result.addAll( getImportedPackagesForExportUses( bundle, cascadeExportedPackage, exclude ) );
-                  }
+   /**
+    * Collects the imports of the node that are used by the export. Uses of packages the node exports itself are
+    * followed (cascaded) in place so the imports are returned in the order they are reached.
+    * @return Indexes of the imports in the Import-Package header of the node
+    */
+   private List<Integer> getImportsForExportUses( int node, int exportIndex ) {
+      final List<Integer> result = new ArrayList<Integer>();
+      final PackageHeader exports = getSnapshot().getExportPackageHeader( node );
+      final PackageHeader imports = getSnapshot().getImportPackageHeader( node );
+      final BitSet exclude = new BitSet();
+      // Export index and position of the next use to follow
+      final Deque<int[]> pending = new ArrayDeque<int[]>();
+      if( exportIndex >= 0 ) {
+         pending.push( new int[]{ exportIndex, 0 } );
+      }
+      while( !pending.isEmpty() ) {
+         final int[] next = pending.peek();
+         final int[] uses = exports.getUses( next[0] );
+         if( next[1] >= uses.length ) {
+            pending.pop();
+            continue;
+         }
+         final int use = uses[next[1]++];
+         if( !exclude.get( use ) ) {
+            final int importIndex = indexOf( imports, use );
+            if( importIndex >= 0 ) {
+               result.add( importIndex );
+               exclude.set( use );
+            }
+            else {
+               // Cascade Uses
+               final int cascadeExportIndex = getExport( node, use, null );
+               if( cascadeExportIndex >= 0 ) {
+                  exclude.set( use );
+                  pending.push( new int[]{ cascadeExportIndex, 0 } );
                }
             }
          }
@@ -146,50 +230,34 @@ public class FindUsesConflictsTemplate {
       return result;
    }
 
-   private com.springsource.util.osgi.manifest.ExportedPackage getExportedPackage( Bundle bundle, String packageName ) {
-      com.springsource.util.osgi.manifest.ExportedPackage result = null;
-      for( com.springsource.util.osgi.manifest.ExportedPackage exportedPackage : BundleUtils.getExportedPackages( bundle ) ) {
-         if( exportedPackage.getPackageName().equals( packageName ) ) {
-            result = exportedPackage;
-            break;
-         }
-      }
-      return result;
-   }
-
-   private ImportedPackage getImportedPackageForBundleWire( Bundle bundle, BundleWire required ) {
+   private ImportedPackage getMatchingImport( List<ImportedPackage> importedPackages, String packageName ) {
       ImportedPackage result = null;
-      for( ImportedPackage importedPackage : BundleUtils.getImportedPackages( bundle ) ) {
-         final String filter = required.getRequirement().getDirectives().get( "filter" );
-         final String packageFilter = String.format( "(osgi.wiring.package=%s)", importedPackage.getPackageName() );
-         if( filter != null && filter.contains( packageFilter ) ) {
+      for( ImportedPackage importedPackage : importedPackages ) {
+         if( importedPackage.getPackageName().equals( packageName ) ) {
             result = importedPackage;
-            break;
          }
       }
       return result;
    }
 
-   private ImportedPackage getMatchingImport( List<ImportedPackage> importedPackages, ImportedPackage use ) {
-      ImportedPackage result = null;
-      for( ImportedPackage importedPackage : importedPackages ) {
-         if( importedPackage.getPackageName().equals( use.getPackageName() ) ) {
-            result = importedPackage;
-         }
+   /** @return Dry-run resolver working on the snapshot of the template */
+   public VirtualResolver getResolver() {
+      if( resolver == null ) {
+         resolver = new VirtualResolver( bundleContext, getSnapshot() );
       }
-      return result;
+      return resolver;
    }
 
-   private PackageAdmin getPackageAdmin() {
-      final ServiceTracker<PackageAdmin, Object> packageAdminTracker = new ServiceTracker<PackageAdmin, Object>( bundleContext, PackageAdmin.class.getName(), null );
-      packageAdminTracker.open();
-      final PackageAdmin packageAdmin = ( PackageAdmin )packageAdminTracker.getService();
-      return packageAdmin;
+   private WiringSnapshot getSnapshot() {
+      if( snapshot == null ) {
+         snapshot = WiringSnapshotProvider.getInstance().getSnapshot( bundleContext );
+      }
+      return snapshot;
    }
 
    private List<UsesConflict> getUsesConflicts( IFindUsesConflictsCallback callback ) {
       final List<UsesConflict> result = new ArrayList<UsesConflict>();
-      if( callback.shouldCheck() ) {
+      if( callback.shouldCheck( getResolver() ) ) {
          final List<ImportedPackage> importedPackages = callback.getManifest().getImportPackage().getImportedPackages();
          for( ImportedPackage importedPackage : importedPackages ) {
             result.addAll( getUsesConflicts( callback, importedPackage ) );
@@ -199,33 +267,44 @@ public class FindUsesConflictsTemplate {
    }
 
    /**
-    * @param bundle Callback that provides bundle meta data to find use conflicts for
-    * @param usesConflictBundleImport Bundle and Import Package down the dependency chain of the bundle being checked
-    * @param alreadyChecked List of bundle/imports that have already been checked
+    * Walks the dependency chain starting at the node/import down through the secondary dependencies of the wiring
+    * snapshot. Each node/package combination is only checked once. The exports, imports and uses of a node are those
+    * captured with the snapshot, so a removal pending revision is walked with its own packages and wires.
+    * @param callback Callback that provides bundle meta data to find use conflicts for
+    * @param startNode Node of the bundle satisfying the import of the bundle being checked
+    * @param packageSymbol {@link PackageSymbols} symbol of the imported package
+    * @param range Version range of the import
     * @return List of use conflicts for the bundle combination
     */
-   private List<UsesConflict> getUsesConflicts( IFindUsesConflictsCallback callback, BundleImportedPackage usesConflictBundleImport, List<BundleImportedPackage> alreadyChecked ) {
+   private List<UsesConflict> getUsesConflicts( IFindUsesConflictsCallback callback, int startNode, int packageSymbol, PackedVersionRange range ) {
       final List<UsesConflict> result = new ArrayList<UsesConflict>();
-      if( usesConflictBundleImport.getBundle() != null && usesConflictBundleImport.getImportedPackage() != null && !alreadyChecked.contains( usesConflictBundleImport ) ) {
-         alreadyChecked.add( usesConflictBundleImport );
-
-         final com.springsource.util.osgi.manifest.ExportedPackage exportedPackage = BundleUtils.getExportedPackage( usesConflictBundleImport.getBundle(), usesConflictBundleImport.getImportedPackage() );
-         final List<ImportedPackage> uses = getImportedPackagesForExportUses( usesConflictBundleImport.getBundle(), exportedPackage );
-         for( ImportedPackage use : uses ) {
-            result.addAll( getHeaderUsesConflicts( callback, usesConflictBundleImport.getBundle(), use ) );
-            result.addAll( getWiringUsesConflicts( callback, usesConflictBundleImport.getBundle(), use ) );
+      final WiringSnapshot snapshot = getSnapshot();
+      final BitSet[] alreadyChecked = new BitSet[snapshot.getBundleCount()];
+      final Deque<PendingImport> pending = new ArrayDeque<PendingImport>();
+      pending.push( new PendingImport( startNode, packageSymbol, range ) );
+      while( !pending.isEmpty() ) {
+         final PendingImport pendingImport = pending.pop();
+         final int node = pendingImport.node;
+         if( alreadyChecked[node] == null ) {
+            alreadyChecked[node] = new BitSet();
+         }
+         if( alreadyChecked[node].get( pendingImport.packageSymbol ) ) {
+            continue;
          }
+         alreadyChecked[node].set( pendingImport.packageSymbol );
 
-         // Secondary Dependencies
-         final BundleWiring wiring = usesConflictBundleImport.getBundle().adapt( BundleWiring.class );
-         if( wiring != null ) {
-            for( BundleWire required : wiring.getRequiredWires( BundleRevision.PACKAGE_NAMESPACE ) ) {
-               if( required.getProviderWiring() != null ) {
-                  final Bundle secondaryUsesConflictBundle = required.getProviderWiring().getBundle();
-                  final ImportedPackage secondaryImportedPackage = getImportedPackageForBundleWire( usesConflictBundleImport.getBundle(), required );
-                  final BundleImportedPackage secondaryBundleImport = new BundleImportedPackage( secondaryUsesConflictBundle, secondaryImportedPackage );
-                  result.addAll( getUsesConflicts( callback, secondaryBundleImport, alreadyChecked ) );
-               }
+         final int exportIndex = getExport( node, pendingImport.packageSymbol, pendingImport.range );
+         for( int useIndex : getImportsForExportUses( node, exportIndex ) ) {
+            result.addAll( getHeaderUsesConflicts( callback, node, useIndex ) );
+            result.addAll( getWiringUsesConflicts( callback, node, useIndex ) );
+         }
+
+         // Secondary Dependencies; pushed in reverse so they are checked in wiring order
+         final PackageHeader imports = snapshot.getImportPackageHeader( node );
+         for( int wire = snapshot.getRequiredWiresEnd( node ) - 1; wire >= snapshot.getRequiredWiresStart( node ); wire-- ) {
+            final int importIndex = imports.indexOf( snapshot.getPackageName( snapshot.getWirePackage( wire ) ) );
+            if( importIndex >= 0 ) {
+               pending.push( new PendingImport( snapshot.getWireProvider( wire ), imports.getPackageSymbol( importIndex ), imports.getVersionRange( importIndex ) ) );
             }
          }
       }
@@ -239,70 +318,59 @@ public class FindUsesConflictsTemplate {
     */
    private List<UsesConflict> getUsesConflicts( IFindUsesConflictsCallback callback, ImportedPackage importedPackage ) {
       final List<UsesConflict> result = new ArrayList<UsesConflict>();
-      final Bundle match = BundleUtils.findBestMatchThatSatisfiesImport( bundleContext, importedPackage );
-      if( match != null ) {
-         result.addAll( getUsesConflicts( callback, new BundleImportedPackage( match, importedPackage ), new ArrayList<BundleImportedPackage>() ) );
+      final int packageSymbol = PackageSymbols.getInstance().lookup( importedPackage.getPackageName() );
+      // Best match is the exporter with the lowest bundle id
+      for( int node : getSnapshot().getExporters( packageSymbol ) ) {
+         if( getExport( node, packageSymbol, PackedVersionRange.of( importedPackage ) ) >= 0 ) {
+            result.addAll( getUsesConflicts( callback, node, packageSymbol, PackedVersionRange.of( importedPackage ) ) );
+            break;
+         }
       }
       return result;
    }
 
-   private List<UsesConflict> getWiringUsesConflicts( IFindUsesConflictsCallback callback, Bundle usesConflictBundle, ImportedPackage use ) {
-      return getWiringUsesConflicts( callback, usesConflictBundle, use, new ArrayList<Bundle>() );
-   }
-
    /**
-    * @param bundle Callback that provides bundle meta data to find use conflicts for
-    * @param usesConflictBundle Bundle that satisfies an import of the bundle that will not start
-    * @param use Use Import that could be causing the use conflict
-    * @param alreadyChecked List of bundles that have already been checked
+    * The matching import only depends on the manifest being checked so when there is no match nothing down the wiring
+    * of the bundle can conflict either and the wiring does not have to be walked.
+    * @param callback Callback that provides bundle meta data to find use conflicts for
+    * @param node Node of the bundle that satisfies an import of the bundle that will not start
+    * @param useIndex Index of the use import of the node that could be causing the use conflict
     * @return All Use Conflicts found with the wiring of the potential use conflict bundle
     */
-   private List<UsesConflict> getWiringUsesConflicts( IFindUsesConflictsCallback callback, Bundle usesConflictBundle, ImportedPackage use, List<Bundle> alreadyChecked ) {
+   private List<UsesConflict> getWiringUsesConflicts( IFindUsesConflictsCallback callback, int node, int useIndex ) {
       final List<UsesConflict> result = new ArrayList<UsesConflict>();
-      if( !alreadyChecked.contains( usesConflictBundle ) ) {
-         alreadyChecked.add( usesConflictBundle );
-         final List<ImportedPackage> importedPackages = callback.getManifest().getImportPackage().getImportedPackages();
-         final ImportedPackage match = getMatchingImport( importedPackages, use );
-         if( match != null ) {
-            final PackageAdmin packageAdmin = getPackageAdmin();
-            if( packageAdmin.resolveBundles( new Bundle[]{ usesConflictBundle } ) ) {
-               if( !BundleUtils.isImportedPackageResolved( bundleContext, usesConflictBundle, use ) ) {
-                  // ADD CONFLICT IF OPTIONAL PACKAGE NOT RESOLVED?
-               }
-               final BundleWire usesConflictWire = BundleUtils.getBundleWire( bundleContext, usesConflictBundle, use.getPackageName() );
-               if( usesConflictWire != null ) {
-                  final Bundle usesConflictProvidingBundle = usesConflictWire.getProviderWiring().getBundle();
-                  if( !BundleUtils.containsExportForImport( usesConflictProvidingBundle, match ) ) {
-                     final com.springsource.util.osgi.manifest.ExportedPackage usesConflictExportPackage = getExportedPackage( usesConflictWire.getProviderWiring().getBundle(), match.getPackageName() );
-                     result.add( new UsesConflict( bundleContext, callback.getManifest(), match, usesConflictBundle, usesConflictExportPackage ) );
-                  }
-                  else {
-                     // Multiple Matches
-                     final List<Bundle> allMatchingBundles = BundleUtils.findBundlesThatSatisfyImport( bundleContext, match );
-                     if( allMatchingBundles.size() > 1 ) {
-                        System.out.println( "Multiple bundles could match this import causing the uses conflict?" );
-                        System.out.println( allMatchingBundles );
-                     }
-
-                     // Crossed Wires?
-                     final BundleWire wiring = callback.getBundleWire( match.getPackageName() );
-                     if( wiring != null ) {
-                        if( !wiring.getProviderWiring().getBundle().equals( usesConflictWire.getProviderWiring().getBundle() ) ) {
-                           final com.springsource.util.osgi.manifest.ExportedPackage usesConflictExportPackage = getExportedPackage( usesConflictWire.getProviderWiring().getBundle(), match.getPackageName() );
-                           result.add( new UsesConflict( bundleContext, callback.getManifest(), match, usesConflictBundle, usesConflictExportPackage ) );
-                        }
-                     }
+      final WiringSnapshot snapshot = getSnapshot();
+      final String packageName = snapshot.getImportPackageHeader( node ).getPackageName( useIndex );
+      final List<ImportedPackage> importedPackages = callback.getManifest().getImportPackage().getImportedPackages();
+      final ImportedPackage match = getMatchingImport( importedPackages, packageName );
+      if( match != null ) {
+         final int providerNode = getProvider( node, packageName );
+         if( providerNode >= 0 ) {
+            // ADD CONFLICT IF OPTIONAL PACKAGE NOT RESOLVED?
+            final Bundle usesConflictBundle = snapshot.getBundle( node );
+            final int packageSymbol = PackageSymbols.getInstance().lookup( packageName );
+            final int providerExportIndex = getExport( providerNode, packageSymbol, null );
+            if( getExport( providerNode, packageSymbol, PackedVersionRange.of( match ) ) < 0 ) {
+               result.add( new UsesConflict( bundleContext, callback.getManifest(), match, usesConflictBundle, providerExportIndex >= 0 ? getExportedPackage( providerNode, providerExportIndex ) : null ) );
+            }
+            else {
+               // Multiple Matches
+               final List<Bundle> allMatchingBundles = new ArrayList<Bundle>();
+               for( int exporter : snapshot.getExporters( packageSymbol ) ) {
+                  if( getExport( exporter, packageSymbol, PackedVersionRange.of( match ) ) >= 0 ) {
+                     allMatchingBundles.add( snapshot.getBundle( exporter ) );
                   }
                }
-            }
-         }
-         else {
-            final BundleWiring wiring = usesConflictBundle.adapt( BundleWiring.class );
-            if( wiring != null ) {
-               for( BundleWire required : wiring.getRequiredWires( BundleRevision.PACKAGE_NAMESPACE ) ) {
-                  if( required.getProviderWiring() != null ) {
-                     final Bundle secondaryUsesConflictBundle = required.getProviderWiring().getBundle();
-                     result.addAll( getWiringUsesConflicts( callback, secondaryUsesConflictBundle, use, alreadyChecked ) );
+               if( allMatchingBundles.size() > 1 ) {
+                  System.out.println( "Multiple bundles could match this import causing the uses conflict?" );
+                  System.out.println( allMatchingBundles );
+               }
+
+               // Crossed Wires?
+               final BundleWire wiring = callback.getBundleWire( match.getPackageName() );
+               if( wiring != null ) {
+                  if( !wiring.getProviderWiring().getBundle().equals( snapshot.getBundle( providerNode ) ) ) {
+                     result.add( new UsesConflict( bundleContext, callback.getManifest(), match, usesConflictBundle, getExportedPackage( providerNode, providerExportIndex ) ) );
                   }
                }
             }
@@ -310,4 +378,18 @@ public class FindUsesConflictsTemplate {
       }
       return result;
    }
-}
+
+   /**
+    * @return Node providing the package to the node: its wire in the snapshot for a removal pending revision, otherwise
+    * the provider the dry-run resolver chooses; <code>-1</code> if there is none or the bundle does not resolve
+    */
+   private int getProvider( int node, String packageName ) {
+      final WiringSnapshot snapshot = getSnapshot();
+      if( !snapshot.isCurrent( node ) ) {
+         final int packageId = snapshot.getPackageId( packageName );
+         return packageId >= 0 ? snapshot.getProvider( node, packageId ) : -1;
+      }
+      final ResolutionReport resolution = getResolver().resolve( snapshot.getBundle( node ) );
+      final Bundle provider = resolution.isResolvable() ? resolution.getProvider( packageName ) : null;
+      return provider != null ? snapshot.indexOf( provider ) : -1;
+   }}
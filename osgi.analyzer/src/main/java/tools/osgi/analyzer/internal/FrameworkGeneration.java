@@ -0,0 +1,68 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Counter that is incremented on every bundle or wiring change in the framework. Anything computed from the framework
+ * state can be tagged with the generation it was computed at and is still valid as long as the generation is unchanged.
+ */
+public class FrameworkGeneration implements SynchronousBundleListener, FrameworkListener {
+   private static final FrameworkGeneration INSTANCE = new FrameworkGeneration();
+
+   public static FrameworkGeneration getInstance() {
+      return INSTANCE;
+   }
+
+   private BundleContext bundleContext;
+   private final AtomicLong generation = new AtomicLong();
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      generation.incrementAndGet();
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+            bundleContext.removeFrameworkListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      generation.incrementAndGet();
+   }
+
+   @Override
+   public void frameworkEvent( FrameworkEvent event ) {
+      if( event.getType() == FrameworkEvent.PACKAGES_REFRESHED || event.getType() == FrameworkEvent.STARTLEVEL_CHANGED ) {
+         generation.incrementAndGet();
+      }
+   }
+
+   public long get() {
+      return generation.get();
+   }
+
+   /** @return <code>true</code> if the generation is tracking framework events */
+   public boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         bundleContext.addBundleListener( this );
+         bundleContext.addFrameworkListener( this );
+         generation.incrementAndGet();
+      }
+   }
+}
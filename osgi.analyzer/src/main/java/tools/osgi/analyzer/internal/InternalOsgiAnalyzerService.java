@@ -5,9 +5,15 @@ import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -15,13 +21,17 @@ import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.service.packageadmin.PackageAdmin;
-import org.osgi.util.tracker.ServiceTracker;
 
+import tools.osgi.analyzer.api.BundleHealth;
 import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.IContainerHealthListener;
 import tools.osgi.analyzer.api.IOsgiAnalyzerService;
 import tools.osgi.analyzer.api.MissingImport;
 import tools.osgi.analyzer.api.MissingOptionalImportReasonType;
+import tools.osgi.analyzer.api.ResolutionReport;
+import tools.osgi.analyzer.api.ThrowableDiagnosis;
 import tools.osgi.analyzer.api.UsesConflict;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestion;
 import tools.osgi.analyzer.internal.FindUsesConflictsTemplate.BundleFindUsesConflictsCallback;
 import tools.osgi.analyzer.internal.FindUsesConflictsTemplate.BundleManifestFindUsesConflictsCallback;
 
@@ -62,6 +72,13 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
          return importedPackage;
       }
 
+      @Override
+      public int hashCode() {
+         int result = bundle != null ? bundle.hashCode() : 0;
+         result = 31 * result + ( importedPackage != null ? importedPackage.getPackageName().hashCode() : 0 );
+         return result;
+      }
+
       public void setBundle( Bundle bundle ) {
          this.bundle = bundle;
       }
@@ -78,59 +95,187 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
       }
    }
 
+   /** Check that is run against every bundle of the container */
+   private static interface BundleCheck {
+      boolean matches( Bundle bundle, WiringSnapshot snapshot );
+   }
+
+   /** Runs a {@link BundleCheck} over a range of bundles and records the outcome by position */
+   private static class BundleCheckTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final Bundle[] bundles;
+      private final BundleCheck check;
+      private final int end;
+      private final boolean[] matches;
+      private final WiringSnapshot snapshot;
+      private final int start;
+
+      public BundleCheckTask( BundleCheck check, WiringSnapshot snapshot, Bundle[] bundles, boolean[] matches, int start, int end ) {
+         this.check = check;
+         this.snapshot = snapshot;
+         this.bundles = bundles;
+         this.matches = matches;
+         this.start = start;
+         this.end = end;
+      }
+
+      @Override
+      protected void compute() {
+         // A single bundle check is expensive enough to be worth its own task
+         if( end - start == 1 ) {
+            matches[start] = check.matches( bundles[start], snapshot );
+         }
+         else {
+            final int middle = ( start + end ) >>> 1;
+            invokeAll( new BundleCheckTask( check, snapshot, bundles, matches, start, middle ), new BundleCheckTask( check, snapshot, bundles, matches, middle, end ) );
+         }
+      }
+   }
+
+   private static <T> List<T> copy( List<T> list ) {
+      return new ArrayList<T>( list );
+   }
+
+   /** @return Contents of the headers usable as part of a cache key */
+   private static Map<String, String> toMap( Dictionary<String, String> headers ) {
+      final Map<String, String> result = new HashMap<String, String>();
+      for( Enumeration<String> keys = headers.keys(); keys.hasMoreElements(); ) {
+         final String key = keys.nextElement();
+         result.put( key, headers.get( key ) );
+      }
+      return result;
+   }
+
    private BundleContext bundleContext;
+   private final ThrowableDiagnoser diagnoser;
+   private final ContainerHealthMonitor healthMonitor;
    private UncaughtExceptionHandler oldHandler;
+   /** Fork-join pools by parallelism; created on first use and kept until the service stops */
+   private final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+   private final AnalysisResultCache resultCache = new AnalysisResultCache( FrameworkGeneration.getInstance() );
 
    public InternalOsgiAnalyzerService( BundleContext bundleContext ) {
       this.bundleContext = bundleContext;
+      this.healthMonitor = new ContainerHealthMonitor( this );
+      this.diagnoser = new ThrowableDiagnoser( this );
+   }
+
+   @Override
+   public void addHealthListener( IContainerHealthListener listener ) {
+      healthMonitor.addListener( listener );
    }
 
    @Override
    public void diagnose( Throwable exception ) {
-      // TODO Auto-generated method stub
-      System.out.println( "DIAGNOSE ME!!!!" );
+      diagnoser.submit( exception );
+   }
+
+   @Override
+   public ResolutionReport checkResolution( final Bundle bundle ) {
+      return resultCache.get( new Callable<ResolutionReport>() {
+         @Override
+         public ResolutionReport call() {
+            return new FindUsesConflictsTemplate( bundleContext ).getResolver().resolve( bundle );
+         }
+      }, "checkResolution", bundle.getBundleId() );
+   }
+
+   @Override
+   public ResolutionReport checkResolution( Dictionary<String, String> headers ) {
+      final BundleManifest manifest = BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() );
+      return getCandidateTemplate( manifest ).getResolver().resolve( manifest );
    }
 
    @Override
    public List<Bundle> findBundlesWithMissingOptionalImports() {
-      final List<Bundle> result = new ArrayList<Bundle>();
-      for( Bundle bundle : bundleContext.getBundles() ) {
-         if( isRefreshRequired( bundle ) ) {
-            result.add( bundle );
+      return findBundlesWithMissingOptionalImports( 1 );
+   }
+
+   @Override
+   public List<Bundle> findBundlesWithMissingOptionalImports( final int parallelism ) {
+      return copy( resultCache.get( new Callable<List<Bundle>>() {
+         @Override
+         public List<Bundle> call() {
+            return findBundles( new BundleCheck() {
+               @Override
+               public boolean matches( Bundle bundle, WiringSnapshot snapshot ) {
+                  return isRefreshRequired( bundle, snapshot );
+               }
+            }, parallelism );
          }
-      }
-      return result;
+      }, "findBundlesWithMissingOptionalImports" ) );
    }
 
    @Override
    public List<Bundle> findBundlesWithUsesConflicts() {
-      final List<Bundle> result = new ArrayList<Bundle>();
-      for( Bundle bundle : bundleContext.getBundles() ) {
-         if( hasUsesConflict( bundle ) ) {
-            result.add( bundle );
+      return findBundlesWithUsesConflicts( 1 );
+   }
+
+   @Override
+   public List<Bundle> findBundlesWithUsesConflicts( final int parallelism ) {
+      return copy( resultCache.get( new Callable<List<Bundle>>() {
+         @Override
+         public List<Bundle> call() {
+            return findBundles( new BundleCheck() {
+               @Override
+               public boolean matches( Bundle bundle, WiringSnapshot snapshot ) {
+                  return hasUsesConflict( bundle, snapshot );
+               }
+            }, parallelism );
          }
-      }
-      return result;
+      }, "findBundlesWithUsesConflicts" ) );
    }
 
    @Override
-   public List<MissingImport> findMissingOptionalImports( Bundle bundle ) {
-      return getUnresolvedImportedPackages( bundle );
+   public List<MissingImport> findMissingOptionalImports( final Bundle bundle ) {
+      return copy( resultCache.get( new Callable<List<MissingImport>>() {
+         @Override
+         public List<MissingImport> call() {
+            return getUnresolvedImportedPackages( bundle, null );
+         }
+      }, "findMissingOptionalImports", bundle.getBundleId() ) );
    }
 
    @Override
-   public List<UsesConflict> findUsesConflicts( Bundle bundle ) {
-      return getUsesConflicts( bundle );
+   public List<UsesConflict> findUsesConflicts( final Bundle bundle ) {
+      return copy( resultCache.get( new Callable<List<UsesConflict>>() {
+         @Override
+         public List<UsesConflict> call() {
+            return getUsesConflicts( bundle, ( WiringSnapshot )null );
+         }
+      }, "findUsesConflicts", bundle.getBundleId() ) );
    }
 
    @Override
-   public List<UsesConflict> findUsesConflicts( Dictionary<String, String> headers ) {
-      return getUsesConflicts( BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() ) );
+   public List<UsesConflictResolutionSuggestion> findUsesConflictResolutions( final Bundle bundle ) {
+      return copy( resultCache.get( new Callable<List<UsesConflictResolutionSuggestion>>() {
+         @Override
+         public List<UsesConflictResolutionSuggestion> call() {
+            final WiringSnapshot snapshot = WiringSnapshotProvider.getInstance().getSnapshot( bundleContext );
+            return new UsesConflictRefreshPlanner( bundleContext, snapshot ).plan( bundle, getUsesConflicts( bundle, snapshot ) );
+         }
+      }, "findUsesConflictResolutions", bundle.getBundleId() ) );
    }
 
    @Override
-   public List<UsesConflict> findUsesConflicts( Dictionary<String, String> headers, String packageName ) {
-      return getUsesConflicts( BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() ), packageName );
+   public List<UsesConflict> findUsesConflicts( final Dictionary<String, String> headers ) {
+      return copy( resultCache.get( new Callable<List<UsesConflict>>() {
+         @Override
+         public List<UsesConflict> call() {
+            return getUsesConflicts( BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() ) );
+         }
+      }, "findUsesConflicts", toMap( headers ) ) );
+   }
+
+   @Override
+   public List<UsesConflict> findUsesConflicts( final Dictionary<String, String> headers, final String packageName ) {
+      return copy( resultCache.get( new Callable<List<UsesConflict>>() {
+         @Override
+         public List<UsesConflict> call() {
+            return getUsesConflicts( BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() ), packageName );
+         }
+      }, "findUsesConflicts", toMap( headers ), packageName ) );
    }
 
    @Override
@@ -155,18 +300,22 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
 
    @Override
    public Bundle getBundleForClass( final Class<?> clazz ) {
-      PackageAdmin admin = getPackageAdmin();
-      if( admin != null ) {
-         Bundle b = admin.getBundle( clazz );
-         if( b == null ) {
-            // must be the system bundle
-            return bundleContext.getBundle( 0 );
-         }
-         else {
-            return b;
+      return AnalyzerServices.PACKAGE_ADMIN.call( bundleContext, new ServiceAccess.ServiceCall<PackageAdmin, Bundle>() {
+         @Override
+         public Bundle call( PackageAdmin admin ) {
+            if( admin != null ) {
+               Bundle b = admin.getBundle( clazz );
+               if( b == null ) {
+                  // must be the system bundle
+                  return bundleContext.getBundle( 0 );
+               }
+               else {
+                  return b;
+               }
+            }
+            return null;
          }
-      }
-      return null;
+      } );
    }
 
    @Override
@@ -179,6 +328,16 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
       return result;
    }
 
+   @Override
+   public List<BundleHealth> getContainerHealth() {
+      return healthMonitor.getUnhealthyBundles();
+   }
+
+   @Override
+   public List<ThrowableDiagnosis> getThrowableDiagnoses() {
+      return diagnoser.getDiagnoses();
+   }
+
    @Override
    public List<Bundle> getDependentBundles( Bundle bundle ) {
       final Set<Bundle> result = new HashSet<Bundle>();
@@ -189,26 +348,73 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
       return new ArrayList<Bundle>( result );
    }
 
+   @Override
+   public void removeHealthListener( IContainerHealthListener listener ) {
+      healthMonitor.removeListener( listener );
+   }
+
    public void start() {
       oldHandler = Thread.getDefaultUncaughtExceptionHandler();
       Thread.setDefaultUncaughtExceptionHandler( this );
+      healthMonitor.open( bundleContext );
+      diagnoser.open( bundleContext );
    }
 
    public void stop() {
+      diagnoser.close();
+      healthMonitor.close();
+      resultCache.clear();
+      synchronized( pools ) {
+         for( ForkJoinPool pool : pools.values() ) {
+            pool.shutdown();
+         }
+         pools.clear();
+      }
       Thread.setDefaultUncaughtExceptionHandler( oldHandler );
    }
 
    @Override
    public void uncaughtException( Thread thread, Throwable exception ) {
-
+      diagnose( exception );
       if( oldHandler != null ) {
          oldHandler.uncaughtException( thread, exception );
       }
    }
 
+   /**
+    * Runs the check against all bundles. The bundles are listed and the wiring snapshot is taken once up front so every
+    * check sees the same container state; with a parallelism above one the checks run on a fork-join pool bounded to
+    * that many threads.
+    * @param check Check to run for each bundle
+    * @param parallelism Maximum number of threads; <code>0</code> or less uses one per available processor
+    * @return Matching bundles in the order the framework lists them
+    */
+   private List<Bundle> findBundles( BundleCheck check, int parallelism ) {
+      final Bundle[] bundles = bundleContext.getBundles();
+      final WiringSnapshot snapshot = WiringSnapshotProvider.getInstance().getSnapshot( bundleContext );
+      final boolean[] matches = new boolean[bundles.length];
+      final int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+      if( threads <= 1 || bundles.length <= 1 ) {
+         for( int index = 0; index < bundles.length; index++ ) {
+            matches[index] = check.matches( bundles[index], snapshot );
+         }
+      }
+      else {
+         getPool( threads ).invoke( new BundleCheckTask( check, snapshot, bundles, matches, 0, bundles.length ) );
+      }
+      final List<Bundle> result = new ArrayList<Bundle>();
+      for( int index = 0; index < bundles.length; index++ ) {
+         if( matches[index] ) {
+            result.add( bundles[index] );
+         }
+      }
+      return result;
+   }
+
    /**
     * get all possible class instance available in the OSGi container for a
-    * distinct full qualified class name.
+    * distinct full qualified class name. The bundles that contain the class
+    * are taken from the {@link ClassNameIndex} when it is open.
     *
     * @param clazzName
     *            full qualified class name like java.lang.Object
@@ -217,7 +423,31 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
     * @since 1.0
     */
    private List<Class<?>> getClassesForName( final String clazzName ) {
-      Bundle[] bundles = bundleContext.getBundles();
+      final ClassNameIndex index = ClassNameIndex.getInstance();
+      if( !index.isOpen() ) {
+         return getClassesForName( clazzName, bundleContext.getBundles() );
+      }
+      final List<Bundle> candidates = new ArrayList<Bundle>();
+      for( long bundleId : index.getBundleIds( clazzName ) ) {
+         final Bundle bundle = bundleContext.getBundle( bundleId );
+         if( bundle != null ) {
+            candidates.add( bundle );
+         }
+      }
+      if( candidates.isEmpty() ) {
+         // Not contained in any bundle; may still come from the boot class path through the system bundle
+         candidates.add( bundleContext.getBundle( 0 ) );
+      }
+      return getClassesForName( clazzName, candidates.toArray( new Bundle[candidates.size()] ) );
+   }
+
+   /**
+    * Loads the class from each of the bundles to verify which class instances are actually visible
+    * @param clazzName Full qualified class name like java.lang.Object
+    * @param bundles Bundles to load the class from
+    * @return Distinct classes loaded; guaranteed to be not null (but might be empty though)
+    */
+   private List<Class<?>> getClassesForName( final String clazzName, Bundle[] bundles ) {
       HashSet<Class<?>> classes = new HashSet<Class<?>>();
       for( int i = 0; i < bundles.length; i++ ) {
          // check if you can successfully load the class
@@ -251,7 +481,7 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
 
    private List<ImportedPackage> getImportedPackages( Bundle bundle, Resolution resolution ) {
       final List<ImportedPackage> result = new ArrayList<ImportedPackage>();
-      final BundleManifest manifest = BundleManifestFactory.createBundleManifest( bundle.getHeaders(), new DummyParserLogger() );
+      final BundleManifest manifest = BundleUtils.getBundleManifest( bundle );
       for( ImportedPackage importedPackage : manifest.getImportPackage().getImportedPackages() ) {
          if( resolution == null || resolution.equals( importedPackage.getResolution() ) ) {
             result.add( importedPackage );
@@ -260,14 +490,14 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
       return result;
    }
 
-   private MissingImport getMissingImport( Bundle bundle, ImportedPackage importedPackage ) {
+   private MissingImport getMissingImport( Bundle bundle, ImportedPackage importedPackage, WiringSnapshot snapshot ) {
       final MissingImport result = new MissingImport( importedPackage );
       result.setReason( MissingOptionalImportReasonType.Unknown );
       final Bundle match = BundleUtils.findBestMatchThatSatisfiesImport( bundleContext, importedPackage );
       if( match != null ) {
          result.setReason( MissingOptionalImportReasonType.RefreshRequired );
          result.setMatch( match );
-         final List<UsesConflict> usesConflicts = getUsesConflicts( bundle, importedPackage );
+         final List<UsesConflict> usesConflicts = getUsesConflicts( bundle, importedPackage, snapshot );
          if( !usesConflicts.isEmpty() ) {
             result.setReason( MissingOptionalImportReasonType.UsesConflict );
             result.setUsesConflicts( usesConflicts );
@@ -284,37 +514,53 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
       return getImportedPackages( bundle, Resolution.OPTIONAL );
    }
 
-   private PackageAdmin getPackageAdmin() {
-      final ServiceTracker<PackageAdmin, Object> packageAdminTracker = new ServiceTracker<PackageAdmin, Object>( bundleContext, PackageAdmin.class.getName(), null );
-      packageAdminTracker.open();
-      final PackageAdmin packageAdmin = ( PackageAdmin )packageAdminTracker.getService();
-      return packageAdmin;
+   /** @return Pool of the parallelism; its idle workers end on their own so keeping it costs no threads */
+   private ForkJoinPool getPool( int parallelism ) {
+      synchronized( pools ) {
+         ForkJoinPool result = pools.get( parallelism );
+         if( result == null ) {
+            result = new ForkJoinPool( parallelism );
+            pools.put( parallelism, result );
+         }
+         return result;
+      }
    }
 
-   private List<MissingImport> getUnresolvedImportedPackages( Bundle bundle ) {
+   /**
+    * @param bundle Bundle to check
+    * @param snapshot Wiring to check uses conflicts against; <code>null</code> for the current wiring
+    */
+   private List<MissingImport> getUnresolvedImportedPackages( Bundle bundle, WiringSnapshot snapshot ) {
       final List<MissingImport> result = new ArrayList<MissingImport>();
       for( ImportedPackage importedPackage : getImportedPackages( bundle ) ) {
          if( !BundleUtils.isImportedPackageResolved( bundleContext, bundle, importedPackage ) ) {
-            result.add( getMissingImport( bundle, importedPackage ) );
+            result.add( getMissingImport( bundle, importedPackage, snapshot ) );
          }
       }
       return result;
    }
 
-   private List<UsesConflict> getUsesConflicts( Bundle bundle ) {
-      return new FindUsesConflictsTemplate( bundleContext ).find( new BundleFindUsesConflictsCallback( bundle ) );
+   /** Template whose dry-run resolver sees the manifest as if it were installed */
+   private FindUsesConflictsTemplate getCandidateTemplate( BundleManifest manifest ) {
+      final FindUsesConflictsTemplate result = new FindUsesConflictsTemplate( bundleContext );
+      result.getResolver().addCandidate( manifest );
+      return result;
+   }
+
+   private List<UsesConflict> getUsesConflicts( Bundle bundle, WiringSnapshot snapshot ) {
+      return new FindUsesConflictsTemplate( bundleContext, snapshot ).find( new BundleFindUsesConflictsCallback( bundle ) );
    }
 
-   private List<UsesConflict> getUsesConflicts( Bundle bundle, ImportedPackage importedPackage ) {
-      return new FindUsesConflictsTemplate( bundleContext ).find( new BundleFindUsesConflictsCallback( bundle ), importedPackage );
+   private List<UsesConflict> getUsesConflicts( Bundle bundle, ImportedPackage importedPackage, WiringSnapshot snapshot ) {
+      return new FindUsesConflictsTemplate( bundleContext, snapshot ).find( new BundleFindUsesConflictsCallback( bundle ), importedPackage );
    }
 
    private List<UsesConflict> getUsesConflicts( BundleManifest manifest ) {
-      return new FindUsesConflictsTemplate( bundleContext ).find( new BundleManifestFindUsesConflictsCallback( manifest ) );
+      return getCandidateTemplate( manifest ).find( new BundleManifestFindUsesConflictsCallback( manifest ) );
    }
 
    private List<UsesConflict> getUsesConflicts( BundleManifest manifest, ImportedPackage importedPackage ) {
-      return new FindUsesConflictsTemplate( bundleContext ).find( new BundleManifestFindUsesConflictsCallback( manifest ), importedPackage );
+      return getCandidateTemplate( manifest ).find( new BundleManifestFindUsesConflictsCallback( manifest ), importedPackage );
    }
 
    private List<UsesConflict> getUsesConflicts( BundleManifest manifest, String packageName ) {
@@ -326,11 +572,11 @@ public class InternalOsgiAnalyzerService implements IOsgiAnalyzerService, Uncaug
       return result;
    }
 
-   private boolean hasUsesConflict( Bundle bundle ) {
-      return getUsesConflicts( bundle ).size() > 0;
+   private boolean hasUsesConflict( Bundle bundle, WiringSnapshot snapshot ) {
+      return getUsesConflicts( bundle, snapshot ).size() > 0;
    }
 
-   private boolean isRefreshRequired( Bundle bundle ) {
-      return getUnresolvedImportedPackages( bundle ).size() > 0;
+   private boolean isRefreshRequired( Bundle bundle, WiringSnapshot snapshot ) {
+      return getUnresolvedImportedPackages( bundle, snapshot ).size() > 0;
    }
 }
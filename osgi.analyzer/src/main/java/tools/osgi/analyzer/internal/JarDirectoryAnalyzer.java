@@ -0,0 +1,281 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.osgi.framework.Constants;
+
+import tools.osgi.analyzer.api.JarManifestReader;
+import tools.osgi.analyzer.api.ResolutionReport;
+import tools.osgi.analyzer.api.UsesConflict;
+
+/**
+ * Checks a directory of bundle jars, such as a Virgo <code>repository/usr</code> or a release staging folder, for missing
+ * imports and uses conflicts before anything is installed:
+ *
+ * <pre>
+ * java -cp osgi.analyzer.jar:&lt;dependencies&gt; tools.osgi.analyzer.internal.JarDirectoryAnalyzer &lt;directory&gt; [-s &lt;snapshot&gt;] [-p &lt;threads&gt;] [-v]
+ * </pre>
+ *
+ * Only the manifest of each jar is read, through {@link JarManifestReader}, on a fork-join pool. The bundles are then
+ * installed into an {@link OfflineContainer}, on top of a container snapshot written by <code>tools:snapshot</code> if
+ * one is given, and each bundle is checked with the header based analysis of {@link InternalOsgiAnalyzerService}:
+ * {@link InternalOsgiAnalyzerService#checkResolution(java.util.Dictionary)} for missing imports and
+ * {@link InternalOsgiAnalyzerService#findUsesConflicts(java.util.Dictionary)} for uses conflicts. Without a snapshot
+ * packages provided by the framework itself are reported missing.
+ * <p>
+ * The process exits with status 1 if any bundle has an issue so it can gate a release.
+ */
+public class JarDirectoryAnalyzer {
+   /** Runs the header based analysis for each bundle */
+   private static class AnalyzeTask extends JarTask {
+      private static final long serialVersionUID = 1L;
+      private final InternalOsgiAnalyzerService analyzerService;
+
+      public AnalyzeTask( InternalOsgiAnalyzerService analyzerService, JarResult[] results, int start, int end ) {
+         super( results, start, end );
+         this.analyzerService = analyzerService;
+      }
+
+      @Override
+      protected JarTask create( JarResult[] results, int start, int end ) {
+         return new AnalyzeTask( analyzerService, results, start, end );
+      }
+
+      @Override
+      protected void run( JarResult result ) {
+         result.resolution = analyzerService.checkResolution( result.headers );
+         result.conflicts = analyzerService.findUsesConflicts( result.headers );
+      }
+   }
+
+   /** Reads the manifest of each jar */
+   private static class ReadTask extends JarTask {
+      private static final long serialVersionUID = 1L;
+
+      public ReadTask( JarResult[] results, int start, int end ) {
+         super( results, start, end );
+      }
+
+      @Override
+      protected JarTask create( JarResult[] results, int start, int end ) {
+         return new ReadTask( results, start, end );
+      }
+
+      @Override
+      protected void run( JarResult result ) throws Exception {
+         result.headers = JarManifestReader.readHeaders( result.file );
+      }
+   }
+
+   /** Result of one jar */
+   private static class JarResult {
+      private List<UsesConflict> conflicts = Collections.emptyList();
+      private String error;
+      private final File file;
+      private Hashtable<String, String> headers;
+      private ResolutionReport resolution;
+
+      public JarResult( File file ) {
+         this.file = file;
+      }
+
+      public boolean hasIssues() {
+         return error != null || ( resolution != null && !resolution.isResolvable() ) || !conflicts.isEmpty();
+      }
+
+      public boolean isBundle() {
+         return headers != null && headers.get( Constants.BUNDLE_SYMBOLICNAME ) != null;
+      }
+   }
+
+   /** Runs a step for a range of jars, splitting the range until it is small */
+   private abstract static class JarTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private static final int THRESHOLD = 8;
+      private final int end;
+      private final JarResult[] results;
+      private final int start;
+
+      public JarTask( JarResult[] results, int start, int end ) {
+         this.results = results;
+         this.start = start;
+         this.end = end;
+      }
+
+      @Override
+      protected void compute() {
+         if( end - start <= THRESHOLD ) {
+            for( int index = start; index < end; index++ ) {
+               try {
+                  run( results[index] );
+               }
+               catch( Exception exception ) {
+                  results[index].error = String.format( "%s: %s", exception.getClass().getSimpleName(), exception.getMessage() );
+               }
+            }
+         }
+         else {
+            final int middle = ( start + end ) >>> 1;
+            invokeAll( create( results, start, middle ), create( results, middle, end ) );
+         }
+      }
+
+      protected abstract JarTask create( JarResult[] results, int start, int end );
+
+      protected abstract void run( JarResult result ) throws Exception;
+   }
+
+   public static void main( String[] args ) throws Exception {
+      String directoryName = null;
+      String snapshotName = null;
+      int parallelism = 0;
+      boolean verbose = false;
+      for( int index = 0; index < args.length; index++ ) {
+         final String arg = args[index];
+         if( ( "-s".equals( arg ) || "--snapshot".equals( arg ) ) && index + 1 < args.length ) {
+            snapshotName = args[++index];
+         }
+         else if( ( "-p".equals( arg ) || "--parallelism".equals( arg ) ) && index + 1 < args.length ) {
+            parallelism = Integer.parseInt( args[++index] );
+         }
+         else if( "-v".equals( arg ) || "--verbose".equals( arg ) ) {
+            verbose = true;
+         }
+         else if( directoryName == null && !arg.startsWith( "-" ) ) {
+            directoryName = arg;
+         }
+         else {
+            usage( String.format( "Unknown argument: %s", arg ) );
+            return;
+         }
+      }
+      if( directoryName == null || !new File( directoryName ).isDirectory() ) {
+         usage( String.format( "Not a directory: %s", directoryName ) );
+         return;
+      }
+      final boolean issues = new JarDirectoryAnalyzer( parallelism, verbose ).analyze( new File( directoryName ), snapshotName != null ? new File( snapshotName ) : null );
+      System.exit( issues ? 1 : 0 );
+   }
+
+   private static void collectJars( File directory, List<File> result ) {
+      final File[] files = directory.listFiles();
+      if( files == null ) {
+         return;
+      }
+      Arrays.sort( files );
+      for( File file : files ) {
+         if( file.isDirectory() ) {
+            collectJars( file, result );
+         }
+         else if( file.getName().endsWith( ".jar" ) ) {
+            result.add( file );
+         }
+      }
+   }
+
+   private static void usage( String problem ) {
+      System.out.println( problem );
+      System.out.println( String.format( "Usage: %s <directory> [-s <snapshot>] [-p <threads>] [-v]", JarDirectoryAnalyzer.class.getName() ) );
+   }
+
+   private final int parallelism;
+   private final boolean verbose;
+
+   /**
+    * @param parallelism Number of threads; <code>0</code> or less uses one per available processor
+    * @param verbose Print every bundle, not only those with issues
+    */
+   public JarDirectoryAnalyzer( int parallelism, boolean verbose ) {
+      this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+      this.verbose = verbose;
+   }
+
+   /**
+    * @param directory Directory searched for jars, including sub directories
+    * @param snapshotFile Snapshot of the container the bundles are going to be installed into or <code>null</code>
+    * @return <code>true</code> if any bundle has an issue
+    */
+   public boolean analyze( File directory, File snapshotFile ) throws Exception {
+      final List<File> jars = new ArrayList<File>();
+      collectJars( directory, jars );
+      final JarResult[] results = new JarResult[jars.size()];
+      for( int index = 0; index < results.length; index++ ) {
+         results[index] = new JarResult( jars.get( index ) );
+      }
+
+      final ForkJoinPool pool = new ForkJoinPool( parallelism );
+      try {
+         long start = System.nanoTime();
+         pool.invoke( new ReadTask( results, 0, results.length ) );
+         final Map<String, Hashtable<String, String>> headersByLocation = new LinkedHashMap<String, Hashtable<String, String>>();
+         final List<JarResult> bundles = new ArrayList<JarResult>();
+         int failed = 0;
+         for( JarResult result : results ) {
+            if( result.isBundle() ) {
+               headersByLocation.put( result.file.toURI().toString(), result.headers );
+               bundles.add( result );
+            }
+            failed += result.error != null ? 1 : 0;
+         }
+         System.out.println( String.format( "Read manifests of %s jars in %s ms: %s bundles, %s failed", results.length, ( System.nanoTime() - start ) / 1000000, bundles.size(), failed ) );
+
+         start = System.nanoTime();
+         final ContainerSnapshot snapshot = snapshotFile != null ? ContainerSnapshot.read( snapshotFile ) : ContainerSnapshot.empty();
+         final OfflineContainer container = new OfflineContainer( snapshot.install( headersByLocation ) );
+         container.open();
+         try {
+            final InternalOsgiAnalyzerService analyzerService = new InternalOsgiAnalyzerService( container.getBundleContext() );
+            final JarResult[] bundleResults = bundles.toArray( new JarResult[bundles.size()] );
+            pool.invoke( new AnalyzeTask( analyzerService, bundleResults, 0, bundleResults.length ) );
+            System.out.println( String.format( "Analyzed %s bundles against %s installed bundles in %s ms", bundleResults.length, snapshot.getBundles().size(), ( System.nanoTime() - start ) / 1000000 ) );
+         }
+         finally {
+            container.close();
+         }
+      }
+      finally {
+         pool.shutdown();
+      }
+      return print( results );
+   }
+
+   private boolean print( JarResult[] results ) {
+      int missing = 0;
+      int conflicting = 0;
+      int failed = 0;
+      for( JarResult result : results ) {
+         if( !result.hasIssues() && !( verbose && result.isBundle() ) ) {
+            continue;
+         }
+         System.out.println( "" );
+         System.out.println( String.format( "%s (%s)", result.isBundle() ? result.headers.get( Constants.BUNDLE_SYMBOLICNAME ) : "[NO BUNDLE]", result.file ) );
+         if( result.error != null ) {
+            System.out.println( String.format( "   Error: %s", result.error ) );
+            failed++;
+         }
+         if( result.resolution != null ) {
+            System.out.println( String.format( "   Resolvable: %s", result.resolution.isResolvable() ) );
+            for( String problem : result.resolution.getProblems() ) {
+               System.out.println( String.format( "   %s", problem ) );
+            }
+            missing += result.resolution.isResolvable() ? 0 : 1;
+         }
+         for( UsesConflict conflict : result.conflicts ) {
+            System.out.println( String.format( "   Uses conflict (%s): %s %s with %s(%s)", conflict.getType().name(), conflict.getImportedPackage().getPackageName(), conflict.getImportedPackage().getVersion(), conflict.getUsesConflictBundle().getSymbolicName(), conflict.getUsesConflictBundle().getBundleId() ) );
+         }
+         conflicting += result.conflicts.isEmpty() ? 0 : 1;
+      }
+      System.out.println( "" );
+      System.out.println( String.format( "%s jars: %s not resolvable, %s with uses conflicts, %s failed", results.length, missing, conflicting, failed ) );
+      return missing + conflicting + failed > 0;
+   }
+}
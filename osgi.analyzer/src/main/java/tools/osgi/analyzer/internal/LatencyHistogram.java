@@ -0,0 +1,144 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets in the style of HdrHistogram. Each power of two range of nanoseconds is
+ * split into {@value #SUB_BUCKET_COUNT} linear sub buckets so every recorded value is kept with a relative error below
+ * 1/{@value #SUB_BUCKET_COUNT}. Recording is lock-free: one increment of the bucket, the count and the total plus a
+ * compare-and-set if the value is a new maximum. Percentiles are computed from the buckets when they are read; while
+ * values are recorded concurrently they are approximate.
+ * <p>
+ * Values above about 36 minutes are recorded in the last bucket.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+   /** Largest shift of a bucket; values up to <code>2^(MAX_SHIFT + SUB_BUCKET_BITS + 1) - 1</code> are tracked */
+   private static final int MAX_SHIFT = 35;
+   private static final int BUCKET_COUNT = ( MAX_SHIFT << SUB_BUCKET_BITS ) + 2 * SUB_BUCKET_COUNT;
+   private static final long MAX_VALUE = ( 2L * SUB_BUCKET_COUNT << MAX_SHIFT ) - 1;
+
+   /** @return Index of the bucket the value is recorded in */
+   private static int indexOf( long value ) {
+      final int shift = Math.max( 0, 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS );
+      return ( shift << SUB_BUCKET_BITS ) + ( int )( value >>> shift );
+   }
+
+   /** @return Largest value recorded in the bucket */
+   private static long highestValueOf( int index ) {
+      if( index < 2 * SUB_BUCKET_COUNT ) {
+         return index;
+      }
+      final int shift = ( index >>> SUB_BUCKET_BITS ) - 1;
+      final long subBucket = index - ( shift << SUB_BUCKET_BITS );
+      return ( ( subBucket + 1 ) << shift ) - 1;
+   }
+
+   private static long toMicros( long nanos ) {
+      return TimeUnit.NANOSECONDS.toMicros( nanos );
+   }
+
+   private final AtomicLongArray buckets = new AtomicLongArray( BUCKET_COUNT );
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+   private final AtomicLong total = new AtomicLong();
+
+   @Override
+   public long getCount() {
+      return count.get();
+   }
+
+   @Override
+   public long getMaxMicros() {
+      return toMicros( max.get() );
+   }
+
+   @Override
+   public double getMeanMicros() {
+      final long recorded = count.get();
+      return recorded > 0 ? total.get() / 1000.0 / recorded : 0;
+   }
+
+   @Override
+   public long getP50Micros() {
+      return toMicros( getPercentile( 50 ) );
+   }
+
+   @Override
+   public long getP90Micros() {
+      return toMicros( getPercentile( 90 ) );
+   }
+
+   @Override
+   public long getP999Micros() {
+      return toMicros( getPercentile( 99.9 ) );
+   }
+
+   @Override
+   public long getP99Micros() {
+      return toMicros( getPercentile( 99 ) );
+   }
+
+   /**
+    * @param percentile Percentile between 0 and 100
+    * @return Value in nanoseconds at or below which the percentage of the recorded values falls
+    */
+   public long getPercentile( double percentile ) {
+      long recorded = 0;
+      for( int index = 0; index < BUCKET_COUNT; index++ ) {
+         recorded += buckets.get( index );
+      }
+      if( recorded == 0 ) {
+         return 0;
+      }
+      final long rank = Math.max( 1, ( long )Math.ceil( recorded * percentile / 100 ) );
+      long seen = 0;
+      for( int index = 0; index < BUCKET_COUNT; index++ ) {
+         seen += buckets.get( index );
+         if( seen >= rank ) {
+            return Math.min( highestValueOf( index ), max.get() );
+         }
+      }
+      return max.get();
+   }
+
+   @Override
+   public long getTotalMicros() {
+      return toMicros( total.get() );
+   }
+
+   /** @param nanos Duration to record */
+   public void record( long nanos ) {
+      final long value = Math.min( Math.max( nanos, 0 ), MAX_VALUE );
+      buckets.incrementAndGet( indexOf( value ) );
+      count.incrementAndGet();
+      total.addAndGet( value );
+      long current = max.get();
+      while( value > current && !max.compareAndSet( current, value ) ) {
+         current = max.get();
+      }
+   }
+
+   /** @param start Result of {@link System#nanoTime()} when the operation started */
+   public void recordSince( long start ) {
+      record( System.nanoTime() - start );
+   }
+
+   @Override
+   public void reset() {
+      for( int index = 0; index < BUCKET_COUNT; index++ ) {
+         buckets.set( index, 0 );
+      }
+      count.set( 0 );
+      total.set( 0 );
+      max.set( 0 );
+   }
+
+   @Override
+   public String toString() {
+      return String.format( "LatencyHistogram(count: %s, mean: %.1f us, p99: %s us, max: %s us)", getCount(), getMeanMicros(), getP99Micros(), getMaxMicros() );
+   }
+}
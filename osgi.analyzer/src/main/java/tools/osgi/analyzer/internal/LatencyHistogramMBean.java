@@ -0,0 +1,22 @@
+package tools.osgi.analyzer.internal;
+
+/** Management interface of a {@link LatencyHistogram}; all times are in microseconds */
+public interface LatencyHistogramMBean {
+   long getCount();
+
+   long getMaxMicros();
+
+   double getMeanMicros();
+
+   long getP50Micros();
+
+   long getP90Micros();
+
+   long getP99Micros();
+
+   long getP999Micros();
+
+   long getTotalMicros();
+
+   void reset();
+}
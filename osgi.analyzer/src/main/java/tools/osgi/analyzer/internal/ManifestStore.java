@@ -0,0 +1,366 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageSymbols;
+import tools.osgi.analyzer.api.PackedVersion;
+import tools.osgi.analyzer.api.PackedVersionRange;
+
+/**
+ * Binary store of the compact Import-Package and Export-Package headers of all installed bundles, kept in the data area
+ * of the analyzer bundle so a restarted container does not have to parse the headers of every bundle again.
+ * <p>
+ * The file is read into a heap buffer on open. Only the package name table and the bundle directory are decoded
+ * eagerly; the headers of a bundle are decoded from the buffer the first time they are asked for, and only if the
+ * bundle still has the stored last modified time, symbolic name and version. Stale or missing bundles return
+ * <code>null</code> so the caller parses them. The store is rewritten from {@link BundleManifestCache} on close; the
+ * file is not mapped so it can be replaced on every platform. Stores that can not be read or written are counted in
+ * <code>cache/manifestStore.loadFailures</code> and <code>cache/manifestStore.saveFailures</code>.
+ */
+public class ManifestStore {
+   /** Location of the stored headers of one bundle */
+   private static class StoredBundle {
+      private final int exportOffset;
+      private final int importOffset;
+      private final int keyOffset;
+      private final long lastModified;
+
+      public StoredBundle( long lastModified, int keyOffset, int importOffset, int exportOffset ) {
+         this.lastModified = lastModified;
+         this.keyOffset = keyOffset;
+         this.importOffset = importOffset;
+         this.exportOffset = exportOffset;
+      }
+   }
+
+   private static final String DATA_FILE = "manifest-store.dat";
+   private static final int FLAG_CEILING = 8;
+   private static final int FLAG_CEILING_INCLUSIVE = 4;
+   private static final int FLAG_FLOOR_INCLUSIVE = 2;
+   private static final int FLAG_OPTIONAL = 1;
+   private static final int FORMAT_VERSION = 1;
+   private static final ManifestStore INSTANCE = new ManifestStore();
+   private static final Counter LOAD_FAILURES = AnalyzerMetrics.getInstance().getCounter( "cache", "manifestStore.loadFailures" );
+   private static final Counter SAVE_FAILURES = AnalyzerMetrics.getInstance().getCounter( "cache", "manifestStore.saveFailures" );
+
+   public static ManifestStore getInstance() {
+      return INSTANCE;
+   }
+
+   private static String getRevisionKey( Bundle bundle ) {
+      final BundleRevision revision = bundle.adapt( BundleRevision.class );
+      return revision != null ? String.format( "%s;%s", revision.getSymbolicName(), revision.getVersion() ) : null;
+   }
+
+   private BundleContext bundleContext;
+   private ByteBuffer content;
+   private int[] symbols = new int[0];
+   private final Map<Long, StoredBundle> stored = new HashMap<Long, StoredBundle>();
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            save( bundleContext.getDataFile( DATA_FILE ) );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      release();
+   }
+
+   /**
+    * @param bundle Bundle to get the exports of
+    * @return Stored Export-Package header if the bundle has not changed since it was stored otherwise <code>null</code>
+    */
+   public synchronized PackageHeader getExportPackageHeader( Bundle bundle ) {
+      final StoredBundle entry = getCurrent( bundle );
+      return entry != null ? readExports( entry.exportOffset ) : null;
+   }
+
+   /**
+    * @param bundle Bundle to get the imports of
+    * @return Stored Import-Package header if the bundle has not changed since it was stored otherwise <code>null</code>
+    */
+   public synchronized PackageHeader getImportPackageHeader( Bundle bundle ) {
+      final StoredBundle entry = getCurrent( bundle );
+      return entry != null ? readImports( entry.importOffset ) : null;
+   }
+
+   public boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         final File dataFile = bundleContext.getDataFile( DATA_FILE );
+         if( dataFile != null && dataFile.isFile() ) {
+            load( dataFile );
+         }
+      }
+   }
+
+   /** @return Number of bundles in the opened store */
+   public synchronized int size() {
+      return stored.size();
+   }
+
+   private StoredBundle getCurrent( Bundle bundle ) {
+      final StoredBundle result = content != null ? stored.get( bundle.getBundleId() ) : null;
+      if( result == null || result.lastModified != bundle.getLastModified() ) {
+         return null;
+      }
+      final String key = getRevisionKey( bundle );
+      return key != null && key.equals( readString( result.keyOffset ) ) ? result : null;
+   }
+
+   private void load( File dataFile ) {
+      try {
+         final RandomAccessFile file = new RandomAccessFile( dataFile, "r" );
+         try {
+            final byte[] bytes = new byte[( int )file.length()];
+            file.readFully( bytes );
+            final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+            if( buffer.getInt() != FORMAT_VERSION ) {
+               return;
+            }
+            symbols = new int[buffer.getInt()];
+            for( int index = 0; index < symbols.length; index++ ) {
+               final int length = buffer.getShort() & 0xFFFF;
+               final char[] name = new char[length];
+               buffer.asCharBuffer().get( name );
+               buffer.position( buffer.position() + length * 2 );
+               symbols[index] = PackageSymbols.getInstance().intern( new String( name ) );
+            }
+            final int bundleCount = buffer.getInt();
+            for( int index = 0; index < bundleCount; index++ ) {
+               final long bundleId = buffer.getLong();
+               stored.put( bundleId, new StoredBundle( buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getInt() ) );
+            }
+            content = buffer;
+         }
+         finally {
+            file.close();
+         }
+      }
+      catch( Exception exception ) {
+         // Corrupt or partially written; headers are parsed from the bundles
+         LOAD_FAILURES.increment();
+         release();
+      }
+   }
+
+   private PackageHeader readExports( int offset ) {
+      final ByteBuffer buffer = content.duplicate();
+      buffer.position( offset );
+      final int size = buffer.getInt();
+      final int[] packageSymbols = new int[size];
+      final PackedVersion[] versions = new PackedVersion[size];
+      final boolean[] optional = new boolean[size];
+      final int[] usesIds = new int[size];
+      int[] uses = new int[16];
+      for( int index = 0; index < size; index++ ) {
+         packageSymbols[index] = symbols[buffer.getInt()];
+         versions[index] = readVersion( buffer );
+         final int usesCount = buffer.getInt();
+         if( usesCount > uses.length ) {
+            uses = new int[usesCount];
+         }
+         for( int use = 0; use < usesCount; use++ ) {
+            uses[use] = symbols[buffer.getInt()];
+         }
+         usesIds[index] = PackageSymbols.getInstance().internUses( uses, usesCount );
+      }
+      return new PackageHeader( packageSymbols, null, versions, optional, usesIds, size );
+   }
+
+   private PackageHeader readImports( int offset ) {
+      final ByteBuffer buffer = content.duplicate();
+      buffer.position( offset );
+      final int size = buffer.getInt();
+      final int[] packageSymbols = new int[size];
+      final PackedVersionRange[] versionRanges = new PackedVersionRange[size];
+      final boolean[] optional = new boolean[size];
+      for( int index = 0; index < size; index++ ) {
+         packageSymbols[index] = symbols[buffer.getInt()];
+         final int flags = buffer.get();
+         optional[index] = ( flags & FLAG_OPTIONAL ) != 0;
+         final PackedVersion floor = readVersion( buffer );
+         final PackedVersion ceiling = ( flags & FLAG_CEILING ) != 0 ? readVersion( buffer ) : null;
+         versionRanges[index] = PackedVersionRange.of( floor, ( flags & FLAG_FLOOR_INCLUSIVE ) != 0, ceiling, ( flags & FLAG_CEILING_INCLUSIVE ) != 0 );
+      }
+      return new PackageHeader( packageSymbols, versionRanges, null, optional, new int[size], size );
+   }
+
+   private String readString( int offset ) {
+      final ByteBuffer buffer = content.duplicate();
+      buffer.position( offset );
+      final char[] result = new char[buffer.getShort() & 0xFFFF];
+      buffer.asCharBuffer().get( result );
+      return new String( result );
+   }
+
+   private PackedVersion readVersion( ByteBuffer buffer ) {
+      final int major = buffer.getInt();
+      final int minor = buffer.getInt();
+      final int micro = buffer.getInt();
+      final int qualifierLength = buffer.getShort() & 0xFFFF;
+      if( qualifierLength == 0 ) {
+         return PackedVersion.of( major, minor, micro, "" );
+      }
+      final char[] qualifier = new char[qualifierLength];
+      buffer.asCharBuffer().get( qualifier );
+      buffer.position( buffer.position() + qualifierLength * 2 );
+      return PackedVersion.of( major, minor, micro, new String( qualifier ) );
+   }
+
+   private void release() {
+      content = null;
+      symbols = new int[0];
+      stored.clear();
+   }
+
+   private void save( File dataFile ) {
+      if( dataFile == null ) {
+         return;
+      }
+      try {
+         // Store local package numbers so the file does not depend on the symbols of this session
+         final Map<Integer, Integer> numbers = new HashMap<Integer, Integer>();
+         final ByteArrayOutputStream records = new ByteArrayOutputStream();
+         final DataOutputStream recordOutput = new DataOutputStream( records );
+         final ByteArrayOutputStream directory = new ByteArrayOutputStream();
+         final DataOutputStream directoryOutput = new DataOutputStream( directory );
+         int bundleCount = 0;
+         for( Bundle bundle : bundleContext.getBundles() ) {
+            final String key = getRevisionKey( bundle );
+            if( key == null ) {
+               continue;
+            }
+            final int keyOffset = recordOutput.size();
+            writeString( recordOutput, key );
+            final int importOffset = recordOutput.size();
+            writeImports( recordOutput, BundleManifestCache.getInstance().getImportPackageHeader( bundle ), numbers );
+            final int exportOffset = recordOutput.size();
+            writeExports( recordOutput, BundleManifestCache.getInstance().getExportPackageHeader( bundle ), numbers );
+            directoryOutput.writeLong( bundle.getBundleId() );
+            directoryOutput.writeLong( bundle.getLastModified() );
+            directoryOutput.writeInt( keyOffset );
+            directoryOutput.writeInt( importOffset );
+            directoryOutput.writeInt( exportOffset );
+            bundleCount++;
+         }
+
+         final ByteArrayOutputStream head = new ByteArrayOutputStream();
+         final DataOutputStream headOutput = new DataOutputStream( head );
+         headOutput.writeInt( FORMAT_VERSION );
+         final String[] names = new String[numbers.size()];
+         for( Map.Entry<Integer, Integer> number : numbers.entrySet() ) {
+            names[number.getValue()] = PackageSymbols.getInstance().getName( number.getKey() );
+         }
+         headOutput.writeInt( names.length );
+         for( String name : names ) {
+            writeString( headOutput, name );
+         }
+         headOutput.writeInt( bundleCount );
+         // Record offsets are absolute in the file
+         final int recordsStart = headOutput.size() + directoryOutput.size();
+
+         release();
+         final File temporary = new File( dataFile.getPath() + ".tmp" );
+         final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temporary ) ) );
+         try {
+            head.writeTo( output );
+            final ByteBuffer entries = ByteBuffer.wrap( directory.toByteArray() );
+            for( int index = 0; index < bundleCount; index++ ) {
+               output.writeLong( entries.getLong() );
+               output.writeLong( entries.getLong() );
+               output.writeInt( entries.getInt() + recordsStart );
+               output.writeInt( entries.getInt() + recordsStart );
+               output.writeInt( entries.getInt() + recordsStart );
+            }
+            records.writeTo( output );
+         }
+         finally {
+            output.close();
+         }
+         // Renaming onto an existing file fails on Windows
+         if( !temporary.renameTo( dataFile ) && !( dataFile.delete() && temporary.renameTo( dataFile ) ) ) {
+            temporary.delete();
+            SAVE_FAILURES.increment();
+         }
+      }
+      catch( Exception exception ) {
+         SAVE_FAILURES.increment();
+      }
+   }
+
+   private int toNumber( int symbol, Map<Integer, Integer> numbers ) {
+      Integer result = numbers.get( symbol );
+      if( result == null ) {
+         result = numbers.size();
+         numbers.put( symbol, result );
+      }
+      return result;
+   }
+
+   private void writeExports( DataOutputStream output, PackageHeader exports, Map<Integer, Integer> numbers ) throws IOException {
+      output.writeInt( exports.size() );
+      for( int index = 0; index < exports.size(); index++ ) {
+         output.writeInt( toNumber( exports.getPackageSymbol( index ), numbers ) );
+         writeVersion( output, exports.getVersion( index ) );
+         final int[] uses = exports.getUses( index );
+         output.writeInt( uses.length );
+         for( int use : uses ) {
+            output.writeInt( toNumber( use, numbers ) );
+         }
+      }
+   }
+
+   private void writeImports( DataOutputStream output, PackageHeader imports, Map<Integer, Integer> numbers ) throws IOException {
+      output.writeInt( imports.size() );
+      for( int index = 0; index < imports.size(); index++ ) {
+         final PackedVersionRange range = imports.getVersionRange( index );
+         int flags = imports.isOptional( index ) ? FLAG_OPTIONAL : 0;
+         flags |= range.isFloorInclusive() ? FLAG_FLOOR_INCLUSIVE : 0;
+         flags |= range.isCeilingInclusive() ? FLAG_CEILING_INCLUSIVE : 0;
+         flags |= range.getCeiling() != null ? FLAG_CEILING : 0;
+         output.writeInt( toNumber( imports.getPackageSymbol( index ), numbers ) );
+         output.writeByte( flags );
+         writeVersion( output, range.getFloor() );
+         if( range.getCeiling() != null ) {
+            writeVersion( output, range.getCeiling() );
+         }
+      }
+   }
+
+   private void writeString( DataOutputStream output, String value ) throws IOException {
+      output.writeShort( value.length() );
+      output.writeChars( value );
+   }
+
+   private void writeVersion( DataOutputStream output, PackedVersion packedVersion ) throws IOException {
+      final Version version = packedVersion.getVersion();
+      output.writeInt( version.getMajor() );
+      output.writeInt( version.getMinor() );
+      output.writeInt( version.getMicro() );
+      writeString( output, version.getQualifier() );
+   }
+}
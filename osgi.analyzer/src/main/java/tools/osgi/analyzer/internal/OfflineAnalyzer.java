@@ -0,0 +1,98 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import tools.osgi.analyzer.api.IOsgiAnalyzerService;
+
+/**
+ * Runs the analyzer against a snapshot written by the <code>tools:snapshot</code> command without an OSGi framework:
+ *
+ * <pre>
+ * java -cp osgi.analyzer.jar:&lt;dependencies&gt; tools.osgi.analyzer.internal.OfflineAnalyzer &lt;snapshot&gt; [options]
+ * </pre>
+ *
+ * The options are those of <code>tools:analyze</code> (<code>-m</code>, <code>-u</code>, <code>-r</code>,
+ * <code>-a</code>, <code>-p &lt;threads&gt;</code>) plus <code>-d &lt;bundle&gt;</code> to run <code>tools:diagnose</code>
+ * for a bundle name or id, with <code>-v</code> for verbose output. Without any of them all issues are reported. The
+ * output is the same as the one of the commands in the container the snapshot was taken from.
+ */
+public class OfflineAnalyzer {
+
+   public static void main( String[] args ) throws Exception {
+      String fileName = null;
+      boolean includeMissingDependencies = false;
+      boolean includeUsesConflicts = false;
+      boolean includeRemovalPending = false;
+      boolean includeAll = false;
+      boolean verbose = false;
+      int parallelism = 1;
+      final List<String> diagnose = new ArrayList<String>();
+      for( int index = 0; index < args.length; index++ ) {
+         final String arg = args[index];
+         if( "-m".equals( arg ) || "--missing-dependencies".equals( arg ) ) {
+            includeMissingDependencies = true;
+         }
+         else if( "-u".equals( arg ) || "--use-conflicts".equals( arg ) ) {
+            includeUsesConflicts = true;
+         }
+         else if( "-r".equals( arg ) || "--removal-pending".equals( arg ) ) {
+            includeRemovalPending = true;
+         }
+         else if( "-a".equals( arg ) || "--all".equals( arg ) ) {
+            includeAll = true;
+         }
+         else if( "-v".equals( arg ) || "--verbose".equals( arg ) ) {
+            verbose = true;
+         }
+         else if( ( "-p".equals( arg ) || "--parallelism".equals( arg ) ) && index + 1 < args.length ) {
+            parallelism = Integer.parseInt( args[++index] );
+         }
+         else if( ( "-d".equals( arg ) || "--diagnose".equals( arg ) ) && index + 1 < args.length ) {
+            diagnose.add( args[++index] );
+         }
+         else if( fileName == null && !arg.startsWith( "-" ) ) {
+            fileName = arg;
+         }
+         else {
+            usage( String.format( "Unknown argument: %s", arg ) );
+            return;
+         }
+      }
+      if( fileName == null ) {
+         usage( "No snapshot file given" );
+         return;
+      }
+      if( !includeMissingDependencies && !includeUsesConflicts && !includeRemovalPending && diagnose.isEmpty() ) {
+         includeAll = true;
+      }
+
+      final long start = System.nanoTime();
+      final File file = new File( fileName );
+      final ContainerSnapshot snapshot = ContainerSnapshot.read( file );
+      final OfflineContainer container = new OfflineContainer( snapshot );
+      System.out.println( String.format( "Loaded %s bundles and %s wires from %s in %s ms", snapshot.getBundles().size(), snapshot.getWires().size(), file, ( System.nanoTime() - start ) / 1000000 ) );
+
+      container.open();
+      final InternalOsgiAnalyzerService analyzerService = new InternalOsgiAnalyzerService( container.getBundleContext() );
+      container.addService( IOsgiAnalyzerService.class, analyzerService );
+      try {
+         final OsgiAnalyzerCommandService commands = new OsgiAnalyzerCommandService( container.getBundleContext(), analyzerService );
+         if( includeMissingDependencies || includeUsesConflicts || includeRemovalPending || includeAll ) {
+            commands.analyze( includeMissingDependencies, includeUsesConflicts, includeRemovalPending, includeAll, parallelism );
+         }
+         for( String bundleId : diagnose ) {
+            commands.diagnose( verbose, bundleId );
+         }
+      }
+      finally {
+         container.close();
+      }
+   }
+
+   private static void usage( String problem ) {
+      System.out.println( problem );
+      System.out.println( String.format( "Usage: %s <snapshot> [-m] [-u] [-r] [-a] [-p <threads>] [-d <bundle>]... [-v]", OfflineAnalyzer.class.getName() ) );
+   }
+}
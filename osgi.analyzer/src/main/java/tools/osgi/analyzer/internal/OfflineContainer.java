@@ -0,0 +1,350 @@
+package tools.osgi.analyzer.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+import tools.osgi.analyzer.internal.ContainerSnapshot.BundleRecord;
+import tools.osgi.analyzer.internal.ContainerSnapshot.ExportRecord;
+import tools.osgi.analyzer.internal.ContainerSnapshot.WireRecord;
+
+/**
+ * Read-only container rebuilt from a {@link ContainerSnapshot} so the analyzer can run without a framework. The
+ * framework objects are dynamic proxies answering only the calls the analyzer makes on bundles, revisions, wirings,
+ * wires and the package admin; any other call fails with an {@link UnsupportedOperationException}. Services are
+ * answered from the ones added with {@link #addService(Class, Object)}; the package admin is always available.
+ * <p>
+ * A snapshot only holds the current revision of each bundle. Wires to a wiring that was replaced by a refresh get a
+ * separate, not current, wiring of the provider so stale wires are still reported as such.
+ */
+@SuppressWarnings("deprecation")
+public class OfflineContainer {
+   /** Answer of a proxied method computed from its arguments */
+   private static interface Answer {
+      Object answer( Object[] args );
+   }
+
+   /** Framework objects of one bundle */
+   private static class OfflineBundle {
+      private Bundle bundle;
+      private ExportedPackage[] exportedPackages;
+      private final List<BundleWire> providedWires = new ArrayList<BundleWire>();
+      private final BundleRecord record;
+      private final List<BundleWire> requiredWires = new ArrayList<BundleWire>();
+      private BundleRevision revision;
+      private final List<BundleWire> staleProvidedWires = new ArrayList<BundleWire>();
+      private BundleWiring staleWiring;
+      private BundleWiring wiring;
+
+      public OfflineBundle( BundleRecord record ) {
+         this.record = record;
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private static <T> T proxy( final Class<T> type, final String description, final Map<String, Object> answers ) {
+      return ( T )Proxy.newProxyInstance( OfflineContainer.class.getClassLoader(), new Class<?>[]{ type }, new InvocationHandler() {
+         @Override
+         public Object invoke( Object proxy, Method method, Object[] args ) {
+            final String name = method.getName();
+            if( "equals".equals( name ) && args != null && args.length == 1 ) {
+               return proxy == args[0];
+            }
+            if( "hashCode".equals( name ) && args == null ) {
+               return System.identityHashCode( proxy );
+            }
+            if( "toString".equals( name ) && args == null ) {
+               return description;
+            }
+            if( answers.containsKey( name ) ) {
+               final Object answer = answers.get( name );
+               return answer instanceof Answer ? ( ( Answer )answer ).answer( args ) : answer;
+            }
+            if( method.getReturnType() == void.class ) {
+               return null;
+            }
+            throw new UnsupportedOperationException( String.format( "%s.%s is not supported by an offline container", type.getSimpleName(), name ) );
+         }
+      } );
+   }
+
+   private final BundleContext bundleContext;
+   private final Map<Long, OfflineBundle> bundlesById = new HashMap<Long, OfflineBundle>();
+   private final Bundle[] installedBundles;
+   private final List<Bundle> removalPendingBundles = new ArrayList<Bundle>();
+   private final Map<String, Object> services = new HashMap<String, Object>();
+   private final Map<String, ServiceReference<?>> serviceReferences = new HashMap<String, ServiceReference<?>>();
+
+   public OfflineContainer( ContainerSnapshot snapshot ) {
+      this.bundleContext = createBundleContext();
+      final List<Bundle> installed = new ArrayList<Bundle>();
+      for( BundleRecord record : snapshot.getBundles() ) {
+         final OfflineBundle bundle = new OfflineBundle( record );
+         bundlesById.put( record.getId(), bundle );
+         createFrameworkObjects( bundle );
+         if( record.isInstalled() ) {
+            installed.add( bundle.bundle );
+         }
+         if( record.isRemovalPending() ) {
+            removalPendingBundles.add( bundle.bundle );
+         }
+      }
+      for( WireRecord wire : snapshot.getWires() ) {
+         createWire( wire );
+      }
+      this.installedBundles = installed.toArray( new Bundle[installed.size()] );
+      addService( PackageAdmin.class, createPackageAdmin() );
+   }
+
+   /**
+    * @param type Type the service is looked up with
+    * @param service Service answered by the bundle context of the container
+    */
+   public <T> void addService( Class<T> type, T service ) {
+      services.put( type.getName(), service );
+      serviceReferences.put( type.getName(), proxy( ServiceReference.class, type.getName() + " reference", new HashMap<String, Object>() ) );
+   }
+
+   /** Closes what {@link #open()} opened */
+   public void close() {
+      FrameworkGeneration.getInstance().close();
+      PackageExportIndex.getInstance().close();
+      BundleManifestCache.getInstance().close();
+   }
+
+   public Bundle getBundle( long bundleId ) {
+      final OfflineBundle bundle = bundlesById.get( bundleId );
+      return bundle != null ? bundle.bundle : null;
+   }
+
+   public BundleContext getBundleContext() {
+      return bundleContext;
+   }
+
+   /** @return Installed bundles ordered by bundle id */
+   public Bundle[] getBundles() {
+      return installedBundles.clone();
+   }
+
+   /**
+    * Opens the manifest cache, the package export index and the framework generation on the container in the order the
+    * activator opens them, so analyzer queries are served from the indexes and cached; the container never changes.
+    */
+   public void open() {
+      BundleManifestCache.getInstance().open( bundleContext );
+      PackageExportIndex.getInstance().open( bundleContext );
+      FrameworkGeneration.getInstance().open( bundleContext );
+   }
+
+   private BundleContext createBundleContext() {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundles", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return getBundles();
+         }
+      } );
+      answers.put( "getBundle", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            if( args == null ) {
+               return OfflineContainer.this.getBundle( 0 );
+            }
+            if( args[0] instanceof Long ) {
+               return OfflineContainer.this.getBundle( ( Long )args[0] );
+            }
+            for( Bundle bundle : installedBundles ) {
+               if( bundle.getLocation().equals( args[0] ) ) {
+                  return bundle;
+               }
+            }
+            return null;
+         }
+      } );
+      answers.put( "getServiceReference", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return serviceReferences.get( args[0] instanceof Class ? ( ( Class<?> )args[0] ).getName() : args[0] );
+         }
+      } );
+      answers.put( "getServiceReferences", null );
+      answers.put( "getService", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            for( Map.Entry<String, ServiceReference<?>> reference : serviceReferences.entrySet() ) {
+               if( reference.getValue() == args[0] ) {
+                  return services.get( reference.getKey() );
+               }
+            }
+            return null;
+         }
+      } );
+      answers.put( "ungetService", Boolean.TRUE );
+      answers.put( "getDataFile", null );
+      answers.put( "getProperty", null );
+      return proxy( BundleContext.class, "OfflineContainer", answers );
+   }
+
+   private void createFrameworkObjects( final OfflineBundle offline ) {
+      final BundleRecord record = offline.record;
+      final String description = String.format( "%s(%s)", record.getSymbolicName(), record.getId() );
+      final Version version = Version.parseVersion( record.getVersion() );
+
+      final Map<String, Object> bundleAnswers = new HashMap<String, Object>();
+      bundleAnswers.put( "getBundleId", record.getId() );
+      bundleAnswers.put( "getSymbolicName", record.getSymbolicName() );
+      bundleAnswers.put( "getVersion", version );
+      bundleAnswers.put( "getLocation", record.getLocation() );
+      bundleAnswers.put( "getState", record.getState() );
+      bundleAnswers.put( "getLastModified", record.getLastModified() );
+      bundleAnswers.put( "getHeaders", new Hashtable<String, String>( record.getHeaders() ) );
+      bundleAnswers.put( "getBundleContext", bundleContext );
+      bundleAnswers.put( "compareTo", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final long other = ( ( Bundle )args[0] ).getBundleId();
+            return record.getId() < other ? -1 : record.getId() == other ? 0 : 1;
+         }
+      } );
+      bundleAnswers.put( "loadClass", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            throw new UnsupportedOperationException( String.format( "Bundle.loadClass( %s ) is not supported by an offline container", args[0] ) );
+         }
+      } );
+      bundleAnswers.put( "adapt", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final Object type = args[0];
+            if( BundleWiring.class.equals( type ) ) {
+               return offline.wiring;
+            }
+            if( BundleRevision.class.equals( type ) ) {
+               return offline.revision;
+            }
+            if( FrameworkWiring.class.equals( type ) && record.getId() == 0 ) {
+               return createFrameworkWiring();
+            }
+            return null;
+         }
+      } );
+      offline.bundle = proxy( Bundle.class, description, bundleAnswers );
+
+      final Map<String, Object> revisionAnswers = new HashMap<String, Object>();
+      revisionAnswers.put( "getBundle", offline.bundle );
+      revisionAnswers.put( "getSymbolicName", record.getSymbolicName() );
+      revisionAnswers.put( "getVersion", version );
+      revisionAnswers.put( "getTypes", record.getTypes() );
+      offline.revision = proxy( BundleRevision.class, description, revisionAnswers );
+
+      if( record.isWired() ) {
+         offline.wiring = createWiring( offline, description, record.isWiringCurrent(), record.isWiringInUse(), offline.requiredWires, offline.providedWires );
+      }
+
+      final List<ExportRecord> exports = record.getExports();
+      offline.exportedPackages = new ExportedPackage[exports.size()];
+      for( int index = 0; index < exports.size(); index++ ) {
+         final ExportRecord export = exports.get( index );
+         final Map<String, Object> exportAnswers = new HashMap<String, Object>();
+         exportAnswers.put( "getName", export.getPackageName() );
+         exportAnswers.put( "getVersion", Version.parseVersion( export.getVersion() ) );
+         exportAnswers.put( "getExportingBundle", offline.bundle );
+         exportAnswers.put( "isRemovalPending", export.isRemovalPending() );
+         offline.exportedPackages[index] = proxy( ExportedPackage.class, export.getPackageName(), exportAnswers );
+      }
+   }
+
+   private FrameworkWiring createFrameworkWiring() {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundle", getBundle( 0 ) );
+      answers.put( "getRemovalPendingBundles", Collections.unmodifiableList( removalPendingBundles ) );
+      return proxy( FrameworkWiring.class, "OfflineContainer wiring", answers );
+   }
+
+   private PackageAdmin createPackageAdmin() {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getExportedPackages", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            if( !( args[0] instanceof Bundle ) ) {
+               return null;
+            }
+            final OfflineBundle bundle = bundlesById.get( ( ( Bundle )args[0] ).getBundleId() );
+            return bundle != null && bundle.exportedPackages.length > 0 ? bundle.exportedPackages.clone() : null;
+         }
+      } );
+      return proxy( PackageAdmin.class, "OfflineContainer PackageAdmin", answers );
+   }
+
+   private void createWire( WireRecord record ) {
+      final OfflineBundle requirer = bundlesById.get( record.getRequirerId() );
+      final OfflineBundle provider = bundlesById.get( record.getProviderId() );
+      if( requirer == null || provider == null || requirer.wiring == null ) {
+         return;
+      }
+      final BundleWiring providerWiring;
+      final List<BundleWire> providedWires;
+      if( record.isProviderWiringCurrent() || provider.wiring == null ) {
+         if( provider.wiring == null ) {
+            provider.wiring = createWiring( provider, provider.bundle.toString(), true, true, provider.requiredWires, provider.providedWires );
+         }
+         providerWiring = provider.wiring;
+         providedWires = provider.providedWires;
+      }
+      else {
+         if( provider.staleWiring == null ) {
+            provider.staleWiring = createWiring( provider, provider.bundle.toString(), false, true, Collections.<BundleWire>emptyList(), provider.staleProvidedWires );
+         }
+         providerWiring = provider.staleWiring;
+         providedWires = provider.staleProvidedWires;
+      }
+
+      final Map<String, Object> capabilityAnswers = new HashMap<String, Object>();
+      capabilityAnswers.put( "getNamespace", BundleRevision.PACKAGE_NAMESPACE );
+      capabilityAnswers.put( "getAttributes", Collections.unmodifiableMap( record.getAttributes() ) );
+      capabilityAnswers.put( "getDirectives", Collections.unmodifiableMap( record.getDirectives() ) );
+      capabilityAnswers.put( "getRevision", provider.revision );
+      final BundleCapability capability = proxy( BundleCapability.class, record.getPackageName(), capabilityAnswers );
+
+      final Map<String, Object> wireAnswers = new HashMap<String, Object>();
+      wireAnswers.put( "getCapability", capability );
+      wireAnswers.put( "getProvider", provider.revision );
+      wireAnswers.put( "getProviderWiring", providerWiring );
+      wireAnswers.put( "getRequirer", requirer.revision );
+      wireAnswers.put( "getRequirerWiring", requirer.wiring );
+      final BundleWire wire = proxy( BundleWire.class, String.format( "%s -> %s: %s", record.getRequirerId(), record.getProviderId(), record.getPackageName() ), wireAnswers );
+      requirer.requiredWires.add( wire );
+      providedWires.add( wire );
+   }
+
+   /** @param requiredWires Wires of the wiring; the snapshot does not keep the wires of a replaced wiring */
+   private BundleWiring createWiring( OfflineBundle offline, String description, boolean current, boolean inUse, List<BundleWire> requiredWires, List<BundleWire> providedWires ) {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundle", offline.bundle );
+      answers.put( "getRevision", offline.revision );
+      answers.put( "isCurrent", current );
+      answers.put( "isInUse", inUse );
+      answers.put( "getRequiredWires", Collections.unmodifiableList( requiredWires ) );
+      answers.put( "getProvidedWires", Collections.unmodifiableList( providedWires ) );
+      answers.put( "getClassLoader", null );
+      return proxy( BundleWiring.class, description, answers );
+   }
+}
@@ -0,0 +1,921 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Parameter;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.AbstractApplicationContext;
+
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.IOsgiAnalyzerService;
+import tools.osgi.analyzer.api.MissingImport;
+import tools.osgi.analyzer.api.MissingOptionalImportReasonType;
+import tools.osgi.analyzer.api.ResolutionReport;
+import tools.osgi.analyzer.api.ThrowableDiagnosis;
+import tools.osgi.analyzer.api.UsesConflict;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestion;
+import tools.osgi.analyzer.api.UsesConflictType;
+
+// install -start assembly:/home/developer/git/osgi-tools/osgi.analyzer/bin/maven/classes
+
+public class OsgiAnalyzerCommandService {
+   private static final LatencyHistogram ALLOCATIONS_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "allocations" );
+   private static final LatencyHistogram ANALYZE_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "analyze" );
+   private static final LatencyHistogram CLASS_LOADING_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "class_loading" );
+   private static final LatencyHistogram CPU_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "cpu" );
+   private static final LatencyHistogram DIAGNOSE_CLASS_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "diagnose_class" );
+   private static final LatencyHistogram DIAGNOSE_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "diagnose" );
+   private static final LatencyHistogram INSPECT_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "inspect" );
+   private static final LatencyHistogram LEAKS_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "leaks" );
+   private static final LatencyHistogram SLOW_STARTS_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "slow_starts" );
+   private static final LatencyHistogram SNAPSHOT_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "snapshot" );
+   private static final LatencyHistogram STARTUP_COMMAND = AnalyzerMetrics.getInstance().getHistogram( "command", "startup" );
+
+   private final IOsgiAnalyzerService analyzerService;
+   private BundleContext bundleContext;
+
+   /**
+    * @param bundleContext Context of the analyzer bundle
+    * @param analyzerService Service the commands run their analyses with
+    */
+   public OsgiAnalyzerCommandService( BundleContext bundleContext, IOsgiAnalyzerService analyzerService ) {
+      this.bundleContext = bundleContext;
+      this.analyzerService = analyzerService;
+   }
+
+   @Descriptor("Reports the allocation rate of the bundles in MB/s for each of the most recent sampling windows")
+   public void allocations(
+         @Descriptor("Number of the most recent windows reported, the current one last") @Parameter(
+               names = { "-w", "--windows" },
+               absentValue = "5") int windowCount,
+         @Descriptor("Number of bundles listed") @Parameter(
+               names = { "-n", "--count" },
+               absentValue = "10") int count
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final CpuSampler sampler = CpuSampler.getInstance();
+         final List<CpuSampler.CpuProfile> windows = sampler.getWindows( windowCount );
+         final CpuSampler.CpuProfile profile = sampler.getProfile( windowCount );
+         System.out.println( String.format( "Sampling %s, windows of %s s, %s MB allocated in %s ms", sampler.isSampling() ? "running" : "stopped", sampler.getWindowNanos() / 1000000000, toMegabytes( profile.getAllocatedBytes() ), toMillis( profile.getDurationNanos() ) ) );
+         if( profile.getAllocatedBytes() == 0 ) {
+            System.out.println( "No allocations were sampled; they are only measured on HotSpot JVMs" );
+            return;
+         }
+         final StringBuilder formatBuilder = new StringBuilder( "| %1$-35s|%2$10s |" );
+         final Object[] headers = new Object[windows.size() + 2];
+         headers[0] = "Bundle";
+         headers[1] = "Bundle ID";
+         for( int index = 0; index < windows.size(); index++ ) {
+            formatBuilder.append( String.format( "%%%s$10s |", index + 3 ) );
+            headers[index + 2] = index == windows.size() - 1 ? "now MB/s" : String.format( "%s MB/s", index - windows.size() + 1 );
+         }
+         final String format = formatBuilder.toString();
+         final String line = new String( new char[String.format( format, headers ).length()] ).replace( "\0", "-" );
+         System.out.println( line );
+         System.out.println( String.format( format, headers ) );
+         System.out.println( line );
+         final List<CpuSampler.BundleCpu> bundles = profile.getBundles();
+         Collections.sort( bundles, new Comparator<CpuSampler.BundleCpu>() {
+            @Override
+            public int compare( CpuSampler.BundleCpu b1, CpuSampler.BundleCpu b2 ) {
+               return Long.valueOf( b2.getAllocatedBytes() ).compareTo( b1.getAllocatedBytes() );
+            }
+         } );
+         for( CpuSampler.BundleCpu bundleCpu : bundles.subList( 0, Math.min( count, bundles.size() ) ) ) {
+            final Bundle bundle = bundleContext.getBundle( bundleCpu.getBundleId() );
+            final String bundleNameRaw = bundle != null ? String.valueOf( bundle.getSymbolicName() ) : "[UNINSTALLED]";
+            final Object[] values = new Object[windows.size() + 2];
+            values[0] = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+            values[1] = bundleCpu.getBundleId();
+            for( int index = 0; index < windows.size(); index++ ) {
+               final CpuSampler.BundleCpu windowCpu = windows.get( index ).findBundle( bundleCpu.getBundleId() );
+               values[index + 2] = toRate( windowCpu != null ? windowCpu.getAllocatedBytes() : 0, windows.get( index ).getDurationNanos() );
+            }
+            System.out.println( String.format( format, values ) );
+         }
+         System.out.println( line );
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( "Error reporting the allocation rates", exception );
+      }
+      finally {
+         ALLOCATIONS_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Analyzes the state of the OSGi container")
+   public void analyze(
+         @Descriptor("Find all bundles with missing dependencies") @Parameter(
+               names = { "-m", "--missing-dependencies" },
+               presentValue = "true",
+               absentValue = "false") boolean includeMissingDependencies,
+         @Descriptor("Find all bundles with uses conflicts") @Parameter(
+               names = { "-u", "--use-conflicts" },
+               presentValue = "true",
+               absentValue = "false") boolean includeUsesConflicts,
+         @Descriptor("Removal Pending bundles") @Parameter(
+               names = { "-r", "--removal-pending" },
+               presentValue = "true",
+               absentValue = "false") boolean includeRemovalPending,
+         @Descriptor("Find all issues with bundles") @Parameter(
+               names = { "-a", "--all" },
+               presentValue = "true",
+               absentValue = "false") boolean includeAll,
+         @Descriptor("Number of threads used to check bundles; 0 uses one per processor") @Parameter(
+               names = { "-p", "--parallelism" },
+               absentValue = "1") int parallelism
+         ) {
+      final long start = System.nanoTime();
+      try {
+         if( includeMissingDependencies || includeAll ) {
+            printBundlesWithMissingDependencies( parallelism );
+         }
+         if( includeUsesConflicts || includeAll ) {
+            printBundlesWithUsesConflicts( parallelism );
+         }
+         if( includeRemovalPending || includeAll ) {
+            printBundlesThatAreRemovalPending();
+         }
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( String.format( "Error analyzing OSGi container" ), exception );
+      }
+      finally {
+         ANALYZE_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Reports the bundles defining the most classes or failing the most dynamic import lookups")
+   public void class_loading(
+         @Descriptor("Order of the report: classes, bytes, define or notfound") @Parameter(
+               names = { "-s", "--sort" },
+               absentValue = "classes") final String sort,
+         @Descriptor("Number of bundles listed") @Parameter(
+               names = { "-n", "--count" },
+               absentValue = "10") int count
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final ClassLoadingTracer tracer = ClassLoadingTracer.getInstance();
+         final List<ClassLoadingTracer.BundleClassLoading> loadings = tracer.getClassLoadings();
+         long classes = 0;
+         long notFound = 0;
+         for( ClassLoadingTracer.BundleClassLoading loading : loadings ) {
+            classes += loading.getClasses();
+            notFound += loading.getNotFound();
+         }
+         System.out.println( String.format( "%s classes defined, %s dynamic import lookups without provider, %s classes failed to trace; define times %s", classes, notFound, tracer.getWeaveFailures(), tracer.isTimingDefines() ? "measured" : "not reported by the framework" ) );
+         Collections.sort( loadings, new Comparator<ClassLoadingTracer.BundleClassLoading>() {
+            @Override
+            public int compare( ClassLoadingTracer.BundleClassLoading l1, ClassLoadingTracer.BundleClassLoading l2 ) {
+               if( "bytes".equals( sort ) ) {
+                  return Long.valueOf( l2.getBytes() ).compareTo( l1.getBytes() );
+               }
+               else if( "define".equals( sort ) ) {
+                  return Long.valueOf( l2.getDefineMicros() ).compareTo( l1.getDefineMicros() );
+               }
+               else if( "notfound".equals( sort ) ) {
+                  return Long.valueOf( l2.getNotFound() ).compareTo( l1.getNotFound() );
+               }
+               return Long.valueOf( l2.getClasses() ).compareTo( l1.getClasses() );
+            }
+         } );
+         final String format = "| %1$-35s|%2$10s |%3$9s |%4$10s |%5$11s |%6$8s |%7$13s |%8$10s |";
+         final String line = new String( new char[String.format( format, "", "", "", "", "", "", "", "" ).length()] ).replace( "\0", "-" );
+         System.out.println( line );
+         System.out.println( String.format( format, "Bundle", "Bundle ID", "Classes", "KB", "Define ms", "Wirings", "Dyn. Lookups", "Not Found" ) );
+         System.out.println( line );
+         for( ClassLoadingTracer.BundleClassLoading loading : loadings.subList( 0, Math.min( count, loadings.size() ) ) ) {
+            final String bundleNameRaw = String.valueOf( loading.getBundle().getSymbolicName() );
+            final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+            final String defineMillis = tracer.isTimingDefines() ? String.format( "%.1f", loading.getDefineMicros() / 1000.0 ) : "";
+            System.out.println( String.format( format, bundleName, loading.getBundle().getBundleId(), loading.getClasses(), loading.getBytes() / 1024, defineMillis, loading.getWirings(), loading.getDynamicLookups(), loading.getNotFound() ) );
+         }
+         System.out.println( line );
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( "Error reporting the class loading", exception );
+      }
+      finally {
+         CLASS_LOADING_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Reports the CPU time of the container per bundle as sampled from the thread stacks")
+   public void cpu(
+         @Descriptor("Start sampling") @Parameter(
+               names = { "--start" },
+               presentValue = "true",
+               absentValue = "false") boolean startSampling,
+         @Descriptor("Stop sampling") @Parameter(
+               names = { "--stop" },
+               presentValue = "true",
+               absentValue = "false") boolean stopSampling,
+         @Descriptor("Bundle name or ID whose CPU time is broken down by package") @Parameter(
+               names = { "-b", "--bundle" },
+               absentValue = "") String bundleId,
+         @Descriptor("Number of the most recent windows reported") @Parameter(
+               names = { "-w", "--windows" },
+               absentValue = "1") int windows,
+         @Descriptor("Number of bundles or packages listed") @Parameter(
+               names = { "-n", "--count" },
+               absentValue = "10") int count
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final CpuSampler sampler = CpuSampler.getInstance();
+         if( startSampling ) {
+            sampler.start();
+         }
+         if( stopSampling ) {
+            sampler.stop();
+         }
+         final CpuSampler.CpuProfile profile = sampler.getProfile( windows );
+         System.out.println( String.format( "Sampling %s, %s samples over %s ms, %s ms CPU time, sampler overhead %s%%", sampler.isSampling() ? "running" : "stopped", profile.getSamples(), toMillis( profile.getDurationNanos() ), toMillis( profile.getTotalNanos() ), toPercent( profile.getSamplingNanos(), profile.getDurationNanos() ) ) );
+         if( profile.getTotalNanos() == 0 ) {
+            return;
+         }
+         if( !bundleId.isEmpty() ) {
+            final Bundle bundle = BundleUtils.getBundleByNameOrId( bundleContext, bundleId );
+            if( bundle == null ) {
+               throw new IllegalArgumentException( String.format( "No bundle could be found for %s", bundleId ) );
+            }
+            for( CpuSampler.BundleCpu bundleCpu : profile.getBundles() ) {
+               if( bundleCpu.getBundleId() == bundle.getBundleId() ) {
+                  System.out.println( String.format( "%s(%s) self %s%%, total %s%%", bundle.getSymbolicName(), bundle.getBundleId(), toPercent( bundleCpu.getSelfNanos(), profile.getTotalNanos() ), toPercent( bundleCpu.getTotalNanos(), profile.getTotalNanos() ) ) );
+                  final List<Map.Entry<String, Long>> packages = bundleCpu.getPackages();
+                  for( Map.Entry<String, Long> entry : packages.subList( 0, Math.min( count, packages.size() ) ) ) {
+                     System.out.println( String.format( "   %6s%%  %s", toPercent( entry.getValue(), profile.getTotalNanos() ), entry.getKey() ) );
+                  }
+               }
+            }
+            return;
+         }
+         final String format = "| %1$-35s|%2$10s |%3$8s |%4$8s | %5$-40s |";
+         final String line = new String( new char[String.format( format, "", "", "", "", "" ).length()] ).replace( "\0", "-" );
+         System.out.println( line );
+         System.out.println( String.format( format, "Bundle", "Bundle ID", "Self %", "Total %", "Hottest Package" ) );
+         System.out.println( line );
+         final List<CpuSampler.BundleCpu> bundles = profile.getBundles();
+         for( CpuSampler.BundleCpu bundleCpu : bundles.subList( 0, Math.min( count, bundles.size() ) ) ) {
+            final Bundle bundle = bundleContext.getBundle( bundleCpu.getBundleId() );
+            final String bundleNameRaw = bundle != null ? String.valueOf( bundle.getSymbolicName() ) : "[UNINSTALLED]";
+            final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+            final List<Map.Entry<String, Long>> packages = bundleCpu.getPackages();
+            final String packageNameRaw = !packages.isEmpty() ? packages.get( 0 ).getKey() : "";
+            final String packageName = packageNameRaw.substring( 0, Math.min( 40, packageNameRaw.length() ) );
+            System.out.println( String.format( format, bundleName, bundleCpu.getBundleId(), toPercent( bundleCpu.getSelfNanos(), profile.getTotalNanos() ), toPercent( bundleCpu.getTotalNanos(), profile.getTotalNanos() ), packageName ) );
+         }
+         System.out.println( line );
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( "Error reporting the CPU profile", exception );
+      }
+      finally {
+         CPU_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Diagnoses issues with a specified bundle")
+   public void diagnose(
+         @Descriptor("Print verbose messages") @Parameter(
+               names = { "-v", "--verbose" },
+               presentValue = "true",
+               absentValue = "false") boolean verbose,
+         @Descriptor("Bundle ID to diagnose issues") String bundleId
+         ) {
+      final long start = System.nanoTime();
+      try {
+         // Get Bundle
+         final Bundle bundle = BundleUtils.getBundleByNameOrId( bundleContext, bundleId );
+         if( bundle == null ) {
+            throw new IllegalArgumentException( String.format( "No bundle could be found for %s", bundleId ) );
+         }
+
+         // Print
+         System.out.println( "Bundle: " + bundle );
+         printResolution( bundle );
+         printUnresolvedImports( bundle, verbose );
+         printUsesConflicts( bundle, verbose );
+         printThrowableDiagnoses( bundle, verbose );
+      }
+      catch( Throwable exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( String.format( "Error diagnosing bundle: %s", bundleId ), exception );
+      }
+      finally {
+         DIAGNOSE_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Diagnoses potential issues with class")
+   public void diagnose_class(
+         @Descriptor("Verbose output of diagnosis") @Parameter(
+               names = { "-v", "--verbose" },
+               presentValue = "true",
+               absentValue = "false") boolean verbose,
+         @Descriptor("Class name that got NoClassDefFoundError") String className
+         ) {
+      final long start = System.nanoTime();
+      try {
+         System.out.println( "Class: " + className );
+         final List<Bundle> bundles = getOsgiAnalyzerService().getBundleForClassName( className );
+         final List<Bundle> success = new ArrayList<Bundle>();
+         final List<Bundle> failure = new ArrayList<Bundle>();
+         if( !bundles.isEmpty() ) {
+            for( Bundle sourceBundle : bundles ) {
+               System.out.println( String.format( "Providing Bundle: %s(%s)", sourceBundle.getSymbolicName(), sourceBundle.getBundleId() ) );
+               for( Bundle refBundle : getOsgiAnalyzerService().getDependentBundles( sourceBundle ) ) {
+                  final BundleWiring wiring = refBundle.adapt( BundleWiring.class );
+                  @SuppressWarnings("unused")
+                  final ClassLoader loader = wiring != null ? wiring.getClassLoader() : null;
+                  try {
+                     refBundle.loadClass( className );
+                     success.add( refBundle );
+                  }
+                  catch( Exception exception ) {
+                     failure.add( refBundle );
+                     if( verbose ) {
+                        exception.printStackTrace();
+                     }
+
+                     if( wiring != null ) {
+                        //                     wiring.getClassLoader().get
+                     }
+
+                  }
+               }
+            }
+         }
+         else {
+            System.out.println( String.format( "No Providing Bundles Found for: %s", className ) );
+         }
+
+         // Print
+         final String line = "==========================================================";
+         if( !success.isEmpty() ) {
+            System.out.println( "" );
+            System.out.println( "Successful" );
+            System.out.println( line );
+            for( Bundle refBundle : success ) {
+               final BundleWiring wiring = refBundle.adapt( BundleWiring.class );
+               final ClassLoader loader = wiring != null ? wiring.getClassLoader() : null;
+               System.out.println( String.format( "  %s(%s) successfully loaded class with classloader: %s", refBundle.getSymbolicName(), refBundle.getBundleId(), loader ) );
+            }
+         }
+         if( !failure.isEmpty() ) {
+            System.out.println( "" );
+            System.out.println( "Failure" );
+            System.out.println( line );
+            for( Bundle refBundle : failure ) {
+               final BundleWiring wiring = refBundle.adapt( BundleWiring.class );
+               final ClassLoader loader = wiring != null ? wiring.getClassLoader() : null;
+               System.out.println( String.format( "  %s(%s) failed to load class with classloader, %s", refBundle.getSymbolicName(), refBundle.getBundleId(), loader ) );
+            }
+            System.out.println( "" );
+         }
+
+         //         // Removal Pending
+         //         final FrameworkWiring fw = bundleContext.getBundle( 0 ).adapt( FrameworkWiring.class );
+         //         for( Bundle removalPending : fw.getRemovalPendingBundles() ) {
+         //            System.out.println( String.format( "Removal Pending: %s(%s)", removalPending.getSymbolicName(), removalPending.getBundleId() ) );
+         //         }
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( String.format( "Error diagnosing NoClassDefFoundError for class: %s", className ), exception );
+      }
+      finally {
+         DIAGNOSE_CLASS_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Inspects aspects of a given bundle")
+   public void inspect(
+         @Descriptor("Print verbose messages") @Parameter(
+               names = { "-v", "--verbose" },
+               presentValue = "true",
+               absentValue = "false") boolean verbose,
+         @Descriptor("Bundle ID to diagnose issues") String bundleId
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final Bundle bundle = BundleUtils.getBundleByNameOrId( bundleContext, bundleId );
+         if( bundle == null ) {
+            throw new IllegalArgumentException( String.format( "No bundle could be found for %s", bundleId ) );
+         }
+
+         final String line = "======================================================";
+         final String subline = "------------------------------------------------------";
+         System.out.println( "" );
+         System.out.println( String.format( "%s(%s)", bundle.getSymbolicName(), bundle.getBundleId() ) );
+         System.out.println( line );
+         System.out.println( String.format( "Application Context" ) );
+         System.out.println( subline );
+         final ApplicationContext applicationContext = getBundleApplicationContext( bundle );
+
+         if( applicationContext instanceof AbstractApplicationContext ) {
+            @SuppressWarnings("resource")
+            final AbstractApplicationContext applicationContext2 = ( AbstractApplicationContext )applicationContext;
+            System.out.println( String.format( "Active: %s", applicationContext2.isActive() ) );
+         }
+
+         if( applicationContext != null ) {
+            for( String beanName : applicationContext.getBeanDefinitionNames() ) {
+               System.out.println( beanName );
+            }
+         }
+         else {
+            System.out.println( "[NO APPLICATION CONTEXT FOUND]" );
+         }
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( String.format( "Error inspecting bundle: %s", bundleId ), exception );
+      }
+      finally {
+         INSPECT_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Reports the class loaders of refreshed, updated or uninstalled bundles that are still reachable")
+   public void leaks(
+         @Descriptor("Skip the garbage collection run first; loaders not yet collected are reported as well") @Parameter(
+               names = { "-q", "--no-gc" },
+               presentValue = "true",
+               absentValue = "false") boolean skipCollection,
+         @Descriptor("Also search the static fields of the loaded classes of the current bundles") @Parameter(
+               names = { "-s", "--statics" },
+               presentValue = "true",
+               absentValue = "false") boolean searchStatics
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final ClassLoaderLeakDetector detector = ClassLoaderLeakDetector.getInstance();
+         final List<ClassLoaderLeakDetector.LeakedLoader> leaks = detector.findLeaks( !skipCollection, searchStatics );
+         System.out.println( String.format( "%s class loaders tracked, %s no longer in use but still reachable", detector.size(), leaks.size() ) );
+         if( !leaks.isEmpty() ) {
+            final String format = "| %1$-35s|%2$10s |%3$20s |%4$12s |%5$10s |";
+            final String line = new String( new char[String.format( format, "", "", "", "", "" ).length()] ).replace( "\0", "-" );
+            System.out.println( line );
+            System.out.println( String.format( format, "Bundle", "Bundle ID", "Version", "Uninstalled", "Refreshes" ) );
+            System.out.println( line );
+            for( ClassLoaderLeakDetector.LeakedLoader leak : leaks ) {
+               final String bundleNameRaw = String.valueOf( leak.getSymbolicName() );
+               final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+               System.out.println( String.format( format, bundleName, leak.getBundleId(), leak.getVersion(), leak.isUninstalled(), leak.getRefreshes() ) );
+               for( String culprit : leak.getCulprits() ) {
+                  System.out.println( String.format( "|    %s", culprit ) );
+               }
+            }
+            System.out.println( line );
+         }
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( "Error searching leaked class loaders", exception );
+      }
+      finally {
+         LEAKS_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Reports the bundles which took long to start and where their start spent its time")
+   public void slow_starts(
+         @Descriptor("Bundle name or ID whose sampled stacks are printed; all slow starts are listed if absent") @Parameter(
+               names = { "-b", "--bundle" },
+               absentValue = "") String bundleId,
+         @Descriptor("Print the stacks of the bundle in the folded format of flame graph tools") @Parameter(
+               names = { "-f", "--folded" },
+               presentValue = "true",
+               absentValue = "false") boolean folded,
+         @Descriptor("Number of frames and stacks listed") @Parameter(
+               names = { "-n", "--count" },
+               absentValue = "10") int count
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final ActivationSampler sampler = ActivationSampler.getInstance();
+         if( bundleId.isEmpty() ) {
+            final List<ActivationSampler.SlowStart> slowStarts = sampler.getSlowStarts();
+            System.out.println( String.format( "%s bundles took at least %s ms to start", slowStarts.size(), toMillis( sampler.getThresholdNanos() ) ) );
+            final String format = "| %1$-35s|%2$10s |%3$12s |%4$10s |%5$8s |";
+            final String line = new String( new char[String.format( format, "", "", "", "", "" ).length()] ).replace( "\0", "-" );
+            System.out.println( line );
+            System.out.println( String.format( format, "Bundle", "Bundle ID", "Start ms", "Samples", "Failed" ) );
+            System.out.println( line );
+            for( ActivationSampler.SlowStart slowStart : slowStarts ) {
+               final String bundleNameRaw = String.valueOf( slowStart.getBundle().getSymbolicName() );
+               final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+               System.out.println( String.format( format, bundleName, slowStart.getBundle().getBundleId(), toMillis( slowStart.getDurationNanos() ), slowStart.getSamples(), slowStart.isFailed() ) );
+            }
+            System.out.println( line );
+            return;
+         }
+         final Bundle bundle = BundleUtils.getBundleByNameOrId( bundleContext, bundleId );
+         if( bundle == null ) {
+            throw new IllegalArgumentException( String.format( "No bundle could be found for %s", bundleId ) );
+         }
+         final ActivationSampler.SlowStart slowStart = sampler.getSlowStart( bundle.getBundleId() );
+         if( slowStart == null ) {
+            System.out.println( String.format( "The last start of %s(%s) was not slow or was not sampled", bundle.getSymbolicName(), bundle.getBundleId() ) );
+            return;
+         }
+         if( folded ) {
+            for( Map.Entry<String, Integer> entry : slowStart.getFoldedStacks().entrySet() ) {
+               System.out.println( String.format( "%s %s", entry.getKey(), entry.getValue() ) );
+            }
+            return;
+         }
+         System.out.println( String.format( "%s(%s) %s after %s ms, %s samples", slowStart.getBundle().getSymbolicName(), slowStart.getBundle().getBundleId(), slowStart.isFailed() ? "failed" : "started", toMillis( slowStart.getDurationNanos() ), slowStart.getSamples() ) );
+         System.out.println( "" );
+         System.out.println( "Hottest Frames" );
+         for( Map.Entry<String, Integer> entry : slowStart.getHotFrames( count ) ) {
+            System.out.println( String.format( "   %6s  %s", entry.getValue(), entry.getKey() ) );
+         }
+         System.out.println( "" );
+         System.out.println( "Hottest Stacks" );
+         for( Map.Entry<String, Integer> entry : slowStart.getHotStacks( count ) ) {
+            System.out.println( String.format( "   %s samples", entry.getValue() ) );
+            final String[] frames = entry.getKey().split( ";" );
+            for( int index = frames.length - 1; index >= 0; index-- ) {
+               System.out.println( String.format( "      %s", frames[index] ) );
+            }
+         }
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( String.format( "Error reporting slow starts: %s", bundleId ), exception );
+      }
+      finally {
+         SLOW_STARTS_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Writes the bundles, headers, revisions and wires of the container to a file for offline analysis")
+   public void snapshot(
+         @Descriptor("File to write the snapshot to") String fileName
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final File file = new File( fileName ).getAbsoluteFile();
+         final ContainerSnapshot snapshot = ContainerSnapshot.capture( bundleContext );
+         snapshot.write( file );
+         System.out.println( String.format( "Wrote %s bundles and %s wires to %s (%s bytes) in %s ms", snapshot.getBundles().size(), snapshot.getWires().size(), file, file.length(), ( System.nanoTime() - start ) / 1000000 ) );
+         System.out.println( String.format( "Analyze with: java -cp <analyzer and dependencies> %s %s", OfflineAnalyzer.class.getName(), file ) );
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( String.format( "Error writing snapshot: %s", fileName ), exception );
+      }
+      finally {
+         SNAPSHOT_COMMAND.recordSince( start );
+      }
+   }
+
+   @Descriptor("Reports the slowest bundle activators, service availability and the critical path of the startup")
+   public void startup(
+         @Descriptor("Number of bundles listed per section") @Parameter(
+               names = { "-n", "--count" },
+               absentValue = "10") int count
+         ) {
+      final long start = System.nanoTime();
+      try {
+         final StartupProfiler profiler = StartupProfiler.getInstance();
+         final List<StartupProfiler.BundleStartup> startups = profiler.getStartups();
+         long first = 0;
+         long last = 0;
+         for( StartupProfiler.BundleStartup startup : startups ) {
+            if( startup.getStarting() != 0 && ( first == 0 || startup.getStarting() < first ) ) {
+               first = startup.getStarting();
+            }
+            last = Math.max( last, Math.max( startup.getStarted(), startup.getFirstService() ) );
+         }
+         if( first == 0 ) {
+            System.out.println( "No bundle was started since the analyzer started; give the analyzer a lower start level to profile the container start" );
+            return;
+         }
+         final long end = profiler.getFrameworkStarted() != 0 ? Math.max( last, profiler.getFrameworkStarted() ) : last;
+         System.out.println( String.format( "Profiled %s bundles, %s ms from the first STARTING to %s", startups.size(), toMillis( end - first ), profiler.getFrameworkStarted() != 0 ? "framework STARTED" : "the last STARTED or service registration" ) );
+
+         final List<StartupProfiler.BundleStartup> activators = new ArrayList<StartupProfiler.BundleStartup>( startups );
+         Collections.sort( activators, new Comparator<StartupProfiler.BundleStartup>() {
+            @Override
+            public int compare( StartupProfiler.BundleStartup s1, StartupProfiler.BundleStartup s2 ) {
+               return Long.valueOf( s2.getActivationNanos() ).compareTo( s1.getActivationNanos() );
+            }
+         } );
+         System.out.println( "" );
+         System.out.println( "Slowest Activators" );
+         printStartups( activators.subList( 0, Math.min( count, activators.size() ) ), first );
+
+         final List<StartupProfiler.BundleStartup> services = new ArrayList<StartupProfiler.BundleStartup>();
+         for( StartupProfiler.BundleStartup startup : startups ) {
+            if( startup.getServiceDelayNanos() > 0 ) {
+               services.add( startup );
+            }
+         }
+         Collections.sort( services, new Comparator<StartupProfiler.BundleStartup>() {
+            @Override
+            public int compare( StartupProfiler.BundleStartup s1, StartupProfiler.BundleStartup s2 ) {
+               return Long.valueOf( s2.getServiceDelayNanos() ).compareTo( s1.getServiceDelayNanos() );
+            }
+         } );
+         System.out.println( "" );
+         System.out.println( "Slowest Service Availability" );
+         printStartups( services.subList( 0, Math.min( count, services.size() ) ), first );
+
+         final List<StartupProfiler.BundleStartup> criticalPath = profiler.getCriticalPath( WiringSnapshotProvider.getInstance().getSnapshot( bundleContext ) );
+         long total = 0;
+         for( StartupProfiler.BundleStartup startup : criticalPath ) {
+            total += startup.getReadyNanos();
+         }
+         System.out.println( "" );
+         System.out.println( String.format( "Critical Path (%s ms)", toMillis( total ) ) );
+         long cumulative = 0;
+         for( StartupProfiler.BundleStartup startup : criticalPath ) {
+            cumulative += startup.getReadyNanos();
+            System.out.println( String.format( "   %s(%s) ready after %s ms, cumulative %s ms", startup.getBundle().getSymbolicName(), startup.getBundle().getBundleId(), toMillis( startup.getReadyNanos() ), toMillis( cumulative ) ) );
+         }
+      }
+      catch( Exception exception ) {
+         exception.printStackTrace();
+         throw new RuntimeException( "Error reporting the startup profile", exception );
+      }
+      finally {
+         STARTUP_COMMAND.recordSince( start );
+      }
+   }
+
+   private ApplicationContext getBundleApplicationContext( Bundle bundle ) {
+      ApplicationContext result = null;
+      for( ServiceReference<ApplicationContext> ref : AnalyzerServices.APPLICATION_CONTEXTS.getServiceReferences() ) {
+         if( bundle.equals( ref.getBundle() ) ) {
+            result = AnalyzerServices.APPLICATION_CONTEXTS.getService( ref );
+            break;
+         }
+      }
+      return result;
+   }
+
+   private IOsgiAnalyzerService getOsgiAnalyzerService() {
+      return analyzerService;
+   }
+
+   private void printBundlesThatAreRemovalPending() {
+      final String format = "| %1$-35s|%2$10s |%3$25s |";
+      final String line = new String( new char[String.format( format, "", "", "" ).length()] ).replace( "\0", "-" );
+      final FrameworkWiring fw = bundleContext.getBundle( 0 ).adapt( FrameworkWiring.class );
+      if( !fw.getRemovalPendingBundles().isEmpty() ) {
+         System.out.println( line );
+         System.out.println( String.format( format, "Bundle", "Bundle ID", "State" ) );
+         System.out.println( line );
+         for( Bundle removalPending : fw.getRemovalPendingBundles() ) {
+            final String bundleNameRaw = removalPending.getSymbolicName();
+            final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+            final Long bundleId = removalPending.getBundleId();
+            System.out.println( String.format( format, bundleName, bundleId, BundleUtils.getStateDescription( removalPending ) ) );
+         }
+      }
+      for( Bundle bundle : bundleContext.getBundles() ) {
+         final BundleWiring wiring = bundle.adapt( BundleWiring.class );
+         if( wiring != null ) {
+            for( BundleWire required : wiring.getRequiredWires( BundleRevision.PACKAGE_NAMESPACE ) ) {
+               if( !required.getProviderWiring().isCurrent() ) {
+                  System.out.println( "Wire not current: " + required );
+               }
+            }
+
+            if( !wiring.isCurrent() ) {
+               System.out.println( String.format( "Bundle %s(%s) is not current", bundle.getSymbolicName(), bundle.getBundleId() ) );
+            }
+         }
+      }
+      // Loaders no longer in use may just not be collected yet; the leaks command collects first
+      for( ClassLoaderLeakDetector.LeakedLoader leak : ClassLoaderLeakDetector.getInstance().findLeaks( false, false ) ) {
+         System.out.println( String.format( "Class loader of %s(%s) %s is no longer in use but still reachable", leak.getSymbolicName(), leak.getBundleId(), leak.getVersion() ) );
+      }
+   }
+
+   private void printBundlesWithMissingDependencies( int parallelism ) {
+      final List<Bundle> missingDependencies = getOsgiAnalyzerService().findBundlesWithMissingOptionalImports( parallelism );
+      if( missingDependencies.size() > 0 ) {
+         final String format = "| %1$-35s|%2$10s |%3$25s |";
+         final String line = new String( new char[String.format( format, "", "", "" ).length()] ).replace( "\0", "-" );
+         System.out.println( line );
+         System.out.println( String.format( format, "Bundle", "Bundle ID", "Missing Optional Imports" ) );
+         System.out.println( line );
+         for( Bundle bundle : missingDependencies ) {
+            final String bundleNameRaw = bundle.getSymbolicName();
+            final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+            final Long bundleId = bundle.getBundleId();
+            final int numOfMissingDependencies = getOsgiAnalyzerService().findMissingOptionalImports( bundle ).size();
+            System.out.println( String.format( format, bundleName, bundleId, numOfMissingDependencies ) );
+         }
+         System.out.println( line );
+      }
+   }
+
+   private void printBundlesWithUsesConflicts( int parallelism ) {
+      final List<Bundle> usesConflicts = getOsgiAnalyzerService().findBundlesWithUsesConflicts( parallelism );
+      if( usesConflicts.size() > 0 ) {
+         final String format = "| %1$-35s|%2$10s |%3$25s |";
+         final String line = new String( new char[String.format( format, "", "", "" ).length()] ).replace( "\0", "-" );
+         System.out.println( line );
+         System.out.println( String.format( format, "Bundle", "Bundle ID", "Use Conflicts" ) );
+         System.out.println( line );
+         for( Bundle bundle : usesConflicts ) {
+            final String bundleNameRaw = bundle.getSymbolicName();
+            final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+            final Long bundleId = bundle.getBundleId();
+            final int numOfMissingDependencies = getOsgiAnalyzerService().findUsesConflicts( bundle ).size();
+            System.out.println( String.format( format, bundleName, bundleId, numOfMissingDependencies ) );
+         }
+         System.out.println( line );
+      }
+   }
+
+   private void printResolution( Bundle bundle ) {
+      if( !BundleUtils.isBundleResolved( bundle ) ) {
+         final ResolutionReport resolution = getOsgiAnalyzerService().checkResolution( bundle );
+         System.out.println( String.format( "Resolvable: %s", resolution.isResolvable() ) );
+         for( String problem : resolution.getProblems() ) {
+            System.out.println( String.format( "   %s", problem ) );
+         }
+      }
+   }
+
+   private void printStartups( List<StartupProfiler.BundleStartup> startups, long first ) {
+      final String format = "| %1$-35s|%2$10s |%3$14s |%4$14s |%5$14s |";
+      final String line = new String( new char[String.format( format, "", "", "", "", "" ).length()] ).replace( "\0", "-" );
+      System.out.println( line );
+      System.out.println( String.format( format, "Bundle", "Bundle ID", "Starting at ms", "Activator ms", "Services ms" ) );
+      System.out.println( line );
+      for( StartupProfiler.BundleStartup startup : startups ) {
+         final String bundleNameRaw = String.valueOf( startup.getBundle().getSymbolicName() );
+         final String bundleName = bundleNameRaw.substring( 0, Math.min( 34, bundleNameRaw.length() ) );
+         final String startingAt = startup.getStarting() != 0 ? toMillis( startup.getStarting() - first ) : "";
+         final String services = startup.getServiceDelayNanos() > 0 ? toMillis( startup.getServiceDelayNanos() ) : "";
+         System.out.println( String.format( format, bundleName, startup.getBundle().getBundleId(), startingAt, toMillis( startup.getActivationNanos() ), services ) );
+      }
+      System.out.println( line );
+   }
+
+   private void printThrowableDiagnoses( Bundle bundle, boolean verbose ) {
+      final AnalyzerMetrics metrics = AnalyzerMetrics.getInstance();
+      final List<ThrowableDiagnosis> diagnoses = new ArrayList<ThrowableDiagnosis>();
+      for( ThrowableDiagnosis diagnosis : getOsgiAnalyzerService().getThrowableDiagnoses() ) {
+         if( diagnosis.getBundle() != null && diagnosis.getBundle().getBundleId() == bundle.getBundleId() ) {
+            diagnoses.add( diagnosis );
+         }
+      }
+      final long failures = metrics.getCounter( "diagnoser", "failures" ).getCount();
+      if( !diagnoses.isEmpty() || failures > 0 ) {
+         System.out.println( "" );
+         System.out.println( String.format( "Class loading errors: %s analyzed, %s repeats, %s failed to diagnose", metrics.getHistogram( "diagnoser", "analysis" ).getCount(), metrics.getCounter( "diagnoser", "repeats" ).getCount(), failures ) );
+      }
+      for( ThrowableDiagnosis diagnosis : diagnoses ) {
+         System.out.println( String.format( "%s: %s (%s times)", diagnosis.getType(), diagnosis.getMessage(), diagnosis.getOccurrences() ) );
+         for( String problem : diagnosis.getProblems() ) {
+            System.out.println( String.format( "   %s", problem ) );
+         }
+         if( verbose ) {
+            System.out.println( String.format( "   Signature: %s", diagnosis.getSignature() ) );
+         }
+      }
+   }
+
+   private void printUnresolvedImports( Bundle bundle, boolean verbose ) {
+      final List<MissingImport> unresolvedImports = getOsgiAnalyzerService().findMissingOptionalImports( bundle );
+      if( unresolvedImports.size() > 0 ) {
+         final String format = "| %1$-35s | %2$-15s | %3$-16s | %4$-50s |";
+         final String line = new String( new char[String.format( format, "", "", "", "" ).length()] ).replace( "\0", "-" );
+         System.out.println( line );
+         System.out.println( String.format( format, "Unresolved Import", "Version", "Reason", "Matching Bundle" ) );
+         System.out.println( line );
+         for( MissingImport missingOptionalImport : unresolvedImports ) {
+            final String packageName = missingOptionalImport.getImportedPackage().getPackageName();
+            final String version = missingOptionalImport.getImportedPackage().getVersion().toString();
+            final String reason = missingOptionalImport.getReason().display();
+            final String matchDesc = missingOptionalImport.getMatch() != null ? String.format( "%s(%s)", missingOptionalImport.getMatch().getSymbolicName(), missingOptionalImport.getMatch().getBundleId() ) : "[NONE]";
+            System.out.println( String.format( format, packageName, version, reason, matchDesc ) );
+         }
+         System.out.println( line );
+         System.out.println( "" );
+         System.out.println( "" );
+
+         final Set<UsesConflictResolutionSuggestion> suggestions = new HashSet<UsesConflictResolutionSuggestion>();
+         for( MissingImport missingOptionalImport : unresolvedImports ) {
+            if( missingOptionalImport.getReason().isPossibleResolutionAvailable() ) {
+               if( verbose ) {
+                  System.out.println( String.format( "Package: %s Reason: %s", missingOptionalImport.getImportedPackage().getPackageName(), missingOptionalImport.getReason().display() ) );
+               }
+               if( MissingOptionalImportReasonType.RefreshRequired.equals( missingOptionalImport.getReason() ) ) {
+                  if( verbose ) {
+                     System.out.println( String.format( "Resolution: Refresh %s(%s)", missingOptionalImport.getMatch().getSymbolicName(), missingOptionalImport.getMatch().getBundleId() ) );
+                  }
+               }
+               else if( MissingOptionalImportReasonType.UsesConflict.equals( missingOptionalImport.getReason() ) ) {
+                  if( verbose ) {
+                     int usesConflictIndex = 1;
+                     for( UsesConflict usesConflict : missingOptionalImport.getUsesConflicts() ) {
+                        System.out.println( String.format( "Uses Conflict %s: %s(%s)", usesConflictIndex, usesConflict.getUsesConflictBundle().getSymbolicName(), usesConflict.getUsesConflictBundle().getBundleId() ) );
+                        System.out.println( String.format( "   Type: %s", usesConflict.getType().name() ) );
+                        System.out.println( String.format( "   Import Package: %s(%s)", usesConflict.getImportedPackage().getPackageName(), usesConflict.getImportedPackage().getVersion() ) );
+                        if( UsesConflictType.Wiring.equals( usesConflict.getType() ) ) {
+                           System.out.println( String.format( "   Bundle Wire: %s(%s)", usesConflict.getBundleWire().getProviderWiring().getBundle().getSymbolicName(), usesConflict.getBundleWire().getProviderWiring().getBundle().getBundleId() ) );
+                           System.out.println( String.format( "   Uses Conflict Bundle Wire: %s(%s)", usesConflict.getUsesConflictBundleWire().getProviderWiring().getBundle().getSymbolicName(), usesConflict.getUsesConflictBundleWire().getProviderWiring().getBundle().getBundleId() ) );
+                        }
+                        usesConflictIndex++;
+                     }
+                  }
+                  for( UsesConflict usesConflict : missingOptionalImport.getUsesConflicts() ) {
+                     suggestions.add( usesConflict.getSuggestion() );
+                  }
+               }
+            }
+         }
+
+         if( !suggestions.isEmpty() ) {
+            System.out.println( line );
+            System.out.println( String.format( "Possible Resolutions" ) );
+            System.out.println( line );
+
+            for( UsesConflictResolutionSuggestion suggestion : suggestions ) {
+               System.out.println( String.format( "Suggestion: %s", suggestion ) );
+            }
+         }
+      }
+   }
+
+   private void printUsesConflicts( Bundle bundle, boolean verbose ) {
+      final List<UsesConflict> usesConflicts = getOsgiAnalyzerService().findUsesConflicts( bundle );
+      if( usesConflicts.size() > 0 ) {
+         final String format = "| %1$-10s| %2$-45s| %3$-35s|%4$20s | %5$-28s| %6$-28s|";
+         final String line = new String( new char[String.format( format, "", "", "", "", "", "" ).length()] ).replace( "\0", "-" );
+         System.out.println( line );
+         System.out.println( String.format( format, "Type", "Import", "Conflict Bundle", "Conflict Bundle ID", "Import Version", "Conflict Version" ) );
+         System.out.println( line );
+         for( UsesConflict usesConflict : usesConflicts ) {
+            final String type = usesConflict.getType().name();
+            final String importPackageName = usesConflict.getImportedPackage().getPackageName();
+            final String conflictBundle = usesConflict.getUsesConflictBundle().getSymbolicName();
+            final String conflictBundleId = Long.toString( usesConflict.getUsesConflictBundle().getBundleId() );
+            final String importVersion = usesConflict.getImportedPackage().getVersion().toString();
+            final String conflictVersion = UsesConflictType.Header.equals( usesConflict.getType() ) ? usesConflict.getUsesConflictImportedPackage().getVersion().toParseString() : usesConflict.getUsesConflictExportedPackage().getVersion().toString();
+            System.out.println( String.format( format, type, importPackageName, conflictBundle, conflictBundleId, importVersion, conflictVersion ) );
+         }
+         System.out.println( line );
+
+         final List<UsesConflictResolutionSuggestion> suggestions = getOsgiAnalyzerService().findUsesConflictResolutions( bundle );
+         if( !suggestions.isEmpty() ) {
+            System.out.println( "" );
+            System.out.println( "Minimal Resolution" );
+            for( UsesConflictResolutionSuggestion suggestion : suggestions ) {
+               System.out.println( String.format( "%s. %s (removes %s conflicts, restarts %s bundles)", suggestion.getRank(), suggestion, suggestion.getResolvedUsesConflicts().size(), suggestion.getRestartedBundles().size() ) );
+               if( verbose ) {
+                  for( Bundle restarted : suggestion.getRestartedBundles() ) {
+                     System.out.println( String.format( "   Restarts: %s(%s)", restarted.getSymbolicName(), restarted.getBundleId() ) );
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   private String toMegabytes( long bytes ) {
+      return String.format( "%.1f", bytes / 1048576.0 );
+   }
+
+   private String toMillis( long nanos ) {
+      return String.format( "%.1f", nanos / 1000000.0 );
+   }
+
+   private String toPercent( long part, long whole ) {
+      return String.format( "%.1f", whole > 0 ? part * 100.0 / whole : 0 );
+   }
+
+   private String toRate( long bytes, long nanos ) {
+      return String.format( "%.2f", nanos > 0 ? bytes / 1048576.0 / ( nanos / 1000000000.0 ) : 0 );
+   }
+}
@@ -0,0 +1,319 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageSymbols;
+import tools.osgi.analyzer.api.PackedVersion;
+import tools.osgi.analyzer.api.PackedVersionRange;
+
+import com.springsource.util.osgi.manifest.ExportedPackage;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+
+/**
+ * Live index from exported package name to the bundles that export it. Providers of a package are kept sorted by
+ * exported version (highest first) so matching an import is a map lookup plus a scan of the version range.
+ * <p>
+ * Providers are stored in an array addressed by the {@link PackageSymbols} symbol of the package and carry their
+ * version as a {@link PackedVersion}, so the scan compares primitives and does not allocate. The index is built from
+ * the compact Export-Package headers; the springsource {@link ExportedPackage} of a provider is looked up on demand.
+ */
+public class PackageExportIndex implements SynchronousBundleListener, FrameworkListener {
+
+   /** Bundle that exports a package at a specific version */
+   public static class PackageProvider {
+      private final Bundle bundle;
+      private volatile ExportedPackage exportedPackage;
+      private final int packageSymbol;
+      private final PackedVersion version;
+
+      public PackageProvider( Bundle bundle, int packageSymbol, PackedVersion version ) {
+         this.bundle = bundle;
+         this.packageSymbol = packageSymbol;
+         this.version = version;
+      }
+
+      public long getBundleId() {
+         return bundle.getBundleId();
+      }
+
+      /** @return Export from the full manifest of the bundle; parsed on first use */
+      public ExportedPackage getExportedPackage() {
+         ExportedPackage result = exportedPackage;
+         if( result == null ) {
+            final String packageName = getPackageName();
+            for( ExportedPackage candidate : BundleManifestCache.getInstance().getManifest( bundle ).getExportPackage().getExportedPackages() ) {
+               if( candidate.getPackageName().equals( packageName ) && PackedVersion.of( candidate ).compareTo( version ) == 0 ) {
+                  result = candidate;
+                  exportedPackage = result;
+                  break;
+               }
+            }
+         }
+         return result;
+      }
+
+      public String getPackageName() {
+         return PackageSymbols.getInstance().getName( packageSymbol );
+      }
+
+      /** @return Symbol of the exported package */
+      public int getPackageSymbol() {
+         return packageSymbol;
+      }
+
+      public PackedVersion getPackedVersion() {
+         return version;
+      }
+
+      public Version getVersion() {
+         return version.getVersion();
+      }
+
+      @Override
+      public String toString() {
+         return String.format( "%s(%s) from bundle %s", getPackageName(), version, getBundleId() );
+      }
+   }
+
+   private static final PackageExportIndex INSTANCE = new PackageExportIndex();
+   private static final PackageProvider[] NO_PROVIDERS = new PackageProvider[0];
+   private static final Comparator<PackageProvider> VERSION_ORDER = new Comparator<PackageProvider>() {
+      @Override
+      public int compare( PackageProvider p1, PackageProvider p2 ) {
+         final int result = p2.getPackedVersion().compareTo( p1.getPackedVersion() );
+         return result != 0 ? result : Long.compare( p1.getBundleId(), p2.getBundleId() );
+      }
+   };
+
+   public static PackageExportIndex getInstance() {
+      return INSTANCE;
+   }
+
+   /** @return Providers of the symbol in the table; <code>null</code> if none */
+   private static PackageProvider[] getProviders( PackageProvider[][] providers, int packageSymbol ) {
+      return packageSymbol >= 0 && packageSymbol < providers.length ? providers[packageSymbol] : null;
+   }
+
+   /** @return Table with the exports of the bundle added; the given table if it did not have to grow */
+   private static PackageProvider[][] index( PackageProvider[][] providers, Map<Long, int[]> packages, Bundle bundle ) {
+      PackageProvider[][] result = providers;
+      if( bundle.getState() == Bundle.UNINSTALLED ) {
+         return result;
+      }
+      final PackageHeader exports = BundleManifestCache.getInstance().getExportPackageHeader( bundle );
+      if( exports.size() == 0 ) {
+         return result;
+      }
+      final int[] packageSymbols = new int[exports.size()];
+      for( int i = 0; i < packageSymbols.length; i++ ) {
+         final PackageProvider provider = new PackageProvider( bundle, exports.getPackageSymbol( i ), exports.getVersion( i ) );
+         final PackageProvider[] existing = getProviders( result, provider.getPackageSymbol() );
+         final PackageProvider[] updated = existing != null ? Arrays.copyOf( existing, existing.length + 1 ) : new PackageProvider[1];
+         updated[updated.length - 1] = provider;
+         Arrays.sort( updated, VERSION_ORDER );
+         result = setProviders( result, provider.getPackageSymbol(), updated );
+         packageSymbols[i] = provider.getPackageSymbol();
+      }
+      packages.put( bundle.getBundleId(), packageSymbols );
+      return result;
+   }
+
+   /** @return Table with the providers of the symbol replaced; the given table if it did not have to grow */
+   private static PackageProvider[][] setProviders( PackageProvider[][] providers, int packageSymbol, PackageProvider[] symbolProviders ) {
+      PackageProvider[][] result = providers;
+      if( packageSymbol >= result.length ) {
+         result = Arrays.copyOf( result, Math.max( PackageSymbols.getInstance().getSize(), packageSymbol + 1 ) );
+      }
+      result[packageSymbol] = symbolProviders;
+      return result;
+   }
+
+   private BundleContext bundleContext;
+   private final Map<Long, int[]> packagesByBundle = new HashMap<Long, int[]>();
+   /** Providers by package symbol; replaced as a whole when it has to grow or is rebuilt */
+   private volatile PackageProvider[][] providersByPackage = new PackageProvider[0][];
+   /** Refreshes seen; a rebuild overtaken by a refresh leaves the index stale */
+   private final AtomicInteger refreshes = new AtomicInteger();
+   private volatile boolean stale = true;
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      switch( event.getType() ) {
+      case BundleEvent.INSTALLED:
+      case BundleEvent.UPDATED:
+         reindex( event.getBundle() );
+         break;
+      case BundleEvent.UNINSTALLED:
+         remove( event.getBundle().getBundleId() );
+         break;
+      default:
+         break;
+      }
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+            bundleContext.removeFrameworkListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      packagesByBundle.clear();
+      providersByPackage = new PackageProvider[0][];
+      stale = true;
+   }
+
+   /**
+    * Finds all bundles that export a package satisfying the import
+    * @param bundleContext Context used to look up the bundles by id
+    * @param importedPackage Import to satisfy
+    * @return Matching bundles ordered by bundle id
+    */
+   public List<Bundle> findBundlesThatSatisfyImport( BundleContext bundleContext, ImportedPackage importedPackage ) {
+      // A bundle exporting the package at several versions is a provider once per version
+      final Set<Bundle> bundles = new LinkedHashSet<Bundle>();
+      final PackedVersionRange range = PackedVersionRange.of( importedPackage );
+      for( PackageProvider provider : getProviders( importedPackage.getPackageName() ) ) {
+         if( range.includes( provider.getPackedVersion() ) ) {
+            final Bundle bundle = bundleContext.getBundle( provider.getBundleId() );
+            if( bundle != null ) {
+               bundles.add( bundle );
+            }
+         }
+      }
+      final List<Bundle> result = new ArrayList<Bundle>( bundles );
+      Collections.sort( result );
+      return result;
+   }
+
+   @Override
+   public void frameworkEvent( FrameworkEvent event ) {
+      if( event.getType() == FrameworkEvent.PACKAGES_REFRESHED ) {
+         refreshes.incrementAndGet();
+         stale = true;
+      }
+   }
+
+   /**
+    * Finds the export of the bundle that satisfies the import
+    * @param bundle Bundle to check exports of
+    * @param importedPackage Import to satisfy
+    * @return {@link ExportedPackage} of the bundle that satisfies the import otherwise <code>null</code>
+    */
+   public ExportedPackage getExportedPackage( Bundle bundle, ImportedPackage importedPackage ) {
+      ExportedPackage result = null;
+      final PackedVersionRange range = PackedVersionRange.of( importedPackage );
+      for( PackageProvider provider : getProviders( importedPackage.getPackageName() ) ) {
+         if( provider.getBundleId() == bundle.getBundleId() && range.includes( provider.getPackedVersion() ) ) {
+            result = provider.getExportedPackage();
+            break;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @param packageName Name of the package
+    * @return All providers of the package ordered from highest to lowest exported version
+    */
+   public PackageProvider[] getProviders( String packageName ) {
+      return getProviders( PackageSymbols.getInstance().lookup( packageName ) );
+   }
+
+   /**
+    * @param packageSymbol {@link PackageSymbols} symbol of the package
+    * @return All providers of the package ordered from highest to lowest exported version
+    */
+   public PackageProvider[] getProviders( int packageSymbol ) {
+      ensureCurrent();
+      final PackageProvider[] result = getProviders( providersByPackage, packageSymbol );
+      return result != null ? result : NO_PROVIDERS;
+   }
+
+   public boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         bundleContext.addBundleListener( this );
+         bundleContext.addFrameworkListener( this );
+         stale = true;
+      }
+   }
+
+   private void ensureCurrent() {
+      if( stale ) {
+         rebuild();
+      }
+   }
+
+   /**
+    * Builds the index of all bundles aside and publishes it with a single write, so concurrent readers keep seeing the
+    * previous complete index instead of a partial one. A refresh during the rebuild leaves the index stale.
+    */
+   private synchronized void rebuild() {
+      if( stale && bundleContext != null ) {
+         final int generation = refreshes.get();
+         final Map<Long, int[]> packages = new HashMap<Long, int[]>();
+         PackageProvider[][] providers = new PackageProvider[PackageSymbols.getInstance().getSize()][];
+         for( Bundle bundle : bundleContext.getBundles() ) {
+            providers = index( providers, packages, bundle );
+         }
+         packagesByBundle.clear();
+         packagesByBundle.putAll( packages );
+         providersByPackage = providers;
+         stale = generation != refreshes.get();
+      }
+   }
+
+   private synchronized void reindex( Bundle bundle ) {
+      remove( bundle.getBundleId() );
+      providersByPackage = index( providersByPackage, packagesByBundle, bundle );
+   }
+
+   private synchronized void remove( long bundleId ) {
+      final int[] packageSymbols = packagesByBundle.remove( bundleId );
+      if( packageSymbols == null ) {
+         return;
+      }
+      PackageProvider[][] providers = providersByPackage;
+      for( int packageSymbol : packageSymbols ) {
+         final PackageProvider[] existing = getProviders( providers, packageSymbol );
+         if( existing == null ) {
+            continue;
+         }
+         final List<PackageProvider> remaining = new ArrayList<PackageProvider>( existing.length );
+         for( PackageProvider provider : existing ) {
+            if( provider.getBundleId() != bundleId ) {
+               remaining.add( provider );
+            }
+         }
+         providers = setProviders( providers, packageSymbol, remaining.isEmpty() ? null : remaining.toArray( new PackageProvider[remaining.size()] ) );
+      }
+      providersByPackage = providers;
+   }
+}
@@ -0,0 +1,144 @@
+package tools.osgi.analyzer.internal;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Long-lived access to an OSGi service. The tracker is opened once (typically from a bundle activator) and closed on
+ * stop; the tracker keeps the highest ranked service in a volatile field so reads do not lock or touch the service
+ * registry.
+ * @param <T> Type of the service
+ */
+public class ServiceAccess<T> {
+   /**
+    * Code run with the service while it is in use
+    * @param <T> Type of the service
+    * @param <R> Type of the result
+    */
+   public static interface ServiceCall<T, R> {
+      /**
+       * @param service Service or <code>null</code> if there is none
+       * @return Result of the call
+       */
+      R call( T service );
+   }
+
+   /** Service together with its reference so both are swapped atomically */
+   private static class Current<T> {
+      private final ServiceReference<T> reference;
+      private final T service;
+
+      public Current( ServiceReference<T> reference, T service ) {
+         this.reference = reference;
+         this.service = service;
+      }
+   }
+
+   private volatile Current<T> current;
+   private volatile ServiceTracker<T, T> tracker;
+   private final Class<T> type;
+
+   public ServiceAccess( Class<T> type ) {
+      this.type = type;
+   }
+
+   /**
+    * Runs the call with the current service. If the access was not opened the service is looked up from the context
+    * and released when the call returns, so the service must not be kept beyond the call.
+    * @param bundleContext Context to look the service up with if the access is not open
+    * @param call Code to run with the service
+    * @return Result of the call
+    */
+   public <R> R call( BundleContext bundleContext, ServiceCall<T, R> call ) {
+      final T tracked = get();
+      if( tracked != null || isOpen() || bundleContext == null ) {
+         return call.call( tracked );
+      }
+      final ServiceReference<T> reference = bundleContext.getServiceReference( type );
+      final T service = reference != null ? bundleContext.getService( reference ) : null;
+      try {
+         return call.call( service );
+      }
+      finally {
+         if( service != null ) {
+            bundleContext.ungetService( reference );
+         }
+      }
+   }
+
+   public synchronized void close() {
+      if( tracker != null ) {
+         tracker.close();
+         tracker = null;
+      }
+      current = null;
+   }
+
+   /** @return Current service or <code>null</code> if there is none or the access is not open */
+   public T get() {
+      final Current<T> result = current;
+      return result != null ? result.service : null;
+   }
+
+   /** @return References of all tracked services or an empty array */
+   @SuppressWarnings("unchecked")
+   public ServiceReference<T>[] getServiceReferences() {
+      final ServiceTracker<T, T> tracker = this.tracker;
+      final ServiceReference<T>[] result = tracker != null ? tracker.getServiceReferences() : null;
+      return result != null ? result : new ServiceReference[0];
+   }
+
+   /**
+    * @param reference Reference of a tracked service
+    * @return Service for the reference or <code>null</code> if it is not tracked
+    */
+   public T getService( ServiceReference<T> reference ) {
+      final ServiceTracker<T, T> tracker = this.tracker;
+      return tracker != null ? tracker.getService( reference ) : null;
+   }
+
+   public boolean isOpen() {
+      return tracker != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( tracker == null ) {
+         tracker = new ServiceTracker<T, T>( bundleContext, type, null ) {
+            @Override
+            public T addingService( ServiceReference<T> reference ) {
+               final T result = super.addingService( reference );
+               final Current<T> existing = current;
+               if( result != null && ( existing == null || reference.compareTo( existing.reference ) > 0 ) ) {
+                  current = new Current<T>( reference, result );
+               }
+               return result;
+            }
+
+            @Override
+            public void modifiedService( ServiceReference<T> reference, T service ) {
+               super.modifiedService( reference, service );
+               updateCurrent( this );
+            }
+
+            @Override
+            public void removedService( ServiceReference<T> reference, T service ) {
+               super.removedService( reference, service );
+               updateCurrent( this );
+            }
+         };
+         tracker.open();
+      }
+   }
+
+   @Override
+   public String toString() {
+      return String.format( "ServiceAccess(%s)", type.getName() );
+   }
+
+   private void updateCurrent( ServiceTracker<T, T> tracker ) {
+      final ServiceReference<T> reference = tracker.getServiceReference();
+      final T service = reference != null ? tracker.getService( reference ) : null;
+      current = service != null ? new Current<T>( reference, service ) : null;
+   }
+}
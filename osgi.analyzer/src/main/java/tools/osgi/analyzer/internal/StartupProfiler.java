@@ -0,0 +1,271 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Records when each bundle is resolved, starts, is started and first registers a service, with {@link System#nanoTime()}
+ * precision. The bundle listener is synchronous so the STARTING and STARTED timestamps bracket the activator exactly;
+ * the listeners only take a timestamp so they do not slow the startup down.
+ * <p>
+ * Only bundles started after the profiler was opened are covered, so the analyzer should get a low start level to
+ * profile a cold start. A bundle that is started again replaces its earlier timings.
+ */
+public class StartupProfiler implements SynchronousBundleListener, ServiceListener, FrameworkListener {
+   /** Timings of one bundle; <code>0</code> if the event was not seen */
+   public static final class BundleStartup {
+      private final Bundle bundle;
+      private volatile long firstService;
+      private volatile long resolved;
+      private volatile long started;
+      private volatile long starting;
+
+      public BundleStartup( Bundle bundle ) {
+         this.bundle = bundle;
+      }
+
+      /** @return Time the activator took or <code>0</code> if the bundle did not finish starting */
+      public long getActivationNanos() {
+         return starting != 0 && started != 0 ? started - starting : 0;
+      }
+
+      public Bundle getBundle() {
+         return bundle;
+      }
+
+      /** @return Time from STARTING until the bundle is started and, if it registers services, registered the first */
+      public long getReadyNanos() {
+         return Math.max( getActivationNanos(), getServiceDelayNanos() );
+      }
+
+      public long getFirstService() {
+         return firstService;
+      }
+
+      public long getResolved() {
+         return resolved;
+      }
+
+      /**
+       * @return Time from STARTING until the bundle registered its first service or <code>0</code> if it did not
+       * register one
+       */
+      public long getServiceDelayNanos() {
+         return starting != 0 && firstService != 0 ? firstService - starting : 0;
+      }
+
+      public long getStarted() {
+         return started;
+      }
+
+      public long getStarting() {
+         return starting;
+      }
+   }
+
+   private static final StartupProfiler INSTANCE = new StartupProfiler();
+
+   public static StartupProfiler getInstance() {
+      return INSTANCE;
+   }
+
+   private BundleContext bundleContext;
+   private final ConcurrentMap<Long, BundleStartup> bundles = new ConcurrentHashMap<Long, BundleStartup>();
+   private volatile long frameworkStarted;
+   private volatile long opened;
+
+   @Override
+   public void bundleChanged( BundleEvent event ) {
+      final long now = System.nanoTime();
+      switch( event.getType() ) {
+      case BundleEvent.RESOLVED:
+         getStartup( event.getBundle() ).resolved = now;
+         break;
+      case BundleEvent.STARTING:
+         final BundleStartup startup = getStartup( event.getBundle() );
+         startup.starting = now;
+         startup.started = 0;
+         startup.firstService = 0;
+         break;
+      case BundleEvent.STARTED:
+         getStartup( event.getBundle() ).started = now;
+         break;
+      case BundleEvent.UNINSTALLED:
+         bundles.remove( event.getBundle().getBundleId() );
+         break;
+      default:
+         break;
+      }
+   }
+
+   public synchronized void close() {
+      if( bundleContext != null ) {
+         try {
+            bundleContext.removeBundleListener( this );
+            bundleContext.removeServiceListener( this );
+            bundleContext.removeFrameworkListener( this );
+         }
+         catch( IllegalStateException exception ) {
+            // Bundle context already invalid
+         }
+         bundleContext = null;
+      }
+      bundles.clear();
+      frameworkStarted = 0;
+   }
+
+   @Override
+   public void frameworkEvent( FrameworkEvent event ) {
+      if( event.getType() == FrameworkEvent.STARTED ) {
+         frameworkStarted = System.nanoTime();
+      }
+   }
+
+   /**
+    * Finds the chain of wired bundles with the largest total time until ready ({@link BundleStartup#getReadyNanos()}): a
+    * bundle can only be used once the bundles it is wired to are, so this chain bounds the startup time no matter how
+    * many bundles start in parallel. Cycles in the wiring are broken where they are found.
+    * @param snapshot Wiring the dependencies are taken from
+    * @return Bundles of the chain, the bundle everything else depends on first; empty if no bundle was profiled
+    */
+   public List<BundleStartup> getCriticalPath( WiringSnapshot snapshot ) {
+      final int count = snapshot.getBundleCount();
+      final long[] weights = new long[count];
+      for( int index = 0; index < count; index++ ) {
+         final BundleStartup startup = bundles.get( snapshot.getBundle( index ).getBundleId() );
+         weights[index] = startup != null ? startup.getReadyNanos() : 0;
+      }
+
+      // Longest path over the providers, iterative so deep wirings can not overflow the stack
+      final long[] longest = new long[count];
+      final int[] next = new int[count];
+      final int[] cursor = new int[count];
+      final byte[] state = new byte[count];
+      final int[] stack = new int[count];
+      for( int root = 0; root < count; root++ ) {
+         if( state[root] != 0 ) {
+            continue;
+         }
+         int depth = 0;
+         stack[depth++] = root;
+         state[root] = 1;
+         cursor[root] = snapshot.getRequiredWiresStart( root );
+         while( depth > 0 ) {
+            final int index = stack[depth - 1];
+            if( cursor[index] < snapshot.getRequiredWiresEnd( index ) ) {
+               final int provider = snapshot.getWireProvider( cursor[index]++ );
+               if( state[provider] == 0 ) {
+                  state[provider] = 1;
+                  cursor[provider] = snapshot.getRequiredWiresStart( provider );
+                  stack[depth++] = provider;
+               }
+               continue;
+            }
+            depth--;
+            long best = 0;
+            next[index] = -1;
+            for( int wire = snapshot.getRequiredWiresStart( index ); wire < snapshot.getRequiredWiresEnd( index ); wire++ ) {
+               final int provider = snapshot.getWireProvider( wire );
+               // Providers still in progress are part of a cycle
+               if( state[provider] == 2 && longest[provider] > best ) {
+                  best = longest[provider];
+                  next[index] = provider;
+               }
+            }
+            longest[index] = weights[index] + best;
+            state[index] = 2;
+         }
+      }
+
+      int end = -1;
+      for( int index = 0; index < count; index++ ) {
+         if( longest[index] > 0 && ( end < 0 || longest[index] > longest[end] ) ) {
+            end = index;
+         }
+      }
+      final List<BundleStartup> result = new ArrayList<BundleStartup>();
+      for( int index = end; index >= 0; index = next[index] ) {
+         final BundleStartup startup = bundles.get( snapshot.getBundle( index ).getBundleId() );
+         result.add( startup != null ? startup : new BundleStartup( snapshot.getBundle( index ) ) );
+      }
+      Collections.reverse( result );
+      return result;
+   }
+
+   /** @return Time the framework reported STARTED or <code>0</code> if it was already started when opened */
+   public long getFrameworkStarted() {
+      return frameworkStarted;
+   }
+
+   /** @return Time the profiler was opened */
+   public long getOpened() {
+      return opened;
+   }
+
+   /** @return Timings of all profiled bundles ordered by bundle id */
+   public List<BundleStartup> getStartups() {
+      final List<BundleStartup> result = new ArrayList<BundleStartup>( bundles.values() );
+      Collections.sort( result, new Comparator<BundleStartup>() {
+         @Override
+         public int compare( BundleStartup s1, BundleStartup s2 ) {
+            return Long.valueOf( s1.bundle.getBundleId() ).compareTo( s2.bundle.getBundleId() );
+         }
+      } );
+      return result;
+   }
+
+   public synchronized boolean isOpen() {
+      return bundleContext != null;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( this.bundleContext == null ) {
+         this.bundleContext = bundleContext;
+         opened = System.nanoTime();
+         bundleContext.addBundleListener( this );
+         bundleContext.addServiceListener( this );
+         bundleContext.addFrameworkListener( this );
+      }
+   }
+
+   @Override
+   public void serviceChanged( ServiceEvent event ) {
+      if( event.getType() == ServiceEvent.REGISTERED ) {
+         final long now = System.nanoTime();
+         final ServiceReference<?> reference = event.getServiceReference();
+         final Bundle bundle = reference.getBundle();
+         if( bundle != null ) {
+            final BundleStartup startup = bundles.get( bundle.getBundleId() );
+            if( startup != null && startup.firstService == 0 ) {
+               startup.firstService = now;
+            }
+         }
+      }
+   }
+
+   private BundleStartup getStartup( Bundle bundle ) {
+      BundleStartup result = bundles.get( bundle.getBundleId() );
+      if( result == null ) {
+         final BundleStartup created = new BundleStartup( bundle );
+         result = bundles.putIfAbsent( bundle.getBundleId(), created );
+         if( result == null ) {
+            result = created;
+         }
+      }
+      return result;
+   }
+}
@@ -0,0 +1,352 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import tools.osgi.analyzer.api.IOsgiAnalyzerService;
+import tools.osgi.analyzer.api.MissingImport;
+import tools.osgi.analyzer.api.ThrowableDiagnosis;
+import tools.osgi.analyzer.api.UsesConflict;
+
+/**
+ * Diagnoses class loading related throwables in the background. {@link #submit(Throwable)} only queues the throwable in
+ * a {@link ThrowableRingBuffer} so the failing thread is never blocked; a single worker thread takes the throwables,
+ * identifies them by their stack signature and maps each new signature to wiring problems. Repeats of a known
+ * signature only count as an occurrence, so a burst of identical errors costs one analysis. A diagnosis made at an
+ * older {@link FrameworkGeneration} is replaced on the next repeat, but not before {@link #REANALYZE_AFTER_MS} passed so
+ * a burst during a deploy is not analyzed again for each bundle event.
+ * <p>
+ * Analyses, repeats and failures are counted in the {@link AnalyzerMetrics} group <code>diagnoser</code>.
+ */
+public class ThrowableDiagnoser {
+   /** Diagnosis together with the generation it was made at */
+   private static class KnownSignature {
+      private final long analyzed = System.currentTimeMillis();
+      private final ThrowableDiagnosis diagnosis;
+      private final long generation;
+
+      public KnownSignature( ThrowableDiagnosis diagnosis, long generation ) {
+         this.diagnosis = diagnosis;
+         this.generation = generation;
+      }
+   }
+
+   private static final LatencyHistogram ANALYSES = AnalyzerMetrics.getInstance().getHistogram( "diagnoser", "analysis" );
+   private static final int BUFFER_CAPACITY = 1024;
+   private static final Pattern CAST_PATTERN = Pattern.compile( "([\\w$.]+) cannot be cast to ([\\w$.]+)" );
+   private static final Counter FAILURES = AnalyzerMetrics.getInstance().getCounter( "diagnoser", "failures" );
+   private static final int MAX_CAUSE_DEPTH = 8;
+   private static final int MAX_DIAGNOSES = 256;
+   private static final String[] PLATFORM_PACKAGES = { "java.", "javax.", "sun.", "com.sun.", "org.osgi.", "org.eclipse.osgi.", "org.apache.felix.framework." };
+   /** Minimum age of a diagnosis of an older generation before a repeat is analyzed again */
+   private static final long REANALYZE_AFTER_MS = 5000;
+   private static final Counter REPEATS = AnalyzerMetrics.getInstance().getCounter( "diagnoser", "repeats" );
+   private static final Pattern SLASHED_CLASS_PATTERN = Pattern.compile( "L?([\\w$]+(?:/[\\w$]+)+);?" );
+   private static final int SIGNATURE_FRAMES = 8;
+
+   /**
+    * @param throwable Throwable as thrown
+    * @return The throwable or the first of its causes that is class loading related; <code>null</code> if there is none
+    */
+   public static Throwable findClassLoadingProblem( Throwable throwable ) {
+      Throwable current = throwable;
+      for( int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++ ) {
+         if( current instanceof ClassNotFoundException || current instanceof LinkageError || current instanceof ClassCastException ) {
+            return current;
+         }
+         current = current.getCause();
+      }
+      return null;
+   }
+
+   /** @return Type, message and top stack frames of the throwable */
+   public static String getSignature( Throwable throwable ) {
+      final StringBuilder result = new StringBuilder( throwable.getClass().getName() );
+      result.append( ':' ).append( throwable.getMessage() );
+      final StackTraceElement[] frames = throwable.getStackTrace();
+      for( int index = 0; index < Math.min( SIGNATURE_FRAMES, frames.length ); index++ ) {
+         result.append( '|' ).append( frames[index].getClassName() ).append( '.' ).append( frames[index].getMethodName() ).append( ':' ).append( frames[index].getLineNumber() );
+      }
+      return result.toString();
+   }
+
+   private static boolean isPlatformClass( String className ) {
+      for( String prefix : PLATFORM_PACKAGES ) {
+         if( className.startsWith( prefix ) ) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static String toPackageName( String className ) {
+      final int index = className.lastIndexOf( '.' );
+      return index > 0 ? className.substring( 0, index ) : "";
+   }
+
+   private final IOsgiAnalyzerService analyzerService;
+   private volatile BundleContext bundleContext;
+   private final ThrowableRingBuffer buffer = new ThrowableRingBuffer( BUFFER_CAPACITY );
+   private final Map<String, KnownSignature> diagnoses = new LinkedHashMap<String, KnownSignature>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<String, KnownSignature> eldest ) {
+         return size() > MAX_DIAGNOSES;
+      }
+   };
+   private volatile Thread worker;
+
+   public ThrowableDiagnoser( IOsgiAnalyzerService analyzerService ) {
+      this.analyzerService = analyzerService;
+   }
+
+   public synchronized void close() {
+      final Thread thread = worker;
+      worker = null;
+      if( thread != null ) {
+         LockSupport.unpark( thread );
+         try {
+            thread.join( TimeUnit.SECONDS.toMillis( 5 ) );
+         }
+         catch( InterruptedException exception ) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      bundleContext = null;
+      synchronized( diagnoses ) {
+         diagnoses.clear();
+      }
+   }
+
+   /** @return Number of throwables dropped because the worker could not keep up */
+   public long getDropped() {
+      return buffer.getDropped();
+   }
+
+   /** @return Diagnoses of the most recently seen signatures, most recent last */
+   public List<ThrowableDiagnosis> getDiagnoses() {
+      final List<ThrowableDiagnosis> result = new ArrayList<ThrowableDiagnosis>();
+      synchronized( diagnoses ) {
+         for( KnownSignature known : diagnoses.values() ) {
+            result.add( known.diagnosis );
+         }
+      }
+      return result;
+   }
+
+   public synchronized void open( BundleContext bundleContext ) {
+      if( worker == null ) {
+         this.bundleContext = bundleContext;
+         final Thread thread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+               work();
+            }
+         }, "osgi-analyzer-diagnoser" );
+         thread.setDaemon( true );
+         worker = thread;
+         thread.start();
+      }
+   }
+
+   /**
+    * Queues the throwable for diagnosis if it is class loading related. Never blocks; if the queue is full the throwable
+    * is dropped.
+    * @param throwable Throwable to diagnose
+    */
+   public void submit( Throwable throwable ) {
+      final Thread thread = worker;
+      if( thread != null && findClassLoadingProblem( throwable ) != null && buffer.offer( throwable ) ) {
+         LockSupport.unpark( thread );
+      }
+   }
+
+   private void addClassNames( ThrowableDiagnosis diagnosis, Throwable problem ) {
+      final String message = problem.getMessage();
+      if( message == null ) {
+         return;
+      }
+      if( problem instanceof ClassNotFoundException ) {
+         // Frameworks append details such as "cannot be found by <bundle>" after the class name
+         diagnosis.addClassName( message.trim().split( "\\s+" )[0] );
+      }
+      else if( problem instanceof ClassCastException ) {
+         final Matcher matcher = CAST_PATTERN.matcher( message );
+         if( matcher.find() ) {
+            diagnosis.addClassName( matcher.group( 1 ) );
+            diagnosis.addClassName( matcher.group( 2 ) );
+         }
+      }
+      else if( problem instanceof NoClassDefFoundError && message.startsWith( "Could not initialize class " ) ) {
+         final String className = message.substring( "Could not initialize class ".length() ).trim();
+         diagnosis.addClassName( className );
+         diagnosis.addProblem( String.format( "Static initializer of %s failed earlier; the first error has the real cause", className ) );
+      }
+      else {
+         final Matcher matcher = SLASHED_CLASS_PATTERN.matcher( message );
+         while( matcher.find() ) {
+            diagnosis.addClassName( matcher.group( 1 ).replace( '/', '.' ) );
+         }
+      }
+   }
+
+   private ThrowableDiagnosis analyze( String signature, Throwable throwable, BundleContext bundleContext ) {
+      final Throwable problem = findClassLoadingProblem( throwable );
+      final ThrowableDiagnosis result = new ThrowableDiagnosis( signature, problem );
+      final WiringSnapshot snapshot = WiringSnapshotProvider.getInstance().getSnapshot( bundleContext );
+      final Bundle requester = findRequester( problem );
+      result.setBundle( requester );
+      addClassNames( result, problem );
+      for( String className : result.getClassNames() ) {
+         checkClass( result, className, requester, snapshot );
+      }
+      if( requester != null ) {
+         for( UsesConflict usesConflict : analyzerService.findUsesConflicts( requester ) ) {
+            result.addProblem( String.format( "Uses conflict: %s", usesConflict ) );
+         }
+      }
+      if( result.getProblems().isEmpty() ) {
+         result.addProblem( "No wiring problem found" );
+      }
+      return result;
+   }
+
+   private void checkClass( ThrowableDiagnosis diagnosis, String className, Bundle requester, WiringSnapshot snapshot ) {
+      final String packageName = toPackageName( className );
+      final long[] containing = ClassNameIndex.getInstance().getBundleIds( className );
+      final PackageExportIndex.PackageProvider[] exporters = PackageExportIndex.getInstance().getProviders( packageName );
+      if( ClassNameIndex.getInstance().isOpen() && containing.length == 0 && !isPlatformClass( className ) ) {
+         diagnosis.addProblem( String.format( "No resolved bundle contains class %s", className ) );
+      }
+      else if( containing.length > 1 ) {
+         diagnosis.addProblem( String.format( "Class %s is contained in %s bundles: %s", className, containing.length, toString( containing ) ) );
+      }
+      if( PackageExportIndex.getInstance().isOpen() && exporters.length == 0 && containing.length > 0 ) {
+         diagnosis.addProblem( String.format( "Package %s is not exported by any bundle", packageName ) );
+      }
+
+      // Different bundles wired to different providers of the package cause loader constraint and cast problems
+      final int packageId = snapshot.getPackageId( packageName );
+      if( packageId >= 0 ) {
+         final Set<Long> providers = new LinkedHashSet<Long>();
+         for( int wire = 0; wire < snapshot.getWireCount(); wire++ ) {
+            if( snapshot.getWirePackage( wire ) == packageId ) {
+               providers.add( snapshot.getBundle( snapshot.getWireProvider( wire ) ).getBundleId() );
+            }
+         }
+         if( providers.size() > 1 ) {
+            diagnosis.addProblem( String.format( "Package %s is wired to %s different providers: %s", packageName, providers.size(), providers ) );
+         }
+      }
+
+      if( requester == null || isPlatformClass( className ) ) {
+         return;
+      }
+      final int requesterIndex = snapshot.indexOf( requester );
+      final int provider = requesterIndex >= 0 && packageId >= 0 ? snapshot.getProvider( requesterIndex, packageId ) : -1;
+      if( provider >= 0 ) {
+         if( !snapshot.isCurrent( provider ) ) {
+            diagnosis.addProblem( String.format( "Package %s is wired to stale provider %s; refresh %s", packageName, snapshot.getBundle( provider ).getBundleId(), requester.getBundleId() ) );
+         }
+         return;
+      }
+      boolean imported = false;
+      for( MissingImport missingImport : analyzerService.findMissingOptionalImports( requester ) ) {
+         if( missingImport.getImportedPackage().getPackageName().equals( packageName ) ) {
+            imported = true;
+            diagnosis.addProblem( String.format( "Optional import of %s is not wired: %s", packageName, missingImport.getReason().display() ) );
+         }
+      }
+      if( !imported && !contains( containing, requester.getBundleId() ) && exporters.length > 0 ) {
+         diagnosis.addProblem( String.format( "Bundle %s(%s) does not import package %s", requester.getSymbolicName(), requester.getBundleId(), packageName ) );
+      }
+   }
+
+   private boolean contains( long[] bundleIds, long bundleId ) {
+      for( long candidate : bundleIds ) {
+         if( candidate == bundleId ) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private Bundle findRequester( Throwable problem ) {
+      final BundleContext bundleContext = this.bundleContext;
+      if( bundleContext == null || !ClassNameIndex.getInstance().isOpen() ) {
+         return null;
+      }
+      for( StackTraceElement frame : problem.getStackTrace() ) {
+         if( isPlatformClass( frame.getClassName() ) ) {
+            continue;
+         }
+         final long[] bundleIds = ClassNameIndex.getInstance().getBundleIds( frame.getClassName() );
+         if( bundleIds.length > 0 ) {
+            return bundleContext.getBundle( bundleIds[0] );
+         }
+      }
+      return null;
+   }
+
+   private void process( Throwable throwable ) {
+      final BundleContext bundleContext = this.bundleContext;
+      if( bundleContext == null ) {
+         return;
+      }
+      final FrameworkGeneration generation = FrameworkGeneration.getInstance();
+      final String signature = getSignature( findClassLoadingProblem( throwable ) );
+      final long current = generation.isOpen() ? generation.get() : -1;
+      synchronized( diagnoses ) {
+         final KnownSignature known = diagnoses.get( signature );
+         if( known != null && ( known.generation == current || System.currentTimeMillis() - known.analyzed < REANALYZE_AFTER_MS ) ) {
+            known.diagnosis.incrementOccurrences();
+            REPEATS.increment();
+            return;
+         }
+      }
+      final long start = System.nanoTime();
+      final ThrowableDiagnosis diagnosis = analyze( signature, throwable, bundleContext );
+      ANALYSES.recordSince( start );
+      synchronized( diagnoses ) {
+         diagnoses.put( signature, new KnownSignature( diagnosis, current ) );
+      }
+   }
+
+   private String toString( long[] bundleIds ) {
+      final StringBuilder result = new StringBuilder();
+      for( long bundleId : bundleIds ) {
+         result.append( result.length() > 0 ? ", " : "" ).append( bundleId );
+      }
+      return result.toString();
+   }
+
+   private void work() {
+      final Thread current = Thread.currentThread();
+      while( worker == current ) {
+         final Throwable throwable = buffer.poll();
+         if( throwable == null ) {
+            // submit() and close() unpark after changing the state; an unpark before the park leaves a permit
+            LockSupport.park( this );
+            continue;
+         }
+         try {
+            process( throwable );
+         }
+         catch( Throwable exception ) {
+            FAILURES.increment();
+         }
+      }
+   }
+}
@@ -0,0 +1,79 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of throwables with many producers and a single consumer. Each slot carries a sequence number
+ * so producers claim a slot with one compare-and-set and never wait on each other or on the consumer; when the buffer is
+ * full the throwable is dropped and counted instead.
+ */
+public class ThrowableRingBuffer {
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicReferenceArray<Throwable> elements;
+   private long head;
+   private final int mask;
+   private final AtomicLongArray sequences;
+   private final AtomicLong tail = new AtomicLong();
+
+   /** @param capacity Maximum number of queued throwables; rounded up to a power of two */
+   public ThrowableRingBuffer( int capacity ) {
+      final int size = capacity <= 2 ? 2 : Integer.highestOneBit( capacity - 1 ) << 1;
+      this.mask = size - 1;
+      this.elements = new AtomicReferenceArray<Throwable>( size );
+      this.sequences = new AtomicLongArray( size );
+      for( int index = 0; index < size; index++ ) {
+         sequences.set( index, index );
+      }
+   }
+
+   public int getCapacity() {
+      return mask + 1;
+   }
+
+   /** @return Number of throwables dropped because the buffer was full */
+   public long getDropped() {
+      return dropped.get();
+   }
+
+   /**
+    * Adds the throwable without blocking; safe to call from any thread
+    * @param throwable Throwable to queue
+    * @return <code>false</code> if the buffer was full and the throwable was dropped
+    */
+   public boolean offer( Throwable throwable ) {
+      while( true ) {
+         final long position = tail.get();
+         final int index = ( int )( position & mask );
+         final long difference = sequences.get( index ) - position;
+         if( difference == 0 ) {
+            if( tail.compareAndSet( position, position + 1 ) ) {
+               elements.set( index, throwable );
+               sequences.lazySet( index, position + 1 );
+               return true;
+            }
+         }
+         else if( difference < 0 ) {
+            dropped.incrementAndGet();
+            return false;
+         }
+      }
+   }
+
+   /**
+    * Takes the oldest throwable; must only be called from the consumer thread
+    * @return Oldest queued throwable or <code>null</code> if there is none
+    */
+   public Throwable poll() {
+      final int index = ( int )( head & mask );
+      if( sequences.get( index ) != head + 1 ) {
+         return null;
+      }
+      final Throwable result = elements.get( index );
+      elements.lazySet( index, null );
+      sequences.lazySet( index, head + mask + 1 );
+      head++;
+      return result;
+   }
+}
@@ -0,0 +1,234 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.UsesConflict;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestion;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestionType;
+import tools.osgi.analyzer.api.UsesConflictType;
+
+import com.springsource.util.osgi.manifest.ImportedPackage;
+
+/**
+ * Computes a small set of bundles to refresh or uninstall so the uses conflicts of a bundle go away.
+ * <p>
+ * A conflict can be removed by refreshing the bundle whose uses constraint conflicts, as long as a provider exists that
+ * satisfies both imports (wiring conflicts only), or by uninstalling that bundle. A refresh restarts the refreshed
+ * bundle and all of its transitive dependents, so refreshing a bundle also removes the conflicts of every dependent
+ * that would have to be refreshed. Each candidate is weighted by the number of bundles it restarts that are not
+ * restarted already, starting with the dependents of the conflicting bundle itself, and candidates are picked greedily
+ * by restarted bundles per removed conflict (weighted set cover). The order they are picked in is their rank.
+ */
+public class UsesConflictRefreshPlanner {
+   /** Refresh or uninstall of one bundle */
+   private static class Candidate {
+      private final BitSet conflicts = new BitSet();
+      private final BitSet restarted;
+      private final Bundle target;
+      private final UsesConflictResolutionSuggestionType type;
+
+      public Candidate( UsesConflictResolutionSuggestionType type, Bundle target, BitSet restarted ) {
+         this.type = type;
+         this.target = target;
+         this.restarted = restarted;
+      }
+
+      /** @return Bundles restarted in addition to the ones already restarted; an uninstall always removes its target */
+      public int getCost( BitSet alreadyRestarted ) {
+         final BitSet additional = ( BitSet )restarted.clone();
+         additional.andNot( alreadyRestarted );
+         final int result = additional.cardinality();
+         return UsesConflictResolutionSuggestionType.UninstallBundle.equals( type ) ? Math.max( result, 1 ) : result;
+      }
+
+      /** @return Conflicts that are not removed yet which this candidate removes */
+      public int getRemoved( BitSet alreadyRemoved ) {
+         final BitSet result = ( BitSet )conflicts.clone();
+         result.andNot( alreadyRemoved );
+         return result.cardinality();
+      }
+
+      /** Refresh before uninstall, then lowest bundle id first */
+      public boolean isPreferredOver( Candidate other ) {
+         if( !type.equals( other.type ) ) {
+            return UsesConflictResolutionSuggestionType.RefreshBundle.equals( type );
+         }
+         return target.getBundleId() < other.target.getBundleId();
+      }
+   }
+
+   private final BundleContext bundleContext;
+   private final List<Bundle> extraBundles = new ArrayList<Bundle>();
+   private final WiringSnapshot snapshot;
+
+   /**
+    * @param bundleContext Context used to look up providers
+    * @param snapshot Wiring the dependents are taken from
+    */
+   public UsesConflictRefreshPlanner( BundleContext bundleContext, WiringSnapshot snapshot ) {
+      this.bundleContext = bundleContext;
+      this.snapshot = snapshot;
+   }
+
+   /**
+    * @param bundle Bundle that has the uses conflicts; it is restarted anyway so its dependents are free
+    * @param usesConflicts Uses conflicts of the bundle
+    * @return Suggestions that together remove all conflicts ordered by rank, best first
+    */
+   public List<UsesConflictResolutionSuggestion> plan( Bundle bundle, List<UsesConflict> usesConflicts ) {
+      final Map<String, Candidate> candidates = new LinkedHashMap<String, Candidate>();
+      final Map<Bundle, BitSet> refreshConflicts = new HashMap<Bundle, BitSet>();
+      for( int index = 0; index < usesConflicts.size(); index++ ) {
+         final UsesConflict usesConflict = usesConflicts.get( index );
+         final Bundle usesConflictBundle = usesConflict.getUsesConflictBundle();
+         if( usesConflictBundle == null ) {
+            continue;
+         }
+         getCandidate( candidates, UsesConflictResolutionSuggestionType.UninstallBundle, usesConflictBundle ).conflicts.set( index );
+         if( isRefreshResolving( usesConflict ) ) {
+            getCandidate( candidates, UsesConflictResolutionSuggestionType.RefreshBundle, usesConflictBundle );
+            if( !refreshConflicts.containsKey( usesConflictBundle ) ) {
+               refreshConflicts.put( usesConflictBundle, new BitSet() );
+            }
+            refreshConflicts.get( usesConflictBundle ).set( index );
+         }
+      }
+
+      // A refresh removes the conflicts of every bundle it cascades to
+      for( Candidate candidate : candidates.values() ) {
+         if( UsesConflictResolutionSuggestionType.RefreshBundle.equals( candidate.type ) ) {
+            for( Map.Entry<Bundle, BitSet> entry : refreshConflicts.entrySet() ) {
+               if( candidate.restarted.get( getIndex( entry.getKey() ) ) ) {
+                  candidate.conflicts.or( entry.getValue() );
+               }
+            }
+         }
+      }
+
+      final List<UsesConflictResolutionSuggestion> result = new ArrayList<UsesConflictResolutionSuggestion>();
+      final BitSet restarted = getRestarted( bundle );
+      final BitSet removed = new BitSet();
+      while( true ) {
+         Candidate best = null;
+         int bestCost = 0;
+         int bestRemoved = 0;
+         for( Candidate candidate : candidates.values() ) {
+            final int candidateRemoved = candidate.getRemoved( removed );
+            if( candidateRemoved == 0 ) {
+               continue;
+            }
+            final int candidateCost = candidate.getCost( restarted );
+            // Compare cost per removed conflict without dividing
+            final long difference = ( long )candidateCost * bestRemoved - ( long )bestCost * candidateRemoved;
+            if( best == null || difference < 0 || ( difference == 0 && candidate.isPreferredOver( best ) ) ) {
+               best = candidate;
+               bestCost = candidateCost;
+               bestRemoved = candidateRemoved;
+            }
+         }
+         if( best == null ) {
+            break;
+         }
+         final BitSet newlyRestarted = ( BitSet )best.restarted.clone();
+         newlyRestarted.andNot( restarted );
+         final BitSet newlyRemoved = ( BitSet )best.conflicts.clone();
+         newlyRemoved.andNot( removed );
+         restarted.or( best.restarted );
+         removed.or( best.conflicts );
+
+         final UsesConflictResolutionSuggestion suggestion = new UsesConflictResolutionSuggestion( best.type );
+         suggestion.setTargetBundle( best.target );
+         suggestion.setRank( result.size() + 1 );
+         for( int index = newlyRemoved.nextSetBit( 0 ); index >= 0; index = newlyRemoved.nextSetBit( index + 1 ) ) {
+            suggestion.getResolvedUsesConflicts().add( usesConflicts.get( index ) );
+         }
+         for( int index = newlyRestarted.nextSetBit( 0 ); index >= 0; index = newlyRestarted.nextSetBit( index + 1 ) ) {
+            suggestion.getRestartedBundles().add( getBundle( index ) );
+         }
+         result.add( suggestion );
+      }
+      return result;
+   }
+
+   private Bundle getBundle( int index ) {
+      return index < snapshot.getBundleCount() ? snapshot.getBundle( index ) : extraBundles.get( index - snapshot.getBundleCount() );
+   }
+
+   private Candidate getCandidate( Map<String, Candidate> candidates, UsesConflictResolutionSuggestionType type, Bundle target ) {
+      final String key = type.name() + ":" + target.getBundleId();
+      Candidate result = candidates.get( key );
+      if( result == null ) {
+         result = new Candidate( type, target, getRestarted( target ) );
+         candidates.put( key, result );
+      }
+      return result;
+   }
+
+   /** @return Index of the bundle in the snapshot; bundles installed after the snapshot are numbered after it */
+   private int getIndex( Bundle bundle ) {
+      int result = snapshot.indexOf( bundle );
+      if( result < 0 ) {
+         result = extraBundles.indexOf( bundle );
+         if( result < 0 ) {
+            extraBundles.add( bundle );
+            result = extraBundles.size() - 1;
+         }
+         result += snapshot.getBundleCount();
+      }
+      return result;
+   }
+
+   /** @return The bundle and all of its transitive dependents */
+   private BitSet getRestarted( Bundle bundle ) {
+      final BitSet result = new BitSet();
+      final int start = getIndex( bundle );
+      result.set( start );
+      final Deque<Integer> pending = new ArrayDeque<Integer>();
+      pending.push( start );
+      while( !pending.isEmpty() ) {
+         final int index = pending.pop();
+         if( index >= snapshot.getBundleCount() ) {
+            continue;
+         }
+         for( int position = snapshot.getProvidedWiresStart( index ); position < snapshot.getProvidedWiresEnd( index ); position++ ) {
+            final int requirer = snapshot.getWireRequirer( snapshot.getProvidedWire( position ) );
+            if( !result.get( requirer ) ) {
+               result.set( requirer );
+               pending.push( requirer );
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * A refresh only helps a wiring conflict and only if some bundle exports the package in a version that satisfies
+    * both the import of the conflicting bundle and the import of the bundle whose uses constraint conflicts
+    */
+   private boolean isRefreshResolving( UsesConflict usesConflict ) {
+      if( !UsesConflictType.Wiring.equals( usesConflict.getType() ) ) {
+         return false;
+      }
+      final ImportedPackage usesImport = BundleUtils.getImportedPackage( usesConflict.getUsesConflictBundle(), usesConflict.getImportedPackage().getPackageName() );
+      if( usesImport == null ) {
+         return false;
+      }
+      for( Bundle provider : BundleUtils.findBundlesThatSatisfyImport( bundleContext, usesConflict.getImportedPackage() ) ) {
+         if( BundleUtils.containsExportForImport( provider, usesImport ) ) {
+            return true;
+         }
+      }
+      return false;
+   }
+}
@@ -0,0 +1,432 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.PackedVersion;
+import tools.osgi.analyzer.api.PackedVersionRange;
+import tools.osgi.analyzer.api.ResolutionReport;
+import tools.osgi.analyzer.internal.PackageExportIndex.PackageProvider;
+
+import com.springsource.util.osgi.manifest.BundleManifest;
+import com.springsource.util.osgi.manifest.ExportedPackage;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+import com.springsource.util.osgi.manifest.Resolution;
+
+/**
+ * Dry-run resolver that answers whether a bundle or a candidate manifest would resolve without calling into the
+ * framework resolver. Bundles that are already resolved keep the wiring of the {@link WiringSnapshot}; unresolved bundles
+ * are resolved virtually by matching their imports to exports of bundles that are resolved or resolvable themselves.
+ * <p>
+ * Candidate manifests can be layered on top to ask what would happen if they were installed. A candidate hides the
+ * installed bundle with the same symbolic name.
+ * <p>
+ * Only Import-Package and the uses constraints of the exports an import is wired to are evaluated; Require-Bundle,
+ * fragments and matching attributes other than the version are not modelled. Results are memoized so an instance
+ * should be used for a single analysis and is not thread safe.
+ */
+public class VirtualResolver {
+   /** Export of an installed bundle or a candidate manifest */
+   private static class Provider {
+      private final Bundle bundle;
+      private final ExportedPackage exportedPackage;
+      private final BundleManifest manifest;
+      private final PackedVersion version;
+
+      public Provider( Bundle bundle, BundleManifest manifest, ExportedPackage exportedPackage ) {
+         this.bundle = bundle;
+         this.manifest = manifest;
+         this.exportedPackage = exportedPackage;
+         this.version = PackedVersion.of( exportedPackage );
+      }
+
+      /** @return Key of the resolution of the provider; the bundle if installed otherwise the candidate manifest */
+      public Object getOwner() {
+         return bundle != null ? bundle : manifest;
+      }
+
+      public PackedVersion getPackedVersion() {
+         return version;
+      }
+
+      public Version getVersion() {
+         return version.getVersion();
+      }
+
+      @Override
+      public String toString() {
+         return bundle != null ? String.format( "%s(%s)", bundle.getSymbolicName(), bundle.getBundleId() ) : String.format( "%s(candidate)", manifest.getBundleSymbolicName().getSymbolicName() );
+      }
+   }
+
+   /** Resolution of one bundle or candidate */
+   private static class VirtualWiring {
+      private final Map<String, Provider> providers = new LinkedHashMap<String, Provider>();
+      private final ResolutionReport report = new ResolutionReport();
+   }
+
+   private static final LatencyHistogram RESOLVE_BUNDLE = AnalyzerMetrics.getInstance().getHistogram( "resolver", "resolveBundle" );
+   private static final LatencyHistogram RESOLVE_MANIFEST = AnalyzerMetrics.getInstance().getHistogram( "resolver", "resolveManifest" );
+   private static final Comparator<Provider> VERSION_ORDER = new Comparator<Provider>() {
+      @Override
+      public int compare( Provider p1, Provider p2 ) {
+         return p2.getPackedVersion().compareTo( p1.getPackedVersion() );
+      }
+   };
+
+   private final BundleContext bundleContext;
+   private final List<BundleManifest> candidates = new ArrayList<BundleManifest>();
+   /** Resolutions that assumed an owner in progress resolves, by that owner */
+   private final Map<Object, Set<Object>> dependents = new HashMap<Object, Set<Object>>();
+   private final Set<String> hiddenSymbolicNames = new HashSet<String>();
+   /** Owners being resolved, outermost first */
+   private final List<Object> inProgress = new ArrayList<Object>();
+   private Map<String, List<Provider>> installedExports;
+   private final Map<String, List<Provider>> providersByPackage = new HashMap<String, List<Provider>>();
+   private final Map<Object, VirtualWiring> resolved = new HashMap<Object, VirtualWiring>();
+   private final WiringSnapshot snapshot;
+
+   public VirtualResolver( BundleContext bundleContext, WiringSnapshot snapshot ) {
+      this.bundleContext = bundleContext;
+      this.snapshot = snapshot;
+   }
+
+   /**
+    * Layers a candidate manifest on top of the installed bundles
+    * @param manifest Manifest of a bundle that is not installed (or an update of an installed bundle)
+    */
+   public void addCandidate( BundleManifest manifest ) {
+      candidates.add( manifest );
+      if( manifest.getBundleSymbolicName() != null && manifest.getBundleSymbolicName().getSymbolicName() != null ) {
+         hiddenSymbolicNames.add( manifest.getBundleSymbolicName().getSymbolicName() );
+      }
+      providersByPackage.clear();
+      resolved.clear();
+   }
+
+   /**
+    * @param bundle Installed bundle
+    * @return Whether the bundle is or would be resolved and the wiring of its imports
+    */
+   public ResolutionReport resolve( Bundle bundle ) {
+      final long start = System.nanoTime();
+      try {
+         return getWiring( bundle ).report;
+      }
+      finally {
+         RESOLVE_BUNDLE.recordSince( start );
+      }
+   }
+
+   /**
+    * @param manifest Manifest of a candidate bundle
+    * @return Whether the manifest would resolve against the installed bundles and candidates
+    */
+   public ResolutionReport resolve( BundleManifest manifest ) {
+      final long start = System.nanoTime();
+      try {
+         return getWiring( manifest ).report;
+      }
+      finally {
+         RESOLVE_MANIFEST.recordSince( start );
+      }
+   }
+
+   private void checkUses( VirtualWiring wiring, Map<String, List<Provider>> alternatives ) {
+      for( Map.Entry<String, Provider> entry : new ArrayList<Map.Entry<String, Provider>>( wiring.providers.entrySet() ) ) {
+         final Provider provider = entry.getValue();
+         for( String use : provider.exportedPackage.getUses() ) {
+            final Provider actual = wiring.providers.get( use );
+            final Object required = actual != null ? getSource( provider, use ) : null;
+            if( required == null || required.equals( actual.getOwner() ) ) {
+               continue;
+            }
+            Provider replacement = null;
+            for( Provider alternative : alternatives.get( use ) ) {
+               if( required.equals( alternative.getOwner() ) ) {
+                  replacement = alternative;
+                  break;
+               }
+            }
+            if( replacement != null ) {
+               wiring.providers.put( use, replacement );
+            }
+            else {
+               wiring.report.addProblem( String.format( "Uses constraint violation: %s is wired to %s but %s from %s uses it from %s", use, actual, entry.getKey(), provider, describe( required ) ) );
+            }
+         }
+      }
+   }
+
+   private String describe( Object owner ) {
+      if( owner instanceof Bundle ) {
+         return String.format( "%s(%s)", ( ( Bundle )owner ).getSymbolicName(), ( ( Bundle )owner ).getBundleId() );
+      }
+      return String.format( "%s(candidate)", ( ( BundleManifest )owner ).getBundleSymbolicName().getSymbolicName() );
+   }
+
+   private String describeMissingImport( ImportedPackage importedPackage, List<Provider> inRange ) {
+      final String importDesc = String.format( "%s %s", importedPackage.getPackageName(), importedPackage.getVersion().toParseString() );
+      final List<Provider> all = getProviders( importedPackage.getPackageName() );
+      if( all.isEmpty() ) {
+         return String.format( "Missing import %s: no bundle exports the package", importDesc );
+      }
+      if( inRange.isEmpty() ) {
+         final List<Version> versions = new ArrayList<Version>();
+         for( Provider provider : all ) {
+            versions.add( provider.getVersion() );
+         }
+         return String.format( "Missing import %s: no export in range, available versions %s", importDesc, versions );
+      }
+      return String.format( "Missing import %s: exported by %s but none of them resolve", importDesc, inRange );
+   }
+
+   private ExportedPackage getExportedPackage( Bundle bundle, String packageName ) {
+      ExportedPackage result = null;
+      for( ExportedPackage exportedPackage : BundleUtils.getExportedPackages( bundle ) ) {
+         if( exportedPackage.getPackageName().equals( packageName ) ) {
+            result = exportedPackage;
+            break;
+         }
+      }
+      return result;
+   }
+
+   private Map<String, List<Provider>> getInstalledExports() {
+      if( installedExports == null ) {
+         installedExports = new HashMap<String, List<Provider>>();
+         for( Bundle bundle : bundleContext.getBundles() ) {
+            if( bundle.getState() == Bundle.UNINSTALLED ) {
+               continue;
+            }
+            final BundleManifest manifest = BundleUtils.getBundleManifest( bundle );
+            for( ExportedPackage exportedPackage : BundleUtils.getExportedPackages( bundle ) ) {
+               List<Provider> providers = installedExports.get( exportedPackage.getPackageName() );
+               if( providers == null ) {
+                  providers = new ArrayList<Provider>();
+                  installedExports.put( exportedPackage.getPackageName(), providers );
+               }
+               providers.add( new Provider( bundle, manifest, exportedPackage ) );
+            }
+         }
+      }
+      return installedExports;
+   }
+
+   /** @return All exports of the package ordered by version, highest first */
+   private List<Provider> getProviders( String packageName ) {
+      List<Provider> result = providersByPackage.get( packageName );
+      if( result == null ) {
+         result = new ArrayList<Provider>();
+         for( BundleManifest candidate : candidates ) {
+            if( candidate.getExportPackage() != null ) {
+               for( ExportedPackage exportedPackage : candidate.getExportPackage().getExportedPackages() ) {
+                  if( exportedPackage.getPackageName().equals( packageName ) ) {
+                     result.add( new Provider( null, candidate, exportedPackage ) );
+                  }
+               }
+            }
+         }
+         if( PackageExportIndex.getInstance().isOpen() ) {
+            for( PackageProvider packageProvider : PackageExportIndex.getInstance().getProviders( packageName ) ) {
+               final Bundle bundle = bundleContext.getBundle( packageProvider.getBundleId() );
+               if( bundle != null && !hiddenSymbolicNames.contains( bundle.getSymbolicName() ) ) {
+                  result.add( new Provider( bundle, BundleUtils.getBundleManifest( bundle ), packageProvider.getExportedPackage() ) );
+               }
+            }
+         }
+         else {
+            final List<Provider> installed = getInstalledExports().get( packageName );
+            if( installed != null ) {
+               for( Provider provider : installed ) {
+                  if( !hiddenSymbolicNames.contains( provider.bundle.getSymbolicName() ) ) {
+                     result.add( provider );
+                  }
+               }
+            }
+         }
+         Collections.sort( result, VERSION_ORDER );
+         providersByPackage.put( packageName, result );
+      }
+      return result;
+   }
+
+   /**
+    * @param provider Provider of an export
+    * @param packageName Package used by the export
+    * @return Owner of the package as the provider sees it or <code>null</code> if unknown
+    */
+   private Object getSource( Provider provider, String packageName ) {
+      Object result = null;
+      if( provider.bundle != null && isResolved( provider.bundle ) ) {
+         final int bundleIndex = snapshot.indexOf( provider.bundle );
+         final int packageId = snapshot.getPackageId( packageName );
+         final int providerIndex = bundleIndex >= 0 && packageId >= 0 ? snapshot.getProvider( bundleIndex, packageId ) : -1;
+         if( providerIndex >= 0 ) {
+            result = snapshot.getBundle( providerIndex );
+         }
+      }
+      else {
+         final VirtualWiring wiring = resolved.get( provider.getOwner() );
+         final Provider source = wiring != null ? wiring.providers.get( packageName ) : null;
+         if( source != null ) {
+            result = source.getOwner();
+         }
+      }
+      if( result == null && provider.manifest.getExportPackage() != null ) {
+         for( ExportedPackage exportedPackage : provider.manifest.getExportPackage().getExportedPackages() ) {
+            if( exportedPackage.getPackageName().equals( packageName ) ) {
+               result = provider.getOwner();
+               break;
+            }
+         }
+      }
+      return result;
+   }
+
+   private VirtualWiring getWiring( Bundle bundle ) {
+      VirtualWiring result = resolved.get( bundle );
+      if( result == null ) {
+         if( bundle.getState() == Bundle.UNINSTALLED ) {
+            result = new VirtualWiring();
+            result.report.addProblem( "Bundle is uninstalled" );
+            resolved.put( bundle, result );
+         }
+         else if( isResolved( bundle ) ) {
+            result = getSnapshotWiring( bundle );
+            resolved.put( bundle, result );
+         }
+         else {
+            result = resolveImports( bundle, BundleUtils.getBundleManifest( bundle ) );
+         }
+      }
+      return result;
+   }
+
+   private VirtualWiring getWiring( BundleManifest manifest ) {
+      VirtualWiring result = resolved.get( manifest );
+      if( result == null ) {
+         result = resolveImports( manifest, manifest );
+      }
+      return result;
+   }
+
+   private VirtualWiring getSnapshotWiring( Bundle bundle ) {
+      final VirtualWiring result = new VirtualWiring();
+      final int bundleIndex = snapshot.indexOf( bundle );
+      if( bundleIndex >= 0 ) {
+         for( int wire = snapshot.getRequiredWiresStart( bundleIndex ); wire < snapshot.getRequiredWiresEnd( bundleIndex ); wire++ ) {
+            final Bundle provider = snapshot.getBundle( snapshot.getWireProvider( wire ) );
+            final String packageName = snapshot.getPackageName( snapshot.getWirePackage( wire ) );
+            final ExportedPackage exportedPackage = getExportedPackage( provider, packageName );
+            if( exportedPackage != null ) {
+               result.providers.put( packageName, new Provider( provider, BundleUtils.getBundleManifest( provider ), exportedPackage ) );
+            }
+            result.report.getProviders().put( packageName, provider );
+         }
+      }
+      return result;
+   }
+
+   private boolean isResolvable( Provider provider ) {
+      final Object owner = provider.getOwner();
+      final int index = inProgress.indexOf( owner );
+      if( index >= 0 ) {
+         // Cycle; assume it resolves and let the outer resolution decide, remembering who relied on that
+         Set<Object> assumed = dependents.get( owner );
+         if( assumed == null ) {
+            assumed = new HashSet<Object>();
+            dependents.put( owner, assumed );
+         }
+         assumed.addAll( inProgress.subList( index + 1, inProgress.size() ) );
+         return true;
+      }
+      return provider.bundle != null ? getWiring( provider.bundle ).report.isResolvable() : getWiring( provider.manifest ).report.isResolvable();
+   }
+
+   private boolean isResolved( Bundle bundle ) {
+      return ( bundle.getState() & ( Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING ) ) != 0;
+   }
+
+   private VirtualWiring resolveImports( Object owner, BundleManifest manifest ) {
+      final VirtualWiring result = new VirtualWiring();
+      final Map<String, List<Provider>> alternatives = new HashMap<String, List<Provider>>();
+      inProgress.add( owner );
+      try {
+         for( ImportedPackage importedPackage : manifest.getImportPackage().getImportedPackages() ) {
+            final List<Provider> inRange = new ArrayList<Provider>();
+            final List<Provider> resolvable = new ArrayList<Provider>();
+            final PackedVersionRange range = PackedVersionRange.of( importedPackage );
+            for( Provider provider : getProviders( importedPackage.getPackageName() ) ) {
+               if( range.includes( provider.getPackedVersion() ) ) {
+                  inRange.add( provider );
+                  if( provider.getOwner().equals( owner ) || isResolvable( provider ) ) {
+                     resolvable.add( provider );
+                  }
+               }
+            }
+            if( resolvable.isEmpty() ) {
+               if( !Resolution.OPTIONAL.equals( importedPackage.getResolution() ) ) {
+                  result.report.addProblem( describeMissingImport( importedPackage, inRange ) );
+               }
+               continue;
+            }
+            // The framework prefers providers that are already resolved
+            Provider chosen = resolvable.get( 0 );
+            for( Provider provider : resolvable ) {
+               if( provider.bundle != null && isResolved( provider.bundle ) ) {
+                  chosen = provider;
+                  break;
+               }
+            }
+            result.providers.put( importedPackage.getPackageName(), chosen );
+            alternatives.put( importedPackage.getPackageName(), resolvable );
+         }
+         checkUses( result, alternatives );
+         for( Map.Entry<String, Provider> entry : result.providers.entrySet() ) {
+            if( entry.getValue().bundle != null ) {
+               result.report.getProviders().put( entry.getKey(), entry.getValue().bundle );
+            }
+         }
+      }
+      finally {
+         inProgress.remove( inProgress.size() - 1 );
+      }
+      resolved.put( owner, result );
+      settleAssumptions( owner, result );
+      return result;
+   }
+
+   /**
+    * Forgets the resolutions that assumed the owner resolves if it does not. If it does, they still rely on whatever
+    * the owner itself assumed about the resolutions it is nested in.
+    */
+   private void settleAssumptions( Object owner, VirtualWiring wiring ) {
+      final Set<Object> assumed = dependents.remove( owner );
+      if( assumed == null ) {
+         return;
+      }
+      if( !wiring.report.isResolvable() ) {
+         resolved.keySet().removeAll( assumed );
+         return;
+      }
+      for( Object outer : inProgress ) {
+         final Set<Object> outerAssumed = dependents.get( outer );
+         if( outerAssumed != null && outerAssumed.contains( owner ) ) {
+            outerAssumed.addAll( assumed );
+         }
+      }
+   }
+}
@@ -0,0 +1,470 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageSymbols;
+import tools.osgi.analyzer.api.PackedVersion;
+import tools.osgi.analyzer.api.PackedVersionRange;
+
+/**
+ * Immutable, compact copy of the package wiring of all bundles taken at a single {@link FrameworkGeneration}. Bundle
+ * revisions and package names are interned to int ids and the wires are stored as int arrays so the graph can be
+ * traversed without touching the live framework. Each revision is a node of its own, so the wires to a removal pending
+ * revision are not merged with those to the current revision of the same bundle.
+ * <p>
+ * Wires are grouped by requiring bundle: the wires of bundle <code>i</code> are the indexes from
+ * {@link #getRequiredWiresStart(int)} (inclusive) to {@link #getRequiredWiresEnd(int)} (exclusive) in the order the
+ * framework reported them. The reverse direction is available through {@link #getProvidedWiresStart(int)},
+ * {@link #getProvidedWiresEnd(int)} and {@link #getProvidedWire(int)}.
+ * <p>
+ * The compact Export-Package and Import-Package headers of every revision are captured as well, so a walk of the graph
+ * sees the packages of the revision it is at. A removal pending revision no longer has its manifest; its headers are
+ * rebuilt from the package capabilities and requirements of its wiring.
+ */
+public final class WiringSnapshot {
+   private static final Pattern FILTER_CEILING_EXCLUSIVE = Pattern.compile( "\\(!\\(version>=([^)]+)\\)\\)" );
+   private static final Pattern FILTER_CEILING_INCLUSIVE = Pattern.compile( "\\(version<=([^)]+)\\)" );
+   private static final Pattern FILTER_FLOOR_EXCLUSIVE = Pattern.compile( "\\(!\\(version<=([^)]+)\\)\\)" );
+   private static final Pattern FILTER_FLOOR_INCLUSIVE = Pattern.compile( "\\(version>=([^)]+)\\)" );
+   private static final Pattern FILTER_PACKAGE = Pattern.compile( "\\(" + Pattern.quote( BundleRevision.PACKAGE_NAMESPACE ) + "=([^)]+)\\)" );
+   /** Number of times a capture is retried when the framework changes while it is taken */
+   private static final int MAX_CAPTURE_ATTEMPTS = 3;
+   private static final int[] NO_EXPORTERS = new int[0];
+
+   /**
+    * Takes a snapshot of the current wiring. If the generation changes while the snapshot is taken the capture is
+    * retried a few times; after that the last capture is returned marked as not {@link #isConsistent() consistent}.
+    * @param bundleContext Context used to list the bundles
+    * @param generation Generation the snapshot is tagged with
+    * @return Snapshot of the current wiring
+    */
+   public static WiringSnapshot capture( BundleContext bundleContext, FrameworkGeneration generation ) {
+      WiringSnapshot result = null;
+      for( int attempt = 1; result == null; attempt++ ) {
+         final long before = generation.get();
+         final WiringSnapshot snapshot = build( bundleContext, before );
+         if( generation.get() == before ) {
+            result = snapshot;
+         }
+         else if( attempt >= MAX_CAPTURE_ATTEMPTS ) {
+            result = new WiringSnapshot( snapshot, false );
+         }
+      }
+      return result;
+   }
+
+   private static WiringSnapshot build( BundleContext bundleContext, long generation ) {
+      // Nodes are revisions: an old revision still wired as provider (removal pending) is kept apart from the current
+      // revision of its bundle. Old revisions are found through the wires and their own wires are followed as well.
+      final Map<BundleRevision, BundleWiring> wiringsByRevision = new HashMap<BundleRevision, BundleWiring>();
+      final Set<BundleRevision> currentRevisions = new HashSet<BundleRevision>();
+      final List<BundleRevision> found = new ArrayList<BundleRevision>();
+      for( Bundle bundle : bundleContext.getBundles() ) {
+         final BundleRevision revision = bundle.adapt( BundleRevision.class );
+         if( revision != null && !wiringsByRevision.containsKey( revision ) ) {
+            wiringsByRevision.put( revision, bundle.adapt( BundleWiring.class ) );
+            currentRevisions.add( revision );
+            found.add( revision );
+         }
+      }
+      final Map<BundleRevision, List<BundleWire>> wiresByRevision = new HashMap<BundleRevision, List<BundleWire>>();
+      for( int index = 0; index < found.size(); index++ ) {
+         final List<BundleWire> wires = getRequiredWires( wiringsByRevision.get( found.get( index ) ) );
+         wiresByRevision.put( found.get( index ), wires );
+         for( BundleWire wire : wires ) {
+            final BundleRevision provider = wire.getProviderWiring().getRevision();
+            if( !wiringsByRevision.containsKey( provider ) ) {
+               wiringsByRevision.put( provider, wire.getProviderWiring() );
+               found.add( provider );
+            }
+         }
+      }
+      // Ordered by bundle id with the current revision of a bundle first
+      Collections.sort( found, new Comparator<BundleRevision>() {
+         @Override
+         public int compare( BundleRevision r1, BundleRevision r2 ) {
+            final int result = Long.compare( r1.getBundle().getBundleId(), r2.getBundle().getBundleId() );
+            return result != 0 ? result : Boolean.compare( !currentRevisions.contains( r1 ), !currentRevisions.contains( r2 ) );
+         }
+      } );
+
+      final BundleRevision[] revisions = found.toArray( new BundleRevision[found.size()] );
+      final Bundle[] bundles = new Bundle[revisions.length];
+      final long[] bundleIds = new long[revisions.length];
+      final boolean[] current = new boolean[revisions.length];
+      final Map<BundleRevision, Integer> revisionIndexes = new HashMap<BundleRevision, Integer>();
+      int wireCount = 0;
+      for( int index = 0; index < revisions.length; index++ ) {
+         bundles[index] = revisions[index].getBundle();
+         bundleIds[index] = bundles[index].getBundleId();
+         current[index] = currentRevisions.contains( revisions[index] );
+         revisionIndexes.put( revisions[index], index );
+         wireCount += wiresByRevision.get( revisions[index] ).size();
+      }
+
+      final Map<String, Integer> packageIds = new HashMap<String, Integer>();
+      final List<String> packageNames = new ArrayList<String>();
+      final int[] requiredOffsets = new int[revisions.length + 1];
+      final int[] wireRequirers = new int[wireCount];
+      final int[] wireProviders = new int[wireCount];
+      final int[] wirePackages = new int[wireCount];
+      final int[] providedCounts = new int[revisions.length];
+      int wire = 0;
+      for( int index = 0; index < revisions.length; index++ ) {
+         requiredOffsets[index] = wire;
+         for( BundleWire bundleWire : wiresByRevision.get( revisions[index] ) ) {
+            final String packageName = ( String )bundleWire.getCapability().getAttributes().get( BundleRevision.PACKAGE_NAMESPACE );
+            Integer packageId = packageIds.get( packageName );
+            if( packageId == null ) {
+               packageId = packageNames.size();
+               packageIds.put( packageName, packageId );
+               packageNames.add( packageName );
+            }
+            final int provider = revisionIndexes.get( bundleWire.getProviderWiring().getRevision() );
+            wireRequirers[wire] = index;
+            wireProviders[wire] = provider;
+            wirePackages[wire] = packageId;
+            providedCounts[provider]++;
+            wire++;
+         }
+      }
+      requiredOffsets[revisions.length] = wire;
+
+      final PackageHeader[] exportHeaders = new PackageHeader[revisions.length];
+      final PackageHeader[] importHeaders = new PackageHeader[revisions.length];
+      int symbolCount = 0;
+      for( int index = 0; index < revisions.length; index++ ) {
+         if( current[index] ) {
+            exportHeaders[index] = BundleManifestCache.getInstance().getExportPackageHeader( bundles[index] );
+            importHeaders[index] = BundleManifestCache.getInstance().getImportPackageHeader( bundles[index] );
+            for( int clause = 0; clause < exportHeaders[index].size(); clause++ ) {
+               symbolCount = Math.max( symbolCount, exportHeaders[index].getPackageSymbol( clause ) + 1 );
+            }
+         }
+         else {
+            exportHeaders[index] = toExportPackageHeader( wiringsByRevision.get( revisions[index] ) );
+            importHeaders[index] = toImportPackageHeader( wiringsByRevision.get( revisions[index] ) );
+         }
+      }
+      final int[][] exporters = new int[symbolCount][];
+      for( int index = 0; index < revisions.length; index++ ) {
+         for( int clause = 0; current[index] && clause < exportHeaders[index].size(); clause++ ) {
+            final int symbol = exportHeaders[index].getPackageSymbol( clause );
+            final int[] existing = exporters[symbol];
+            if( existing == null ) {
+               exporters[symbol] = new int[]{ index };
+            }
+            else if( existing[existing.length - 1] != index ) {
+               exporters[symbol] = Arrays.copyOf( existing, existing.length + 1 );
+               exporters[symbol][existing.length] = index;
+            }
+         }
+      }
+
+      final int[] providedOffsets = new int[revisions.length + 1];
+      for( int index = 0; index < revisions.length; index++ ) {
+         providedOffsets[index + 1] = providedOffsets[index] + providedCounts[index];
+      }
+      final int[] providedWires = new int[wireCount];
+      final int[] nextProvided = Arrays.copyOf( providedOffsets, revisions.length );
+      for( int index = 0; index < wireCount; index++ ) {
+         providedWires[nextProvided[wireProviders[index]]++] = index;
+      }
+
+      return new WiringSnapshot( generation, true, revisions, current, revisionIndexes, bundles, bundleIds, packageNames.toArray( new String[packageNames.size()] ), packageIds, requiredOffsets, wireRequirers, wireProviders, wirePackages, providedOffsets, providedWires, exportHeaders, importHeaders, exporters );
+   }
+
+   /** @return First group of the first match of the pattern in the filter; <code>null</code> if it does not match */
+   private static String getFilterValue( Pattern pattern, String filter ) {
+      final Matcher matcher = pattern.matcher( filter );
+      return matcher.find() ? matcher.group( 1 ) : null;
+   }
+
+   private static List<BundleWire> getRequiredWires( BundleWiring wiring ) {
+      final List<BundleWire> result = new ArrayList<BundleWire>();
+      final List<BundleWire> wires = wiring != null ? wiring.getRequiredWires( BundleRevision.PACKAGE_NAMESPACE ) : null;
+      if( wires != null ) {
+         for( BundleWire wire : wires ) {
+            if( wire.getProviderWiring() != null ) {
+               result.add( wire );
+            }
+         }
+      }
+      return result;
+   }
+
+   /** @return Exports of a wiring rebuilt from its package capabilities */
+   private static PackageHeader toExportPackageHeader( BundleWiring wiring ) {
+      final List<BundleCapability> capabilities = wiring != null ? wiring.getCapabilities( BundleRevision.PACKAGE_NAMESPACE ) : null;
+      final int size = capabilities != null ? capabilities.size() : 0;
+      final int[] packageSymbols = new int[size];
+      final PackedVersion[] versions = new PackedVersion[size];
+      final int[] usesIds = new int[size];
+      for( int index = 0; index < size; index++ ) {
+         final BundleCapability capability = capabilities.get( index );
+         final Object version = capability.getAttributes().get( Constants.VERSION_ATTRIBUTE );
+         packageSymbols[index] = PackageSymbols.getInstance().intern( ( String )capability.getAttributes().get( BundleRevision.PACKAGE_NAMESPACE ) );
+         versions[index] = PackedVersion.of( version instanceof Version ? ( Version )version : Version.emptyVersion );
+         final String uses = capability.getDirectives().get( Constants.USES_DIRECTIVE );
+         if( uses != null ) {
+            final String[] usedPackages = uses.split( "," );
+            final int[] useSymbols = new int[usedPackages.length];
+            for( int use = 0; use < useSymbols.length; use++ ) {
+               useSymbols[use] = PackageSymbols.getInstance().intern( usedPackages[use].trim() );
+            }
+            usesIds[index] = PackageSymbols.getInstance().internUses( useSymbols, useSymbols.length );
+         }
+      }
+      return new PackageHeader( packageSymbols, null, versions, new boolean[size], usesIds, size );
+   }
+
+   /**
+    * @return Imports of a wiring rebuilt from its package requirements; the version range is read from the filter in the
+    * form the framework generates for an Import-Package clause
+    */
+   private static PackageHeader toImportPackageHeader( BundleWiring wiring ) {
+      final List<BundleRequirement> requirements = wiring != null ? wiring.getRequirements( BundleRevision.PACKAGE_NAMESPACE ) : null;
+      final List<BundleRequirement> imports = new ArrayList<BundleRequirement>();
+      for( int index = 0; requirements != null && index < requirements.size(); index++ ) {
+         final String filter = requirements.get( index ).getDirectives().get( Constants.FILTER_DIRECTIVE );
+         if( filter != null && getFilterValue( FILTER_PACKAGE, filter ) != null ) {
+            imports.add( requirements.get( index ) );
+         }
+      }
+      final int size = imports.size();
+      final int[] packageSymbols = new int[size];
+      final PackedVersionRange[] versionRanges = new PackedVersionRange[size];
+      final boolean[] optional = new boolean[size];
+      for( int index = 0; index < size; index++ ) {
+         final String filter = imports.get( index ).getDirectives().get( Constants.FILTER_DIRECTIVE );
+         // Negated bounds first; they contain the plain patterns
+         final String floorExclusive = getFilterValue( FILTER_FLOOR_EXCLUSIVE, filter );
+         final String ceilingExclusive = getFilterValue( FILTER_CEILING_EXCLUSIVE, filter );
+         final String bounds = FILTER_CEILING_EXCLUSIVE.matcher( FILTER_FLOOR_EXCLUSIVE.matcher( filter ).replaceAll( "" ) ).replaceAll( "" );
+         final String floorInclusive = getFilterValue( FILTER_FLOOR_INCLUSIVE, bounds );
+         final String ceilingInclusive = getFilterValue( FILTER_CEILING_INCLUSIVE, bounds );
+         final String floor = floorExclusive != null ? floorExclusive : floorInclusive;
+         final String ceiling = ceilingExclusive != null ? ceilingExclusive : ceilingInclusive;
+         packageSymbols[index] = PackageSymbols.getInstance().intern( getFilterValue( FILTER_PACKAGE, filter ) );
+         versionRanges[index] = PackedVersionRange.of( PackedVersion.of( floor != null ? new Version( floor ) : Version.emptyVersion ), floorExclusive == null, ceiling != null ? PackedVersion.of( new Version( ceiling ) ) : null, ceilingInclusive != null );
+         optional[index] = Constants.RESOLUTION_OPTIONAL.equals( imports.get( index ).getDirectives().get( Constants.RESOLUTION_DIRECTIVE ) );
+      }
+      return new PackageHeader( packageSymbols, versionRanges, null, optional, new int[size], size );
+   }
+
+   private final long[] bundleIds;
+   private final Bundle[] bundles;
+   private final boolean consistent;
+   private final boolean[] current;
+   /** Current revisions exporting each package symbol, in node order */
+   private final int[][] exporters;
+   private final PackageHeader[] exportHeaders;
+   private final long generation;
+   private final PackageHeader[] importHeaders;
+   private final Map<String, Integer> packageIds;
+   private final String[] packageNames;
+   private final int[] providedOffsets;
+   private final int[] providedWires;
+   private final int[] requiredOffsets;
+   private final Map<BundleRevision, Integer> revisionIndexes;
+   private final BundleRevision[] revisions;
+   private final int[] wirePackages;
+   private final int[] wireProviders;
+   private final int[] wireRequirers;
+
+   private WiringSnapshot( long generation, boolean consistent, BundleRevision[] revisions, boolean[] current, Map<BundleRevision, Integer> revisionIndexes, Bundle[] bundles, long[] bundleIds, String[] packageNames, Map<String, Integer> packageIds, int[] requiredOffsets, int[] wireRequirers, int[] wireProviders, int[] wirePackages, int[] providedOffsets, int[] providedWires, PackageHeader[] exportHeaders, PackageHeader[] importHeaders, int[][] exporters ) {
+      this.generation = generation;
+      this.consistent = consistent;
+      this.revisions = revisions;
+      this.current = current;
+      this.revisionIndexes = revisionIndexes;
+      this.bundles = bundles;
+      this.bundleIds = bundleIds;
+      this.packageNames = packageNames;
+      this.packageIds = packageIds;
+      this.requiredOffsets = requiredOffsets;
+      this.wireRequirers = wireRequirers;
+      this.wireProviders = wireProviders;
+      this.wirePackages = wirePackages;
+      this.providedOffsets = providedOffsets;
+      this.providedWires = providedWires;
+      this.exportHeaders = exportHeaders;
+      this.importHeaders = importHeaders;
+      this.exporters = exporters;
+   }
+
+   private WiringSnapshot( WiringSnapshot snapshot, boolean consistent ) {
+      this( snapshot.generation, consistent, snapshot.revisions, snapshot.current, snapshot.revisionIndexes, snapshot.bundles, snapshot.bundleIds, snapshot.packageNames, snapshot.packageIds, snapshot.requiredOffsets, snapshot.wireRequirers, snapshot.wireProviders, snapshot.wirePackages, snapshot.providedOffsets, snapshot.providedWires, snapshot.exportHeaders, snapshot.importHeaders, snapshot.exporters );
+   }
+
+   public Bundle getBundle( int index ) {
+      return bundles[index];
+   }
+
+   public int getBundleCount() {
+      return bundles.length;
+   }
+
+   /**
+    * @param packageSymbol {@link PackageSymbols} symbol of the package
+    * @return Nodes of the current revisions that export the package, ordered by bundle id; shared, must not be modified
+    */
+   public int[] getExporters( int packageSymbol ) {
+      final int[] result = packageSymbol >= 0 && packageSymbol < exporters.length ? exporters[packageSymbol] : null;
+      return result != null ? result : NO_EXPORTERS;
+   }
+
+   /** @return Export-Package header of the revision of the node as captured with the snapshot */
+   public PackageHeader getExportPackageHeader( int index ) {
+      return exportHeaders[index];
+   }
+
+   public long getGeneration() {
+      return generation;
+   }
+
+   /** @return Import-Package header of the revision of the node as captured with the snapshot */
+   public PackageHeader getImportPackageHeader( int index ) {
+      return importHeaders[index];
+   }
+
+   /**
+    * @param packageName Name of the package
+    * @return Interned id of the package or <code>-1</code> if no wire in the snapshot is for the package
+    */
+   public int getPackageId( String packageName ) {
+      final Integer result = packageIds.get( packageName );
+      return result != null ? result : -1;
+   }
+
+   public String getPackageName( int packageId ) {
+      return packageNames[packageId];
+   }
+
+   public int getPackageCount() {
+      return packageNames.length;
+   }
+
+   /** @return Wire index of the n-th entry in the provided wire table */
+   public int getProvidedWire( int position ) {
+      return providedWires[position];
+   }
+
+   public int getProvidedWiresEnd( int bundleIndex ) {
+      return providedOffsets[bundleIndex + 1];
+   }
+
+   public int getProvidedWiresStart( int bundleIndex ) {
+      return providedOffsets[bundleIndex];
+   }
+
+   /**
+    * @param bundleIndex Index of the requiring bundle
+    * @param packageId Id of the package
+    * @return Index of the bundle the package is wired to or <code>-1</code> if it is not wired
+    */
+   public int getProvider( int bundleIndex, int packageId ) {
+      int result = -1;
+      for( int wire = requiredOffsets[bundleIndex]; wire < requiredOffsets[bundleIndex + 1]; wire++ ) {
+         if( wirePackages[wire] == packageId ) {
+            result = wireProviders[wire];
+            break;
+         }
+      }
+      return result;
+   }
+
+   /** @return Revision of the node; a bundle has more than one node while an old revision is removal pending */
+   public BundleRevision getRevision( int index ) {
+      return revisions[index];
+   }
+
+   public int getRequiredWiresEnd( int bundleIndex ) {
+      return requiredOffsets[bundleIndex + 1];
+   }
+
+   public int getRequiredWiresStart( int bundleIndex ) {
+      return requiredOffsets[bundleIndex];
+   }
+
+   public int getWireCount() {
+      return wirePackages.length;
+   }
+
+   public int getWirePackage( int wire ) {
+      return wirePackages[wire];
+   }
+
+   public int getWireProvider( int wire ) {
+      return wireProviders[wire];
+   }
+
+   public int getWireRequirer( int wire ) {
+      return wireRequirers[wire];
+   }
+
+   /**
+    * @param bundle Bundle to look up
+    * @return Index of the current revision of the bundle in the snapshot or <code>-1</code> if the bundle was not part of
+    * it
+    */
+   public int indexOf( Bundle bundle ) {
+      return indexOf( bundle.getBundleId() );
+   }
+
+   public int indexOf( long bundleId ) {
+      int result = Arrays.binarySearch( bundleIds, bundleId );
+      while( result > 0 && bundleIds[result - 1] == bundleId ) {
+         result--;
+      }
+      return result >= 0 ? result : -1;
+   }
+
+   /**
+    * @param revision Revision to look up
+    * @return Index of the revision in the snapshot or <code>-1</code> if the revision was not part of it
+    */
+   public int indexOf( BundleRevision revision ) {
+      final Integer result = revisionIndexes.get( revision );
+      return result != null ? result : -1;
+   }
+
+   /**
+    * @return <code>false</code> if the framework kept changing while the snapshot was taken so it may mix wirings of
+    * different generations; such a snapshot must not be cached
+    */
+   public boolean isConsistent() {
+      return consistent;
+   }
+
+   /** @return <code>true</code> if the node is the current revision of its bundle */
+   public boolean isCurrent( int index ) {
+      return current[index];
+   }
+
+   @Override
+   public String toString() {
+      return String.format( "WiringSnapshot(generation: %s, consistent: %s, revisions: %s, packages: %s, wires: %s)", generation, consistent, revisions.length, packageNames.length, wirePackages.length );
+   }
+}
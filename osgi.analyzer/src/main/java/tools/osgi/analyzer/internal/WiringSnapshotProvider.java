@@ -0,0 +1,52 @@
+package tools.osgi.analyzer.internal;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * Hands out the {@link WiringSnapshot} for the current {@link FrameworkGeneration}. A snapshot is shared by all callers
+ * until the generation changes; when the generation is not open every call takes a new snapshot. A snapshot that is not
+ * consistent is handed out once and not shared.
+ */
+public class WiringSnapshotProvider {
+   private static final WiringSnapshotProvider INSTANCE = new WiringSnapshotProvider();
+
+   public static WiringSnapshotProvider getInstance() {
+      return INSTANCE;
+   }
+
+   private volatile WiringSnapshot current;
+   private final FrameworkGeneration generation;
+
+   public WiringSnapshotProvider() {
+      this( FrameworkGeneration.getInstance() );
+   }
+
+   public WiringSnapshotProvider( FrameworkGeneration generation ) {
+      this.generation = generation;
+   }
+
+   public void clear() {
+      current = null;
+   }
+
+   /**
+    * @param bundleContext Context used to list the bundles if a new snapshot has to be taken
+    * @return Snapshot of the wiring at the current generation
+    */
+   public WiringSnapshot getSnapshot( BundleContext bundleContext ) {
+      if( !generation.isOpen() ) {
+         return WiringSnapshot.capture( bundleContext, generation );
+      }
+      WiringSnapshot result = current;
+      if( result == null || result.getGeneration() != generation.get() ) {
+         synchronized( this ) {
+            result = current;
+            if( result == null || result.getGeneration() != generation.get() ) {
+               result = WiringSnapshot.capture( bundleContext, generation );
+               current = result.isConsistent() ? result : null;
+            }
+         }
+      }
+      return result;
+   }
+}
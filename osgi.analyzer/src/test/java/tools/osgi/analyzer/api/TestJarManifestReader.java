@@ -0,0 +1,121 @@
+package tools.osgi.analyzer.api;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Reading the manifest of stored, deflated and zip64 jars */
+public class TestJarManifestReader {
+   private static final byte[] MANIFEST = ( "Manifest-Version: 1.0\r\n" + "Bundle-SymbolicName: test.jar\r\n" + "Import-Package: test.a;version=\"[1.0,2.0)\",\r\n" + " test.b\r\n" + "\r\n" ).getBytes();
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static void putEntry( ZipOutputStream output, String name, byte[] content, int method ) throws IOException {
+      final ZipEntry entry = new ZipEntry( name );
+      entry.setMethod( method );
+      if( method == ZipEntry.STORED ) {
+         final CRC32 crc = new CRC32();
+         crc.update( content );
+         entry.setSize( content.length );
+         entry.setCompressedSize( content.length );
+         entry.setCrc( crc.getValue() );
+      }
+      output.putNextEntry( entry );
+      output.write( content );
+      output.closeEntry();
+   }
+
+   @Test
+   public void deflatedManifestAfterOtherEntries() throws Exception {
+      // Fixture
+      final File jar = folder.newFile( "deflated.jar" );
+      final ZipOutputStream output = new ZipOutputStream( new FileOutputStream( jar ) );
+      putEntry( output, "META-INF/", new byte[0], ZipEntry.DEFLATED );
+      putEntry( output, "test/a/Type.class", new byte[1000], ZipEntry.DEFLATED );
+      putEntry( output, "META-INF/MANIFEST.MF", MANIFEST, ZipEntry.DEFLATED );
+      output.setComment( "Comment after the central directory" );
+      output.close();
+
+      // Call
+      final Hashtable<String, String> result = JarManifestReader.readHeaders( jar );
+
+      // Assert
+      Assert.assertArrayEquals( MANIFEST, JarManifestReader.readManifest( jar ) );
+      Assert.assertEquals( "test.jar", result.get( "Bundle-SymbolicName" ) );
+      Assert.assertEquals( "test.a;version=\"[1.0,2.0)\",test.b", result.get( "Import-Package" ) );
+   }
+
+   @Test
+   public void jarWithoutManifest() throws Exception {
+      // Fixture
+      final File jar = folder.newFile( "plain.jar" );
+      final ZipOutputStream output = new ZipOutputStream( new FileOutputStream( jar ) );
+      putEntry( output, "META-INF/MANIFEST.MF.bak", MANIFEST, ZipEntry.DEFLATED );
+      output.close();
+
+      // Call
+      final byte[] result = JarManifestReader.readManifest( jar );
+
+      // Assert
+      Assert.assertNull( result );
+      Assert.assertNull( JarManifestReader.readHeaders( jar ) );
+   }
+
+   @Test( expected = IOException.class )
+   public void notAZipFile() throws Exception {
+      // Fixture
+      final File jar = folder.newFile( "text.jar" );
+      final FileOutputStream output = new FileOutputStream( jar );
+      output.write( MANIFEST );
+      output.close();
+
+      // Call
+      JarManifestReader.readManifest( jar );
+   }
+
+   @Test
+   public void storedManifestWithLowerCaseName() throws Exception {
+      // Fixture
+      final File jar = folder.newFile( "stored.jar" );
+      final ZipOutputStream output = new ZipOutputStream( new FileOutputStream( jar ) );
+      putEntry( output, "test/a/Type.class", new byte[100], ZipEntry.STORED );
+      putEntry( output, "meta-inf/manifest.mf", MANIFEST, ZipEntry.STORED );
+      output.close();
+
+      // Call
+      final byte[] result = JarManifestReader.readManifest( jar );
+
+      // Assert
+      Assert.assertArrayEquals( MANIFEST, result );
+   }
+
+   @Test
+   public void zip64ArchiveIsReadThroughJarFile() throws Exception {
+      // Fixture
+      final File jar = folder.newFile( "zip64.jar" );
+      final ZipOutputStream output = new ZipOutputStream( new FileOutputStream( jar ) );
+      putEntry( output, "META-INF/MANIFEST.MF", MANIFEST, ZipEntry.DEFLATED );
+      // The entry count no longer fits the end of central directory record
+      for( int index = 0; index < 0xFFFF; index++ ) {
+         putEntry( output, String.format( "e/%s", index ), new byte[0], ZipEntry.STORED );
+      }
+      output.close();
+
+      // Call
+      final byte[] result = JarManifestReader.readManifest( jar );
+
+      // Assert
+      Assert.assertTrue( new String( result ), Arrays.equals( MANIFEST, result ) );
+   }
+}
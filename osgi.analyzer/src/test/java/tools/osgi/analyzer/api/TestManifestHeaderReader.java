@@ -0,0 +1,83 @@
+package tools.osgi.analyzer.api;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Reading selected headers of the main section of a manifest */
+public class TestManifestHeaderReader {
+
+   private static Map<String, String> read( String manifest, String... names ) throws Exception {
+      return ManifestHeaderReader.read( new ByteArrayInputStream( manifest.getBytes( "UTF-8" ) ), names );
+   }
+
+   @Test
+   public void continuationLinesAreJoined() throws Exception {
+      // Fixture
+      final String manifest = "Manifest-Version: 1.0\n" + "Import-Package: test.a;version=\"[1.0,2\n" + " .0)\",test.b\n" + "Bundle-Name: Long\n" + "  Name\n" + "\n";
+
+      // Call
+      final Map<String, String> result = read( manifest, "Import-Package", "Bundle-Name" );
+
+      // Assert
+      Assert.assertEquals( "test.a;version=\"[1.0,2.0)\",test.b", result.get( "Import-Package" ) );
+      Assert.assertEquals( "Long Name", result.get( "Bundle-Name" ) );
+   }
+
+   @Test
+   public void crLfAndCrLineEndsAreAccepted() throws Exception {
+      // Fixture
+      final String manifest = "Manifest-Version: 1.0\r\n" + "Export-Package: test.a,\r\n" + " test.b\r\n" + "Bundle-SymbolicName: test\r" + "Bundle-Version: 1.0.0\r\n" + "\r\n";
+
+      // Call
+      final Map<String, String> result = read( manifest, "Export-Package", "Bundle-SymbolicName", "Bundle-Version" );
+
+      // Assert
+      Assert.assertEquals( "test.a,test.b", result.get( "Export-Package" ) );
+      Assert.assertEquals( "test", result.get( "Bundle-SymbolicName" ) );
+      Assert.assertEquals( "1.0.0", result.get( "Bundle-Version" ) );
+   }
+
+   @Test
+   public void namesMatchIgnoringCaseInTheMainSectionOnly() throws Exception {
+      // Fixture
+      final String manifest = "bundle-symbolicname: test\n" + "Other: skipped\n" + " continued\n" + "\n" + "Name: test/Entry.class\n" + "Bundle-Version: 9.9.9\n";
+
+      // Call
+      final Map<String, String> result = read( manifest, "Bundle-SymbolicName", "Bundle-Version", "Other-Header" );
+
+      // Assert
+      Assert.assertEquals( 1, result.size() );
+      Assert.assertEquals( "test", result.get( "Bundle-SymbolicName" ) );
+   }
+
+   @Test
+   public void lastHeaderWithoutLineEndIsRead() throws Exception {
+      // Call
+      final Map<String, String> result = read( "Bundle-SymbolicName: test\nBundle-Version: 1.0.0", "Bundle-Version" );
+
+      // Assert
+      Assert.assertEquals( "1.0.0", result.get( "Bundle-Version" ) );
+   }
+
+   @Test
+   public void multiByteCharactersSplitAcrossLinesAreDecoded() throws Exception {
+      // Fixture
+      final byte[] name = "Bundle-Name: Müller".getBytes( "UTF-8" );
+      final byte[] manifest = new byte[name.length + 3];
+      System.arraycopy( name, 0, manifest, 0, name.length - 1 );
+      // Break the line between the two bytes of the umlaut
+      manifest[name.length - 1] = '\n';
+      manifest[name.length] = ' ';
+      manifest[name.length + 1] = name[name.length - 1];
+      manifest[name.length + 2] = '\n';
+
+      // Call
+      final Map<String, String> result = ManifestHeaderReader.read( new ByteArrayInputStream( manifest ), "Bundle-Name" );
+
+      // Assert
+      Assert.assertEquals( "Müller", result.get( "Bundle-Name" ) );
+   }
+}
@@ -0,0 +1,123 @@
+package tools.osgi.analyzer.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Parsing of Import-Package and Export-Package headers into compact records */
+public class TestPackageHeaderParser {
+
+   private static List<String> getUses( PackageHeader header, int index ) {
+      final List<String> result = new ArrayList<String>();
+      for( int symbol : header.getUses( index ) ) {
+         result.add( PackageSymbols.getInstance().getName( symbol ) );
+      }
+      return result;
+   }
+
+   private static void assertInvalid( String header, boolean exports ) {
+      try {
+         if( exports ) {
+            PackageHeaderParser.parseExportPackage( header );
+         }
+         else {
+            PackageHeaderParser.parseImportPackage( header );
+         }
+         Assert.fail( String.format( "Accepted: %s", header ) );
+      }
+      catch( IllegalArgumentException exception ) {
+         Assert.assertTrue( exception.getMessage(), exception.getMessage().contains( header ) );
+      }
+   }
+
+   @Test
+   public void badVersionsAreRejected() throws Exception {
+      assertInvalid( "a;version=1.x", true );
+      assertInvalid( "a;version=\"1.0.0.\"", true );
+      assertInvalid( "a;version=99999999999", true );
+      assertInvalid( "a;version=\"[1.0,2.0\"", false );
+      assertInvalid( "a;version=\"[1.0]\"", false );
+      assertInvalid( "a;version=\"[1.0,2.0)", false );
+      assertInvalid( "a;resolution:optional", false );
+      assertInvalid( "a;foo:String;version=1.0", true );
+   }
+
+   @Test
+   public void exportsWithSpecificationVersionAndUses() throws Exception {
+      // Call
+      final PackageHeader result = PackageHeaderParser.parseExportPackage( "test.a;version=\"1.2.3.q\";uses:=\"test.b, test.c\",test.d;specification-version=2.0,test.e" );
+
+      // Assert
+      Assert.assertEquals( 3, result.size() );
+      Assert.assertEquals( "test.a", result.getPackageName( 0 ) );
+      Assert.assertEquals( PackedVersion.of( 1, 2, 3, "q" ), result.getVersion( 0 ) );
+      Assert.assertEquals( "[test.b, test.c]", getUses( result, 0 ).toString() );
+      Assert.assertEquals( PackedVersion.of( 2, 0, 0, "" ), result.getVersion( 1 ) );
+      Assert.assertEquals( 0, result.getUsesId( 1 ) );
+      Assert.assertEquals( PackedVersion.of( 0, 0, 0, "" ), result.getVersion( 2 ) );
+   }
+
+   @Test
+   public void importsWithQuotedRangesAndSharedParameters() throws Exception {
+      // Call
+      final PackageHeader result = PackageHeaderParser.parseImportPackage( "test.a;test.b;version=\"[1.0,2.0)\";resolution:=optional, test.c ; version = 1.5 ,test.d;version=\"(1.0.0,1.0.0]\"" );
+
+      // Assert
+      Assert.assertEquals( 4, result.size() );
+      Assert.assertEquals( "test.b", result.getPackageName( 1 ) );
+      Assert.assertEquals( "[1.0.0,2.0.0)", result.getVersionRange( 0 ).toString() );
+      Assert.assertSame( result.getVersionRange( 0 ), result.getVersionRange( 1 ) );
+      Assert.assertTrue( result.isOptional( 0 ) );
+      Assert.assertTrue( result.isOptional( 1 ) );
+      Assert.assertEquals( 2, result.indexOf( "test.c" ) );
+      Assert.assertFalse( result.isOptional( 2 ) );
+      Assert.assertEquals( "1.5.0", result.getVersionRange( 2 ).toString() );
+      Assert.assertNull( result.getVersionRange( 2 ).getCeiling() );
+      Assert.assertFalse( result.getVersionRange( 3 ).includes( PackedVersion.of( 1, 0, 0, "" ) ) );
+   }
+
+   @Test
+   public void quotedSeparatorsDoNotSplitClauses() throws Exception {
+      // Call
+      final PackageHeader imports = PackageHeaderParser.parseImportPackage( "test.a;filter=\"x,y;z\";version=\"[1,2)\",test.b" );
+      final PackageHeader exports = PackageHeaderParser.parseExportPackage( "test.a;uses:=\"test.b,test.c\";mandatory:=\"x,y\";version=1.0,test.b" );
+
+      // Assert
+      Assert.assertEquals( 2, imports.size() );
+      Assert.assertEquals( "[1.0.0,2.0.0)", imports.getVersionRange( 0 ).toString() );
+      Assert.assertEquals( "test.b", imports.getPackageName( 1 ) );
+      Assert.assertEquals( 2, exports.size() );
+      Assert.assertEquals( "[test.b, test.c]", getUses( exports, 0 ).toString() );
+      Assert.assertEquals( PackedVersion.of( 1, 0, 0, "" ), exports.getVersion( 0 ) );
+   }
+
+   @Test
+   public void usesIsIgnoredOnImportsAndAbsentHeadersAreEmpty() throws Exception {
+      // Call
+      final PackageHeader imports = PackageHeaderParser.parseImportPackage( "test.a;uses:=\"test.b\"" );
+
+      // Assert
+      Assert.assertEquals( 0, imports.getUsesId( 0 ) );
+      Assert.assertSame( PackageHeader.EMPTY, PackageHeaderParser.parseImportPackage( null ) );
+      Assert.assertSame( PackageHeader.EMPTY, PackageHeaderParser.parseExportPackage( null ) );
+      Assert.assertEquals( 0, PackageHeaderParser.parseImportPackage( "" ).size() );
+   }
+
+   @Test
+   public void typedAttributesAreParsedWithoutTheirType() throws Exception {
+      // Call
+      final PackageHeader exports = PackageHeaderParser.parseExportPackage( "test.a;version:Version=\"1.2\";foo:List<String>=\"a,b\";uses:=test.b,test.c" );
+      final PackageHeader imports = PackageHeaderParser.parseImportPackage( "test.a;version : Version=\"[1.0,2.0)\";bar:Long=5;resolution:=optional" );
+
+      // Assert
+      Assert.assertEquals( 2, exports.size() );
+      Assert.assertEquals( PackedVersion.of( 1, 2, 0, "" ), exports.getVersion( 0 ) );
+      Assert.assertEquals( "[test.b]", getUses( exports, 0 ).toString() );
+      Assert.assertEquals( "test.c", exports.getPackageName( 1 ) );
+      Assert.assertEquals( 1, imports.size() );
+      Assert.assertEquals( "[1.0.0,2.0.0)", imports.getVersionRange( 0 ).toString() );
+      Assert.assertTrue( imports.isOptional( 0 ) );
+   }
+}
@@ -0,0 +1,82 @@
+package tools.osgi.analyzer.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Version;
+
+/** Order of packed versions at the limits of the packed layout and with qualifiers */
+public class TestPackedVersion {
+
+   @Test
+   public void componentsAreOrderedAcrossTheirBits() throws Exception {
+      // Fixture
+      final PackedVersion maxMicro = PackedVersion.of( 0, 0, Integer.MAX_VALUE, "" );
+      final PackedVersion nextMinor = PackedVersion.of( 0, 1, 0, "" );
+      final PackedVersion maxMinor = PackedVersion.of( 1, 65535, Integer.MAX_VALUE, "" );
+      final PackedVersion nextMajor = PackedVersion.of( 2, 0, 0, "" );
+
+      // Call
+      final int microToMinor = maxMicro.compareTo( nextMinor );
+      final int minorToMajor = maxMinor.compareTo( nextMajor );
+
+      // Assert
+      Assert.assertTrue( microToMinor < 0 );
+      Assert.assertTrue( minorToMajor < 0 );
+      Assert.assertTrue( nextMajor.compareTo( maxMinor ) > 0 );
+   }
+
+   @Test
+   public void largestPackableVersionRoundTrips() throws Exception {
+      // Fixture
+      final Version version = new Version( 65535, 65535, Integer.MAX_VALUE, "q" );
+
+      // Call
+      final PackedVersion result = PackedVersion.of( 65535, 65535, Integer.MAX_VALUE, "q" );
+
+      // Assert
+      Assert.assertNotEquals( PackedVersion.UNPACKABLE, result.getBits() );
+      Assert.assertTrue( result.getBits() > 0 );
+      Assert.assertEquals( version, result.getVersion() );
+      Assert.assertEquals( "65535.65535.2147483647.q", result.toString() );
+   }
+
+   @Test
+   public void unpackableVersionsCompareWithPackedOnes() throws Exception {
+      // Fixture
+      final PackedVersion largestPacked = PackedVersion.of( 65535, 65535, Integer.MAX_VALUE, "" );
+      final PackedVersion majorTooLarge = PackedVersion.of( 65536, 0, 0, "" );
+      final PackedVersion minorTooLarge = PackedVersion.of( 1, 65536, 0, "" );
+      final PackedVersion nextMajor = PackedVersion.of( 2, 0, 0, "" );
+
+      // Call
+      final int packedToUnpackable = largestPacked.compareTo( majorTooLarge );
+
+      // Assert
+      Assert.assertEquals( PackedVersion.UNPACKABLE, majorTooLarge.getBits() );
+      Assert.assertEquals( PackedVersion.UNPACKABLE, minorTooLarge.getBits() );
+      Assert.assertTrue( packedToUnpackable < 0 );
+      Assert.assertTrue( majorTooLarge.compareTo( largestPacked ) > 0 );
+      Assert.assertTrue( minorTooLarge.compareTo( nextMajor ) < 0 );
+      Assert.assertEquals( new Version( 1, 65536, 0 ), minorTooLarge.getVersion() );
+   }
+
+   @Test
+   public void qualifiersOrderEqualNumericParts() throws Exception {
+      // Fixture
+      final PackedVersion release = PackedVersion.of( new Version( "1.2.3" ) );
+      final PackedVersion alpha = PackedVersion.of( new Version( "1.2.3.alpha" ) );
+      final PackedVersion beta = PackedVersion.of( 1, 2, 3, "beta" );
+      final PackedVersion nextMicro = PackedVersion.of( 1, 2, 4, "" );
+
+      // Call
+      final int releaseToAlpha = release.compareTo( alpha );
+
+      // Assert
+      Assert.assertTrue( releaseToAlpha < 0 );
+      Assert.assertTrue( alpha.compareTo( beta ) < 0 );
+      Assert.assertTrue( beta.compareTo( nextMicro ) < 0 );
+      Assert.assertEquals( beta, PackedVersion.of( new Version( "1.2.3.beta" ) ) );
+      Assert.assertEquals( beta.hashCode(), PackedVersion.of( new Version( "1.2.3.beta" ) ).hashCode() );
+      Assert.assertFalse( alpha.equals( beta ) );
+   }
+}
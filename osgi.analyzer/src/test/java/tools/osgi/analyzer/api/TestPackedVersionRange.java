@@ -0,0 +1,102 @@
+package tools.osgi.analyzer.api;
+
+import java.util.Hashtable;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+import com.springsource.util.osgi.VersionRange;
+import com.springsource.util.osgi.manifest.BundleManifestFactory;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
+
+/** Inclusion and intersection of packed version ranges at their bounds */
+public class TestPackedVersionRange {
+
+   private static PackedVersion version( String version ) {
+      return PackedVersion.of( new Version( version ) );
+   }
+
+   private static List<ImportedPackage> imports( String importPackage ) {
+      final Hashtable<String, String> headers = new Hashtable<String, String>();
+      headers.put( Constants.IMPORT_PACKAGE, importPackage );
+      return BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() ).getImportPackage().getImportedPackages();
+   }
+
+   private static PackedVersionRange range( String range ) {
+      return PackedVersionRange.of( new VersionRange( range ) );
+   }
+
+   @Test
+   public void boundsAreIncludedAsDeclared() throws Exception {
+      // Fixture
+      final PackedVersionRange halfOpen = range( "[1.0.0,2.0.0)" );
+      final PackedVersionRange open = range( "(1.0.0,2.0.0]" );
+      final PackedVersionRange unbounded = range( "1.5.0" );
+
+      // Assert
+      Assert.assertTrue( halfOpen.includes( version( "1.0.0" ) ) );
+      Assert.assertTrue( halfOpen.includes( version( "1.99999.0" ) ) );
+      Assert.assertFalse( halfOpen.includes( version( "2.0.0" ) ) );
+      Assert.assertFalse( open.includes( version( "1.0.0" ) ) );
+      Assert.assertTrue( open.includes( version( "2.0.0" ) ) );
+      Assert.assertFalse( unbounded.includes( version( "1.4.9" ) ) );
+      Assert.assertTrue( unbounded.includes( version( "70000.0.0" ) ) );
+      Assert.assertNull( unbounded.getCeiling() );
+   }
+
+   @Test
+   public void importRangesAreCachedBySpecificationVersionToo() throws Exception {
+      // Fixture
+      final List<ImportedPackage> unversionedFirst = imports( "a,b;specification-version=\"2.0.0\"" );
+      final List<ImportedPackage> specificationVersionFirst = imports( "c;specification-version=\"3.0.0\",d" );
+
+      // Call
+      final PackedVersionRange a = PackedVersionRange.of( unversionedFirst.get( 0 ) );
+      final PackedVersionRange b = PackedVersionRange.of( unversionedFirst.get( 1 ) );
+      final PackedVersionRange c = PackedVersionRange.of( specificationVersionFirst.get( 0 ) );
+      final PackedVersionRange d = PackedVersionRange.of( specificationVersionFirst.get( 1 ) );
+
+      // Assert
+      Assert.assertEquals( version( "0.0.0" ), a.getFloor() );
+      Assert.assertEquals( version( "2.0.0" ), b.getFloor() );
+      Assert.assertEquals( version( "3.0.0" ), c.getFloor() );
+      Assert.assertEquals( version( "0.0.0" ), d.getFloor() );
+   }
+
+   @Test
+   public void qualifiersAreWithinTheirNumericBounds() throws Exception {
+      // Fixture
+      final PackedVersionRange range = range( "[1.0.0,1.0.0.m)" );
+
+      // Assert
+      Assert.assertTrue( range.includes( version( "1.0.0" ) ) );
+      Assert.assertTrue( range.includes( version( "1.0.0.a" ) ) );
+      Assert.assertFalse( range.includes( version( "1.0.0.m" ) ) );
+      Assert.assertFalse( range.includes( version( "1.0.0.z" ) ) );
+      Assert.assertTrue( range( "(1.0.0,2.0.0)" ).includes( version( "1.0.0.a" ) ) );
+   }
+
+   @Test
+   public void rangesTouchingAtABoundIntersectOnlyIfBothInclude() throws Exception {
+      // Assert
+      Assert.assertFalse( range( "[1.0.0,2.0.0)" ).intersects( range( "[2.0.0,3.0.0)" ) ) );
+      Assert.assertTrue( range( "[1.0.0,2.0.0]" ).intersects( range( "[2.0.0,3.0.0)" ) ) );
+      Assert.assertFalse( range( "[1.0.0,2.0.0]" ).intersects( range( "(2.0.0,3.0.0)" ) ) );
+      Assert.assertTrue( range( "[1.0.0,3.0.0)" ).intersects( range( "[2.0.0,2.5.0)" ) ) );
+      Assert.assertFalse( range( "[1.0.0,1.0.0.m)" ).intersects( range( "[1.0.0.m,2.0.0)" ) ) );
+   }
+
+   @Test
+   public void unboundedRangesIntersectEveryRangeAboveTheirFloor() throws Exception {
+      // Assert
+      Assert.assertTrue( range( "1.0.0" ).intersects( range( "[0.0.0,1.0.0]" ) ) );
+      Assert.assertFalse( range( "1.0.0" ).intersects( range( "[0.0.0,1.0.0)" ) ) );
+      Assert.assertTrue( range( "[0.0.0,1.0.0]" ).intersects( range( "1.0.0" ) ) );
+      Assert.assertTrue( range( "1.0.0" ).intersects( range( "2.0.0" ) ) );
+      Assert.assertTrue( range( "1.0.0" ).intersects( range( "[65536.0.0,65537.0.0)" ) ) );
+   }
+}
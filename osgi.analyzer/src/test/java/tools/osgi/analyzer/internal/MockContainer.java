@@ -0,0 +1,545 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import com.springsource.util.osgi.VersionRange;
+import com.springsource.util.osgi.manifest.BundleManifest;
+import com.springsource.util.osgi.manifest.BundleManifestFactory;
+import com.springsource.util.osgi.manifest.ExportedPackage;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+import com.springsource.util.osgi.manifest.Resolution;
+import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
+
+/**
+ * In-memory framework for the analyzer tests. Bundles are installed with their headers and wired explicitly; updates
+ * and refreshes create new revisions and wirings the way a framework does. Services registered through the context can
+ * be looked up again. The framework objects are dynamic proxies answering only the calls the analyzer makes.
+ */
+public class MockContainer {
+   /** Answer of a proxied method computed from its arguments */
+   static interface Answer {
+      Object answer( Object[] args );
+   }
+
+   /** State of one bundle */
+   private class MockBundle {
+      private final Bundle bundle;
+      private final Hashtable<String, String> headers = new Hashtable<String, String>();
+      private final long id;
+      private long lastModified;
+      private BundleRevision revision;
+      private int state = Bundle.INSTALLED;
+      private MockWiring wiring;
+
+      private MockBundle( long id, String symbolicName, String version ) {
+         this.id = id;
+         headers.put( "Bundle-ManifestVersion", "2" );
+         headers.put( "Bundle-SymbolicName", symbolicName );
+         headers.put( "Bundle-Version", version );
+         this.bundle = createBundle( this );
+         this.revision = createRevision( this );
+      }
+   }
+
+   /** Wiring of one revision */
+   private static class MockWiring {
+      private ClassLoader classLoader = new URLClassLoader( new URL[0], null );
+      private boolean current = true;
+      private boolean inUse = true;
+      private final List<BundleWire> providedWires = new ArrayList<BundleWire>();
+      private final List<BundleWire> requiredWires = new ArrayList<BundleWire>();
+      private BundleWiring wiring;
+   }
+
+   /** @return Proxy of the type answering the calls of the named methods; other calls of non-void methods fail */
+   @SuppressWarnings("unchecked")
+   static <T> T proxy( final Class<T> type, final String description, final Map<String, Object> answers ) {
+      return ( T )Proxy.newProxyInstance( MockContainer.class.getClassLoader(), new Class<?>[]{ type }, new InvocationHandler() {
+         @Override
+         public Object invoke( Object proxy, Method method, Object[] args ) {
+            final String name = method.getName();
+            if( "equals".equals( name ) && args != null && args.length == 1 ) {
+               return proxy == args[0];
+            }
+            if( "hashCode".equals( name ) && args == null ) {
+               return System.identityHashCode( proxy );
+            }
+            if( "toString".equals( name ) && args == null ) {
+               return description;
+            }
+            if( answers.containsKey( name ) ) {
+               final Object answer = answers.get( name );
+               return answer instanceof Answer ? ( ( Answer )answer ).answer( args ) : answer;
+            }
+            if( method.getReturnType() == void.class ) {
+               return null;
+            }
+            throw new UnsupportedOperationException( String.format( "%s.%s is not supported by the mock container", type.getSimpleName(), name ) );
+         }
+      } );
+   }
+
+   private final BundleContext bundleContext;
+   private final List<BundleListener> bundleListeners = new ArrayList<BundleListener>();
+   private final Map<Long, MockBundle> bundles = new HashMap<Long, MockBundle>();
+   private File dataArea;
+   private final List<FrameworkListener> frameworkListeners = new ArrayList<FrameworkListener>();
+   private long nextId;
+   private final List<Bundle> removalPending = new ArrayList<Bundle>();
+   private final Map<String, ServiceReference<?>> references = new HashMap<String, ServiceReference<?>>();
+   private final Map<ServiceReference<?>, Object> services = new HashMap<ServiceReference<?>, Object>();
+
+   /** Creates the container with the resolved system bundle */
+   public MockContainer() {
+      this.bundleContext = createBundleContext();
+      resolve( install( "system.bundle", "1.0.0", null, null ) );
+   }
+
+   public BundleContext getBundleContext() {
+      return bundleContext;
+   }
+
+   /** @param dataArea Directory of the files returned by getDataFile; <code>null</code> for no file system support */
+   public void setDataArea( File dataArea ) {
+      this.dataArea = dataArea;
+   }
+
+   /** @return Current wiring of the bundle; <code>null</code> if it is not resolved */
+   public BundleWiring getWiring( Bundle bundle ) {
+      final MockWiring wiring = bundles.get( bundle.getBundleId() ).wiring;
+      return wiring != null ? wiring.wiring : null;
+   }
+
+   /**
+    * Installs a bundle in state {@link Bundle#INSTALLED}
+    * @param symbolicName Symbolic name of the bundle
+    * @param version Version of the bundle
+    * @param exportPackage Export-Package header; <code>null</code> for none
+    * @param importPackage Import-Package header; <code>null</code> for none
+    * @return Installed bundle
+    */
+   public Bundle install( String symbolicName, String version, String exportPackage, String importPackage ) {
+      final MockBundle result = new MockBundle( nextId++, symbolicName, version );
+      if( exportPackage != null ) {
+         result.headers.put( "Export-Package", exportPackage );
+      }
+      if( importPackage != null ) {
+         result.headers.put( "Import-Package", importPackage );
+      }
+      bundles.put( result.id, result );
+      fireBundleEvent( BundleEvent.INSTALLED, result.bundle );
+      return result.bundle;
+   }
+
+   /**
+    * Refreshes the bundles: their wirings are no longer in use, the current revisions are resolved with new wirings
+    * without wires and the removal pending list is cleared
+    * @param refreshed Bundles to refresh
+    */
+   public void refresh( Bundle... refreshed ) {
+      for( Bundle bundle : refreshed ) {
+         final MockBundle mock = bundles.get( bundle.getBundleId() );
+         if( mock.wiring != null ) {
+            mock.wiring.current = false;
+            mock.wiring.inUse = false;
+            mock.wiring = null;
+            mock.state = Bundle.INSTALLED;
+            fireBundleEvent( BundleEvent.UNRESOLVED, bundle );
+         }
+      }
+      for( Bundle bundle : refreshed ) {
+         resolve( bundle );
+      }
+      removalPending.clear();
+      final FrameworkEvent event = new FrameworkEvent( FrameworkEvent.PACKAGES_REFRESHED, bundles.get( 0L ).bundle, null );
+      for( FrameworkListener listener : new ArrayList<FrameworkListener>( frameworkListeners ) ) {
+         listener.frameworkEvent( event );
+      }
+   }
+
+   /**
+    * Resolves the current revision of the bundle with a wiring without wires
+    * @param bundle Bundle in state {@link Bundle#INSTALLED}
+    */
+   public void resolve( Bundle bundle ) {
+      final MockBundle mock = bundles.get( bundle.getBundleId() );
+      mock.wiring = createWiring( mock );
+      mock.state = mock.id == 0 ? Bundle.ACTIVE : Bundle.RESOLVED;
+      fireBundleEvent( BundleEvent.RESOLVED, bundle );
+   }
+
+   /**
+    * Uninstalls the bundle; its wiring stays in use until it is refreshed
+    * @param bundle Bundle to uninstall
+    */
+   public void uninstall( Bundle bundle ) {
+      final MockBundle mock = bundles.get( bundle.getBundleId() );
+      mock.state = Bundle.UNINSTALLED;
+      if( mock.wiring != null ) {
+         mock.wiring.current = false;
+         removalPending.add( bundle );
+      }
+      bundles.remove( mock.id );
+      fireBundleEvent( BundleEvent.UNINSTALLED, bundle );
+   }
+
+   /**
+    * Updates the bundle with new headers and last modified time; its wiring stays in use by the bundles wired to it
+    * until it is refreshed
+    * @param bundle Bundle to update
+    * @param exportPackage Export-Package header of the new revision; <code>null</code> for none
+    * @param importPackage Import-Package header of the new revision; <code>null</code> for none
+    */
+   public void update( Bundle bundle, String exportPackage, String importPackage ) {
+      final MockBundle mock = bundles.get( bundle.getBundleId() );
+      if( mock.wiring != null ) {
+         mock.wiring.current = false;
+         mock.wiring = null;
+         removalPending.add( bundle );
+      }
+      mock.headers.remove( "Export-Package" );
+      mock.headers.remove( "Import-Package" );
+      if( exportPackage != null ) {
+         mock.headers.put( "Export-Package", exportPackage );
+      }
+      if( importPackage != null ) {
+         mock.headers.put( "Import-Package", importPackage );
+      }
+      mock.revision = createRevision( mock );
+      mock.lastModified++;
+      mock.state = Bundle.INSTALLED;
+      fireBundleEvent( BundleEvent.UPDATED, bundle );
+   }
+
+   /**
+    * Wires the import of the package of the requirer to the current wiring of the provider
+    * @param requirer Resolved bundle importing the package
+    * @param packageName Name of the package
+    * @param version Version the provider exports the package with
+    * @param uses Uses directive of the export; <code>null</code> for none
+    * @param provider Resolved bundle exporting the package
+    */
+   public void wire( Bundle requirer, String packageName, String version, String uses, Bundle provider ) {
+      final MockWiring requirerWiring = bundles.get( requirer.getBundleId() ).wiring;
+      final MockWiring providerWiring = bundles.get( provider.getBundleId() ).wiring;
+      final Map<String, Object> attributes = new HashMap<String, Object>();
+      attributes.put( BundleRevision.PACKAGE_NAMESPACE, packageName );
+      attributes.put( "version", new Version( version ) );
+      final Map<String, String> directives = new HashMap<String, String>();
+      if( uses != null ) {
+         directives.put( "uses", uses );
+      }
+      final Map<String, Object> capabilityAnswers = new HashMap<String, Object>();
+      capabilityAnswers.put( "getNamespace", BundleRevision.PACKAGE_NAMESPACE );
+      capabilityAnswers.put( "getAttributes", attributes );
+      capabilityAnswers.put( "getDirectives", directives );
+      capabilityAnswers.put( "getRevision", providerWiring.wiring.getRevision() );
+      final BundleCapability capability = proxy( BundleCapability.class, packageName, capabilityAnswers );
+
+      final Map<String, Object> wireAnswers = new HashMap<String, Object>();
+      wireAnswers.put( "getCapability", capability );
+      wireAnswers.put( "getProvider", providerWiring.wiring.getRevision() );
+      wireAnswers.put( "getProviderWiring", providerWiring.wiring );
+      wireAnswers.put( "getRequirer", requirerWiring.wiring.getRevision() );
+      wireAnswers.put( "getRequirerWiring", requirerWiring.wiring );
+      final BundleWire wire = proxy( BundleWire.class, String.format( "%s -> %s: %s", requirer.getBundleId(), provider.getBundleId(), packageName ), wireAnswers );
+      requirerWiring.requiredWires.add( wire );
+      providerWiring.providedWires.add( wire );
+   }
+
+   private Bundle createBundle( final MockBundle mock ) {
+      final String description = String.format( "%s(%s)", mock.headers.get( "Bundle-SymbolicName" ), mock.id );
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundleId", mock.id );
+      answers.put( "getSymbolicName", mock.headers.get( "Bundle-SymbolicName" ) );
+      answers.put( "getVersion", new Version( mock.headers.get( "Bundle-Version" ) ) );
+      answers.put( "getLocation", "mock:" + description );
+      answers.put( "getLastModified", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return mock.lastModified;
+         }
+      } );
+      answers.put( "getHeaders", mock.headers );
+      answers.put( "getBundleContext", bundleContext );
+      answers.put( "getState", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return mock.state;
+         }
+      } );
+      answers.put( "compareTo", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return Long.compare( mock.id, ( ( Bundle )args[0] ).getBundleId() );
+         }
+      } );
+      answers.put( "adapt", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final Object type = args[0];
+            if( BundleWiring.class.equals( type ) ) {
+               return mock.wiring != null ? mock.wiring.wiring : null;
+            }
+            if( BundleRevision.class.equals( type ) ) {
+               return mock.revision;
+            }
+            if( FrameworkWiring.class.equals( type ) && mock.id == 0 ) {
+               return createFrameworkWiring();
+            }
+            return null;
+         }
+      } );
+      return proxy( Bundle.class, description, answers );
+   }
+
+   private BundleContext createBundleContext() {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundles", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final List<Bundle> result = new ArrayList<Bundle>();
+            for( MockBundle mock : bundles.values() ) {
+               result.add( mock.bundle );
+            }
+            Collections.sort( result );
+            return result.toArray( new Bundle[result.size()] );
+         }
+      } );
+      answers.put( "getBundle", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final MockBundle mock = bundles.get( args == null ? 0L : args[0] );
+            return mock != null ? mock.bundle : null;
+         }
+      } );
+      answers.put( "addBundleListener", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            bundleListeners.add( ( BundleListener )args[0] );
+            return null;
+         }
+      } );
+      answers.put( "removeBundleListener", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            bundleListeners.remove( args[0] );
+            return null;
+         }
+      } );
+      answers.put( "addFrameworkListener", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            frameworkListeners.add( ( FrameworkListener )args[0] );
+            return null;
+         }
+      } );
+      answers.put( "removeFrameworkListener", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            frameworkListeners.remove( args[0] );
+            return null;
+         }
+      } );
+      answers.put( "registerService", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return registerService( args[0] instanceof Class ? new String[]{ ( ( Class<?> )args[0] ).getName() } : args[0] instanceof String ? new String[]{ ( String )args[0] } : ( String[] )args[0], args[1] );
+         }
+      } );
+      answers.put( "getServiceReference", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return references.get( args[0] instanceof Class ? ( ( Class<?> )args[0] ).getName() : args[0] );
+         }
+      } );
+      answers.put( "getService", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return services.get( args[0] );
+         }
+      } );
+      answers.put( "ungetService", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return services.containsKey( args[0] );
+         }
+      } );
+      answers.put( "getServiceReferences", null );
+      answers.put( "getDataFile", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return dataArea != null ? new File( dataArea, ( String )args[0] ) : null;
+         }
+      } );
+      answers.put( "getProperty", null );
+      return proxy( BundleContext.class, "MockContainer", answers );
+   }
+
+   private FrameworkWiring createFrameworkWiring() {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundle", bundles.get( 0L ).bundle );
+      answers.put( "getRemovalPendingBundles", new ArrayList<Bundle>( removalPending ) );
+      return proxy( FrameworkWiring.class, "MockContainer wiring", answers );
+   }
+
+   private BundleRevision createRevision( MockBundle mock ) {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundle", mock.bundle );
+      answers.put( "getSymbolicName", mock.headers.get( "Bundle-SymbolicName" ) );
+      answers.put( "getVersion", new Version( mock.headers.get( "Bundle-Version" ) ) );
+      answers.put( "getTypes", 0 );
+      return proxy( BundleRevision.class, String.format( "%s revision", mock.bundle ), answers );
+   }
+
+   /** @return Package capabilities of the Export-Package header as the framework declares them */
+   private List<BundleCapability> createCapabilities( MockBundle mock, BundleManifest manifest ) {
+      final List<BundleCapability> result = new ArrayList<BundleCapability>();
+      for( ExportedPackage exportedPackage : manifest.getExportPackage().getExportedPackages() ) {
+         final Map<String, Object> attributes = new HashMap<String, Object>();
+         attributes.put( BundleRevision.PACKAGE_NAMESPACE, exportedPackage.getPackageName() );
+         attributes.put( "version", exportedPackage.getVersion() );
+         final Map<String, String> directives = new HashMap<String, String>();
+         final StringBuilder uses = new StringBuilder();
+         for( String use : exportedPackage.getUses() ) {
+            uses.append( uses.length() > 0 ? "," : "" ).append( use );
+         }
+         if( uses.length() > 0 ) {
+            directives.put( "uses", uses.toString() );
+         }
+         final Map<String, Object> answers = new HashMap<String, Object>();
+         answers.put( "getNamespace", BundleRevision.PACKAGE_NAMESPACE );
+         answers.put( "getAttributes", attributes );
+         answers.put( "getDirectives", directives );
+         answers.put( "getRevision", mock.revision );
+         result.add( proxy( BundleCapability.class, exportedPackage.getPackageName(), answers ) );
+      }
+      return result;
+   }
+
+   /** @return Package requirements of the Import-Package header with the filter the framework generates */
+   private List<BundleRequirement> createRequirements( MockBundle mock, BundleManifest manifest ) {
+      final List<BundleRequirement> result = new ArrayList<BundleRequirement>();
+      for( ImportedPackage importedPackage : manifest.getImportPackage().getImportedPackages() ) {
+         final VersionRange range = importedPackage.getVersion();
+         final StringBuilder filter = new StringBuilder( "(&(" ).append( BundleRevision.PACKAGE_NAMESPACE ).append( "=" ).append( importedPackage.getPackageName() ).append( ")" );
+         filter.append( range.isFloorInclusive() ? "(version>=" + range.getFloor() + ")" : "(!(version<=" + range.getFloor() + "))" );
+         if( range.getCeiling() != null ) {
+            filter.append( range.isCeilingInclusive() ? "(version<=" + range.getCeiling() + ")" : "(!(version>=" + range.getCeiling() + "))" );
+         }
+         filter.append( ")" );
+         final Map<String, String> directives = new HashMap<String, String>();
+         directives.put( "filter", filter.toString() );
+         if( Resolution.OPTIONAL.equals( importedPackage.getResolution() ) ) {
+            directives.put( "resolution", "optional" );
+         }
+         final Map<String, Object> answers = new HashMap<String, Object>();
+         answers.put( "getNamespace", BundleRevision.PACKAGE_NAMESPACE );
+         answers.put( "getAttributes", new HashMap<String, Object>() );
+         answers.put( "getDirectives", directives );
+         answers.put( "getRevision", mock.revision );
+         result.add( proxy( BundleRequirement.class, filter.toString(), answers ) );
+      }
+      return result;
+   }
+
+   private MockWiring createWiring( MockBundle mock ) {
+      final MockWiring result = new MockWiring();
+      final BundleManifest manifest = BundleManifestFactory.createBundleManifest( mock.headers, new DummyParserLogger() );
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundle", mock.bundle );
+      answers.put( "getRevision", mock.revision );
+      answers.put( "getCapabilities", createCapabilities( mock, manifest ) );
+      answers.put( "getRequirements", createRequirements( mock, manifest ) );
+      answers.put( "getClassLoader", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return result.classLoader;
+         }
+      } );
+      answers.put( "isCurrent", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return result.current;
+         }
+      } );
+      answers.put( "isInUse", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return result.inUse;
+         }
+      } );
+      answers.put( "getRequiredWires", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return new ArrayList<BundleWire>( result.requiredWires );
+         }
+      } );
+      answers.put( "getProvidedWires", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return new ArrayList<BundleWire>( result.providedWires );
+         }
+      } );
+      result.wiring = proxy( BundleWiring.class, String.format( "%s wiring", mock.bundle ), answers );
+      return result;
+   }
+
+   private void fireBundleEvent( int type, Bundle bundle ) {
+      final BundleEvent event = new BundleEvent( type, bundle );
+      for( BundleListener listener : new ArrayList<BundleListener>( bundleListeners ) ) {
+         listener.bundleChanged( event );
+      }
+   }
+
+   /** @return Registration of the service; the last service registered under a name is the one looked up */
+   private ServiceRegistration<?> registerService( final String[] names, Object service ) {
+      final ServiceReference<?> reference = proxy( ServiceReference.class, String.valueOf( service ), new HashMap<String, Object>() );
+      for( String name : names ) {
+         references.put( name, reference );
+      }
+      services.put( reference, service );
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getReference", reference );
+      answers.put( "unregister", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            for( String name : names ) {
+               if( references.get( name ) == reference ) {
+                  references.remove( name );
+               }
+            }
+            services.remove( reference );
+            return null;
+         }
+      } );
+      return proxy( ServiceRegistration.class, String.valueOf( service ), answers );
+   }
+}
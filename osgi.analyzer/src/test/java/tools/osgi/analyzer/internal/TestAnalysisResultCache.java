@@ -0,0 +1,192 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Single flight computation and invalidation of cached analysis results */
+public class TestAnalysisResultCache {
+   /** Generation that is open and only changes when the test says so */
+   private static class TestGeneration extends FrameworkGeneration {
+      private volatile long value = 1;
+      private volatile boolean open = true;
+
+      @Override
+      public long get() {
+         return value;
+      }
+
+      @Override
+      public boolean isOpen() {
+         return open;
+      }
+   }
+
+   /** Computation counting its calls */
+   private static class CountingComputation implements Callable<String> {
+      private final AtomicInteger calls = new AtomicInteger();
+
+      @Override
+      public String call() throws Exception {
+         return String.format( "result %s", calls.incrementAndGet() );
+      }
+   }
+
+   @Test
+   public void closedGenerationCachesNothing() throws Exception {
+      // Fixture
+      final TestGeneration generation = new TestGeneration();
+      generation.open = false;
+      final AnalysisResultCache cache = new AnalysisResultCache( generation );
+      final CountingComputation computation = new CountingComputation();
+
+      // Call
+      cache.get( computation, "query" );
+      final String result = cache.get( computation, "query" );
+
+      // Assert
+      Assert.assertEquals( "result 2", result );
+      Assert.assertEquals( 0, cache.size() );
+   }
+
+   @Test
+   public void concurrentCallersShareOneComputation() throws Exception {
+      // Fixture
+      final AnalysisResultCache cache = new AnalysisResultCache( new TestGeneration() );
+      final CountDownLatch started = new CountDownLatch( 1 );
+      final CountDownLatch release = new CountDownLatch( 1 );
+      final AtomicInteger calls = new AtomicInteger();
+      final Callable<Object> computation = new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            calls.incrementAndGet();
+            started.countDown();
+            release.await();
+            return new Object();
+         }
+      };
+      final List<Object> results = new ArrayList<Object>();
+      final List<Thread> threads = new ArrayList<Thread>();
+      for( int thread = 0; thread < 4; thread++ ) {
+         threads.add( new Thread() {
+            @Override
+            public void run() {
+               final Object result = cache.get( computation, "query", 1 );
+               synchronized( results ) {
+                  results.add( result );
+               }
+            }
+         } );
+      }
+
+      // Call
+      for( Thread thread : threads ) {
+         thread.start();
+      }
+      Assert.assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+      // Give the other callers time to find the running computation
+      Thread.sleep( 100 );
+      release.countDown();
+      for( Thread thread : threads ) {
+         thread.join();
+      }
+
+      // Assert
+      Assert.assertEquals( 1, calls.get() );
+      Assert.assertEquals( 4, results.size() );
+      for( Object result : results ) {
+         Assert.assertSame( results.get( 0 ), result );
+      }
+   }
+
+   @Test
+   public void failuresAreNotCached() throws Exception {
+      // Fixture
+      final AnalysisResultCache cache = new AnalysisResultCache( new TestGeneration() );
+      final AtomicInteger calls = new AtomicInteger();
+      final Callable<String> computation = new Callable<String>() {
+         @Override
+         public String call() throws Exception {
+            if( calls.incrementAndGet() == 1 ) {
+               throw new IllegalStateException( "first" );
+            }
+            if( calls.get() == 2 ) {
+               throw new IOException( "second" );
+            }
+            return "third";
+         }
+      };
+
+      // Call
+      try {
+         cache.get( computation, "query" );
+         Assert.fail();
+      }
+      catch( IllegalStateException exception ) {
+         Assert.assertEquals( "first", exception.getMessage() );
+      }
+      try {
+         cache.get( computation, "query" );
+         Assert.fail();
+      }
+      catch( RuntimeException exception ) {
+         Assert.assertTrue( exception.getCause() instanceof IOException );
+      }
+      final String result = cache.get( computation, "query" );
+
+      // Assert
+      Assert.assertEquals( "third", result );
+      Assert.assertEquals( "third", cache.get( computation, "query" ) );
+      Assert.assertEquals( 3, calls.get() );
+      Assert.assertEquals( 1, cache.size() );
+   }
+
+   @Test
+   public void newGenerationEvictsOlderResults() throws Exception {
+      // Fixture
+      final TestGeneration generation = new TestGeneration();
+      final AnalysisResultCache cache = new AnalysisResultCache( generation );
+      final CountingComputation computation = new CountingComputation();
+      cache.get( computation, "query", 1 );
+      cache.get( computation, "query", 2 );
+      Assert.assertEquals( "result 1", cache.get( computation, "query", 1 ) );
+
+      // Call
+      generation.value++;
+      final String result = cache.get( computation, "query", 1 );
+
+      // Assert
+      Assert.assertEquals( "result 3", result );
+      Assert.assertEquals( 1, cache.size() );
+   }
+
+   @Test
+   public void resultComputedDuringAChangeIsNotKept() throws Exception {
+      // Fixture
+      final TestGeneration generation = new TestGeneration();
+      final AnalysisResultCache cache = new AnalysisResultCache( generation );
+      final CountingComputation computation = new CountingComputation();
+      final Callable<String> changing = new Callable<String>() {
+         @Override
+         public String call() throws Exception {
+            generation.value++;
+            return computation.call();
+         }
+      };
+
+      // Call
+      final String result = cache.get( changing, "query" );
+
+      // Assert
+      Assert.assertEquals( "result 1", result );
+      Assert.assertEquals( 0, cache.size() );
+      Assert.assertEquals( "result 2", cache.get( computation, "query" ) );
+   }
+}
@@ -0,0 +1,63 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.PackageHeader;
+
+import com.springsource.util.osgi.manifest.ImportedPackage;
+
+/** Compact package headers of bundles whose headers can not be parsed and the cache behind {@link BundleUtils} */
+public class TestBundleManifestCache {
+
+   @After
+   public void tearDown() {
+      PackageExportIndex.getInstance().close();
+      BundleManifestCache.getInstance().close();
+   }
+
+   @Test
+   public void bundleUtilsReadsFromTheCacheOnlyWhileItIsOpen() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle exporter = container.install( "test.exporter", "1.0.0", "test.a;version=1.0.0", null );
+      final Bundle importer = container.install( "test.importer", "1.0.0", null, "test.a;version=\"[1.0,2.0)\"" );
+      final ImportedPackage importedPackage = BundleUtils.getImportedPackage( importer, "test.a" );
+
+      // Call
+      BundleManifestCache.getInstance().open( container.getBundleContext() );
+      PackageExportIndex.getInstance().open( container.getBundleContext() );
+
+      // Assert
+      Assert.assertSame( BundleUtils.getBundleManifest( exporter ), BundleUtils.getBundleManifest( exporter ) );
+      Assert.assertEquals( Arrays.asList( exporter ), BundleUtils.findBundlesThatSatisfyImport( container.getBundleContext(), importedPackage ) );
+      BundleManifestCache.getInstance().close();
+      Assert.assertNotSame( BundleUtils.getBundleManifest( exporter ), BundleUtils.getBundleManifest( exporter ) );
+      Assert.assertTrue( BundleUtils.containsExportForImport( exporter, importedPackage ) );
+   }
+
+   @Test
+   public void invalidHeaderOnlyDropsItsBundle() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle invalid = container.install( "test.invalid", "1.0.0", "test.a;version=99999999999", null );
+      container.install( "test.valid", "1.0.0", "test.a;version=1.0.0", null );
+      final Counter parseFailures = AnalyzerMetrics.getInstance().getCounter( "cache", "packageHeader.parseFailures" );
+      final long failures = parseFailures.getCount();
+
+      // Call
+      PackageExportIndex.getInstance().open( container.getBundleContext() );
+      final PackageHeader exports = BundleManifestCache.getInstance().getExportPackageHeader( invalid );
+
+      // Assert
+      Assert.assertEquals( 0, exports.size() );
+      Assert.assertEquals( failures + 1, parseFailures.getCount() );
+      Assert.assertEquals( 1, PackageExportIndex.getInstance().getProviders( "test.a" ).length );
+      Assert.assertEquals( 2, PackageExportIndex.getInstance().getProviders( "test.a" )[0].getBundleId() );
+   }
+}
@@ -0,0 +1,91 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+import tools.osgi.analyzer.internal.ClassLoaderLeakDetector.LeakedLoader;
+
+/** Leak detection of class loaders of refreshed bundles together with the class loading tracer */
+public class TestClassLoaderLeakDetector {
+
+   /** @return Class being defined by the wiring as passed to the weaving hook */
+   private static WovenClass createWovenClass( BundleWiring wiring ) {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundleWiring", wiring );
+      answers.put( "getBytes", new byte[128] );
+      answers.put( "getClassName", "test.refreshed.Woven" );
+      return MockContainer.proxy( WovenClass.class, "test.refreshed.Woven", answers );
+   }
+
+   @After
+   public void tearDown() {
+      ClassLoadingTracer.getInstance().close();
+      ClassLoaderLeakDetector.getInstance().close();
+   }
+
+   @Test
+   public void refreshedBundleWithoutReferencesIsNotReported() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle bundle = container.install( "test.refreshed", "1.0.0", "test.refreshed;version=1.0.0", null );
+      container.resolve( bundle );
+      ClassLoaderLeakDetector.getInstance().open( container.getBundleContext() );
+      ClassLoadingTracer.getInstance().open( container.getBundleContext() );
+      ClassLoadingTracer.getInstance().weave( createWovenClass( container.getWiring( bundle ) ) );
+
+      // Call
+      container.refresh( bundle );
+      final List<LeakedLoader> result = ClassLoaderLeakDetector.getInstance().findLeaks( true, false );
+
+      // Assert
+      Assert.assertEquals( 1, ClassLoadingTracer.getInstance().getClassLoadings().size() );
+      Assert.assertTrue( String.format( "Reported: %s", result ), result.isEmpty() );
+   }
+
+   @Test
+   public void refreshedBundleWithRetainedLoaderIsReported() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle bundle = container.install( "test.refreshed", "1.0.0", "test.refreshed;version=1.0.0", null );
+      container.resolve( bundle );
+      ClassLoaderLeakDetector.getInstance().open( container.getBundleContext() );
+      ClassLoadingTracer.getInstance().open( container.getBundleContext() );
+      ClassLoadingTracer.getInstance().weave( createWovenClass( container.getWiring( bundle ) ) );
+      final ClassLoader retained = container.getWiring( bundle ).getClassLoader();
+
+      // Call
+      container.refresh( bundle );
+      final List<LeakedLoader> result = ClassLoaderLeakDetector.getInstance().findLeaks( true, false );
+
+      // Assert
+      Assert.assertEquals( 1, result.size() );
+      Assert.assertEquals( bundle.getBundleId(), result.get( 0 ).getBundleId() );
+      Assert.assertEquals( 1, result.get( 0 ).getRefreshes() );
+      Assert.assertEquals( String.valueOf( retained ), result.get( 0 ).getLoader() );
+   }
+
+   @Test
+   public void uninstalledBundleIsDroppedFromTracer() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle bundle = container.install( "test.uninstalled", "1.0.0", null, null );
+      container.resolve( bundle );
+      ClassLoadingTracer.getInstance().open( container.getBundleContext() );
+      ClassLoadingTracer.getInstance().weave( createWovenClass( container.getWiring( bundle ) ) );
+
+      // Call
+      container.uninstall( bundle );
+
+      // Assert
+      Assert.assertTrue( ClassLoadingTracer.getInstance().getClassLoadings().isEmpty() );
+      Assert.assertFalse( AnalyzerMetrics.getInstance().getCounters().containsKey( "tools.osgi.analyzer:type=Counter,group=classes,name=test.uninstalled-1.0.0" ) );
+   }
+}
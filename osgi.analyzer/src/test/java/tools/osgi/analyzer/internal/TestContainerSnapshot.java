@@ -0,0 +1,184 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+import tools.osgi.analyzer.internal.ContainerSnapshot.BundleRecord;
+import tools.osgi.analyzer.internal.ContainerSnapshot.ExportRecord;
+import tools.osgi.analyzer.internal.ContainerSnapshot.WireRecord;
+
+/** Writing and reading container snapshots for offline analysis */
+@SuppressWarnings("deprecation")
+public class TestContainerSnapshot {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static void assertEquals( ContainerSnapshot expected, ContainerSnapshot actual ) {
+      Assert.assertEquals( expected.getCaptured(), actual.getCaptured() );
+      Assert.assertEquals( expected.getGeneration(), actual.getGeneration() );
+      Assert.assertEquals( expected.getBundles().size(), actual.getBundles().size() );
+      for( int index = 0; index < expected.getBundles().size(); index++ ) {
+         final BundleRecord expectedBundle = expected.getBundles().get( index );
+         final BundleRecord actualBundle = actual.getBundles().get( index );
+         Assert.assertEquals( expectedBundle.getId(), actualBundle.getId() );
+         Assert.assertEquals( expectedBundle.getLocation(), actualBundle.getLocation() );
+         Assert.assertEquals( expectedBundle.getState(), actualBundle.getState() );
+         Assert.assertEquals( expectedBundle.getLastModified(), actualBundle.getLastModified() );
+         Assert.assertEquals( expectedBundle.getSymbolicName(), actualBundle.getSymbolicName() );
+         Assert.assertEquals( expectedBundle.getVersion(), actualBundle.getVersion() );
+         Assert.assertEquals( expectedBundle.getTypes(), actualBundle.getTypes() );
+         Assert.assertEquals( expectedBundle.isInstalled(), actualBundle.isInstalled() );
+         Assert.assertEquals( expectedBundle.isRemovalPending(), actualBundle.isRemovalPending() );
+         Assert.assertEquals( expectedBundle.isWired(), actualBundle.isWired() );
+         Assert.assertEquals( expectedBundle.isWiringCurrent(), actualBundle.isWiringCurrent() );
+         Assert.assertEquals( expectedBundle.isWiringInUse(), actualBundle.isWiringInUse() );
+         Assert.assertEquals( new ArrayList<String>( expectedBundle.getHeaders().keySet() ), new ArrayList<String>( actualBundle.getHeaders().keySet() ) );
+         Assert.assertEquals( expectedBundle.getHeaders(), actualBundle.getHeaders() );
+         Assert.assertEquals( expectedBundle.getExports().size(), actualBundle.getExports().size() );
+         for( int export = 0; export < expectedBundle.getExports().size(); export++ ) {
+            final ExportRecord expectedExport = expectedBundle.getExports().get( export );
+            final ExportRecord actualExport = actualBundle.getExports().get( export );
+            Assert.assertEquals( expectedExport.getPackageName(), actualExport.getPackageName() );
+            Assert.assertEquals( expectedExport.getVersion(), actualExport.getVersion() );
+            Assert.assertEquals( expectedExport.isRemovalPending(), actualExport.isRemovalPending() );
+         }
+      }
+      Assert.assertEquals( expected.getWires().size(), actual.getWires().size() );
+      for( int index = 0; index < expected.getWires().size(); index++ ) {
+         final WireRecord expectedWire = expected.getWires().get( index );
+         final WireRecord actualWire = actual.getWires().get( index );
+         Assert.assertEquals( expectedWire.getRequirerId(), actualWire.getRequirerId() );
+         Assert.assertEquals( expectedWire.getProviderId(), actualWire.getProviderId() );
+         Assert.assertEquals( expectedWire.isProviderWiringCurrent(), actualWire.isProviderWiringCurrent() );
+         Assert.assertEquals( expectedWire.getAttributes(), actualWire.getAttributes() );
+         Assert.assertEquals( expectedWire.getDirectives(), actualWire.getDirectives() );
+      }
+   }
+
+   private static ExportedPackage createExportedPackage( String name, String version, boolean removalPending ) {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getName", name );
+      answers.put( "getVersion", new Version( version ) );
+      answers.put( "isRemovalPending", removalPending );
+      return MockContainer.proxy( ExportedPackage.class, name, answers );
+   }
+
+   /** @return Container with a removal pending revision, an uninstalled provider and a package admin */
+   private static MockContainer createContainer() {
+      final MockContainer result = new MockContainer();
+      final Bundle provider = result.install( "test.provider", "1.0.0", "test.p;version=1.0.0;uses:=test.u", null );
+      final Bundle uninstalled = result.install( "test.uninstalled", "1.0.0.q", "test.u", null );
+      final Bundle consumer = result.install( "test.consumer", "1.0.0", null, "test.p,test.u" );
+      result.resolve( provider );
+      result.resolve( uninstalled );
+      result.resolve( consumer );
+      result.wire( consumer, "test.p", "1.0.0", "test.u", provider );
+      result.wire( consumer, "test.u", "0.0.0", null, uninstalled );
+      result.update( provider, "test.p;version=2.0.0", null );
+      result.resolve( provider );
+      result.uninstall( uninstalled );
+
+      final Map<Long, ExportedPackage[]> exports = new HashMap<Long, ExportedPackage[]>();
+      exports.put( provider.getBundleId(), new ExportedPackage[]{ createExportedPackage( "test.p", "2.0.0", false ), createExportedPackage( "test.p", "1.0.0", true ) } );
+      exports.put( uninstalled.getBundleId(), new ExportedPackage[]{ createExportedPackage( "test.u", "0.0.0", true ) } );
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getExportedPackages", new MockContainer.Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return exports.get( ( ( Bundle )args[0] ).getBundleId() );
+         }
+      } );
+      result.getBundleContext().registerService( PackageAdmin.class, MockContainer.proxy( PackageAdmin.class, "PackageAdmin", answers ), null );
+      return result;
+   }
+
+   @Test
+   public void capturedContainerIsReadBackUnchanged() throws Exception {
+      // Fixture
+      final Map<String, Map<String, String>> installed = new LinkedHashMap<String, Map<String, String>>();
+      installed.put( "file:test.installed.jar", new HashMap<String, String>() );
+      installed.get( "file:test.installed.jar" ).put( "Bundle-Version", "invalid" );
+      final ContainerSnapshot snapshot = ContainerSnapshot.capture( createContainer().getBundleContext() ).install( installed );
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+      // Call
+      snapshot.write( output );
+      final ContainerSnapshot result = ContainerSnapshot.read( new ByteArrayInputStream( output.toByteArray() ) );
+
+      // Assert
+      assertEquals( snapshot, result );
+      final List<BundleRecord> bundles = result.getBundles();
+      Assert.assertEquals( 5, bundles.size() );
+      Assert.assertEquals( 2, bundles.get( 1 ).getExports().size() );
+      Assert.assertTrue( bundles.get( 1 ).getExports().get( 1 ).isRemovalPending() );
+      Assert.assertFalse( bundles.get( 2 ).isInstalled() );
+      Assert.assertTrue( bundles.get( 2 ).isRemovalPending() );
+      Assert.assertEquals( "1.0.0.q", bundles.get( 2 ).getVersion() );
+      Assert.assertEquals( "test.p;version=2.0.0", bundles.get( 1 ).getHeaders().get( "Export-Package" ) );
+      Assert.assertNull( bundles.get( 4 ).getSymbolicName() );
+      Assert.assertEquals( 4, bundles.get( 4 ).getId() );
+      Assert.assertEquals( "0.0.0", bundles.get( 4 ).getVersion() );
+      Assert.assertEquals( 2, result.getWires().size() );
+      final WireRecord wire = result.getWires().get( 0 );
+      Assert.assertEquals( "test.p", wire.getPackageName() );
+      Assert.assertFalse( wire.isProviderWiringCurrent() );
+      Assert.assertEquals( new Version( "1.0.0" ), wire.getAttributes().get( "version" ) );
+      Assert.assertEquals( "test.u", wire.getDirectives().get( "uses" ) );
+   }
+
+   @Test
+   public void fileIsReplacedByTheNewSnapshot() throws Exception {
+      // Fixture
+      final File file = folder.newFile( "container.snapshot" );
+      ContainerSnapshot.empty().write( file );
+      final ContainerSnapshot snapshot = ContainerSnapshot.capture( createContainer().getBundleContext() );
+
+      // Call
+      snapshot.write( file );
+      final ContainerSnapshot result = ContainerSnapshot.read( file );
+
+      // Assert
+      assertEquals( snapshot, result );
+      Assert.assertFalse( new File( file.getPath() + ".tmp" ).exists() );
+   }
+
+   @Test
+   public void otherFormatsAreRejected() throws Exception {
+      for( int[] header : new int[][]{ { 0x12345678, 1 }, { 0x4F534E50, 2 } } ) {
+         // Fixture
+         final ByteArrayOutputStream output = new ByteArrayOutputStream();
+         final DataOutputStream data = new DataOutputStream( new GZIPOutputStream( output ) );
+         data.writeInt( header[0] );
+         data.writeInt( header[1] );
+         data.close();
+
+         try {
+            // Call
+            ContainerSnapshot.read( new ByteArrayInputStream( output.toByteArray() ) );
+            Assert.fail();
+         }
+         catch( IOException exception ) {
+            // Assert
+            Assert.assertTrue( exception.getMessage(), exception.getMessage().startsWith( header[1] == 1 ? "Not a container snapshot" : "Unsupported snapshot format version 2" ) );
+         }
+      }
+   }
+}
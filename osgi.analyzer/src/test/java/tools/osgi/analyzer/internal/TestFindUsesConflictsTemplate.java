@@ -0,0 +1,66 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.Hashtable;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+import tools.osgi.analyzer.api.UsesConflict;
+import tools.osgi.analyzer.api.UsesConflictType;
+import tools.osgi.analyzer.internal.FindUsesConflictsTemplate.BundleManifestFindUsesConflictsCallback;
+
+import com.springsource.util.osgi.manifest.BundleManifest;
+import com.springsource.util.osgi.manifest.BundleManifestFactory;
+import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
+
+/** Walk of the wiring snapshot for the uses conflicts of a manifest */
+public class TestFindUsesConflictsTemplate {
+
+   private static BundleManifest manifest( String symbolicName, String importPackage ) {
+      final Hashtable<String, String> headers = new Hashtable<String, String>();
+      headers.put( Constants.BUNDLE_MANIFESTVERSION, "2" );
+      headers.put( Constants.BUNDLE_SYMBOLICNAME, symbolicName );
+      headers.put( Constants.BUNDLE_VERSION, "1.0.0" );
+      headers.put( Constants.IMPORT_PACKAGE, importPackage );
+      return BundleManifestFactory.createBundleManifest( headers, new DummyParserLogger() );
+   }
+
+   @After
+   public void tearDown() {
+      BundleManifestCache.getInstance().clear();
+   }
+
+   @Test
+   public void removalPendingRevisionIsWalkedWithItsOwnPackages() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle library = container.install( "test.library", "1.0.0", "test.l;version=1.0.0", null );
+      final Bundle provider = container.install( "test.provider", "1.0.0", "test.p;version=1.0.0;uses:=test.l", "test.l;version=\"[1.0,2.0)\"" );
+      final Bundle service = container.install( "test.service", "1.0.0", "test.s;uses:=test.p", "test.p;version=\"[1.0,2.0)\"" );
+      container.resolve( library );
+      container.resolve( provider );
+      container.resolve( service );
+      container.wire( provider, "test.l", "1.0.0", null, library );
+      container.wire( service, "test.p", "1.0.0", "test.l", provider );
+      container.update( provider, "test.p;version=2.0.0", null );
+      container.resolve( provider );
+      final BundleManifest manifest = manifest( "test.candidate", "test.s,test.l;version=\"[2.0,3.0)\"" );
+      final WiringSnapshot snapshot = WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() );
+
+      // Call
+      final List<UsesConflict> result = new FindUsesConflictsTemplate( container.getBundleContext(), snapshot ).find( new BundleManifestFindUsesConflictsCallback( manifest ) );
+
+      // Assert
+      Assert.assertEquals( result.toString(), 2, result.size() );
+      Assert.assertEquals( UsesConflictType.Header, result.get( 0 ).getType() );
+      Assert.assertSame( provider, result.get( 0 ).getUsesConflictBundle() );
+      Assert.assertEquals( "[1.0.0,2.0.0)", result.get( 0 ).getUsesConflictImportedPackage().getVersion().toParseString() );
+      Assert.assertEquals( UsesConflictType.Wiring, result.get( 1 ).getType() );
+      Assert.assertSame( provider, result.get( 1 ).getUsesConflictBundle() );
+      Assert.assertEquals( "1.0.0", result.get( 1 ).getUsesConflictExportedPackage().getVersion().toString() );
+   }
+}
@@ -0,0 +1,124 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Bucketing, percentiles and concurrent recording of the latency histogram */
+public class TestLatencyHistogram {
+
+   @Test
+   public void concurrentRecordingLosesNoValues() throws Exception {
+      // Fixture
+      final LatencyHistogram histogram = new LatencyHistogram();
+      final List<Thread> threads = new ArrayList<Thread>();
+      for( int thread = 0; thread < 4; thread++ ) {
+         threads.add( new Thread() {
+            @Override
+            public void run() {
+               for( int value = 1; value <= 10000; value++ ) {
+                  histogram.record( value * 1000L );
+               }
+            }
+         } );
+      }
+
+      // Call
+      for( Thread thread : threads ) {
+         thread.start();
+      }
+      for( Thread thread : threads ) {
+         thread.join();
+      }
+
+      // Assert
+      Assert.assertEquals( 40000, histogram.getCount() );
+      Assert.assertEquals( 4 * 10000L * 10001 / 2, histogram.getTotalMicros() );
+      Assert.assertEquals( 10000, histogram.getMaxMicros() );
+      Assert.assertEquals( 10000, histogram.getP999Micros(), 10000 / 32 );
+   }
+
+   @Test
+   public void emptyAndResetHistogramsAreZero() throws Exception {
+      // Fixture
+      final LatencyHistogram histogram = new LatencyHistogram();
+      Assert.assertEquals( 0, histogram.getPercentile( 50 ) );
+      Assert.assertEquals( 0, histogram.getMeanMicros(), 0 );
+      histogram.record( 5000000 );
+
+      // Call
+      histogram.reset();
+
+      // Assert
+      Assert.assertEquals( 0, histogram.getCount() );
+      Assert.assertEquals( 0, histogram.getMaxMicros() );
+      Assert.assertEquals( 0, histogram.getTotalMicros() );
+      Assert.assertEquals( 0, histogram.getP99Micros() );
+   }
+
+   @Test
+   public void outOfRangeValuesAreClamped() throws Exception {
+      // Fixture
+      final LatencyHistogram histogram = new LatencyHistogram();
+
+      // Call
+      histogram.record( -10 );
+      histogram.record( Long.MAX_VALUE );
+
+      // Assert
+      Assert.assertEquals( 2, histogram.getCount() );
+      Assert.assertEquals( 0, histogram.getPercentile( 50 ) );
+      Assert.assertEquals( ( 1L << 41 ) - 1, histogram.getPercentile( 100 ) );
+   }
+
+   @Test
+   public void percentilesAreExactForSmallValues() throws Exception {
+      // Fixture
+      final LatencyHistogram histogram = new LatencyHistogram();
+
+      // Call
+      for( int value = 1; value <= 64; value++ ) {
+         histogram.record( value );
+      }
+
+      // Assert
+      Assert.assertEquals( 32, histogram.getPercentile( 50 ) );
+      Assert.assertEquals( 58, histogram.getPercentile( 90 ) );
+      Assert.assertEquals( 64, histogram.getPercentile( 100 ) );
+      Assert.assertEquals( 1, histogram.getPercentile( 0 ) );
+   }
+
+   @Test
+   public void percentilesStayWithinTheRelativeError() throws Exception {
+      for( long value = 1; value < 1L << 40; value = value * 3 / 2 + 1 ) {
+         // Fixture
+         final LatencyHistogram histogram = new LatencyHistogram();
+         histogram.record( value );
+         histogram.record( Long.MAX_VALUE );
+
+         // Call
+         final long result = histogram.getPercentile( 50 );
+
+         // Assert
+         Assert.assertTrue( String.format( "%s: %s", value, result ), result >= value && result <= value + value / 32 );
+      }
+   }
+
+   @Test
+   public void valuesAreReportedInMicroseconds() throws Exception {
+      // Fixture
+      final LatencyHistogram histogram = new LatencyHistogram();
+
+      // Call
+      histogram.record( 1500000 );
+      histogram.record( 500000 );
+
+      // Assert
+      Assert.assertEquals( 1000.0, histogram.getMeanMicros(), 0.001 );
+      Assert.assertEquals( 1500, histogram.getMaxMicros() );
+      Assert.assertEquals( 2000, histogram.getTotalMicros() );
+      Assert.assertEquals( 500, histogram.getP50Micros(), 500 / 32 );
+   }
+}
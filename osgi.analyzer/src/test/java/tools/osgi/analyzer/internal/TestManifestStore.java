@@ -0,0 +1,104 @@
+package tools.osgi.analyzer.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageSymbols;
+import tools.osgi.analyzer.api.PackedVersion;
+
+/** Saving and loading of the compact package headers across container restarts */
+public class TestManifestStore {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static MockContainer createContainer( File dataArea ) {
+      final MockContainer result = new MockContainer();
+      result.setDataArea( dataArea );
+      result.install( "test.a", "1.0.0", "test.a;version=\"1.2.3.q\";uses:=\"test.b,test.c\",test.d", "test.b;version=\"[1.0,2.0)\";resolution:=optional,test.c" );
+      result.install( "test.b", "2.0.0", "test.b;version=1.5", null );
+      return result;
+   }
+
+   @After
+   public void tearDown() {
+      ManifestStore.getInstance().close();
+      BundleManifestCache.getInstance().close();
+   }
+
+   @Test
+   public void corruptStoreIsCountedAndIgnored() throws Exception {
+      // Fixture
+      final MockContainer container = createContainer( folder.getRoot() );
+      final FileOutputStream output = new FileOutputStream( new File( folder.getRoot(), "manifest-store.dat" ) );
+      output.write( new byte[]{ 0, 0, 0, 1, 0, 0, 0, 9 } );
+      output.close();
+      final Counter loadFailures = AnalyzerMetrics.getInstance().getCounter( "cache", "manifestStore.loadFailures" );
+      final long failures = loadFailures.getCount();
+
+      // Call
+      ManifestStore.getInstance().open( container.getBundleContext() );
+
+      // Assert
+      Assert.assertEquals( failures + 1, loadFailures.getCount() );
+      Assert.assertEquals( 0, ManifestStore.getInstance().size() );
+      Assert.assertNull( ManifestStore.getInstance().getExportPackageHeader( container.getBundleContext().getBundle( 1 ) ) );
+   }
+
+   @Test
+   public void savedHeadersAreLoadedAfterRestart() throws Exception {
+      // Fixture
+      final MockContainer container = createContainer( folder.getRoot() );
+      final Bundle bundle = container.getBundleContext().getBundle( 1 );
+      ManifestStore.getInstance().open( container.getBundleContext() );
+      Assert.assertEquals( 0, ManifestStore.getInstance().size() );
+      ManifestStore.getInstance().close();
+
+      // Call
+      ManifestStore.getInstance().open( createContainer( folder.getRoot() ).getBundleContext() );
+      final PackageHeader exports = ManifestStore.getInstance().getExportPackageHeader( bundle );
+      final PackageHeader imports = ManifestStore.getInstance().getImportPackageHeader( bundle );
+
+      // Assert
+      Assert.assertEquals( 3, ManifestStore.getInstance().size() );
+      Assert.assertEquals( 2, exports.size() );
+      Assert.assertEquals( "test.a", exports.getPackageName( 0 ) );
+      Assert.assertEquals( PackedVersion.of( 1, 2, 3, "q" ), exports.getVersion( 0 ) );
+      Assert.assertEquals( PackageSymbols.getInstance().intern( "test.c" ), exports.getUses( 0 )[1] );
+      Assert.assertEquals( PackedVersion.of( 0, 0, 0, "" ), exports.getVersion( 1 ) );
+      Assert.assertEquals( 2, imports.size() );
+      Assert.assertEquals( "test.b", imports.getPackageName( 0 ) );
+      Assert.assertEquals( "[1.0.0,2.0.0)", imports.getVersionRange( 0 ).toString() );
+      Assert.assertTrue( imports.isOptional( 0 ) );
+      Assert.assertFalse( imports.isOptional( 1 ) );
+      Assert.assertNull( imports.getVersionRange( 1 ).getCeiling() );
+   }
+
+   @Test
+   public void staleAndUnknownBundlesAreNotAnswered() throws Exception {
+      // Fixture
+      ManifestStore.getInstance().open( createContainer( folder.getRoot() ).getBundleContext() );
+      ManifestStore.getInstance().close();
+      final MockContainer container = createContainer( folder.getRoot() );
+      final Bundle updated = container.getBundleContext().getBundle( 1 );
+      container.update( updated, "test.e", null );
+      final Bundle unchanged = container.getBundleContext().getBundle( 2 );
+      final Bundle installed = container.install( "test.f", "1.0.0", "test.f", null );
+
+      // Call
+      ManifestStore.getInstance().open( container.getBundleContext() );
+
+      // Assert
+      Assert.assertNull( ManifestStore.getInstance().getExportPackageHeader( updated ) );
+      Assert.assertNull( ManifestStore.getInstance().getImportPackageHeader( updated ) );
+      Assert.assertNull( ManifestStore.getInstance().getExportPackageHeader( installed ) );
+      Assert.assertEquals( "test.b", ManifestStore.getInstance().getExportPackageHeader( unchanged ).getPackageName( 0 ) );
+   }
+}
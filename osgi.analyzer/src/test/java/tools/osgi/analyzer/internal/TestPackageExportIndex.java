@@ -0,0 +1,53 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.PackageSymbols;
+
+/** Providers of exported packages as seen through the live index */
+public class TestPackageExportIndex {
+
+   @After
+   public void tearDown() {
+      PackageExportIndex.getInstance().close();
+      BundleManifestCache.getInstance().clear();
+   }
+
+   @Test
+   public void bundleExportingSeveralVersionsIsFoundOnce() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle exporter = container.install( "test.exporter", "1.0.0", "test.a;version=1.0.0,test.a;version=1.1.0", null );
+      final Bundle other = container.install( "test.other", "1.0.0", "test.a;version=1.0.5", null );
+      final Bundle importer = container.install( "test.importer", "1.0.0", null, "test.a;version=\"[1.0,2.0)\"" );
+      PackageExportIndex.getInstance().open( container.getBundleContext() );
+
+      // Call
+      final List<Bundle> result = PackageExportIndex.getInstance().findBundlesThatSatisfyImport( container.getBundleContext(), BundleUtils.getImportedPackage( importer, "test.a" ) );
+
+      // Assert
+      Assert.assertEquals( Arrays.asList( exporter, other ), result );
+   }
+
+   @Test
+   public void providersBySymbolAreCurrentAfterOpen() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      container.install( "test.exporter", "1.0.0", "test.b;version=1.0.0", null );
+      PackageExportIndex.getInstance().open( container.getBundleContext() );
+
+      // Call
+      final PackageExportIndex.PackageProvider[] result = PackageExportIndex.getInstance().getProviders( PackageSymbols.getInstance().lookup( "test.b" ) );
+
+      // Assert
+      Assert.assertEquals( 1, result.length );
+      Assert.assertEquals( "test.b", result[0].getPackageName() );
+   }
+}
@@ -0,0 +1,104 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Ordering, overflow and concurrent producers of the throwable queue of the diagnoser */
+public class TestThrowableRingBuffer {
+
+   @Test
+   public void capacityIsRoundedUpToAPowerOfTwo() throws Exception {
+      Assert.assertEquals( 2, new ThrowableRingBuffer( 0 ).getCapacity() );
+      Assert.assertEquals( 2, new ThrowableRingBuffer( 2 ).getCapacity() );
+      Assert.assertEquals( 8, new ThrowableRingBuffer( 5 ).getCapacity() );
+      Assert.assertEquals( 8, new ThrowableRingBuffer( 8 ).getCapacity() );
+      Assert.assertEquals( 1024, new ThrowableRingBuffer( 1000 ).getCapacity() );
+   }
+
+   @Test
+   public void concurrentProducersLoseNothingButTheDropped() throws Exception {
+      // Fixture
+      final ThrowableRingBuffer buffer = new ThrowableRingBuffer( 64 );
+      final AtomicInteger accepted = new AtomicInteger();
+      final List<Thread> producers = new ArrayList<Thread>();
+      for( int producer = 0; producer < 4; producer++ ) {
+         final String name = String.valueOf( producer );
+         producers.add( new Thread() {
+            @Override
+            public void run() {
+               for( int index = 0; index < 20000; index++ ) {
+                  if( buffer.offer( new Exception( name + ":" + index ) ) ) {
+                     accepted.incrementAndGet();
+                  }
+               }
+            }
+         } );
+      }
+
+      // Call
+      for( Thread producer : producers ) {
+         producer.start();
+      }
+      final Set<String> result = new HashSet<String>();
+      boolean running = true;
+      while( running ) {
+         running = false;
+         for( Thread producer : producers ) {
+            running |= producer.isAlive();
+         }
+         for( Throwable throwable = buffer.poll(); throwable != null; throwable = buffer.poll() ) {
+            Assert.assertTrue( throwable.getMessage(), result.add( throwable.getMessage() ) );
+         }
+      }
+
+      // Assert
+      Assert.assertEquals( accepted.get(), result.size() );
+      Assert.assertEquals( 80000, accepted.get() + buffer.getDropped() );
+   }
+
+   @Test
+   public void fullBufferDropsAndCounts() throws Exception {
+      // Fixture
+      final ThrowableRingBuffer buffer = new ThrowableRingBuffer( 4 );
+      for( int index = 0; index < 4; index++ ) {
+         Assert.assertTrue( buffer.offer( new Exception( String.valueOf( index ) ) ) );
+      }
+
+      // Call
+      final boolean result = buffer.offer( new Exception( "dropped" ) );
+
+      // Assert
+      Assert.assertFalse( result );
+      Assert.assertEquals( 1, buffer.getDropped() );
+      Assert.assertEquals( "0", buffer.poll().getMessage() );
+      Assert.assertTrue( buffer.offer( new Exception( "4" ) ) );
+      for( int index = 1; index <= 4; index++ ) {
+         Assert.assertEquals( String.valueOf( index ), buffer.poll().getMessage() );
+      }
+      Assert.assertNull( buffer.poll() );
+   }
+
+   @Test
+   public void throwablesArePolledInOrderAcrossWrapArounds() throws Exception {
+      // Fixture
+      final ThrowableRingBuffer buffer = new ThrowableRingBuffer( 4 );
+
+      for( int index = 0; index < 100; index++ ) {
+         // Call
+         buffer.offer( new Exception( String.valueOf( 2 * index ) ) );
+         buffer.offer( new Exception( String.valueOf( 2 * index + 1 ) ) );
+
+         // Assert
+         Assert.assertEquals( String.valueOf( 2 * index ), buffer.poll().getMessage() );
+         Assert.assertEquals( String.valueOf( 2 * index + 1 ), buffer.poll().getMessage() );
+         Assert.assertNull( buffer.poll() );
+      }
+      Assert.assertEquals( 0, buffer.getDropped() );
+   }
+}
@@ -0,0 +1,139 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.UsesConflict;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestion;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestionType;
+import tools.osgi.analyzer.internal.FindUsesConflictsTemplate.BundleFindUsesConflictsCallback;
+
+import com.springsource.util.osgi.manifest.ExportedPackage;
+import com.springsource.util.osgi.manifest.ImportedPackage;
+
+/** Ranking of the refresh and uninstall suggestions that remove the uses conflicts of a bundle */
+public class TestUsesConflictRefreshPlanner {
+   private static final String API_IMPORT = "test.api;version=\"[1.0,3.0)\"";
+
+   private static WiringSnapshot capture( MockContainer container ) {
+      return WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() );
+   }
+
+   private static UsesConflict createWiringConflict( MockContainer container, Bundle bundle, Bundle usesConflictBundle ) {
+      final ImportedPackage importedPackage = BundleUtils.getImportedPackage( bundle, "test.api" );
+      return new UsesConflict( container.getBundleContext(), BundleUtils.getBundleManifest( bundle ), importedPackage, usesConflictBundle, ( ExportedPackage )null );
+   }
+
+   @After
+   public void tearDown() {
+      BundleManifestCache.getInstance().clear();
+   }
+
+   @Test
+   public void headerConflictCanOnlyBeUninstalled() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle api = container.install( "test.api", "1.0.0", "test.api;version=1.0.0", null );
+      final Bundle core = container.install( "test.core", "1.0.0", "test.core;uses:=test.api", "test.api;version=\"[1.0,2.0)\"" );
+      final Bundle bundle = container.install( "test.bundle", "1.0.0", null, "test.api;version=\"[2.0,3.0)\",test.core" );
+      container.resolve( api );
+      container.resolve( core );
+      container.wire( core, "test.api", "1.0.0", null, api );
+      final ImportedPackage importedPackage = BundleUtils.getImportedPackage( bundle, "test.api" );
+      final UsesConflict usesConflict = new UsesConflict( container.getBundleContext(), BundleUtils.getBundleManifest( bundle ), importedPackage, core, BundleUtils.getImportedPackage( core, "test.api" ) );
+
+      // Call
+      final List<UsesConflictResolutionSuggestion> result = new UsesConflictRefreshPlanner( container.getBundleContext(), capture( container ) ).plan( bundle, Arrays.asList( usesConflict ) );
+
+      // Assert
+      Assert.assertEquals( 1, result.size() );
+      Assert.assertEquals( UsesConflictResolutionSuggestionType.UninstallBundle, result.get( 0 ).getType() );
+      Assert.assertSame( core, result.get( 0 ).getTargetBundle() );
+      Assert.assertEquals( Arrays.asList( usesConflict ), result.get( 0 ).getResolvedUsesConflicts() );
+   }
+
+   @Test
+   public void refreshesAreRankedByRestartedBundlesPerRemovedConflict() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle api1 = container.install( "test.api1", "1.0.0", "test.api;version=1.0.0", null );
+      container.install( "test.api2", "1.0.0", "test.api;version=2.0.0", null );
+      final Bundle core = container.install( "test.core", "1.0.0", "test.core;uses:=test.api", API_IMPORT );
+      final Bundle s1 = container.install( "test.s1", "1.0.0", "test.s1;uses:=test.api", API_IMPORT + ",test.core" );
+      final Bundle s2 = container.install( "test.s2", "1.0.0", "test.s2;uses:=test.api", API_IMPORT + ",test.core" );
+      final Bundle dependent = container.install( "test.dependent", "1.0.0", null, "test.s1" );
+      final Bundle bundle = container.install( "test.bundle", "1.0.0", null, "test.api;version=\"[2.0,3.0)\",test.core,test.s1,test.s2" );
+      for( Bundle resolved : Arrays.asList( api1, core, s1, s2, dependent ) ) {
+         container.resolve( resolved );
+      }
+      container.wire( core, "test.api", "1.0.0", null, api1 );
+      container.wire( s1, "test.api", "1.0.0", null, api1 );
+      container.wire( s1, "test.core", "0.0.0", "test.api", core );
+      container.wire( s2, "test.api", "1.0.0", null, api1 );
+      container.wire( s2, "test.core", "0.0.0", "test.api", core );
+      container.wire( dependent, "test.s1", "0.0.0", "test.api", s1 );
+      final List<UsesConflict> usesConflicts = new ArrayList<UsesConflict>();
+      for( Bundle usesConflictBundle : Arrays.asList( core, s1, s2 ) ) {
+         usesConflicts.add( createWiringConflict( container, bundle, usesConflictBundle ) );
+      }
+
+      // Call
+      final List<UsesConflictResolutionSuggestion> result = new UsesConflictRefreshPlanner( container.getBundleContext(), capture( container ) ).plan( bundle, usesConflicts );
+
+      // Assert
+      // Refreshing s2 restarts one bundle per conflict, then refreshing core covers s1 with fewer restarts than s1 alone
+      Assert.assertEquals( 2, result.size() );
+      Assert.assertEquals( UsesConflictResolutionSuggestionType.RefreshBundle, result.get( 0 ).getType() );
+      Assert.assertSame( s2, result.get( 0 ).getTargetBundle() );
+      Assert.assertEquals( 1, result.get( 0 ).getRank() );
+      Assert.assertEquals( Arrays.asList( s2 ), result.get( 0 ).getRestartedBundles() );
+      Assert.assertEquals( Arrays.asList( usesConflicts.get( 2 ) ), result.get( 0 ).getResolvedUsesConflicts() );
+      Assert.assertEquals( UsesConflictResolutionSuggestionType.RefreshBundle, result.get( 1 ).getType() );
+      Assert.assertSame( core, result.get( 1 ).getTargetBundle() );
+      Assert.assertEquals( 2, result.get( 1 ).getRank() );
+      Assert.assertEquals( Arrays.asList( core, s1, dependent ), result.get( 1 ).getRestartedBundles() );
+      Assert.assertEquals( usesConflicts.subList( 0, 2 ), result.get( 1 ).getResolvedUsesConflicts() );
+   }
+
+   @Test
+   public void plannedRefreshRemovesTheConflicts() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle api1 = container.install( "test.api1", "1.0.0", "test.api;version=1.0.0", null );
+      final Bundle api2 = container.install( "test.api2", "1.0.0", "test.api;version=2.0.0", null );
+      final Bundle core = container.install( "test.core", "1.0.0", "test.core;uses:=test.api", API_IMPORT );
+      final Bundle service = container.install( "test.service", "1.0.0", "test.service;uses:=test.core", "test.core" );
+      final Bundle bundle = container.install( "test.bundle", "1.0.0", null, "test.api;version=\"[2.0,3.0)\",test.core" );
+      for( Bundle resolved : Arrays.asList( api1, api2, core, service ) ) {
+         container.resolve( resolved );
+      }
+      container.wire( core, "test.api", "1.0.0", null, api1 );
+      container.wire( service, "test.core", "0.0.0", "test.api", core );
+      final List<UsesConflict> usesConflicts = new FindUsesConflictsTemplate( container.getBundleContext(), capture( container ) ).find( new BundleFindUsesConflictsCallback( bundle ) );
+      Assert.assertEquals( 1, usesConflicts.size() );
+      Assert.assertSame( core, usesConflicts.get( 0 ).getUsesConflictBundle() );
+
+      // Call
+      final List<UsesConflictResolutionSuggestion> result = new UsesConflictRefreshPlanner( container.getBundleContext(), capture( container ) ).plan( bundle, usesConflicts );
+
+      // Assert
+      Assert.assertEquals( 1, result.size() );
+      Assert.assertEquals( UsesConflictResolutionSuggestionType.RefreshBundle, result.get( 0 ).getType() );
+      Assert.assertEquals( Arrays.asList( core, service ), result.get( 0 ).getRestartedBundles() );
+      // Refresh the way the framework would: the restarted bundles are wired to the provider satisfying both imports
+      container.refresh( core, service );
+      container.wire( core, "test.api", "2.0.0", null, api2 );
+      container.wire( service, "test.core", "0.0.0", "test.api", core );
+      BundleManifestCache.getInstance().clear();
+      final FindUsesConflictsTemplate template = new FindUsesConflictsTemplate( container.getBundleContext(), capture( container ) );
+      Assert.assertEquals( 0, template.find( new BundleFindUsesConflictsCallback( bundle ) ).size() );
+      Assert.assertTrue( template.getResolver().resolve( bundle ).isResolvable() );
+   }
+}
@@ -0,0 +1,117 @@
+package tools.osgi.analyzer.internal;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import tools.osgi.analyzer.api.ResolutionReport;
+
+/** Dry-run resolution of installed bundles against the captured wiring */
+public class TestVirtualResolver {
+
+   private static VirtualResolver createResolver( MockContainer container ) {
+      return new VirtualResolver( container.getBundleContext(), WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() ) );
+   }
+
+   @After
+   public void tearDown() {
+      BundleManifestCache.getInstance().clear();
+   }
+
+   @Test
+   public void cyclicImportsOfUnresolvedBundlesResolve() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle a = container.install( "test.a", "1.0.0", "test.a", "test.b" );
+      final Bundle b = container.install( "test.b", "1.0.0", "test.b", "test.a,test.c;resolution:=optional" );
+
+      // Call
+      final ResolutionReport result = createResolver( container ).resolve( a );
+
+      // Assert
+      Assert.assertTrue( result.getProblems().toString(), result.isResolvable() );
+      Assert.assertSame( b, result.getProvider( "test.b" ) );
+   }
+
+   @Test
+   public void cycleWithAMissingImportDoesNotResolve() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle a = container.install( "test.a", "1.0.0", "test.a", "test.b" );
+      container.install( "test.b", "1.0.0", "test.b", "test.a,test.c" );
+
+      // Call
+      final ResolutionReport result = createResolver( container ).resolve( a );
+
+      // Assert
+      Assert.assertFalse( result.isResolvable() );
+      Assert.assertTrue( result.getProblems().toString(), result.getProblems().get( 0 ).startsWith( "Missing import test.b" ) );
+   }
+
+   @Test
+   public void cycleMemberDoesNotStayResolvableAfterTheCycleFails() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle a = container.install( "test.a", "1.0.0", "test.a", "test.b,test.c" );
+      final Bundle b = container.install( "test.b", "1.0.0", "test.b", "test.a" );
+      final VirtualResolver resolver = createResolver( container );
+
+      // Call
+      final ResolutionReport resultA = resolver.resolve( a );
+      final ResolutionReport resultB = resolver.resolve( b );
+
+      // Assert
+      Assert.assertFalse( resultA.isResolvable() );
+      Assert.assertFalse( resultB.isResolvable() );
+      Assert.assertTrue( resultB.getProblems().toString(), resultB.getProblems().get( 0 ).startsWith( "Missing import test.a" ) );
+   }
+
+   @Test
+   public void removalPendingProviderIsNotAnExportOfTheBundle() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle provider = container.install( "test.provider", "1.0.0", "test.p;version=1.0.0", null );
+      final Bundle wired = container.install( "test.wired", "1.0.0", null, "test.p;version=\"[1.0,2.0)\"" );
+      container.resolve( provider );
+      container.resolve( wired );
+      container.wire( wired, "test.p", "1.0.0", null, provider );
+      container.update( provider, "test.p;version=2.0.0", null );
+      container.resolve( provider );
+      final Bundle installed = container.install( "test.installed", "1.0.0", null, "test.p;version=\"[1.0,2.0)\"" );
+      final VirtualResolver resolver = createResolver( container );
+
+      // Call
+      final ResolutionReport result = resolver.resolve( installed );
+
+      // Assert
+      final List<String> problems = result.getProblems();
+      Assert.assertFalse( result.isResolvable() );
+      Assert.assertTrue( problems.toString(), problems.get( 0 ).contains( "no export in range, available versions [2.0.0]" ) );
+      Assert.assertTrue( resolver.resolve( wired ).isResolvable() );
+      Assert.assertSame( provider, resolver.resolve( wired ).getProvider( "test.p" ) );
+   }
+
+   @Test
+   public void usesConstraintOfResolvedProviderIsViolated() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle api1 = container.install( "test.api1", "1.0.0", "test.api;version=1.0.0", null );
+      container.install( "test.api2", "1.0.0", "test.api;version=2.0.0", null );
+      final Bundle service = container.install( "test.service", "1.0.0", "test.service;uses:=test.api", "test.api;version=\"[1.0,2.0)\"" );
+      container.resolve( api1 );
+      container.resolve( service );
+      container.wire( service, "test.api", "1.0.0", null, api1 );
+      final Bundle consumer = container.install( "test.consumer", "1.0.0", null, "test.service,test.api;version=\"[2.0,3.0)\"" );
+
+      // Call
+      final ResolutionReport result = createResolver( container ).resolve( consumer );
+
+      // Assert
+      Assert.assertFalse( result.isResolvable() );
+      Assert.assertEquals( 1, result.getProblems().size() );
+      Assert.assertTrue( result.getProblems().get( 0 ), result.getProblems().get( 0 ).startsWith( "Uses constraint violation: test.api" ) );
+   }
+}
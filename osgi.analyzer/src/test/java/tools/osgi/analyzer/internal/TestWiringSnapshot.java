@@ -0,0 +1,144 @@
+package tools.osgi.analyzer.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageSymbols;
+
+/** Capture of the package wiring including cycles and removal pending providers */
+public class TestWiringSnapshot {
+
+   @Test
+   public void changingGenerationMarksSnapshotInconsistent() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final FrameworkGeneration generation = new FrameworkGeneration() {
+         private long calls;
+
+         @Override
+         public long get() {
+            return calls++;
+         }
+      };
+
+      // Call
+      final WiringSnapshot result = WiringSnapshot.capture( container.getBundleContext(), generation );
+
+      // Assert
+      Assert.assertFalse( result.isConsistent() );
+      Assert.assertTrue( WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() ).isConsistent() );
+   }
+
+   @Test
+   public void cyclicWiresAreCapturedInBothDirections() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle a = container.install( "test.a", "1.0.0", "test.a", "test.b" );
+      final Bundle b = container.install( "test.b", "1.0.0", "test.b", "test.a" );
+      container.resolve( a );
+      container.resolve( b );
+      container.wire( a, "test.b", "0.0.0", null, b );
+      container.wire( b, "test.a", "0.0.0", null, a );
+
+      // Call
+      final WiringSnapshot result = WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() );
+
+      // Assert
+      final int indexA = result.indexOf( a );
+      final int indexB = result.indexOf( b );
+      Assert.assertEquals( 3, result.getBundleCount() );
+      Assert.assertEquals( 2, result.getWireCount() );
+      Assert.assertEquals( indexB, result.getProvider( indexA, result.getPackageId( "test.b" ) ) );
+      Assert.assertEquals( indexA, result.getProvider( indexB, result.getPackageId( "test.a" ) ) );
+      Assert.assertEquals( -1, result.getProvider( indexA, result.getPackageId( "test.a" ) ) );
+      Assert.assertEquals( 1, result.getProvidedWiresEnd( indexA ) - result.getProvidedWiresStart( indexA ) );
+      Assert.assertEquals( indexB, result.getWireRequirer( result.getProvidedWire( result.getProvidedWiresStart( indexA ) ) ) );
+      Assert.assertEquals( -1, result.getPackageId( "test.c" ) );
+   }
+
+   @Test
+   public void removalPendingProviderIsKeptApartFromCurrentRevision() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle provider = container.install( "test.provider", "1.0.0", "test.p;version=1.0.0", null );
+      final Bundle consumer = container.install( "test.consumer", "1.0.0", null, "test.p;version=\"[1.0,2.0)\"" );
+      final Bundle current = container.install( "test.current", "1.0.0", null, "test.p;version=2.0" );
+      container.resolve( provider );
+      container.resolve( consumer );
+      container.wire( consumer, "test.p", "1.0.0", null, provider );
+      container.update( provider, "test.p;version=2.0.0", null );
+      container.resolve( provider );
+      container.resolve( current );
+      container.wire( current, "test.p", "2.0.0", null, provider );
+
+      // Call
+      final WiringSnapshot result = WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() );
+
+      // Assert
+      final int currentIndex = result.indexOf( provider );
+      final int pendingIndex = result.getProvider( result.indexOf( consumer ), result.getPackageId( "test.p" ) );
+      Assert.assertEquals( 5, result.getBundleCount() );
+      Assert.assertTrue( result.isCurrent( currentIndex ) );
+      Assert.assertFalse( result.isCurrent( pendingIndex ) );
+      Assert.assertEquals( currentIndex + 1, pendingIndex );
+      Assert.assertSame( provider, result.getBundle( pendingIndex ) );
+      Assert.assertEquals( pendingIndex, result.indexOf( result.getRevision( pendingIndex ) ) );
+      Assert.assertEquals( currentIndex, result.getProvider( result.indexOf( current ), result.getPackageId( "test.p" ) ) );
+      Assert.assertEquals( 1, result.getProvidedWiresEnd( pendingIndex ) - result.getProvidedWiresStart( pendingIndex ) );
+      Assert.assertEquals( "test.p;version=\"2.0.0\"", result.getExportPackageHeader( currentIndex ).toString() );
+      Assert.assertEquals( "test.p;version=\"1.0.0\"", result.getExportPackageHeader( pendingIndex ).toString() );
+   }
+
+   @Test
+   public void removalPendingHeadersAreRebuiltFromTheWiring() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle library = container.install( "test.library", "1.0.0", "test.l;version=1.5.0", null );
+      final Bundle provider = container.install( "test.provider", "1.0.0", "test.p;version=1.0.0;uses:=\"test.l,test.m\"", "test.l;version=\"(1.0,2.0]\",test.m;resolution:=optional" );
+      final Bundle consumer = container.install( "test.consumer", "1.0.0", null, "test.p" );
+      container.resolve( library );
+      container.resolve( provider );
+      container.resolve( consumer );
+      container.wire( provider, "test.l", "1.5.0", null, library );
+      container.wire( consumer, "test.p", "1.0.0", "test.l,test.m", provider );
+      container.update( provider, null, null );
+
+      // Call
+      final WiringSnapshot result = WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() );
+
+      // Assert
+      final int pendingIndex = result.getProvider( result.indexOf( consumer ), result.getPackageId( "test.p" ) );
+      final PackageHeader exports = result.getExportPackageHeader( pendingIndex );
+      final PackageHeader imports = result.getImportPackageHeader( pendingIndex );
+      Assert.assertFalse( result.isCurrent( pendingIndex ) );
+      Assert.assertEquals( 0, result.getExportPackageHeader( result.indexOf( provider ) ).size() );
+      Assert.assertEquals( "test.p;version=\"1.0.0\"", exports.toString() );
+      Assert.assertEquals( 2, exports.getUses( 0 ).length );
+      Assert.assertEquals( "test.l;version=\"(1.0.0,2.0.0]\",test.m;version=\"0.0.0\";resolution:=optional", imports.toString() );
+      Assert.assertArrayEquals( new int[]{ result.indexOf( library ) }, result.getExporters( PackageSymbols.getInstance().lookup( "test.l" ) ) );
+      Assert.assertEquals( 0, result.getExporters( PackageSymbols.getInstance().lookup( "test.p" ) ).length );
+   }
+
+   @Test
+   public void uninstalledProviderIsReachedThroughItsWires() throws Exception {
+      // Fixture
+      final MockContainer container = new MockContainer();
+      final Bundle provider = container.install( "test.provider", "1.0.0", "test.p", null );
+      final Bundle consumer = container.install( "test.consumer", "1.0.0", null, "test.p" );
+      container.resolve( provider );
+      container.resolve( consumer );
+      container.wire( consumer, "test.p", "0.0.0", null, provider );
+      container.uninstall( provider );
+
+      // Call
+      final WiringSnapshot result = WiringSnapshot.capture( container.getBundleContext(), FrameworkGeneration.getInstance() );
+
+      // Assert
+      final int providerIndex = result.getProvider( result.indexOf( consumer ), result.getPackageId( "test.p" ) );
+      Assert.assertEquals( 3, result.getBundleCount() );
+      Assert.assertSame( provider, result.getBundle( providerIndex ) );
+      Assert.assertFalse( result.isCurrent( providerIndex ) );
+   }
+}
@@ -0,0 +1,57 @@
+package tools.osgi.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+import tools.osgi.analyzer.internal.InternalOsgiAnalyzerService;
+
+/** Container-wide uses conflict analysis as run by <code>analyze -u</code> */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzerServiceBenchmark {
+
+   @Benchmark
+   public List<Bundle> findBundlesWithUsesConflicts( ServiceState serviceState ) {
+      return serviceState.getAnalyzerService().findBundlesWithUsesConflicts( serviceState.parallelism );
+   }
+
+   /** Analyzer service on the synthetic container; not started so no background monitoring runs */
+   @State(Scope.Benchmark)
+   public static class ServiceState {
+      /** Threads used for the analysis; <code>0</code> uses one per available processor */
+      @Param({ "1", "0" })
+      public int parallelism;
+
+      private InternalOsgiAnalyzerService analyzerService;
+
+      public InternalOsgiAnalyzerService getAnalyzerService() {
+         return analyzerService;
+      }
+
+      @Setup(Level.Trial)
+      public void setUp( ContainerState state ) {
+         analyzerService = new InternalOsgiAnalyzerService( state.getBundleContext() );
+         final int found = analyzerService.findBundlesWithUsesConflicts( parallelism ).size();
+         if( found != state.getContainer().getUnresolvedBundleIds().size() ) {
+            throw new IllegalStateException( String.format( "Found %s bundles with uses conflicts instead of the %s unresolvable ones", found, state.getContainer().getUnresolvedBundleIds().size() ) );
+         }
+      }
+   }
+}
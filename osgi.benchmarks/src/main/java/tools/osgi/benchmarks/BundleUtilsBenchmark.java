@@ -0,0 +1,37 @@
+package tools.osgi.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWire;
+
+import tools.osgi.analyzer.api.BundleUtils;
+
+/** Lookups of {@link BundleUtils} the uses conflict analysis performs for every import */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleUtilsBenchmark {
+
+   @Benchmark
+   public List<Bundle> findBundlesThatSatisfyImport( ContainerState state ) {
+      final int sample = state.nextSample();
+      return BundleUtils.findBundlesThatSatisfyImport( state.getBundleContext(), state.getSampleImport( sample ) );
+   }
+
+   @Benchmark
+   public BundleWire getBundleWire( ContainerState state ) {
+      final int sample = state.nextSample();
+      return BundleUtils.getBundleWire( state.getBundleContext(), state.getSampleImporter( sample ), state.getSampleImport( sample ).getPackageName() );
+   }
+}
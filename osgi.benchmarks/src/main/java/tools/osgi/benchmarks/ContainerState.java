@@ -0,0 +1,137 @@
+package tools.osgi.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.internal.BundleManifestCache;
+import tools.osgi.analyzer.internal.FindUsesConflictsTemplate;
+import tools.osgi.analyzer.internal.FindUsesConflictsTemplate.BundleFindUsesConflictsCallback;
+import tools.osgi.analyzer.internal.FrameworkGeneration;
+import tools.osgi.analyzer.internal.PackageExportIndex;
+import tools.osgi.analyzer.internal.WiringSnapshot;
+
+import com.springsource.util.osgi.manifest.ImportedPackage;
+
+/**
+ * Synthetic container shared by all benchmarks. The shape is set with JMH parameters, e.g.
+ * <code>-p bundleCount=1000 -p fanOut=10 -p usesDepth=4</code>. With <code>indexed</code> the manifest cache and package
+ * export index are opened the way the analyzer activator opens them; without it every lookup scans the bundles.
+ * <p>
+ * <code>unresolvedPercent</code> adds unresolvable bundles with a uses conflict; only those take the full uses conflict
+ * walk, resolvable bundles are skipped after the resolver check. Setup fails if their conflicts are not found.
+ * <p>
+ * The framework generation is not opened so no analyzer query result is served from a cache; every invocation does the
+ * full analysis.
+ */
+@State(Scope.Benchmark)
+public class ContainerState {
+   @Param({ "100", "1000", "10000" })
+   public int bundleCount;
+
+   @Param({ "20" })
+   public int duplicateEvery;
+
+   @Param({ "5" })
+   public int fanOut;
+
+   @Param({ "true" })
+   public boolean indexed;
+
+   @Param({ "5" })
+   public int unresolvedPercent;
+
+   @Param({ "3" })
+   public int usesDepth;
+
+   private SyntheticContainer container;
+   private int next;
+   private int nextUnresolved;
+   private ImportedPackage[] sampleImports;
+   private Bundle[] sampleImporters;
+   private Bundle[] sampleUnresolved;
+
+   public SyntheticContainer getContainer() {
+      return container;
+   }
+
+   public BundleContext getBundleContext() {
+      return container.getBundleContext();
+   }
+
+   /** @return Index of the next sample; rotates so repeated invocations do not hit the same bundle */
+   public int nextSample() {
+      next = next + 1 < sampleImporters.length ? next + 1 : 0;
+      return next;
+   }
+
+   /** @return Index of the next unresolvable sample; rotates like {@link #nextSample()} */
+   public int nextUnresolvedSample() {
+      nextUnresolved = nextUnresolved + 1 < sampleUnresolved.length ? nextUnresolved + 1 : 0;
+      return nextUnresolved;
+   }
+
+   public ImportedPackage getSampleImport( int sample ) {
+      return sampleImports[sample];
+   }
+
+   public Bundle getSampleImporter( int sample ) {
+      return sampleImporters[sample];
+   }
+
+   public Bundle getSampleUnresolved( int sample ) {
+      return sampleUnresolved[sample];
+   }
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      container = new SyntheticContainer( bundleCount, fanOut, usesDepth, duplicateEvery, unresolvedPercent, 42 );
+      if( indexed ) {
+         BundleManifestCache.getInstance().open( getBundleContext() );
+         PackageExportIndex.getInstance().open( getBundleContext() );
+      }
+
+      // Spread the samples over the whole container
+      final List<ImportedPackage> imports = new ArrayList<ImportedPackage>();
+      final List<Bundle> importers = new ArrayList<Bundle>();
+      final int step = Math.max( 1, bundleCount / 64 );
+      for( long bundleId = bundleCount; bundleId > 1; bundleId -= step ) {
+         final Bundle bundle = container.getBundle( bundleId );
+         final List<ImportedPackage> bundleImports = BundleUtils.getImportedPackages( bundle );
+         if( !bundleImports.isEmpty() ) {
+            importers.add( bundle );
+            imports.add( bundleImports.get( 0 ) );
+         }
+      }
+      sampleImports = imports.toArray( new ImportedPackage[imports.size()] );
+      sampleImporters = importers.toArray( new Bundle[importers.size()] );
+
+      final List<Bundle> unresolved = new ArrayList<Bundle>();
+      final List<Long> unresolvedIds = container.getUnresolvedBundleIds();
+      for( int index = 0; index < unresolvedIds.size(); index += Math.max( 1, unresolvedIds.size() / 64 ) ) {
+         unresolved.add( container.getBundle( unresolvedIds.get( index ) ) );
+      }
+      sampleUnresolved = unresolved.toArray( new Bundle[unresolved.size()] );
+      final WiringSnapshot snapshot = WiringSnapshot.capture( getBundleContext(), FrameworkGeneration.getInstance() );
+      for( Bundle bundle : sampleUnresolved ) {
+         if( new FindUsesConflictsTemplate( getBundleContext(), snapshot ).find( new BundleFindUsesConflictsCallback( bundle ) ).isEmpty() ) {
+            throw new IllegalStateException( String.format( "No uses conflict found for unresolvable bundle %s", bundle ) );
+         }
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      PackageExportIndex.getInstance().close();
+      BundleManifestCache.getInstance().close();
+   }
+}
@@ -0,0 +1,61 @@
+package tools.osgi.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tools.osgi.analyzer.api.UsesConflict;
+import tools.osgi.analyzer.internal.FindUsesConflictsTemplate;
+import tools.osgi.analyzer.internal.FindUsesConflictsTemplate.BundleFindUsesConflictsCallback;
+import tools.osgi.analyzer.internal.FrameworkGeneration;
+import tools.osgi.analyzer.internal.WiringSnapshot;
+
+/**
+ * Uses conflict search of a single unresolvable bundle. <code>findWithSnapshot</code> reuses one wiring snapshot the
+ * way a container-wide analysis does; <code>find</code> captures the wiring for every search.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindUsesConflictsBenchmark {
+
+   @Benchmark
+   public List<UsesConflict> find( ContainerState state ) {
+      final int sample = state.nextUnresolvedSample();
+      return new FindUsesConflictsTemplate( state.getBundleContext() ).find( new BundleFindUsesConflictsCallback( state.getSampleUnresolved( sample ) ) );
+   }
+
+   @Benchmark
+   public List<UsesConflict> findWithSnapshot( SnapshotState snapshotState, ContainerState state ) {
+      final int sample = state.nextUnresolvedSample();
+      return new FindUsesConflictsTemplate( state.getBundleContext(), snapshotState.getSnapshot() ).find( new BundleFindUsesConflictsCallback( state.getSampleUnresolved( sample ) ) );
+   }
+
+   /** Wiring snapshot of the container taken once per trial */
+   @State(Scope.Benchmark)
+   public static class SnapshotState {
+      private WiringSnapshot snapshot;
+
+      public WiringSnapshot getSnapshot() {
+         return snapshot;
+      }
+
+      @Setup(Level.Trial)
+      public void setUp( ContainerState state ) {
+         snapshot = WiringSnapshot.capture( state.getBundleContext(), FrameworkGeneration.getInstance() );
+      }
+   }
+}
@@ -0,0 +1,443 @@
+package tools.osgi.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Generated in-memory OSGi container for benchmarking the analyzer without a running framework. Bundle <code>i</code>
+ * exports package <code>bench.p&lt;i&gt;</code> and imports <code>fanOut</code> packages of bundles installed before it.
+ * Each export uses the first <code>usesDepth</code> packages its bundle imports, so uses constraints chain through the
+ * container. Every <code>duplicateEvery</code>-th bundle also exports the package of its predecessor in a newer version;
+ * importers with an even id are wired to that duplicate which gives the analyzer conflicting wirings to find.
+ * <p>
+ * A share of <code>unresolvedPercent</code> bundles is added in state {@link Bundle#INSTALLED}. Each imports a package
+ * exported by an even id bundle together with a package that export uses, pinned to the version the exporter is not
+ * wired to. The resolver cannot wire such a bundle, so the analyzer walks its uses constraints and reports the conflict.
+ * <p>
+ * The framework objects are dynamic proxies answering only the calls the analyzer makes; any other call fails with an
+ * {@link UnsupportedOperationException}.
+ */
+public class SyntheticContainer {
+   /** Answer of a proxied method computed from its arguments */
+   private static interface Answer {
+      Object answer( Object[] args );
+   }
+
+   /** Generated state of one bundle */
+   private static class SyntheticBundle {
+      private Bundle bundle;
+      private final List<Export> exports = new ArrayList<Export>();
+      private final Hashtable<String, String> headers = new Hashtable<String, String>();
+      private final long id;
+      private final List<Import> imports = new ArrayList<Import>();
+      private final List<BundleWire> providedWires = new ArrayList<BundleWire>();
+      private final List<BundleWire> requiredWires = new ArrayList<BundleWire>();
+      private BundleRevision revision;
+      private int state = Bundle.ACTIVE;
+      private BundleWiring wiring;
+
+      public SyntheticBundle( long id ) {
+         this.id = id;
+      }
+   }
+
+   /** Package exported by a synthetic bundle */
+   private static class Export {
+      private final SyntheticBundle bundle;
+      private final String packageName;
+      private final List<String> uses = new ArrayList<String>();
+      private final Version version;
+
+      public Export( SyntheticBundle bundle, String packageName, Version version ) {
+         this.bundle = bundle;
+         this.packageName = packageName;
+         this.version = version;
+      }
+   }
+
+   /** Package imported by a synthetic bundle together with the export it is wired to; unwired if <code>null</code> */
+   private static class Import {
+      private final String packageName;
+      private final Export provider;
+
+      public Import( String packageName, Export provider ) {
+         this.packageName = packageName;
+         this.provider = provider;
+      }
+   }
+
+   private static final String PACKAGE_PREFIX = "bench.p";
+   private static final Version DUPLICATE_VERSION = new Version( 2, 0, 0 );
+   private static final Version EXPORT_VERSION = new Version( 1, 0, 0 );
+
+   @SuppressWarnings("unchecked")
+   private static <T> T proxy( final Class<T> type, final String description, final Map<String, Object> answers ) {
+      return ( T )Proxy.newProxyInstance( SyntheticContainer.class.getClassLoader(), new Class<?>[]{ type }, new InvocationHandler() {
+         @Override
+         public Object invoke( Object proxy, Method method, Object[] args ) {
+            final String name = method.getName();
+            if( "equals".equals( name ) && args != null && args.length == 1 ) {
+               return proxy == args[0];
+            }
+            if( "hashCode".equals( name ) && args == null ) {
+               return System.identityHashCode( proxy );
+            }
+            if( "toString".equals( name ) && args == null ) {
+               return description;
+            }
+            if( answers.containsKey( name ) ) {
+               final Object answer = answers.get( name );
+               return answer instanceof Answer ? ( ( Answer )answer ).answer( args ) : answer;
+            }
+            if( method.getReturnType() == void.class ) {
+               return null;
+            }
+            throw new UnsupportedOperationException( String.format( "%s.%s is not supported by the synthetic container", type.getSimpleName(), name ) );
+         }
+      } );
+   }
+
+   private static String toHeader( List<String> packages ) {
+      final StringBuilder result = new StringBuilder();
+      for( String clause : packages ) {
+         result.append( result.length() > 0 ? "," : "" ).append( clause );
+      }
+      return result.toString();
+   }
+
+   private final Bundle[] bundles;
+   private final BundleContext bundleContext;
+   private final Map<Long, SyntheticBundle> bundlesById = new HashMap<Long, SyntheticBundle>();
+   private final PackageAdmin packageAdmin;
+
+   /**
+    * @param bundleCount Number of bundles besides the system bundle
+    * @param fanOut Number of packages each bundle imports
+    * @param usesDepth Number of imported packages each export uses
+    * @param duplicateEvery Interval of bundles that export a newer duplicate of their predecessors package; <code>0</code>
+    * for none
+    * @param unresolvedPercent Number of unresolvable bundles with a uses conflict added in percent of
+    * <code>bundleCount</code>; <code>0</code> for none
+    * @param seed Seed of the random choice of imported packages
+    */
+   public SyntheticContainer( int bundleCount, int fanOut, int usesDepth, int duplicateEvery, int unresolvedPercent, long seed ) {
+      final List<SyntheticBundle> generated = generate( bundleCount, fanOut, usesDepth, duplicateEvery, unresolvedPercent, seed );
+      this.packageAdmin = createPackageAdmin();
+      this.bundleContext = createBundleContext();
+      for( SyntheticBundle bundle : generated ) {
+         createFrameworkObjects( bundle );
+      }
+      for( SyntheticBundle bundle : generated ) {
+         createWires( bundle );
+      }
+      this.bundles = new Bundle[generated.size()];
+      for( int index = 0; index < bundles.length; index++ ) {
+         bundles[index] = generated.get( index ).bundle;
+      }
+   }
+
+   public Bundle getBundle( long bundleId ) {
+      final SyntheticBundle bundle = bundlesById.get( bundleId );
+      return bundle != null ? bundle.bundle : null;
+   }
+
+   public BundleContext getBundleContext() {
+      return bundleContext;
+   }
+
+   /** @return All bundles including the system bundle ordered by bundle id */
+   public Bundle[] getBundles() {
+      return bundles.clone();
+   }
+
+   /**
+    * @param bundleId Id of a bundle
+    * @return Names of the packages the bundle imports
+    */
+   public List<String> getImportedPackageNames( long bundleId ) {
+      final List<String> result = new ArrayList<String>();
+      for( Import imported : bundlesById.get( bundleId ).imports ) {
+         result.add( imported.packageName );
+      }
+      return result;
+   }
+
+   /** @return Ids of the unresolvable bundles ordered by bundle id */
+   public List<Long> getUnresolvedBundleIds() {
+      final List<Long> result = new ArrayList<Long>();
+      for( Bundle bundle : bundles ) {
+         if( bundle.getState() == Bundle.INSTALLED ) {
+            result.add( bundle.getBundleId() );
+         }
+      }
+      return result;
+   }
+
+   private BundleContext createBundleContext() {
+      final ServiceReference<?> packageAdminReference = proxy( ServiceReference.class, "PackageAdmin reference", new HashMap<String, Object>() );
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundles", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return getBundles();
+         }
+      } );
+      answers.put( "getBundle", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return args == null ? SyntheticContainer.this.getBundle( 0 ) : args[0] instanceof Long ? SyntheticContainer.this.getBundle( ( Long )args[0] ) : null;
+         }
+      } );
+      answers.put( "getServiceReference", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final Object type = args[0];
+            return PackageAdmin.class.equals( type ) || PackageAdmin.class.getName().equals( type ) ? packageAdminReference : null;
+         }
+      } );
+      answers.put( "getServiceReferences", null );
+      answers.put( "getService", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            return args[0] == packageAdminReference ? packageAdmin : null;
+         }
+      } );
+      answers.put( "ungetService", Boolean.TRUE );
+      answers.put( "getDataFile", null );
+      answers.put( "getProperty", null );
+      return proxy( BundleContext.class, "SyntheticContainer", answers );
+   }
+
+   private void createFrameworkObjects( final SyntheticBundle synthetic ) {
+      final String symbolicName = synthetic.headers.get( "Bundle-SymbolicName" );
+      final String description = String.format( "%s(%s)", symbolicName, synthetic.id );
+
+      final Map<String, Object> bundleAnswers = new HashMap<String, Object>();
+      bundleAnswers.put( "getBundleId", synthetic.id );
+      bundleAnswers.put( "getSymbolicName", symbolicName );
+      bundleAnswers.put( "getVersion", EXPORT_VERSION );
+      bundleAnswers.put( "getLocation", "synthetic:" + symbolicName );
+      bundleAnswers.put( "getState", synthetic.state );
+      bundleAnswers.put( "getLastModified", 0L );
+      bundleAnswers.put( "getHeaders", synthetic.headers );
+      bundleAnswers.put( "getBundleContext", bundleContext );
+      bundleAnswers.put( "compareTo", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final long other = ( ( Bundle )args[0] ).getBundleId();
+            return synthetic.id < other ? -1 : synthetic.id == other ? 0 : 1;
+         }
+      } );
+      bundleAnswers.put( "adapt", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            final Object type = args[0];
+            if( BundleWiring.class.equals( type ) ) {
+               return synthetic.wiring;
+            }
+            if( BundleRevision.class.equals( type ) ) {
+               return synthetic.revision;
+            }
+            if( FrameworkWiring.class.equals( type ) && synthetic.id == 0 ) {
+               return createFrameworkWiring();
+            }
+            return null;
+         }
+      } );
+      synthetic.bundle = proxy( Bundle.class, description, bundleAnswers );
+
+      final Map<String, Object> revisionAnswers = new HashMap<String, Object>();
+      revisionAnswers.put( "getBundle", synthetic.bundle );
+      revisionAnswers.put( "getSymbolicName", symbolicName );
+      revisionAnswers.put( "getVersion", EXPORT_VERSION );
+      revisionAnswers.put( "getTypes", 0 );
+      synthetic.revision = proxy( BundleRevision.class, description, revisionAnswers );
+
+      if( synthetic.state == Bundle.INSTALLED ) {
+         return;
+      }
+      final Map<String, Object> wiringAnswers = new HashMap<String, Object>();
+      wiringAnswers.put( "getBundle", synthetic.bundle );
+      wiringAnswers.put( "getRevision", synthetic.revision );
+      wiringAnswers.put( "isCurrent", Boolean.TRUE );
+      wiringAnswers.put( "isInUse", Boolean.TRUE );
+      wiringAnswers.put( "getRequiredWires", Collections.unmodifiableList( synthetic.requiredWires ) );
+      wiringAnswers.put( "getProvidedWires", Collections.unmodifiableList( synthetic.providedWires ) );
+      synthetic.wiring = proxy( BundleWiring.class, description, wiringAnswers );
+   }
+
+   private FrameworkWiring createFrameworkWiring() {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getBundle", getBundle( 0 ) );
+      answers.put( "getRemovalPendingBundles", Collections.<Bundle>emptyList() );
+      return proxy( FrameworkWiring.class, "SyntheticContainer wiring", answers );
+   }
+
+   private PackageAdmin createPackageAdmin() {
+      final Map<String, Object> answers = new HashMap<String, Object>();
+      answers.put( "getExportedPackages", new Answer() {
+         @Override
+         public Object answer( Object[] args ) {
+            if( !( args[0] instanceof Bundle ) ) {
+               return null;
+            }
+            final SyntheticBundle bundle = bundlesById.get( ( ( Bundle )args[0] ).getBundleId() );
+            final ExportedPackage[] result = new ExportedPackage[bundle.exports.size()];
+            for( int index = 0; index < result.length; index++ ) {
+               final Export export = bundle.exports.get( index );
+               final Map<String, Object> exportAnswers = new HashMap<String, Object>();
+               exportAnswers.put( "getName", export.packageName );
+               exportAnswers.put( "getVersion", export.version );
+               exportAnswers.put( "getExportingBundle", bundle.bundle );
+               exportAnswers.put( "isRemovalPending", Boolean.FALSE );
+               result[index] = proxy( ExportedPackage.class, export.packageName, exportAnswers );
+            }
+            return result.length > 0 ? result : null;
+         }
+      } );
+      return proxy( PackageAdmin.class, "SyntheticContainer PackageAdmin", answers );
+   }
+
+   private void createWires( SyntheticBundle requirer ) {
+      for( Import imported : requirer.imports ) {
+         if( imported.provider == null ) {
+            continue;
+         }
+         final SyntheticBundle provider = imported.provider.bundle;
+         final Map<String, Object> attributes = new HashMap<String, Object>();
+         attributes.put( BundleRevision.PACKAGE_NAMESPACE, imported.packageName );
+         attributes.put( "version", imported.provider.version );
+         final Map<String, String> directives = new HashMap<String, String>();
+         if( !imported.provider.uses.isEmpty() ) {
+            directives.put( "uses", toHeader( imported.provider.uses ) );
+         }
+         final Map<String, Object> capabilityAnswers = new HashMap<String, Object>();
+         capabilityAnswers.put( "getNamespace", BundleRevision.PACKAGE_NAMESPACE );
+         capabilityAnswers.put( "getAttributes", attributes );
+         capabilityAnswers.put( "getDirectives", directives );
+         capabilityAnswers.put( "getRevision", provider.revision );
+         final BundleCapability capability = proxy( BundleCapability.class, imported.packageName, capabilityAnswers );
+
+         final Map<String, Object> wireAnswers = new HashMap<String, Object>();
+         wireAnswers.put( "getCapability", capability );
+         wireAnswers.put( "getProvider", provider.revision );
+         wireAnswers.put( "getProviderWiring", provider.wiring );
+         wireAnswers.put( "getRequirer", requirer.revision );
+         wireAnswers.put( "getRequirerWiring", requirer.wiring );
+         final BundleWire wire = proxy( BundleWire.class, String.format( "%s -> %s: %s", requirer.id, provider.id, imported.packageName ), wireAnswers );
+         requirer.requiredWires.add( wire );
+         provider.providedWires.add( wire );
+      }
+   }
+
+   private List<SyntheticBundle> generate( int bundleCount, int fanOut, int usesDepth, int duplicateEvery, int unresolvedPercent, long seed ) {
+      final Random random = new Random( seed );
+      final List<SyntheticBundle> result = new ArrayList<SyntheticBundle>();
+      final Map<String, Export> duplicates = new HashMap<String, Export>();
+      final SyntheticBundle system = new SyntheticBundle( 0 );
+      system.headers.put( "Bundle-SymbolicName", "system.bundle" );
+      system.headers.put( "Bundle-Version", EXPORT_VERSION.toString() );
+      result.add( system );
+      bundlesById.put( 0L, system );
+
+      for( int id = 1; id <= bundleCount; id++ ) {
+         final SyntheticBundle bundle = new SyntheticBundle( id );
+         final Export export = new Export( bundle, PACKAGE_PREFIX + id, EXPORT_VERSION );
+         bundle.exports.add( export );
+         if( duplicateEvery > 0 && id > 1 && id % duplicateEvery == 0 ) {
+            final Export duplicate = new Export( bundle, PACKAGE_PREFIX + ( id - 1 ), DUPLICATE_VERSION );
+            bundle.exports.add( duplicate );
+            duplicates.put( duplicate.packageName, duplicate );
+         }
+
+         // Distinct packages of earlier bundles; the nearest bundles are preferred so chains get deep
+         final int importCount = Math.min( fanOut, id - 1 );
+         final List<String> importNames = new ArrayList<String>();
+         while( importNames.size() < importCount ) {
+            final int window = Math.min( id - 1, Math.max( importCount * 4, 16 ) );
+            final String packageName = PACKAGE_PREFIX + ( id - 1 - random.nextInt( window ) );
+            if( !importNames.contains( packageName ) ) {
+               importNames.add( packageName );
+            }
+         }
+         for( String packageName : importNames ) {
+            final Export duplicate = duplicates.get( packageName );
+            final Export provider = duplicate != null && id % 2 == 0 ? duplicate : bundlesById.get( Long.parseLong( packageName.substring( PACKAGE_PREFIX.length() ) ) ).exports.get( 0 );
+            bundle.imports.add( new Import( packageName, provider ) );
+         }
+         for( int index = 0; index < Math.min( usesDepth, importNames.size() ); index++ ) {
+            for( Export exported : bundle.exports ) {
+               exported.uses.add( importNames.get( index ) );
+            }
+         }
+
+         bundle.headers.put( "Bundle-ManifestVersion", "2" );
+         bundle.headers.put( "Bundle-SymbolicName", "bench.bundle" + id );
+         bundle.headers.put( "Bundle-Version", EXPORT_VERSION.toString() );
+         final List<String> exportClauses = new ArrayList<String>();
+         for( Export exported : bundle.exports ) {
+            final String uses = exported.uses.isEmpty() ? "" : String.format( ";uses:=\"%s\"", toHeader( exported.uses ) );
+            exportClauses.add( String.format( "%s;version=\"%s\"%s", exported.packageName, exported.version, uses ) );
+         }
+         bundle.headers.put( "Export-Package", toHeader( exportClauses ) );
+         if( !importNames.isEmpty() ) {
+            final List<String> importClauses = new ArrayList<String>();
+            for( String packageName : importNames ) {
+               importClauses.add( String.format( "%s;version=\"[1.0.0,3.0.0)\"", packageName ) );
+            }
+            bundle.headers.put( "Import-Package", toHeader( importClauses ) );
+         }
+         result.add( bundle );
+         bundlesById.put( ( long )id, bundle );
+      }
+
+      // Uses constraints of exports on a package their bundle is wired to in the duplicate version
+      final List<String[]> constraints = new ArrayList<String[]>();
+      for( SyntheticBundle bundle : result ) {
+         for( Import imported : bundle.imports ) {
+            if( DUPLICATE_VERSION.equals( imported.provider.version ) && bundle.exports.get( 0 ).uses.contains( imported.packageName ) ) {
+               constraints.add( new String[]{ bundle.exports.get( 0 ).packageName, imported.packageName } );
+            }
+         }
+      }
+      final int unresolvedCount = bundleCount * unresolvedPercent / 100;
+      if( unresolvedCount > 0 && constraints.isEmpty() ) {
+         throw new IllegalArgumentException( "Unresolved bundles need a uses constraint on a duplicated package; raise bundleCount, usesDepth or lower duplicateEvery" );
+      }
+      for( int id = bundleCount + 1; id <= bundleCount + unresolvedCount; id++ ) {
+         final String[] constraint = constraints.get( random.nextInt( constraints.size() ) );
+         final SyntheticBundle bundle = new SyntheticBundle( id );
+         bundle.state = Bundle.INSTALLED;
+         bundle.headers.put( "Bundle-ManifestVersion", "2" );
+         bundle.headers.put( "Bundle-SymbolicName", "bench.unresolved" + id );
+         bundle.headers.put( "Bundle-Version", EXPORT_VERSION.toString() );
+         bundle.headers.put( "Import-Package", String.format( "%s;version=\"[1.0.0,2.0.0)\",%s;version=\"[1.0.0,2.0.0)\"", constraint[0], constraint[1] ) );
+         bundle.imports.add( new Import( constraint[0], null ) );
+         bundle.imports.add( new Import( constraint[1], null ) );
+         result.add( bundle );
+         bundlesById.put( ( long )id, bundle );
+      }
+      return result;
+   }
+
+}
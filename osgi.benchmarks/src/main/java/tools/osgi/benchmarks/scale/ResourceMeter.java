@@ -0,0 +1,138 @@
+package tools.osgi.benchmarks.scale;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures wall-clock time, allocated bytes and peak heap of named phases. Allocation is the sum over all live threads
+ * as reported by the HotSpot thread bean, so bytes allocated by threads that end during the phase are missing;
+ * <code>-1</code> is reported on VMs without allocation accounting.
+ */
+public class ResourceMeter {
+   /** Resources used by one phase */
+   public static class Measurement {
+      private final long allocatedBytes;
+      private final String name;
+      private final long peakHeapBytes;
+      private final long wallMillis;
+
+      public Measurement( String name, long wallMillis, long allocatedBytes, long peakHeapBytes ) {
+         this.name = name;
+         this.wallMillis = wallMillis;
+         this.allocatedBytes = allocatedBytes;
+         this.peakHeapBytes = peakHeapBytes;
+      }
+
+      public long getAllocatedBytes() {
+         return allocatedBytes;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public long getPeakHeapBytes() {
+         return peakHeapBytes;
+      }
+
+      public long getWallMillis() {
+         return wallMillis;
+      }
+
+      @Override
+      public String toString() {
+         return String.format( "%s: %s ms, %s MB allocated, %s MB peak heap", name, wallMillis, toMegabytes( allocatedBytes ), toMegabytes( peakHeapBytes ) );
+      }
+   }
+
+   /** Work measured as one phase */
+   public static interface Phase {
+      void run() throws Exception;
+   }
+
+   private static long toMegabytes( long bytes ) {
+      return bytes < 0 ? bytes : bytes / ( 1024 * 1024 );
+   }
+
+   private final List<Measurement> measurements = new ArrayList<Measurement>();
+
+   public List<Measurement> getMeasurements() {
+      return measurements;
+   }
+
+   /**
+    * Runs and measures the phase
+    * @param name Name the phase is reported with
+    * @param phase Work to measure
+    * @return Measurement of the phase
+    */
+   public Measurement measure( String name, Phase phase ) {
+      System.gc();
+      resetPeakHeap();
+      final long allocatedBefore = getAllocatedBytes();
+      final long start = System.nanoTime();
+      try {
+         phase.run();
+      }
+      catch( Exception exception ) {
+         throw new RuntimeException( String.format( "Phase %s failed", name ), exception );
+      }
+      final long wallMillis = ( System.nanoTime() - start ) / 1000000;
+      final long allocatedAfter = getAllocatedBytes();
+      final Measurement result = new Measurement( name, wallMillis, allocatedBefore < 0 ? -1 : Math.max( 0, allocatedAfter - allocatedBefore ), getPeakHeap() );
+      measurements.add( result );
+      System.out.println( result );
+      return result;
+   }
+
+   /** Prints all measurements as a table */
+   public void print() {
+      final String format = "| %1$-45s|%2$12s |%3$16s |%4$16s |";
+      final String line = new String( new char[String.format( format, "", "", "", "" ).length()] ).replace( "\0", "-" );
+      System.out.println( line );
+      System.out.println( String.format( format, "Phase", "Wall (ms)", "Allocated (MB)", "Peak Heap (MB)" ) );
+      System.out.println( line );
+      for( Measurement measurement : measurements ) {
+         System.out.println( String.format( format, measurement.getName(), measurement.getWallMillis(), toMegabytes( measurement.getAllocatedBytes() ), toMegabytes( measurement.getPeakHeapBytes() ) ) );
+      }
+      System.out.println( line );
+   }
+
+   private long getAllocatedBytes() {
+      final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      if( !( threadBean instanceof com.sun.management.ThreadMXBean ) ) {
+         return -1;
+      }
+      final com.sun.management.ThreadMXBean hotspotBean = ( com.sun.management.ThreadMXBean )threadBean;
+      if( !hotspotBean.isThreadAllocatedMemorySupported() || !hotspotBean.isThreadAllocatedMemoryEnabled() ) {
+         return -1;
+      }
+      long result = 0;
+      for( long allocated : hotspotBean.getThreadAllocatedBytes( hotspotBean.getAllThreadIds() ) ) {
+         result += Math.max( 0, allocated );
+      }
+      return result;
+   }
+
+   private long getPeakHeap() {
+      long result = 0;
+      for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+         if( pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null ) {
+            result += pool.getPeakUsage().getUsed();
+         }
+      }
+      return result;
+   }
+
+   private void resetPeakHeap() {
+      for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+         if( pool.getType() == MemoryType.HEAP ) {
+            pool.resetPeakUsage();
+         }
+      }
+   }
+}
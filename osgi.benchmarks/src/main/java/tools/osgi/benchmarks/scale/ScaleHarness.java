@@ -0,0 +1,285 @@
+package tools.osgi.benchmarks.scale;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import tools.osgi.benchmarks.scale.SyntheticBundleGenerator.SyntheticBundle;
+
+/**
+ * Scale test of the analyzer and the <code>m2e:deploy</code> flow against thousands of generated bundles installed in
+ * an embedded framework (the first {@link FrameworkFactory} on the class path, Felix by default). Everything runs
+ * locally; the wall-clock, allocation and peak heap of each phase are printed at the end.
+ * <p>
+ * Usage: <code>java -cp benchmarks.jar tools.osgi.benchmarks.scale.ScaleHarness [options]</code>
+ * <ul>
+ * <li><code>--bundles &lt;n&gt;</code> Number of generated bundles (default 1000)</li>
+ * <li><code>--fan-out &lt;n&gt;</code>, <code>--uses-depth &lt;n&gt;</code> Imports per bundle and uses per export</li>
+ * <li><code>--conflict-every &lt;n&gt;</code>, <code>--optional-every &lt;n&gt;</code> Interval of deliberate problems</li>
+ * <li><code>--parallelism &lt;n&gt;</code> Threads for the container-wide analysis (default 0, one per processor)</li>
+ * <li><code>--work-dir &lt;dir&gt;</code> Folder for generated jars and the framework storage</li>
+ * <li><code>--platform &lt;dir&gt;</code> Folder of bundle jars (analyzer, maven integration and their dependencies) to
+ * install and start; without it the analyzer from the class path is started on the system bundle</li>
+ * <li><code>--deploy-projects &lt;n&gt;</code> Number of generated bundles deployed with <code>m2e:deploy</code> from a
+ * generated workspace instead of being installed directly; needs <code>--platform</code></li>
+ * </ul>
+ */
+public class ScaleHarness {
+   private static final String ANALYZER_SERVICE = "tools.osgi.analyzer.api.IOsgiAnalyzerService";
+   private static final String INTEGRATION_SERVICE = "tools.osgi.maven.integration.api.OsgiMavenIntegrationService";
+
+   public static void main( String[] args ) throws Exception {
+      final Map<String, String> options = new HashMap<String, String>();
+      for( int index = 0; index + 1 < args.length; index += 2 ) {
+         if( !args[index].startsWith( "--" ) ) {
+            throw new IllegalArgumentException( String.format( "Expected an option but got: %s", args[index] ) );
+         }
+         options.put( args[index].substring( 2 ), args[index + 1] );
+      }
+      new ScaleHarness( options ).run();
+   }
+
+   private static void delete( File file ) {
+      final File[] children = file.listFiles();
+      if( children != null ) {
+         for( File child : children ) {
+            delete( child );
+         }
+      }
+      file.delete();
+   }
+
+   private static Object invoke( Object target, String name, Class<?>[] parameterTypes, Object... args ) throws Exception {
+      final Method method = target.getClass().getMethod( name, parameterTypes );
+      return method.invoke( target, args );
+   }
+
+   private BundleActivator analyzerActivator;
+   private Object analyzerService;
+   private Framework framework;
+   private final SyntheticBundleGenerator generator = new SyntheticBundleGenerator();
+   private final ResourceMeter meter = new ResourceMeter();
+   private final Map<String, String> options;
+
+   public ScaleHarness( Map<String, String> options ) {
+      this.options = options;
+   }
+
+   public void run() throws Exception {
+      final File workDir = new File( getOption( "work-dir", new File( System.getProperty( "java.io.tmpdir" ), "osgi-scale" ).getPath() ) );
+      final File platformDir = options.containsKey( "platform" ) ? new File( options.get( "platform" ) ) : null;
+      final int deployProjects = Integer.parseInt( getOption( "deploy-projects", "0" ) );
+      final int parallelism = Integer.parseInt( getOption( "parallelism", "0" ) );
+      if( deployProjects > 0 && platformDir == null ) {
+         throw new IllegalArgumentException( "--deploy-projects needs --platform with the maven integration bundle" );
+      }
+      generator.setBundleCount( Integer.parseInt( getOption( "bundles", "1000" ) ) );
+      generator.setFanOut( Integer.parseInt( getOption( "fan-out", "5" ) ) );
+      generator.setUsesDepth( Integer.parseInt( getOption( "uses-depth", "3" ) ) );
+      generator.setConflictEvery( Integer.parseInt( getOption( "conflict-every", "50" ) ) );
+      generator.setOptionalEvery( Integer.parseInt( getOption( "optional-every", "25" ) ) );
+
+      delete( workDir );
+      final File jarDir = new File( workDir, "bundles" );
+      final File workspaceDir = new File( workDir, "workspace" );
+      jarDir.mkdirs();
+      workspaceDir.mkdirs();
+
+      // Generate
+      final List<SyntheticBundle> bundles = generator.generate();
+      final List<SyntheticBundle> projects = new ArrayList<SyntheticBundle>();
+      final List<File> jars = new ArrayList<File>();
+      final List<File> lateJars = new ArrayList<File>();
+      meter.measure( String.format( "Generate %s bundles", bundles.size() ), new ResourceMeter.Phase() {
+         @Override
+         public void run() {
+            // The last regular bundles become workspace projects; only bundles after them import their packages
+            final int firstProject = generator.getBundleCount() - deployProjects + 1;
+            for( SyntheticBundle bundle : bundles ) {
+               if( bundle.getId() >= firstProject && bundle.getSymbolicName().startsWith( "bench.bundle" ) ) {
+                  generator.writeMavenProject( bundle, workspaceDir );
+                  projects.add( bundle );
+               }
+               else if( bundle.isLate() ) {
+                  lateJars.add( generator.writeJar( bundle, jarDir ) );
+               }
+               else {
+                  jars.add( generator.writeJar( bundle, jarDir ) );
+               }
+            }
+         }
+      } );
+
+      try {
+         startFramework( new File( workDir, "framework" ), platformDir );
+         final BundleContext context = framework.getBundleContext();
+         final FrameworkWiring frameworkWiring = framework.adapt( FrameworkWiring.class );
+
+         meter.measure( String.format( "Install %s bundles", jars.size() ), new ResourceMeter.Phase() {
+            @Override
+            public void run() throws Exception {
+               for( File jar : jars ) {
+                  context.installBundle( jar.toURI().toString() );
+               }
+            }
+         } );
+         meter.measure( "Resolve", new ResourceMeter.Phase() {
+            @Override
+            public void run() {
+               frameworkWiring.resolveBundles( null );
+            }
+         } );
+         meter.measure( String.format( "Install and resolve %s late bundles", lateJars.size() ), new ResourceMeter.Phase() {
+            @Override
+            public void run() throws Exception {
+               final List<Bundle> installed = new ArrayList<Bundle>();
+               for( File jar : lateJars ) {
+                  installed.add( context.installBundle( jar.toURI().toString() ) );
+               }
+               frameworkWiring.resolveBundles( installed );
+            }
+         } );
+         printContainer( context );
+
+         analyze( context, parallelism, "" );
+         analyze( context, parallelism, " (repeat)" );
+
+         if( deployProjects > 0 ) {
+            deploy( context, workspaceDir, false, String.format( "Deploy %s projects", projects.size() ) );
+            deploy( context, workspaceDir, true, String.format( "Redeploy %s projects", projects.size() ) );
+         }
+      }
+      finally {
+         stopFramework();
+      }
+      meter.print();
+   }
+
+   private void analyze( BundleContext context, final int parallelism, String suffix ) throws Exception {
+      meter.measure( "Find bundles with uses conflicts" + suffix, new ResourceMeter.Phase() {
+         @Override
+         public void run() throws Exception {
+            final List<?> result = ( List<?> )invoke( analyzerService, "findBundlesWithUsesConflicts", new Class<?>[]{ int.class }, parallelism );
+            System.out.println( String.format( "Bundles with uses conflicts: %s", result.size() ) );
+         }
+      } );
+      meter.measure( "Find bundles with missing optional imports" + suffix, new ResourceMeter.Phase() {
+         @Override
+         public void run() throws Exception {
+            final List<?> result = ( List<?> )invoke( analyzerService, "findBundlesWithMissingOptionalImports", new Class<?>[]{ int.class }, parallelism );
+            System.out.println( String.format( "Bundles with missing optional imports: %s", result.size() ) );
+         }
+      } );
+      final List<Bundle> unresolved = new ArrayList<Bundle>();
+      for( Bundle bundle : context.getBundles() ) {
+         if( bundle.getState() == Bundle.INSTALLED ) {
+            unresolved.add( bundle );
+         }
+      }
+      meter.measure( String.format( "Check resolution of %s unresolved%s", unresolved.size(), suffix ), new ResourceMeter.Phase() {
+         @Override
+         public void run() throws Exception {
+            int resolvable = 0;
+            for( Bundle bundle : unresolved ) {
+               final Object report = invoke( analyzerService, "checkResolution", new Class<?>[]{ Bundle.class }, bundle );
+               resolvable += Boolean.TRUE.equals( invoke( report, "isResolvable", new Class<?>[0] ) ) ? 1 : 0;
+            }
+            System.out.println( String.format( "Unresolved bundles that would resolve: %s of %s", resolvable, unresolved.size() ) );
+         }
+      } );
+   }
+
+   private void deploy( BundleContext context, final File workspaceDir, final boolean force, String name ) throws Exception {
+      final ServiceReference<?> reference = context.getServiceReference( INTEGRATION_SERVICE );
+      if( reference == null ) {
+         throw new IllegalStateException( String.format( "No %s registered; is the maven integration bundle in the platform folder?", INTEGRATION_SERVICE ) );
+      }
+      final Object integrationService = context.getService( reference );
+      final Class<?>[] parameterTypes = { boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, String.class };
+      meter.measure( name, new ResourceMeter.Phase() {
+         @Override
+         public void run() throws Exception {
+            // verbose, planOnly, reinstall, refreshUsesConflicts, dependenciesOnly, uninstallOnly, includeDependencies, showOptionalImports, force, diagnose
+            invoke( integrationService, "deploy", parameterTypes, false, false, false, false, false, false, false, false, force, false, workspaceDir.getAbsolutePath() );
+         }
+      } );
+   }
+
+   private String getOption( String name, String defaultValue ) {
+      final String result = options.get( name );
+      return result != null ? result : defaultValue;
+   }
+
+   private void printContainer( BundleContext context ) {
+      int resolved = 0;
+      int unresolved = 0;
+      for( Bundle bundle : context.getBundles() ) {
+         if( bundle.getState() == Bundle.INSTALLED ) {
+            unresolved++;
+         }
+         else {
+            resolved++;
+         }
+      }
+      System.out.println( String.format( "Container: %s resolved, %s unresolved bundles", resolved, unresolved ) );
+   }
+
+   private void startFramework( File storage, File platformDir ) throws Exception {
+      final Map<String, String> configuration = new HashMap<String, String>();
+      configuration.put( Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath() );
+      configuration.put( Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT );
+      final FrameworkFactory factory = ServiceLoader.load( FrameworkFactory.class ).iterator().next();
+      framework = factory.newFramework( configuration );
+      framework.start();
+      final BundleContext context = framework.getBundleContext();
+
+      if( platformDir != null ) {
+         final List<Bundle> platform = new ArrayList<Bundle>();
+         final File[] files = platformDir.listFiles();
+         for( File file : files != null ? files : new File[0] ) {
+            if( file.getName().endsWith( ".jar" ) ) {
+               platform.add( context.installBundle( file.toURI().toString() ) );
+            }
+         }
+         for( Bundle bundle : platform ) {
+            if( bundle.getHeaders().get( Constants.FRAGMENT_HOST ) == null ) {
+               bundle.start();
+            }
+         }
+      }
+      else {
+         // Same start up as the analyzer bundle but on the system bundle context
+         analyzerActivator = ( BundleActivator )Class.forName( "tools.osgi.analyzer.internal.Activator" ).newInstance();
+         analyzerActivator.start( context );
+      }
+      final ServiceReference<?> reference = context.getServiceReference( ANALYZER_SERVICE );
+      if( reference == null ) {
+         throw new IllegalStateException( String.format( "No %s registered; is the analyzer bundle in the platform folder?", ANALYZER_SERVICE ) );
+      }
+      analyzerService = context.getService( reference );
+   }
+
+   private void stopFramework() throws Exception {
+      if( framework == null ) {
+         return;
+      }
+      if( analyzerActivator != null ) {
+         analyzerActivator.stop( framework.getBundleContext() );
+      }
+      framework.stop();
+      framework.waitForStop( 30000 );
+   }
+}
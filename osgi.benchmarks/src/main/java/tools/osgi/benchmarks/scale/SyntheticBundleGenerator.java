@@ -0,0 +1,277 @@
+package tools.osgi.benchmarks.scale;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates bundles with realistic manifests for scale tests. Bundle <code>bench.bundle&lt;i&gt;</code> exports
+ * <code>bench.p&lt;i&gt;</code> and imports <code>fanOut</code> packages of bundles generated before it; each export
+ * uses the first <code>usesDepth</code> imports so uses constraints chain through the container.
+ * <p>
+ * Deliberate problems:
+ * <ul>
+ * <li>Every <code>conflictEvery</code>-th bundle <code>c</code> imports <code>bench.p&lt;c-1&gt;</code> below 1.5 while
+ * <code>bench.alt&lt;c&gt;</code> exports it as 1.5 and <code>bench.conflict&lt;c&gt;</code> needs both
+ * <code>bench.p&lt;c&gt;</code> and 1.5 of <code>bench.p&lt;c-1&gt;</code>, a uses conflict the resolver cannot solve</li>
+ * <li>Every <code>optionalEvery</code>-th bundle optionally imports <code>bench.late&lt;i&gt;</code> which is only
+ * exported by a <em>late</em> bundle installed after the others resolved, so the import needs a refresh</li>
+ * </ul>
+ */
+public class SyntheticBundleGenerator {
+   /** Manifest and packages of one generated bundle */
+   public static class SyntheticBundle {
+      private final Map<String, String> headers = new LinkedHashMap<String, String>();
+      private final int id;
+      private final boolean late;
+      private final List<String> packages = new ArrayList<String>();
+      private final String symbolicName;
+
+      public SyntheticBundle( String symbolicName, int id, boolean late ) {
+         this.symbolicName = symbolicName;
+         this.id = id;
+         this.late = late;
+         headers.put( "Manifest-Version", "1.0" );
+         headers.put( "Bundle-ManifestVersion", "2" );
+         headers.put( "Bundle-SymbolicName", symbolicName );
+         headers.put( "Bundle-Version", "1.0.0" );
+      }
+
+      public Map<String, String> getHeaders() {
+         return headers;
+      }
+
+      /** @return Number of the generated bundle the bundle belongs to */
+      public int getId() {
+         return id;
+      }
+
+      /** @return Packages the bundle contains */
+      public List<String> getPackages() {
+         return packages;
+      }
+
+      public String getSymbolicName() {
+         return symbolicName;
+      }
+
+      /** @return <code>true</code> if the bundle should only be installed after the others resolved */
+      public boolean isLate() {
+         return late;
+      }
+
+      @Override
+      public String toString() {
+         return symbolicName;
+      }
+   }
+
+   private static final String PACKAGE_PREFIX = "bench.p";
+
+   private static String join( List<String> values ) {
+      final StringBuilder result = new StringBuilder();
+      for( String value : values ) {
+         result.append( result.length() > 0 ? "," : "" ).append( value );
+      }
+      return result.toString();
+   }
+
+   private int bundleCount = 1000;
+   private int conflictEvery = 50;
+   private int fanOut = 5;
+   private int optionalEvery = 25;
+   private long seed = 42;
+   private int usesDepth = 3;
+
+   /** @return Generated bundles in install order; late bundles last */
+   public List<SyntheticBundle> generate() {
+      final Random random = new Random( seed );
+      final List<SyntheticBundle> result = new ArrayList<SyntheticBundle>();
+      final List<SyntheticBundle> problems = new ArrayList<SyntheticBundle>();
+      final List<SyntheticBundle> late = new ArrayList<SyntheticBundle>();
+      for( int id = 1; id <= bundleCount; id++ ) {
+         final boolean conflict = conflictEvery > 0 && id > 1 && id % conflictEvery == 0;
+         final SyntheticBundle bundle = new SyntheticBundle( "bench.bundle" + id, id, false );
+         final String exported = PACKAGE_PREFIX + id;
+         bundle.packages.add( exported );
+
+         // Distinct packages of earlier bundles; the nearest bundles are preferred so chains get deep
+         final List<String> imports = new ArrayList<String>();
+         final List<String> importClauses = new ArrayList<String>();
+         if( conflict ) {
+            imports.add( PACKAGE_PREFIX + ( id - 1 ) );
+            importClauses.add( String.format( "%s;version=\"[1.0,1.5)\"", PACKAGE_PREFIX + ( id - 1 ) ) );
+         }
+         final int importCount = Math.min( fanOut, id - 1 );
+         while( imports.size() < importCount ) {
+            final int window = Math.min( id - 1, Math.max( importCount * 4, 16 ) );
+            final String packageName = PACKAGE_PREFIX + ( id - 1 - random.nextInt( window ) );
+            if( !imports.contains( packageName ) ) {
+               imports.add( packageName );
+               importClauses.add( String.format( "%s;version=\"[1.0,2.0)\"", packageName ) );
+            }
+         }
+         if( optionalEvery > 0 && id % optionalEvery == 0 ) {
+            final SyntheticBundle lateBundle = new SyntheticBundle( "bench.late" + id, id, true );
+            lateBundle.packages.add( "bench.late" + id );
+            lateBundle.headers.put( "Export-Package", String.format( "bench.late%s;version=\"1.0.0\"", id ) );
+            late.add( lateBundle );
+            importClauses.add( String.format( "bench.late%s;resolution:=optional", id ) );
+         }
+
+         final List<String> uses = imports.subList( 0, Math.min( usesDepth, imports.size() ) );
+         bundle.headers.put( "Export-Package", String.format( "%s;version=\"1.0.0\"%s", exported, uses.isEmpty() ? "" : String.format( ";uses:=\"%s\"", join( uses ) ) ) );
+         if( !importClauses.isEmpty() ) {
+            bundle.headers.put( "Import-Package", join( importClauses ) );
+         }
+         result.add( bundle );
+
+         if( conflict ) {
+            final String used = PACKAGE_PREFIX + ( id - 1 );
+            final SyntheticBundle alternative = new SyntheticBundle( "bench.alt" + id, id, false );
+            alternative.packages.add( used );
+            alternative.headers.put( "Export-Package", String.format( "%s;version=\"1.5.0\"", used ) );
+            problems.add( alternative );
+
+            final SyntheticBundle conflicting = new SyntheticBundle( "bench.conflict" + id, id, false );
+            conflicting.headers.put( "Import-Package", String.format( "%s;version=\"[1.0,2.0)\",%s;version=\"[1.5,2.0)\"", exported, used ) );
+            problems.add( conflicting );
+         }
+      }
+      result.addAll( problems );
+      result.addAll( late );
+      return result;
+   }
+
+   public int getBundleCount() {
+      return bundleCount;
+   }
+
+   public SyntheticBundleGenerator setBundleCount( int bundleCount ) {
+      this.bundleCount = bundleCount;
+      return this;
+   }
+
+   /** @param conflictEvery Interval of bundles that get an unresolvable uses conflict; <code>0</code> for none */
+   public SyntheticBundleGenerator setConflictEvery( int conflictEvery ) {
+      this.conflictEvery = conflictEvery;
+      return this;
+   }
+
+   public SyntheticBundleGenerator setFanOut( int fanOut ) {
+      this.fanOut = fanOut;
+      return this;
+   }
+
+   /** @param optionalEvery Interval of bundles that get an optional import needing a refresh; <code>0</code> for none */
+   public SyntheticBundleGenerator setOptionalEvery( int optionalEvery ) {
+      this.optionalEvery = optionalEvery;
+      return this;
+   }
+
+   public SyntheticBundleGenerator setSeed( long seed ) {
+      this.seed = seed;
+      return this;
+   }
+
+   public SyntheticBundleGenerator setUsesDepth( int usesDepth ) {
+      this.usesDepth = usesDepth;
+      return this;
+   }
+
+   /**
+    * Writes the bundle as a jar file
+    * @param bundle Bundle to write
+    * @param folder Folder to write the jar to
+    * @return Written jar file
+    */
+   public File writeJar( SyntheticBundle bundle, File folder ) {
+      final File result = new File( folder, bundle.getSymbolicName() + ".jar" );
+      try {
+         final JarOutputStream output = new JarOutputStream( new FileOutputStream( result ), toManifest( bundle ) );
+         try {
+            for( String packageName : bundle.getPackages() ) {
+               output.putNextEntry( new JarEntry( packageName.replace( '.', '/' ) + "/package.txt" ) );
+               output.write( packageName.getBytes( "UTF-8" ) );
+               output.closeEntry();
+            }
+         }
+         finally {
+            output.close();
+         }
+         return result;
+      }
+      catch( IOException exception ) {
+         throw new RuntimeException( String.format( "Failed to write bundle %s to %s", bundle, folder ), exception );
+      }
+   }
+
+   /**
+    * Writes the bundle as a compiled Maven project the way <code>m2e:deploy</code> expects to find it in a workspace
+    * @param bundle Bundle to write
+    * @param workspace Workspace folder to create the project folder in
+    * @return Project folder
+    */
+   public File writeMavenProject( SyntheticBundle bundle, File workspace ) {
+      final File result = new File( workspace, bundle.getSymbolicName() );
+      final File classes = new File( result, "target" + File.separator + "classes" );
+      try {
+         new File( classes, "META-INF" ).mkdirs();
+         final OutputStream manifestOutput = new FileOutputStream( new File( classes, JarFile.MANIFEST_NAME ) );
+         try {
+            toManifest( bundle ).write( manifestOutput );
+         }
+         finally {
+            manifestOutput.close();
+         }
+         for( String packageName : bundle.getPackages() ) {
+            final File packageFolder = new File( classes, packageName.replace( '.', File.separatorChar ) );
+            packageFolder.mkdirs();
+            write( new File( packageFolder, "package.txt" ), packageName );
+         }
+         final StringBuilder pom = new StringBuilder();
+         pom.append( "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n" );
+         pom.append( "   <modelVersion>4.0.0</modelVersion>\n" );
+         pom.append( "   <groupId>bench</groupId>\n" );
+         pom.append( String.format( "   <artifactId>%s</artifactId>\n", bundle.getSymbolicName() ) );
+         pom.append( "   <version>1.0.0</version>\n" );
+         pom.append( "</project>\n" );
+         write( new File( result, "pom.xml" ), pom.toString() );
+         return result;
+      }
+      catch( IOException exception ) {
+         throw new RuntimeException( String.format( "Failed to write project %s to %s", bundle, workspace ), exception );
+      }
+   }
+
+   private Manifest toManifest( SyntheticBundle bundle ) {
+      final Manifest result = new Manifest();
+      for( Map.Entry<String, String> header : bundle.getHeaders().entrySet() ) {
+         result.getMainAttributes().put( new Attributes.Name( header.getKey() ), header.getValue() );
+      }
+      return result;
+   }
+
+   private void write( File file, String content ) throws IOException {
+      final Writer writer = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" );
+      try {
+         writer.write( content );
+      }
+      finally {
+         writer.close();
+      }
+   }
+}
@@ -63,6 +63,8 @@ import org.slf4j.LoggerFactory;
 import tools.osgi.analyzer.api.BundleUtils;
 import tools.osgi.analyzer.api.IOsgiAnalyzerService;
 import tools.osgi.analyzer.api.UsesConflict;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestion;
+import tools.osgi.analyzer.api.UsesConflictResolutionSuggestionType;
 import tools.osgi.maven.integration.internal.Duration;
 import tools.osgi.maven.integration.internal.FileUtils;
 import tools.osgi.maven.integration.internal.MavenProjectHolder;
@@ -89,8 +91,11 @@ import com.springsource.util.osgi.manifest.Resolution;
 public class OsgiMavenIntegrationService {
    private static final Logger LOG = LoggerFactory.getLogger( OsgiMavenIntegrationService.class );
 
+   private volatile ServiceTracker<ApplicationDeployer, ApplicationDeployer> applicationDeployerTracker;
    private BundleContext bundleContext;
    private List<DeployedMavenProject> deployedMavenProjects = new ArrayList<DeployedMavenProject>();
+   private volatile ServiceTracker<IOsgiAnalyzerService, IOsgiAnalyzerService> osgiAnalyzerServiceTracker;
+   private volatile ServiceTracker<PackageAdmin, PackageAdmin> packageAdminTracker;
 
    public OsgiMavenIntegrationService( BundleContext bundleContext ) {
       this.bundleContext = Support._BundleContext.of( bundleContext )
@@ -579,7 +584,9 @@ public class OsgiMavenIntegrationService {
                      }
                      catch( Exception exception2 ) {
                         // Diagnose Exception
+                        System.out.println( String.format( "Failed Starting: %s(%s)", bundle.getSymbolicName(), bundle.getBundleId() ) );
                         getOsgiAnalyzerService().diagnose( exception2 );
+                        throw new RuntimeException( String.format( "Error Starting: %s(%s)", bundle.getSymbolicName(), bundle.getBundleId() ), exception2 );
                      }
                   }
                   else {
@@ -605,6 +612,32 @@ public class OsgiMavenIntegrationService {
       printDeployedProjects();
    }
 
+   /** Stops tracking the services opened by {@link #open()}; called when the bundle stops */
+   public void close() {
+      if( applicationDeployerTracker != null ) {
+         applicationDeployerTracker.close();
+         applicationDeployerTracker = null;
+      }
+      if( osgiAnalyzerServiceTracker != null ) {
+         osgiAnalyzerServiceTracker.close();
+         osgiAnalyzerServiceTracker = null;
+      }
+      if( packageAdminTracker != null ) {
+         packageAdminTracker.close();
+         packageAdminTracker = null;
+      }
+   }
+
+   /** Starts tracking the services the commands use; called once when the bundle starts */
+   public void open() {
+      packageAdminTracker = new ServiceTracker<PackageAdmin, PackageAdmin>( bundleContext, PackageAdmin.class, null );
+      packageAdminTracker.open();
+      osgiAnalyzerServiceTracker = new ServiceTracker<IOsgiAnalyzerService, IOsgiAnalyzerService>( bundleContext, IOsgiAnalyzerService.class, null );
+      osgiAnalyzerServiceTracker.open();
+      applicationDeployerTracker = new ServiceTracker<ApplicationDeployer, ApplicationDeployer>( bundleContext, ApplicationDeployer.class, null );
+      applicationDeployerTracker.open();
+   }
+
    private Resource addAssemblyResource( MavenProjectsObrResult result, MavenProjectHolder holder ) {
       try {
          final Resource resource = ObrUtils.createResource( getRepositoryAdmin().getHelper(), getMavenProjectBundleFolder( holder.getProject() ), getMavenProjectBundleUri( holder.getProject() ) );
@@ -767,10 +800,8 @@ public class OsgiMavenIntegrationService {
    }
 
    private ApplicationDeployer getApplicationDeployer() {
-      final ServiceTracker<ApplicationDeployer, Object> packageAdminTracker = new ServiceTracker<ApplicationDeployer, Object>( bundleContext, ApplicationDeployer.class.getName(), null );
-      packageAdminTracker.open();
-      final ApplicationDeployer result = ( ApplicationDeployer )packageAdminTracker.getService();
-      return result;
+      final ServiceTracker<ApplicationDeployer, ApplicationDeployer> tracker = applicationDeployerTracker;
+      return tracker != null ? tracker.getService() : getOsgiService( bundleContext, ApplicationDeployer.class );
    }
 
    private DeployedMavenProject getDeployed( Artifact artifact ) {
@@ -873,10 +904,8 @@ public class OsgiMavenIntegrationService {
    }
 
    private IOsgiAnalyzerService getOsgiAnalyzerService() {
-      final ServiceTracker<IOsgiAnalyzerService, Object> tracker = new ServiceTracker<IOsgiAnalyzerService, Object>( bundleContext, IOsgiAnalyzerService.class.getName(), null );
-      tracker.open();
-      final IOsgiAnalyzerService result = ( IOsgiAnalyzerService )tracker.getService();
-      return result;
+      final ServiceTracker<IOsgiAnalyzerService, IOsgiAnalyzerService> tracker = osgiAnalyzerServiceTracker;
+      return tracker != null ? tracker.getService() : getOsgiService( bundleContext, IOsgiAnalyzerService.class );
    }
 
    @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -890,10 +919,8 @@ public class OsgiMavenIntegrationService {
    }
 
    private PackageAdmin getPackageAdmin() {
-      final ServiceTracker<PackageAdmin, Object> packageAdminTracker = new ServiceTracker<PackageAdmin, Object>( bundleContext, PackageAdmin.class.getName(), null );
-      packageAdminTracker.open();
-      final PackageAdmin packageAdmin = ( PackageAdmin )packageAdminTracker.getService();
-      return packageAdmin;
+      final ServiceTracker<PackageAdmin, PackageAdmin> tracker = packageAdminTracker;
+      return tracker != null ? tracker.getService() : getOsgiService( bundleContext, PackageAdmin.class );
    }
 
    private RepositoryAdmin getRepositoryAdmin() {
@@ -1134,11 +1161,32 @@ public class OsgiMavenIntegrationService {
       }
    }
 
+   /**
+    * Refreshes the bundle together with the smallest set of bundles whose refresh removes its uses conflicts. Conflicts
+    * no refresh removes, header conflicts and wiring conflicts without a common provider, need a bundle uninstalled
+    * which a deployment never does; the deployment fails with the suggested uninstalls instead.
+    */
    private void refreshBundleWithUsesConflicts( Bundle bundle ) {
       final Set<Bundle> bundles = new HashSet<Bundle>();
       bundles.add( bundle );
-      for( UsesConflict usesConflict : getOsgiAnalyzerService().findUsesConflicts( bundle ) ) {
-         bundles.add( usesConflict.getUsesConflictBundle() );
+      final List<UsesConflictResolutionSuggestion> uninstalls = new ArrayList<UsesConflictResolutionSuggestion>();
+      for( UsesConflictResolutionSuggestion suggestion : getOsgiAnalyzerService().findUsesConflictResolutions( bundle ) ) {
+         if( UsesConflictResolutionSuggestionType.RefreshBundle.equals( suggestion.getType() ) ) {
+            bundles.add( suggestion.getTargetBundle() );
+         }
+         else {
+            uninstalls.add( suggestion );
+         }
+      }
+      if( !uninstalls.isEmpty() ) {
+         System.out.println( String.format( "Uses Conflicts Not Removable by Refresh: %s(%s)", bundle.getSymbolicName(), bundle.getBundleId() ) );
+         for( UsesConflictResolutionSuggestion suggestion : uninstalls ) {
+            System.out.println( String.format( "   %s", suggestion ) );
+            for( UsesConflict usesConflict : suggestion.getResolvedUsesConflicts() ) {
+               System.out.println( String.format( "      %s", usesConflict ) );
+            }
+         }
+         throw new RuntimeException( String.format( "Uses conflicts of %s(%s) can only be removed by uninstalling bundles: %s", bundle.getSymbolicName(), bundle.getBundleId(), uninstalls ) );
       }
       final Bundle[] refreshBundles = new Bundle[bundles.size()];
       bundles.toArray( refreshBundles );
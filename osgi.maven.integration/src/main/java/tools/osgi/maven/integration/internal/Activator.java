@@ -8,6 +8,7 @@ import org.osgi.framework.BundleContext;
 import tools.osgi.maven.integration.api.OsgiMavenIntegrationService;
 
 public class Activator implements BundleActivator {
+   private OsgiMavenIntegrationService integrationService;
 
    @Override
    public void start( BundleContext context ) throws Exception {
@@ -15,7 +16,9 @@ public class Activator implements BundleActivator {
          final Hashtable<String, Object> props = new Hashtable<String, Object>();
          props.put( "osgi.command.scope", "m2e" );
          props.put( "osgi.command.function", new String[]{ "deploy", "show_deployed" } );
-         context.registerService( OsgiMavenIntegrationService.class.getName(), new OsgiMavenIntegrationService( context ), props );
+         integrationService = new OsgiMavenIntegrationService( context );
+         integrationService.open();
+         context.registerService( OsgiMavenIntegrationService.class.getName(), integrationService, props );
       }
       catch( Exception exception ) {
          throw new RuntimeException( String.format( "Error starting bundle: %s, Error: %s", context.getBundle().getSymbolicName(), exception.getMessage() ), exception );
@@ -24,7 +27,9 @@ public class Activator implements BundleActivator {
 
    @Override
    public void stop( BundleContext context ) throws Exception {
-
+      if( integrationService != null ) {
+         integrationService.close();
+      }
    }
 
 }
\ No newline at end of file
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -24,15 +23,16 @@ import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.resource.Namespace;
 
 import tools.osgi.analyzer.api.BundleUtils;
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackedVersion;
+import tools.osgi.analyzer.api.PackedVersionRange;
 import tools.osgi.maven.integration.api.DeployedMavenProject;
 import tools.osgi.maven.integration.api.JarBuilder;
 
 import com.springsource.util.osgi.manifest.BundleManifest;
-import com.springsource.util.osgi.manifest.BundleManifestFactory;
 import com.springsource.util.osgi.manifest.ExportedPackage;
 import com.springsource.util.osgi.manifest.ImportedPackage;
 import com.springsource.util.osgi.manifest.Resolution;
-import com.springsource.util.osgi.manifest.parse.DummyParserLogger;
 
 /** Defines a deployment plan for a maven project */
 public class MavenProjectsBundleDeploymentPlan {
@@ -240,7 +240,7 @@ public class MavenProjectsBundleDeploymentPlan {
 
       @Override
       public BundleManifest getManifest() {
-         return BundleManifestFactory.createBundleManifest( bundle.getHeaders(), new DummyParserLogger() );
+         return BundleUtils.getBundleManifest( bundle );
       }
 
       @Override
@@ -532,7 +532,7 @@ public class MavenProjectsBundleDeploymentPlan {
       private Bundle existingBundle;
 
       public ReinstallBundleDeploymentPlan( BundleContext bundleContext, Bundle existingBundle ) {
-         super( bundleContext, BundleManifestFactory.createBundleManifest( existingBundle.getHeaders(), new DummyParserLogger() ) );
+         super( bundleContext, BundleUtils.getBundleManifest( existingBundle ) );
          this.existingBundle = existingBundle;
       }
 
@@ -573,7 +573,7 @@ public class MavenProjectsBundleDeploymentPlan {
       private DeployedMavenProject deployedProject;
 
       public ReinstallMavenProjectDeploymentPlan( BundleContext bundleContext, DeployedMavenProject deployedProject ) {
-         super( bundleContext, BundleManifestFactory.createBundleManifest( deployedProject.getBundle().getHeaders(), new DummyParserLogger() ) );
+         super( bundleContext, BundleUtils.getBundleManifest( deployedProject.getBundle() ) );
          this.deployedProject = deployedProject;
       }
 
@@ -845,10 +845,6 @@ public class MavenProjectsBundleDeploymentPlan {
       }
    }
 
-   private Iterable<Bundle> all() {
-      return Arrays.asList( bundleContext.getBundle( 0 ).getBundleContext().getBundles() );
-   }
-
    private void calculateDependentBundles() {
       final List<AbstractBundleDeploymentPlan> all = new ArrayList<MavenProjectsBundleDeploymentPlan.AbstractBundleDeploymentPlan>();
       all.addAll( dependencyPlans );
@@ -883,10 +879,6 @@ public class MavenProjectsBundleDeploymentPlan {
       Collections.reverse( uninstallOrder );
    }
 
-   private boolean containsExportForImport( Bundle bundle, ImportedPackage importedPackage ) {
-      return getExportedPackage( bundle, importedPackage ) != null;
-   }
-
    private boolean containsExportForImport( BundleManifest manifest, ImportedPackage importedPackage ) {
       return getExportedPackage( manifest, importedPackage ) != null;
    }
@@ -913,13 +905,7 @@ public class MavenProjectsBundleDeploymentPlan {
    }
 
    private List<Bundle> findBundlesThatSatisfyImport( ImportedPackage importedPackage ) {
-      final List<Bundle> result = new ArrayList<Bundle>();
-      for( Bundle bundle : all() ) {
-         if( containsExportForImport( bundle, importedPackage ) ) {
-            result.add( bundle );
-         }
-      }
-      return result;
+      return BundleUtils.findBundlesThatSatisfyImport( bundleContext.getBundle( 0 ).getBundleContext(), importedPackage );
    }
 
    @SuppressWarnings({ "unchecked", "unused" })
@@ -942,8 +928,8 @@ public class MavenProjectsBundleDeploymentPlan {
    private List<Artifact> findMavenDependenciesThatSatisfyImport( List<Artifact> dependencies, ImportedPackage importedPackage ) {
       final List<Artifact> result = new ArrayList<Artifact>();
       for( Artifact dependency : dependencies ) {
-         final BundleManifest manifest = MavenUtils.getBundleManifest( dependency );
-         if( manifest != null && containsExportForImport( manifest, importedPackage ) ) {
+         final PackageHeader exports = MavenUtils.getExportPackageHeader( dependency );
+         if( exports != null && exports.satisfies( importedPackage ) ) {
             result.add( dependency );
          }
       }
@@ -963,8 +949,8 @@ public class MavenProjectsBundleDeploymentPlan {
    private List<MavenProjectHolder> findMavenProjectsThatSatisfyImport( ImportedPackage importedPackage ) {
       final List<MavenProjectHolder> result = new ArrayList<MavenProjectHolder>();
       for( MavenProjectHolder holder : mavenProjects ) {
-         final BundleManifest manifest = MavenUtils.getBundleManifest( holder.getProject() );
-         if( manifest != null && containsExportForImport( manifest, importedPackage ) ) {
+         final PackageHeader exports = MavenUtils.getExportPackageHeader( holder.getProject() );
+         if( exports != null && exports.satisfies( importedPackage ) ) {
             result.add( holder );
          }
       }
@@ -978,10 +964,6 @@ public class MavenProjectsBundleDeploymentPlan {
       return result;
    }
 
-   private BundleManifest getBundleManifest( Bundle bundle ) {
-      return BundleManifestFactory.createBundleManifest( bundle.getHeaders(), new DummyParserLogger() );
-   }
-
    private List<Artifact> getDeployedMavenProjectArtifacts() {
       final List<Artifact> result = new ArrayList<Artifact>();
       for( DeployedMavenProject deployed : deployedMavenProjects ) {
@@ -1001,17 +983,14 @@ public class MavenProjectsBundleDeploymentPlan {
       return result;
    }
 
-   private ExportedPackage getExportedPackage( Bundle bundle, ImportedPackage importedPackage ) {
-      return getExportedPackage( getBundleManifest( bundle ), importedPackage );
-   }
-
    private ExportedPackage getExportedPackage( BundleManifest manifest, ImportedPackage importedPackage ) {
       ExportedPackage result = null;
       if( manifest != null ) {
          final List<ExportedPackage> exportedPackages = manifest.getExportPackage() != null ? manifest.getExportPackage().getExportedPackages() : new ArrayList<ExportedPackage>();
+         final PackedVersionRange range = PackedVersionRange.of( importedPackage );
          for( ExportedPackage exportedPackage : exportedPackages ) {
             if( exportedPackage.getPackageName().equals( importedPackage.getPackageName() ) ) {
-               if( importedPackage.getVersion().includes( exportedPackage.getVersion() ) ) {
+               if( range.includes( PackedVersion.of( exportedPackage ) ) ) {
                   result = exportedPackage;
                   break;
                }
@@ -5,6 +5,7 @@ import hudson.maven.MavenRequest;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
@@ -30,7 +31,11 @@ import org.eclipse.aether.resolution.DependencyRequest;
 import org.eclipse.aether.util.artifact.JavaScopes;
 import org.eclipse.aether.util.filter.DependencyFilterUtils;
 import org.eclipse.aether.util.filter.ExclusionsDependencyFilter;
+import org.osgi.framework.Constants;
 
+import tools.osgi.analyzer.api.ManifestHeaderReader;
+import tools.osgi.analyzer.api.PackageHeader;
+import tools.osgi.analyzer.api.PackageHeaderParser;
 import tools.osgi.maven.integration.internal.aether.Booter;
 
 import com.springsource.util.common.CaseInsensitiveMap;
@@ -85,6 +90,49 @@ public class MavenUtils {
       }
    }
 
+   /**
+    * Reads only the Export-Package header of the dependency; use {@link #getBundleManifest(Artifact)} for the full
+    * manifest
+    * @return Compact exports of the dependency or <code>null</code> if the jar has no manifest
+    */
+   public static PackageHeader getExportPackageHeader( Artifact dependency ) {
+      try {
+         final JarFile jar = new JarFile( dependency.getFile() );
+         try {
+            final ZipEntry manifestEntry = jar.getEntry( JarFile.MANIFEST_NAME );
+            if( manifestEntry == null ) {
+               return null;
+            }
+            final InputStream input = jar.getInputStream( manifestEntry );
+            return PackageHeaderParser.parseExportPackage( ManifestHeaderReader.read( input, Constants.EXPORT_PACKAGE ).get( Constants.EXPORT_PACKAGE ) );
+         }
+         finally {
+            jar.close();
+         }
+      }
+      catch( Exception exception ) {
+         throw new RuntimeException( String.format( "Error getting exports for dependency: %s", dependency ), exception );
+      }
+   }
+
+   /**
+    * Reads only the Export-Package header of the project; use {@link #getBundleManifest(MavenProject)} for the full
+    * manifest
+    * @return Compact exports of the project or <code>null</code> if the project has no manifest
+    */
+   public static PackageHeader getExportPackageHeader( MavenProject project ) {
+      try {
+         final File manifestFile = getManifestFile( project );
+         if( !manifestFile.exists() ) {
+            return null;
+         }
+         return PackageHeaderParser.parseExportPackage( ManifestHeaderReader.read( manifestFile, Constants.EXPORT_PACKAGE ).get( Constants.EXPORT_PACKAGE ) );
+      }
+      catch( Exception exception ) {
+         throw new RuntimeException( String.format( "Failed getting exports for Maven Project: %s", project.getArtifactId() ), exception );
+      }
+   }
+
    public static Reader getManifestHeadersAsReader( MavenProject project ) {
       try {
          final File manifestFile = getManifestFile( project );
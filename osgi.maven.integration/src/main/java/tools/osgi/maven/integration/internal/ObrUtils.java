@@ -3,6 +3,7 @@ package tools.osgi.maven.integration.internal;
 import java.io.File;
 import java.io.FileInputStream;
 import java.net.URI;
+import java.util.Map;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
@@ -10,6 +11,8 @@ import org.apache.felix.bundlerepository.DataModelHelper;
 import org.apache.felix.bundlerepository.Resource;
 import org.osgi.framework.Constants;
 
+import tools.osgi.analyzer.api.ManifestHeaderReader;
+
 public class ObrUtils {
 
    public static Resource createResource( DataModelHelper dataModelHelper, final File bundleFolder ) {
@@ -21,8 +24,8 @@ public class ObrUtils {
          final File manifestFile = new File( bundleFolder, JarFile.MANIFEST_NAME );
          boolean result = manifestFile.exists();
          if( result ) {
-            final Manifest manifest = new Manifest( new FileInputStream( manifestFile ) );
-            result = manifest.getMainAttributes().getValue( Constants.BUNDLE_SYMBOLICNAME ) != null;
+            final Map<String, String> headers = ManifestHeaderReader.read( manifestFile, Constants.BUNDLE_SYMBOLICNAME );
+            result = headers.get( Constants.BUNDLE_SYMBOLICNAME ) != null;
          }
          return result;
       }